@@ -0,0 +1,275 @@
+package org.openconcerto.modules.badge;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.openconcerto.erp.modules.ModuleManager;
+import org.openconcerto.erp.modules.ModuleVersion;
+import org.openconcerto.sql.model.DBRoot;
+import org.openconcerto.sql.model.SQLRow;
+import org.openconcerto.sql.model.SQLRowListRSH;
+import org.openconcerto.sql.model.SQLSelect;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.model.SQLTableEvent;
+import org.openconcerto.sql.model.SQLTableModifiedListener;
+import org.openconcerto.utils.ThreadFactory;
+
+/**
+ * Index en mémoire des autorisations d'accès, par numéro de carte. Les plages horaires sont
+ * précalculées par jour de la semaine, ainsi la décision ne touche pas la base. L'index est
+ * reconstruit à chaque modification des adhérents ou des plages horaires et périodiquement (pour
+ * les modifications faites par d'autres postes), une erreur de chargement conservant l'index
+ * précédent.
+ */
+public final class BadgeAccessIndex {
+
+    // indexé par Calendar.DAY_OF_WEEK - 1
+    private static final String[] DAYS = { "DIMANCHE", "LUNDI", "MARDI", "MERCREDI", "JEUDI", "VENDREDI", "SAMEDI" };
+    private static final int WINDOWS_COUNT = 3;
+    private static final long RECONCILE_PERIOD = 60;
+
+    public static final class Decision {
+        private final boolean allowed;
+        private final String motif;
+        private final String adherent;
+
+        Decision(final boolean allowed, final String motif, final String adherent) {
+            this.allowed = allowed;
+            this.motif = motif;
+            this.adherent = adherent;
+        }
+
+        public final boolean isAllowed() {
+            return this.allowed;
+        }
+
+        public final String getMotif() {
+            return this.motif;
+        }
+
+        /**
+         * Le nom de l'adhérent associé à la carte.
+         *
+         * @return le nom et le prénom, <code>null</code> si aucun adhérent unique.
+         */
+        public final String getAdherent() {
+            return this.adherent;
+        }
+    }
+
+    private static final class Plage {
+        private final String nom;
+        // [jour][plage] -> { début, fin } en secondes depuis minuit, null si non définie
+        private final int[][][] windows;
+
+        Plage(final SQLRow r) {
+            this.nom = r.getString("NOM");
+            this.windows = new int[DAYS.length][WINDOWS_COUNT][];
+            final Calendar cal = Calendar.getInstance();
+            for (int day = 0; day < DAYS.length; day++) {
+                for (int i = 0; i < WINDOWS_COUNT; i++) {
+                    final Date start = (Date) r.getObject("DEBUT_" + (i + 1) + "_" + DAYS[day]);
+                    final Date end = (Date) r.getObject("FIN_" + (i + 1) + "_" + DAYS[day]);
+                    if (start != null && end != null)
+                        this.windows[day][i] = new int[] { getSecondOfDay(cal, start), getSecondOfDay(cal, end) };
+                }
+            }
+        }
+    }
+
+    private static final class Adherent {
+        private final String nom;
+        private final boolean admin;
+        private final boolean actif;
+        private final Calendar validite;
+        private final Plage plage;
+
+        Adherent(final SQLRow r, final Plage plage) {
+            this.nom = r.getString("NOM") + " " + r.getString("PRENOM");
+            this.admin = r.getBoolean("ADMIN");
+            this.actif = r.getBoolean("ACTIF");
+            this.validite = r.getDate("DATE_VALIDITE_INSCRIPTION");
+            this.plage = plage;
+        }
+
+        final Decision decide(final boolean onlyAdmin, final Calendar now) {
+            // Admin toujours autorisé
+            if (this.admin)
+                return new Decision(true, "Administrateur toujours autorisé", this.nom);
+            if (onlyAdmin)
+                return new Decision(false, "Seul les membres administrateurs sont autorisés!", this.nom);
+            if (!this.actif)
+                return new Decision(false, "La carte de l'adhérent n'est pas active dans sa fiche", this.nom);
+            if (this.validite != null && this.validite.before(now))
+                return new Decision(false, "La date d'autorisation est expirée", this.nom);
+            if (this.plage == null)
+                return new Decision(false, "Aucune plage horaire associée", this.nom);
+
+            final int time = getSecondOfDay(now);
+            final int[][] windows = this.plage.windows[now.get(Calendar.DAY_OF_WEEK) - 1];
+            for (int i = 0; i < windows.length; i++) {
+                final int[] w = windows[i];
+                if (w != null && time > w[0] && time < w[1])
+                    return new Decision(true, "Autorisé sur la plage " + this.plage.nom + " " + (i + 1), this.nom);
+            }
+            return new Decision(false, "Non autorisé sur la plage horaire " + this.plage.nom, this.nom);
+        }
+    }
+
+    private static final class Snapshot {
+        private final Map<String, List<Adherent>> byCard;
+        private final boolean onlyAdmin;
+
+        Snapshot(final Map<String, List<Adherent>> byCard, final boolean onlyAdmin) {
+            this.byCard = byCard;
+            this.onlyAdmin = onlyAdmin;
+        }
+    }
+
+    static int getSecondOfDay(final Calendar cal) {
+        return cal.get(Calendar.HOUR_OF_DAY) * 3600 + cal.get(Calendar.MINUTE) * 60 + cal.get(Calendar.SECOND);
+    }
+
+    static int getSecondOfDay(final Calendar cal, final Date d) {
+        cal.setTime(d);
+        return getSecondOfDay(cal);
+    }
+
+    private final DBRoot root;
+    private final SQLTable tableAdh;
+    private final SQLTable tablePlage;
+    private final SQLTableModifiedListener listener;
+    private final AtomicBoolean reloadPending;
+    private final Runnable reloadRunnable;
+    private ScheduledExecutorService exec;
+    private volatile Snapshot snapshot;
+
+    public BadgeAccessIndex(final DBRoot root) {
+        this.root = root;
+        this.tableAdh = root.findTable("ADHERENT");
+        this.tablePlage = root.findTable("PLAGE_HORAIRE");
+        this.reloadPending = new AtomicBoolean(false);
+        this.reloadRunnable = new Runnable() {
+            @Override
+            public void run() {
+                BadgeAccessIndex.this.reloadPending.set(false);
+                reload();
+            }
+        };
+        this.listener = new SQLTableModifiedListener() {
+            @Override
+            public void tableModified(SQLTableEvent evt) {
+                scheduleReload();
+            }
+        };
+        this.snapshot = null;
+    }
+
+    /**
+     * Charge l'index puis le maintient à jour.
+     */
+    public synchronized void start() {
+        if (this.exec != null)
+            return;
+        this.exec = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(BadgeAccessIndex.class.getSimpleName() + " reload ", true));
+        this.reload();
+        this.tableAdh.addTableModifiedListener(this.listener);
+        this.tablePlage.addTableModifiedListener(this.listener);
+        this.exec.scheduleWithFixedDelay(this.reloadRunnable, RECONCILE_PERIOD, RECONCILE_PERIOD, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (this.exec == null)
+            return;
+        this.tableAdh.removeTableModifiedListener(this.listener);
+        this.tablePlage.removeTableModifiedListener(this.listener);
+        this.exec.shutdown();
+        this.exec = null;
+    }
+
+    private synchronized void scheduleReload() {
+        // plusieurs modifications rapprochées ne provoquent qu'un rechargement
+        if (this.exec != null && this.reloadPending.compareAndSet(false, true))
+            this.exec.execute(this.reloadRunnable);
+    }
+
+    private void reload() {
+        try {
+            this.snapshot = this.load();
+        } catch (Exception e) {
+            // garder l'index précédent, le prochain rechargement réessaiera
+            e.printStackTrace();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Snapshot load() throws Exception {
+        final SQLSelect selPlage = new SQLSelect(this.root.getBase());
+        selPlage.addSelectStar(this.tablePlage);
+        final Map<Integer, Plage> plages = new HashMap<Integer, Plage>();
+        for (final SQLRow r : (List<SQLRow>) this.root.getDBSystemRoot().getDataSource().execute(selPlage.asString(), SQLRowListRSH.createFromSelect(selPlage))) {
+            plages.put(r.getID(), new Plage(r));
+        }
+
+        final SQLSelect selAdh = new SQLSelect(this.root.getBase());
+        selAdh.addSelect(this.tableAdh.getKey());
+        for (final String f : new String[] { "NUMERO_CARTE", "NOM", "PRENOM", "ADMIN", "ACTIF", "DATE_VALIDITE_INSCRIPTION", "ID_PLAGE_HORAIRE" }) {
+            selAdh.addSelect(this.tableAdh.getField(f));
+        }
+        final Map<String, List<Adherent>> byCard = new HashMap<String, List<Adherent>>();
+        for (final SQLRow r : (List<SQLRow>) this.root.getDBSystemRoot().getDataSource().execute(selAdh.asString(), SQLRowListRSH.createFromSelect(selAdh))) {
+            final String card = r.getString("NUMERO_CARTE");
+            if (card == null || card.length() == 0)
+                continue;
+            final Object plageID = r.getObject("ID_PLAGE_HORAIRE");
+            final Plage plage = plageID == null ? null : plages.get(((Number) plageID).intValue());
+            List<Adherent> l = byCard.get(card);
+            if (l == null) {
+                l = new ArrayList<Adherent>(1);
+                byCard.put(card, l);
+            }
+            l.add(new Adherent(r, plage));
+        }
+
+        final boolean onlyAdmin = ModuleManager.getInstance().getFactories().get("org.openconcerto.modules.badge").get(new ModuleVersion(1, 0)).getSQLPreferences(this.root)
+                .getBoolean(Module.ENTREE_PREF, false);
+        return new Snapshot(Collections.unmodifiableMap(byCard), onlyAdmin);
+    }
+
+    public final boolean isLoaded() {
+        return this.snapshot != null;
+    }
+
+    /**
+     * Décide si la carte peut entrer maintenant, sans accès à la base.
+     *
+     * @param cardNumber le numéro de la carte.
+     * @return la décision et son motif.
+     */
+    public final Decision decide(final String cardNumber) {
+        return this.decide(cardNumber, Calendar.getInstance());
+    }
+
+    public final Decision decide(final String cardNumber, final Calendar now) {
+        final Snapshot s = this.snapshot;
+        if (s == null)
+            return new Decision(false, "Liste des adhérents non chargée, carte " + cardNumber + " refusée", null);
+        final List<Adherent> l = s.byCard.get(cardNumber);
+        // Aucun adhérent assigné à cette carte
+        if (l == null)
+            return new Decision(false, "Aucun adhérent associé à la carte " + cardNumber, null);
+        else if (l.size() > 1)
+            return new Decision(false, l.size() + " adhérents sont liés à la même carte " + cardNumber, null);
+        else
+            return l.get(0).decide(s.onlyAdmin, now);
+    }
+}
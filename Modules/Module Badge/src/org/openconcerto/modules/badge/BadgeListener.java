@@ -14,10 +14,6 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.sql.SQLException;
-import java.sql.Time;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.Properties;
@@ -30,16 +26,9 @@ import javax.swing.SwingUtilities;
 import org.openconcerto.erp.config.ComptaPropsConfiguration;
 import org.openconcerto.erp.config.ServerFinderPanel;
 import org.openconcerto.erp.modules.ModuleManager;
-import org.openconcerto.erp.modules.ModuleVersion;
 import org.openconcerto.sql.Configuration;
 import org.openconcerto.sql.element.SQLElement;
-import org.openconcerto.sql.model.SQLBase;
 import org.openconcerto.sql.model.SQLRow;
-import org.openconcerto.sql.model.SQLRowListRSH;
-import org.openconcerto.sql.model.SQLRowValues;
-import org.openconcerto.sql.model.SQLSelect;
-import org.openconcerto.sql.model.SQLTable;
-import org.openconcerto.sql.model.Where;
 import org.openconcerto.sql.preferences.SQLPreferences;
 import org.openconcerto.sql.preferences.UserProps;
 import org.openconcerto.sql.sqlobject.IComboSelectionItem;
@@ -49,6 +38,8 @@ public class BadgeListener implements Runnable {
     private static final int UDP_PORT = 1470;
     private String ip;
     private int relai;
+    private BadgeAccessIndex accessIndex;
+    private EntreeWriter entreeWriter;
 
     protected TrayIcon trayIcon;
 
@@ -90,6 +81,9 @@ public class BadgeListener implements Runnable {
         }
         conf.setUpSocieteDataBaseConnexion(selectedSociete);
 
+        this.accessIndex = new BadgeAccessIndex(conf.getRoot());
+        this.entreeWriter = new EntreeWriter(conf.getRoot().findTable("ENTREE"));
+
     }
 
     private PopupMenu createTrayMenu() {
@@ -144,6 +138,8 @@ public class BadgeListener implements Runnable {
     }
 
     public void startDaemon() {
+        this.accessIndex.start();
+        this.entreeWriter.start();
         Thread t = new Thread(this);
         t.setName("UDP Listener");
         t.start();
@@ -234,125 +230,12 @@ public class BadgeListener implements Runnable {
     }
 
     public boolean isBadgeAllowed(String cardNumber) {
-        SQLBase base = Configuration.getInstance().getBase();
-        SQLSelect sel = new SQLSelect(base);
-        SQLTable tableAdh = Configuration.getInstance().getRoot().findTable("ADHERENT");
-        sel.addSelectStar(tableAdh);
-        sel.setWhere(new Where(tableAdh.getField("NUMERO_CARTE"), "=", cardNumber));
-        List<SQLRow> list = (List<SQLRow>) base.getDataSource().execute(sel.asString(), SQLRowListRSH.createFromSelect(sel));
-
-        String motif = "";
-        Boolean onlyAdmin = ModuleManager.getInstance().getFactories().get("org.openconcerto.modules.badge").get(new ModuleVersion(1, 0)).getSQLPreferences(tableAdh.getDBRoot())
-                .getBoolean(Module.ENTREE_PREF, false);
-        boolean allow = false;
-        SQLRow adh = null;
-        // Aucun adhérent assigné à cette carte
-        if (list == null || list.isEmpty()) {
-            motif = "Aucun adhérent associé à la carte " + cardNumber;
-            System.err.println(motif);
-
-        } else if (list.size() > 1) {
-            motif = list.size() + " adhérents sont liés à la même carte " + cardNumber;
-            System.err.println(motif);
-            Thread.dumpStack();
-        } else {
-
-            for (SQLRow sqlRow : list) {
-
-                adh = sqlRow;
-
-                // Admin toujours autorisé
-                if (sqlRow.getBoolean("ADMIN")) {
-                    allow = true;
-                    motif = "Administrateur toujours autorisé";
-                    break;
-                }
-
-                if (onlyAdmin) {
-                    motif = "Seul les membres administrateurs sont autorisés!";
-                    break;
-                }
-
-                if (!sqlRow.getBoolean("ACTIF")) {
-                    motif = "La carte de l'adhérent n'est pas active dans sa fiche";
-                    break;
-                }
-
-                Calendar cal = Calendar.getInstance();
-                final Date d = cal.getTime();
-                final Calendar dateValidite = sqlRow.getDate("DATE_VALIDITE_INSCRIPTION");
-
-                if (dateValidite != null && dateValidite.before(cal)) {
-                    motif = "La date d'autorisation est expirée";
-                    break;
-                }
-
-                SQLRow rowPlage = sqlRow.getForeignRow("ID_PLAGE_HORAIRE");
-
-                if (rowPlage != null) {
-                    Time time = new Time(cal.get(Calendar.HOUR_OF_DAY), cal.get(Calendar.MINUTE), cal.get(Calendar.SECOND));
-                    SimpleDateFormat dateFormat = new SimpleDateFormat("EEEE");
-                    String day = dateFormat.format(d).toUpperCase();
-                    {
-                        Time d1 = (Time) rowPlage.getObject("DEBUT_1_" + day);
-                        Time f1 = (Time) rowPlage.getObject("FIN_1_" + day);
-                        if (d1 != null && f1 != null) {
-                            if (time.after(d1) && time.before(f1)) {
-                                allow = true;
-                                motif = "Autorisé sur la plage " + rowPlage.getString("NOM") + " 1";
-                                break;
-                            }
-                        }
-                    }
-                    {
-                        Time d1 = (Time) rowPlage.getObject("DEBUT_2_" + day);
-                        Time f1 = (Time) rowPlage.getObject("FIN_2_" + day);
-
-                        if (d1 != null && f1 != null) {
-                            if (time.after(d1) && time.before(f1)) {
-                                allow = true;
-                                motif = "Autorisé sur la plage " + rowPlage.getString("NOM") + " 2";
-                                break;
-                            }
-                        }
-                    }
-
-                    {
-                        Time d1 = (Time) rowPlage.getObject("DEBUT_3_" + day);
-                        Time f1 = (Time) rowPlage.getObject("FIN_3_" + day);
-
-                        if (d1 != null && f1 != null) {
-                            if (time.after(d1) && time.before(f1)) {
-                                allow = true;
-                                motif = "Autorisé sur la plage " + rowPlage.getString("NOM") + " 3";
-                                break;
-                            }
-                        }
-                    }
-                    motif = "Non autorisé sur la plage horaire " + rowPlage.getString("NOM");
-                } else {
-                    motif = "Aucune plage horaire associée";
-                }
-            }
-        }
-
+        final BadgeAccessIndex.Decision decision = this.accessIndex.decide(cardNumber);
+        if (decision.getAdherent() == null)
+            System.err.println(decision.getMotif());
         // Création de l'entrée dans la table
-        SQLTable tableEntree = Configuration.getInstance().getRoot().findTable("ENTREE");
-        SQLRowValues rowVals = new SQLRowValues(tableEntree);
-        rowVals.put("DATE", new Date());
-        rowVals.put("NUMERO_CARTE", cardNumber);
-        rowVals.put("ACCEPTE", allow);
-        rowVals.put("MOTIF", motif);
-
-        if (adh != null) {
-            rowVals.put("ADHERENT", adh.getString("NOM") + " " + adh.getString("PRENOM"));
-        }
-        try {
-            rowVals.commit();
-        } catch (SQLException exn) {
-            exn.printStackTrace();
-        }
-        return allow;
+        this.entreeWriter.add(new Date(), cardNumber, decision);
+        return decision.isAllowed();
     }
 
 }
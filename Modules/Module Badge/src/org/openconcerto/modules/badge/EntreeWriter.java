@@ -0,0 +1,88 @@
+package org.openconcerto.modules.badge;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.openconcerto.sql.model.SQLRowValues;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.utils.SQLUtils;
+import org.openconcerto.sql.utils.SQLUtils.SQLFactory;
+
+/**
+ * Enregistre les entrées hors du thread d'écoute des badges, par lots dans une seule transaction.
+ * En cas d'erreur le lot est conservé et réessayé plus tard.
+ */
+final class EntreeWriter implements Runnable {
+
+    private static final int BATCH_MAX = 200;
+    private static final long RETRY_DELAY = 10 * 1000;
+
+    private final SQLTable tableEntree;
+    private final BlockingQueue<SQLRowValues> queue;
+
+    EntreeWriter(final SQLTable tableEntree) {
+        this.tableEntree = tableEntree;
+        this.queue = new LinkedBlockingQueue<SQLRowValues>();
+    }
+
+    public void start() {
+        final Thread t = new Thread(this);
+        t.setName("Entree Writer");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void add(final Date date, final String cardNumber, final BadgeAccessIndex.Decision decision) {
+        final SQLRowValues rowVals = new SQLRowValues(this.tableEntree);
+        rowVals.put("DATE", date);
+        rowVals.put("NUMERO_CARTE", cardNumber);
+        rowVals.put("ACCEPTE", decision.isAllowed());
+        rowVals.put("MOTIF", decision.getMotif());
+        if (decision.getAdherent() != null) {
+            rowVals.put("ADHERENT", decision.getAdherent());
+        }
+        this.queue.add(rowVals);
+    }
+
+    @Override
+    public void run() {
+        final List<SQLRowValues> batch = new ArrayList<SQLRowValues>(BATCH_MAX);
+        while (true) {
+            try {
+                if (batch.isEmpty()) {
+                    batch.add(this.queue.take());
+                    this.queue.drainTo(batch, BATCH_MAX - 1);
+                }
+                this.write(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                System.err.println(e.getMessage());
+                return;
+            } catch (Exception e) {
+                e.printStackTrace();
+                try {
+                    Thread.sleep(RETRY_DELAY);
+                } catch (InterruptedException e1) {
+                    System.err.println(e1.getMessage());
+                    return;
+                }
+            }
+        }
+    }
+
+    private void write(final List<SQLRowValues> batch) throws SQLException {
+        SQLUtils.executeAtomic(this.tableEntree.getDBSystemRoot().getDataSource(), new SQLFactory<Object>() {
+            @Override
+            public Object create() throws SQLException {
+                for (final SQLRowValues rowVals : batch) {
+                    rowVals.insert();
+                }
+                return null;
+            }
+        });
+    }
+}
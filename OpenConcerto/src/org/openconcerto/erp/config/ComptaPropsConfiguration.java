@@ -197,6 +197,7 @@ import org.openconcerto.erp.injector.FactureCommandeSQLInjector;
 import org.openconcerto.erp.preferences.DefaultNXProps;
 import org.openconcerto.erp.preferences.TemplateNXProps;
 import org.openconcerto.erp.storage.CloudStorageEngine;
+import org.openconcerto.erp.storage.StorageDispatcher;
 import org.openconcerto.erp.storage.StorageEngines;
 import org.jopendocument.link.OOConnexion;
 import org.openconcerto.sql.ShowAs;
@@ -424,6 +425,8 @@ public final class ComptaPropsConfiguration extends ComptaBasePropsConfiguration
                 progress.dispose();
             }
             StorageEngines.getInstance().addEngine(new CloudStorageEngine());
+            // reprendre les envois interrompus
+            StorageDispatcher.getInstance(this.getConfDir());
         } else {
             // Local database
             setProperty("server.login", "openconcerto");
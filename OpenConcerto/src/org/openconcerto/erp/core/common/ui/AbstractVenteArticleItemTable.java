@@ -16,6 +16,7 @@
 import org.openconcerto.erp.config.ComptaPropsConfiguration;
 import org.openconcerto.erp.core.finance.tax.model.TaxeCache;
 import org.openconcerto.erp.core.sales.product.element.ReferenceArticleSQLElement;
+import org.openconcerto.erp.core.sales.product.model.ArticleTarifCache;
 import org.openconcerto.erp.core.sales.product.ui.ArticleRowValuesRenderer;
 import org.openconcerto.erp.core.sales.product.ui.QteMultipleRowValuesRenderer;
 import org.openconcerto.erp.core.sales.product.ui.QteUnitRowValuesRenderer;
@@ -45,7 +46,7 @@ import java.awt.Component;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -210,7 +211,6 @@ public abstract class AbstractVenteArticleItemTable extends AbstractArticleItemT
         return visibilityMap;
     }
 
-    private SQLTable tableArticleTarif = Configuration.getInstance().getBase().getTable("ARTICLE_TARIF");
     private SQLTable tableArticle = Configuration.getInstance().getBase().getTable("ARTICLE");
 
     protected void init() {
@@ -1057,8 +1057,8 @@ public abstract class AbstractVenteArticleItemTable extends AbstractArticleItemT
             }
             tableElement_PrixMetrique1_VenteHT.setModifier(new CellDynamicModifier() {
                 public Object computeValueFrom(SQLRowValues row) {
-                    if (!row.getForeign("ID_DEVISE").isUndefined()) {
-                        BigDecimal t = (BigDecimal) row.getForeign("ID_DEVISE").getObject("TAUX");
+                    final BigDecimal t = ArticleTarifCache.getCache().getTaux(row);
+                    if (t != null) {
                         BigDecimal bigDecimal = (BigDecimal) row.getObject("PV_U_DEVISE");
 
                         BigDecimal result = (t.equals(BigDecimal.ZERO) ? row.getBigDecimal("PRIX_METRIQUE_VT_1") : bigDecimal.divide(t, DecimalUtils.HIGH_PRECISION));
@@ -1166,21 +1166,15 @@ public abstract class AbstractVenteArticleItemTable extends AbstractArticleItemT
     protected Object tarifCompletion(SQLRowAccessor row, String field) {
 
         if (getTarif() != null && !getTarif().isUndefined()) {
-            Collection<? extends SQLRowAccessor> rows = row.getReferentRows(tableArticleTarif);
-
-            SQLRowAccessor rowTarif = null;
-            for (SQLRowAccessor rowVals : rows) {
-                if (rowVals.getInt("ID_TARIF") == getTarif().getID()) {
-                    rowTarif = rowVals;
-                }
-            }
+            final ArticleTarifCache cache = ArticleTarifCache.getCache();
+            final SQLRowAccessor rowTarif = cache.getArticleTarif(row.getID(), getTarif().getID());
 
             if (rowTarif == null) {
-                if (!getTarif().getForeign("ID_DEVISE").isUndefined()) {
+                final BigDecimal t = cache.getTaux(getTarif());
+                if (t != null) {
                     if ((field.equalsIgnoreCase("ID_DEVISE"))) {
                         return getTarif().getObject("ID_DEVISE");
                     } else if ((field.equalsIgnoreCase("PV_U_DEVISE"))) {
-                        BigDecimal t = (BigDecimal) getTarif().getForeign("ID_DEVISE").getObject("TAUX");
 
                         BigDecimal result = row.getBigDecimal("PRIX_METRIQUE_VT_1").divide(tauxConversionLocale, DecimalUtils.HIGH_PRECISION);
                         result = result.multiply(t);
@@ -1191,10 +1185,10 @@ public abstract class AbstractVenteArticleItemTable extends AbstractArticleItemT
                 return null;
             }
             if (field.equalsIgnoreCase("PRIX_METRIQUE_VT_1")) {
-                if (rowTarif.getInt("ID_DEVISE") == SQLRow.UNDEFINED_ID)
+                final BigDecimal t = cache.getTaux(rowTarif);
+                if (t == null)
                     return rowTarif.getObject(field);
                 else {
-                    BigDecimal t = (BigDecimal) rowTarif.getForeign("ID_DEVISE").getObject("TAUX");
                     BigDecimal result = rowTarif.getBigDecimal(field).divide(t, DecimalUtils.HIGH_PRECISION);
                     result = result.multiply(tauxConversionLocale);
                     return result.setScale(row.getTable().getField(field).getType().getDecimalDigits(), RoundingMode.HALF_UP);
@@ -1226,6 +1220,8 @@ public abstract class AbstractVenteArticleItemTable extends AbstractArticleItemT
             super.setTarif(rowValuesTarif, ask);
             if (ask && getRowValuesTable().getRowCount() > 0 && JOptionPane.showConfirmDialog(null, "Appliquer les tarifs associés au client sur les lignes déjà présentes?") == JOptionPane.YES_OPTION) {
                 int nbRows = this.table.getRowCount();
+                // articles et tarifs de toutes les lignes en une seule fois
+                final List<Integer> idsArticle = new ArrayList<Integer>(nbRows);
                 for (int i = 0; i < nbRows; i++) {
                     SQLRowValues rowVals = getRowValuesTable().getRowValuesTableModel().getRowValuesAt(i);
 
@@ -1237,31 +1233,28 @@ public abstract class AbstractVenteArticleItemTable extends AbstractArticleItemT
                         }
                     }
 
-                    int idArticle = ReferenceArticleSQLElement.getIdForCNM(rowValsArticle, true);
-                    SQLRow rowArticle = tableArticle.getRow(idArticle);
+                    idsArticle.add(ReferenceArticleSQLElement.getIdForCNM(rowValsArticle, true));
+                }
+                final Map<Integer, SQLRow> articles = tableArticle.getRows(idsArticle);
+                final Map<Integer, SQLRowAccessor> tarifs = getTarif() == null ? Collections.<Integer, SQLRowAccessor> emptyMap() : ArticleTarifCache.getCache().resolve(idsArticle,
+                        getTarif().getID());
+                for (int i = 0; i < nbRows; i++) {
+                    SQLRow rowArticle = articles.get(idsArticle.get(i));
 
-                    Collection<? extends SQLRowAccessor> rows = rowArticle.getReferentRows(tableArticleTarif);
                     boolean tarifFind = false;
-                    if (getTarif() != null) {
-                        for (SQLRowAccessor rowValsTarif : rows) {
-                            if (rowValsTarif.getInt("ID_TARIF") == getTarif().getID()) {
-                                if (rowValsTarif.getForeign("ID_DEVISE").isUndefined()) {
-                                    if (!rowValsTarif.getForeign("ID_TAXE").isUndefined()) {
-                                        getRowValuesTable().getRowValuesTableModel().putValue(rowValsTarif.getObject("ID_TAXE"), i, "ID_TAXE");
-                                    }
-                                    getRowValuesTable().getRowValuesTableModel().putValue(rowValsTarif.getObject("PRIX_METRIQUE_VT_1"), i, "PRIX_METRIQUE_VT_1");
-                                } else {
-                                    if (!rowValsTarif.getForeign("ID_TAXE").isUndefined()) {
-                                        getRowValuesTable().getRowValuesTableModel().putValue(rowValsTarif.getObject("ID_TAXE"), i, "ID_TAXE");
-                                    }
-                                    getRowValuesTable().getRowValuesTableModel().putValue(rowValsTarif.getObject("ID_DEVISE"), i, "ID_DEVISE");
-                                    getRowValuesTable().getRowValuesTableModel().putValue(tarifCompletion(rowArticle, "PV_U_DEVISE"), i, "PV_U_DEVISE");
-                                    getRowValuesTable().getRowValuesTableModel().putValue(tarifCompletion(rowArticle, "PRIX_METRIQUE_VT_1"), i, "PRIX_METRIQUE_VT_1");
-                                }
-                                tarifFind = true;
-                                break;
-                            }
+                    final SQLRowAccessor rowValsTarif = tarifs.get(idsArticle.get(i));
+                    if (rowValsTarif != null) {
+                        if (!rowValsTarif.getForeign("ID_TAXE").isUndefined()) {
+                            getRowValuesTable().getRowValuesTableModel().putValue(rowValsTarif.getObject("ID_TAXE"), i, "ID_TAXE");
+                        }
+                        if (ArticleTarifCache.getCache().getTaux(rowValsTarif) == null) {
+                            getRowValuesTable().getRowValuesTableModel().putValue(rowValsTarif.getObject("PRIX_METRIQUE_VT_1"), i, "PRIX_METRIQUE_VT_1");
+                        } else {
+                            getRowValuesTable().getRowValuesTableModel().putValue(rowValsTarif.getObject("ID_DEVISE"), i, "ID_DEVISE");
+                            getRowValuesTable().getRowValuesTableModel().putValue(tarifCompletion(rowArticle, "PV_U_DEVISE"), i, "PV_U_DEVISE");
+                            getRowValuesTable().getRowValuesTableModel().putValue(tarifCompletion(rowArticle, "PRIX_METRIQUE_VT_1"), i, "PRIX_METRIQUE_VT_1");
                         }
+                        tarifFind = true;
                     }
                     if (!tarifFind) {
                         getRowValuesTable().getRowValuesTableModel().putValue(rowArticle.getObject("PRIX_METRIQUE_VT_1"), i, "PRIX_METRIQUE_VT_1");
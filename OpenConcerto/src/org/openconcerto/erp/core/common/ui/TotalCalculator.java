@@ -16,15 +16,19 @@
 import org.openconcerto.erp.core.finance.accounting.element.ComptePCESQLElement;
 import org.openconcerto.erp.core.finance.tax.model.TaxeCache;
 import org.openconcerto.sql.Configuration;
+import org.openconcerto.sql.model.DBRoot;
 import org.openconcerto.sql.model.SQLRow;
 import org.openconcerto.sql.model.SQLRowAccessor;
 import org.openconcerto.sql.model.SQLRowValues;
 import org.openconcerto.sql.model.SQLRowValuesListFetcher;
 import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.model.SQLTableEvent;
+import org.openconcerto.sql.model.SQLTableModifiedListener;
 import org.openconcerto.utils.DecimalUtils;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -35,11 +39,123 @@ public class TotalCalculator {
 
     private static String FIELD_SERVICE = "SERVICE";
     private static String FIELD_POIDS = "T_POIDS";
+
+    /**
+     * Comptes par défaut de PREFS_COMPTE et comptes des TVA, partagés par toutes les instances.
+     * L'instantané est jeté dès que PREFS_COMPTE ou TAXE sont modifiées.
+     */
+    private static final class PrefsSnapshot {
+
+        private static final Map<SQLTable, PrefsSnapshot> SNAPSHOTS = new HashMap<SQLTable, PrefsSnapshot>();
+
+        static synchronized PrefsSnapshot get() {
+            final SQLTable tablePrefCompte = Configuration.getInstance().getRoot().findTable("PREFS_COMPTE");
+            PrefsSnapshot res = SNAPSHOTS.get(tablePrefCompte);
+            if (res == null) {
+                if (!SNAPSHOTS.containsKey(tablePrefCompte)) {
+                    final SQLTableModifiedListener l = new SQLTableModifiedListener() {
+                        @Override
+                        public void tableModified(SQLTableEvent evt) {
+                            synchronized (PrefsSnapshot.class) {
+                                SNAPSHOTS.put(tablePrefCompte, null);
+                            }
+                        }
+                    };
+                    tablePrefCompte.addTableModifiedListener(l);
+                    tablePrefCompte.getDBRoot().findTable("TAXE").addTableModifiedListener(l);
+                }
+                res = new PrefsSnapshot(tablePrefCompte);
+                SNAPSHOTS.put(tablePrefCompte, res);
+            }
+            return res;
+        }
+
+        private static SQLRowAccessor getCompte(final SQLRow rowPrefsCompte, final String field, final String defaultName) {
+            SQLRowAccessor res = rowPrefsCompte.getForeign(field);
+            if (res == null || res.isUndefined()) {
+                try {
+                    res = ComptePCESQLElement.getRowComptePceDefault(defaultName);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            return res;
+        }
+
+        private final SQLRowAccessor cptService, cptProduit, cptTVACollecte, cptTVADeductible, cptAchat;
+        private final Map<Integer, SQLRowAccessor> mapTVA;
+
+        private PrefsSnapshot(final SQLTable tablePrefCompte) {
+            final SQLRow rowPrefsCompte = tablePrefCompte.getRow(2);
+            this.cptService = getCompte(rowPrefsCompte, "ID_COMPTE_PCE_VENTE_SERVICE", "VentesServices");
+            this.cptProduit = getCompte(rowPrefsCompte, "ID_COMPTE_PCE_VENTE_PRODUIT", "VentesProduits");
+            this.cptTVACollecte = getCompte(rowPrefsCompte, "ID_COMPTE_PCE_TVA_VENTE", "TVACollectee");
+            this.cptTVADeductible = getCompte(rowPrefsCompte, "ID_COMPTE_PCE_TVA_ACHAT", "TVADeductible");
+            this.cptAchat = getCompte(rowPrefsCompte, "ID_COMPTE_PCE_ACHAT", "Achats");
+            this.mapTVA = Collections.unmodifiableMap(fetchTVA(tablePrefCompte.getDBRoot()));
+        }
+
+        /**
+         * Mise en cache des comptes de TVA
+         */
+        private static Map<Integer, SQLRowAccessor> fetchTVA(final DBRoot root) {
+            final SQLTable tvaTable = root.findTable("TAXE");
+            final SQLTable compteTable = root.findTable("COMPTE_PCE");
+            final Map<Integer, SQLRowAccessor> mapTVA = new HashMap<Integer, SQLRowAccessor>();
+            SQLRowValues rowVals = new SQLRowValues(tvaTable);
+            SQLRowValues rowValsC1 = new SQLRowValues(compteTable);
+            rowValsC1.put("NUMERO", null);
+            rowValsC1.put("ID", null);
+
+            SQLRowValues rowValsC2 = new SQLRowValues(compteTable);
+            rowValsC2.put("NUMERO", null);
+            rowValsC2.put("ID", null);
+
+            rowVals.put(tvaTable.getKey().getName(), null);
+            rowVals.put("ID_COMPTE_PCE_COLLECTE", rowValsC1);
+            rowVals.put("ID_COMPTE_PCE_DED", rowValsC2);
+
+            SQLRowValuesListFetcher fetch = SQLRowValuesListFetcher.create(rowVals);
+            List<SQLRowValues> rowValsList = fetch.fetch();
+
+            for (SQLRowValues sqlRowValues : rowValsList) {
+                mapTVA.put(sqlRowValues.getID(), sqlRowValues);
+            }
+            return mapTVA;
+        }
+    }
+
+    /**
+     * Contribution d'une ligne avant application de la remise. Une ligne ne dépend que de ses
+     * valeurs et de son article, elle peut donc être conservée tant que la ligne n'est pas
+     * modifiée.
+     */
+    public static final class Line {
+        private final BigDecimal ht, ha, devise, poids;
+        private final boolean service;
+        private final SQLRowAccessor compte;
+        private final Integer idTVA;
+
+        private Line(BigDecimal ht, BigDecimal ha, BigDecimal devise, BigDecimal poids, boolean service, SQLRowAccessor compte, Integer idTVA) {
+            this.ht = ht;
+            this.ha = ha;
+            this.devise = devise;
+            this.poids = poids;
+            this.service = service;
+            this.compte = compte;
+            this.idTVA = idTVA;
+        }
+
+        public final BigDecimal getTotalHT() {
+            return this.ht;
+        }
+    }
+
     private final String fieldHT, fieldHA, fieldDevise;
 
     private SQLRowAccessor rowDefaultCptProduit, rowDefaultCptService, rowDefaultCptTVACollecte, rowDefaultCptTVADeductible, rowDefaultCptAchat;
 
-    private double totalPoids;
+    private BigDecimal totalPoids;
 
     private BigDecimal totalDevise, totalDeviseSel;
     private BigDecimal totalHA, totalHASel;
@@ -60,6 +176,8 @@ public class TotalCalculator {
     private Boolean bServiceActive;
     private BigDecimal totalHTAvantRemise;
 
+    private final Map<Integer, SQLRowAccessor> mapTVA;
+
     public TotalCalculator(String fieldHA, String fieldHT, String fieldDeviseTotal) {
         this(fieldHA, fieldHT, fieldDeviseTotal, false, null);
     }
@@ -76,59 +194,57 @@ public class TotalCalculator {
         this.fieldDevise = fieldDeviseTotal;
         this.fieldHA = fieldHA;
         this.fieldHT = fieldHT;
-        final SQLTable tablePrefCompte = Configuration.getInstance().getRoot().findTable("PREFS_COMPTE");
-        final SQLRow rowPrefsCompte = tablePrefCompte.getRow(2);
 
         // Comptes par défaut
-        this.rowDefaultCptService = rowPrefsCompte.getForeign("ID_COMPTE_PCE_VENTE_SERVICE");
-        if (this.rowDefaultCptService == null || this.rowDefaultCptService.isUndefined()) {
-            try {
-                this.rowDefaultCptService = ComptePCESQLElement.getRowComptePceDefault("VentesServices");
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-
-        this.rowDefaultCptProduit = rowPrefsCompte.getForeign("ID_COMPTE_PCE_VENTE_PRODUIT");
-        if (this.rowDefaultCptProduit == null || this.rowDefaultCptProduit.isUndefined()) {
-            try {
-                this.rowDefaultCptProduit = ComptePCESQLElement.getRowComptePceDefault("VentesProduits");
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-
-        this.rowDefaultCptTVACollecte = rowPrefsCompte.getForeign("ID_COMPTE_PCE_TVA_VENTE");
-        if (this.rowDefaultCptTVACollecte == null || this.rowDefaultCptTVACollecte.isUndefined()) {
-            try {
-                this.rowDefaultCptTVACollecte = ComptePCESQLElement.getRowComptePceDefault("TVACollectee");
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-
-        this.rowDefaultCptTVADeductible = rowPrefsCompte.getForeign("ID_COMPTE_PCE_TVA_ACHAT");
-        if (this.rowDefaultCptTVADeductible == null || this.rowDefaultCptTVADeductible.isUndefined()) {
-            try {
-                this.rowDefaultCptTVADeductible = ComptePCESQLElement.getRowComptePceDefault("TVADeductible");
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-
+        final PrefsSnapshot prefs = PrefsSnapshot.get();
+        this.rowDefaultCptService = prefs.cptService;
+        this.rowDefaultCptProduit = prefs.cptProduit;
+        this.rowDefaultCptTVACollecte = prefs.cptTVACollecte;
+        this.rowDefaultCptTVADeductible = prefs.cptTVADeductible;
         if (defaultCompte == null || defaultCompte.isUndefined()) {
-            this.rowDefaultCptAchat = rowPrefsCompte.getForeign("ID_COMPTE_PCE_ACHAT");
-            if (this.rowDefaultCptAchat == null || this.rowDefaultCptAchat.isUndefined()) {
-                try {
-                    this.rowDefaultCptAchat = ComptePCESQLElement.getRowComptePceDefault("Achats");
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
+            this.rowDefaultCptAchat = prefs.cptAchat;
         } else {
             this.rowDefaultCptAchat = defaultCompte;
         }
+        this.mapTVA = prefs.mapTVA;
+    }
 
+    /**
+     * Copie des totaux courants, permet par exemple d'appeler {@link #checkResult()} sans altérer
+     * un calcul maintenu ligne à ligne.
+     * 
+     * @param c le calcul à copier.
+     */
+    public TotalCalculator(TotalCalculator c) {
+        this.achat = c.achat;
+        this.fieldDevise = c.fieldDevise;
+        this.fieldHA = c.fieldHA;
+        this.fieldHT = c.fieldHT;
+        this.rowDefaultCptService = c.rowDefaultCptService;
+        this.rowDefaultCptProduit = c.rowDefaultCptProduit;
+        this.rowDefaultCptTVACollecte = c.rowDefaultCptTVACollecte;
+        this.rowDefaultCptTVADeductible = c.rowDefaultCptTVADeductible;
+        this.rowDefaultCptAchat = c.rowDefaultCptAchat;
+        this.mapTVA = c.mapTVA;
+
+        this.remiseHT = c.remiseHT;
+        this.remiseRestante = c.remiseRestante;
+        this.totalHTAvantRemise = c.totalHTAvantRemise;
+        this.selectedRows = c.selectedRows;
+        this.bServiceActive = c.bServiceActive;
+        this.totalTTC = c.totalTTC;
+        this.totalTTCSel = c.totalTTCSel;
+        this.totalHA = c.totalHA;
+        this.totalHASel = c.totalHASel;
+        this.totalService = c.totalService;
+        this.totalServiceSel = c.totalServiceSel;
+        this.totalDevise = c.totalDevise;
+        this.totalDeviseSel = c.totalDeviseSel;
+        this.totalPoids = c.totalPoids;
+        this.mapHt.putAll(c.mapHt);
+        this.mapHtSel.putAll(c.mapHtSel);
+        this.mapHtTVA.putAll(c.mapHtTVA);
+        this.mapHtTVASel.putAll(c.mapHtTVASel);
     }
 
     /**
@@ -174,7 +290,7 @@ public class TotalCalculator {
         this.totalDeviseSel = BigDecimal.ZERO;
         this.totalDevise = BigDecimal.ZERO;
 
-        this.totalPoids = 0;
+        this.totalPoids = BigDecimal.ZERO;
 
         // Total des HT par comptes
         this.mapHt.clear();
@@ -191,40 +307,10 @@ public class TotalCalculator {
     }
 
     public void addEchantillon(BigDecimal ht, SQLRowAccessor tva) {
-        addHT(ht, tva, this.rowDefaultCptProduit, false);
+        addHT(ht, tva, this.rowDefaultCptProduit, true, false, false);
     }
 
-    private Map<Integer, SQLRowAccessor> mapTVA;
-    final SQLTable tvaTable = Configuration.getInstance().getRoot().findTable("TAXE");
-    final SQLTable compteTable = Configuration.getInstance().getRoot().findTable("COMPTE_PCE");
-
-    /**
-     * Mise en cache des comptes de TVA
-     */
-    private void fetchTVA() {
-        mapTVA = new HashMap<Integer, SQLRowAccessor>();
-        SQLRowValues rowVals = new SQLRowValues(tvaTable);
-        SQLRowValues rowValsC1 = new SQLRowValues(compteTable);
-        rowValsC1.put("NUMERO", null);
-        rowValsC1.put("ID", null);
-
-        SQLRowValues rowValsC2 = new SQLRowValues(compteTable);
-        rowValsC2.put("NUMERO", null);
-        rowValsC2.put("ID", null);
-
-        rowVals.put(tvaTable.getKey().getName(), null);
-        rowVals.put("ID_COMPTE_PCE_COLLECTE", rowValsC1);
-        rowVals.put("ID_COMPTE_PCE_DED", rowValsC2);
-
-        SQLRowValuesListFetcher fetch = SQLRowValuesListFetcher.create(rowVals);
-        List<SQLRowValues> rowValsList = fetch.fetch();
-
-        for (SQLRowValues sqlRowValues : rowValsList) {
-            mapTVA.put(sqlRowValues.getID(), sqlRowValues);
-        }
-    }
-
-    private void addHT(BigDecimal ht, SQLRowAccessor tva, SQLRowAccessor cptArticle, boolean selection) {
+    private void addHT(BigDecimal ht, SQLRowAccessor tva, SQLRowAccessor cptArticle, boolean global, boolean selection, boolean remove) {
 
         BigDecimal ttc;
         BigDecimal totalTVA;
@@ -237,6 +323,12 @@ public class TotalCalculator {
             ttc = tauxTVA.add(BigDecimal.ONE).multiply(ht, DecimalUtils.HIGH_PRECISION);
             totalTVA = ttc.subtract(ht);
         }
+        // computed from the positive amount to remove exactly what was added
+        if (remove) {
+            ht = ht.negate();
+            ttc = ttc.negate();
+            totalTVA = totalTVA.negate();
+        }
 
         if (tva != null && !tva.isUndefined()) {
             SQLRowAccessor rowCptTva;
@@ -251,40 +343,37 @@ public class TotalCalculator {
                     rowCptTva = this.rowDefaultCptTVACollecte;
                 }
             }
-            if (mapHtTVA.get(rowCptTva) == null) {
-                mapHtTVA.put(rowCptTva, totalTVA);
-            } else {
-                BigDecimal l = mapHtTVA.get(rowCptTva);
-                mapHtTVA.put(rowCptTva, l.add(totalTVA));
+            if (global) {
+                add(this.mapHtTVA, rowCptTva, totalTVA, remove);
             }
             if (selection) {
-                if (mapHtTVASel.get(rowCptTva) == null) {
-                    mapHtTVASel.put(rowCptTva, totalTVA);
-                } else {
-                    BigDecimal l = mapHtTVASel.get(rowCptTva);
-                    mapHtTVASel.put(rowCptTva, l.add(totalTVA));
-                }
+                add(this.mapHtTVASel, rowCptTva, totalTVA, remove);
             }
         }
 
-        if (mapHt.get(cptArticle) == null) {
-            mapHt.put(cptArticle, ht);
-        } else {
-            BigDecimal l = mapHt.get(cptArticle);
-            mapHt.put(cptArticle, l.add(ht));
+        if (global) {
+            add(this.mapHt, cptArticle, ht, remove);
+            this.totalTTC = this.totalTTC.add(ttc);
         }
 
-        this.totalTTC = this.totalTTC.add(ttc);
-
         if (selection) {
+            add(this.mapHtSel, cptArticle, ht, remove);
+            this.totalTTCSel = this.totalTTCSel.add(ttc);
+        }
+    }
 
-            if (mapHtSel.get(cptArticle) == null) {
-                mapHtSel.put(cptArticle, ht);
+    private static void add(final Map<SQLRowAccessor, BigDecimal> m, final SQLRowAccessor cpt, final BigDecimal amount, final boolean remove) {
+        final BigDecimal l = m.get(cpt);
+        if (l == null) {
+            m.put(cpt, amount);
+        } else {
+            final BigDecimal newAmount = l.add(amount);
+            // a zero entry adds nothing to the rounded totals, forget accounts no longer used
+            if (remove && newAmount.signum() == 0) {
+                m.remove(cpt);
             } else {
-                BigDecimal l = mapHtSel.get(cptArticle);
-                mapHtSel.put(cptArticle, l.add(ht));
+                m.put(cpt, newAmount);
             }
-            this.totalTTCSel = this.totalTTCSel.add(ttc);
         }
     }
 
@@ -302,6 +391,17 @@ public class TotalCalculator {
     }
 
     public void addLine(SQLRowAccessor rowAccessorLine, SQLRowAccessor article, int lineNumber, boolean last) {
+        addLine(createLine(rowAccessorLine, article), lineNumber, last);
+    }
+
+    /**
+     * Calcule la contribution d'une ligne sans l'ajouter aux totaux.
+     * 
+     * @param rowAccessorLine la ligne.
+     * @param article l'article de la ligne avec ses comptes, peut être <code>null</code>.
+     * @return la contribution de la ligne, à passer à {@link #addLine(Line, int, boolean)}.
+     */
+    public Line createLine(SQLRowAccessor rowAccessorLine, SQLRowAccessor article) {
 
         // Total HT de la ligne
         BigDecimal totalLineHT = rowAccessorLine.getObject(fieldHT) == null ? BigDecimal.ZERO : (BigDecimal) rowAccessorLine.getObject(fieldHT);
@@ -316,22 +416,6 @@ public class TotalCalculator {
 
         Number nPoids = (Number) rowAccessorLine.getObject(FIELD_POIDS);
 
-        // Si il y a une remise à appliquer
-        if (this.remiseHT != 0 && this.remiseRestante > 0 && this.totalHTAvantRemise != null && this.totalHTAvantRemise.signum() != 0) {
-
-            // Si c'est la derniere ligne, on applique le restant de la remise
-            if (last) {
-                totalLineHT = totalLineHT.subtract(new BigDecimal(this.remiseRestante).movePointLeft(2));
-                this.remiseRestante = 0;
-            } else {
-                BigDecimal percent = totalLineHT.divide(this.totalHTAvantRemise, DecimalUtils.HIGH_PRECISION);
-
-                BigDecimal remiseApply = percent.multiply(new BigDecimal(this.remiseHT), DecimalUtils.HIGH_PRECISION).setScale(0, RoundingMode.HALF_UP);
-                totalLineHT = totalLineHT.subtract(remiseApply.movePointLeft(2));
-                this.remiseRestante -= remiseApply.longValue();
-            }
-        }
-
         SQLRowAccessor cpt = (achat ? this.rowDefaultCptAchat : this.rowDefaultCptProduit);
         if (article != null && !article.isUndefined()) {
             String suffix = (this.achat ? "_ACHAT" : "");
@@ -355,53 +439,116 @@ public class TotalCalculator {
             }
         }
 
-        // Total Service
-        if (bServiceActive != null && bServiceActive) {
-            if (service != null && service.booleanValue()) {
-                totalService = totalService.add(totalLineHT);
-                cpt = this.rowDefaultCptService;
+        final SQLRowAccessor foreignTVA = rowAccessorLine.getForeign("ID_TAXE");
+        Integer idTVA = null;
+        if (foreignTVA != null) {
+            idTVA = foreignTVA.getID();
+        }
+
+        return new Line(totalLineHT, totalHALigne, totalLineDevise, nPoids == null ? BigDecimal.ZERO : new BigDecimal(nPoids.doubleValue()), service != null && service.booleanValue(), cpt, idTVA);
+    }
+
+    public void addLine(Line line, int lineNumber, boolean last) {
+
+        BigDecimal totalLineHT = line.ht;
+
+        // Si il y a une remise à appliquer
+        if (this.remiseHT != 0 && this.remiseRestante > 0 && this.totalHTAvantRemise != null && this.totalHTAvantRemise.signum() != 0) {
+
+            // Si c'est la derniere ligne, on applique le restant de la remise
+            if (last) {
+                totalLineHT = totalLineHT.subtract(new BigDecimal(this.remiseRestante).movePointLeft(2));
+                this.remiseRestante = 0;
+            } else {
+                BigDecimal percent = totalLineHT.divide(this.totalHTAvantRemise, DecimalUtils.HIGH_PRECISION);
+
+                BigDecimal remiseApply = percent.multiply(new BigDecimal(this.remiseHT), DecimalUtils.HIGH_PRECISION).setScale(0, RoundingMode.HALF_UP);
+                totalLineHT = totalLineHT.subtract(remiseApply.movePointLeft(2));
+                this.remiseRestante -= remiseApply.longValue();
             }
         }
 
-        // Total HA
-        this.totalHA = this.totalHA.add(totalHALigne);
+        // Calcul total sélectionné
+        add(line, totalLineHT, true, containsInt(selectedRows, lineNumber), false);
+    }
 
-        // Total Devise
-        if (totalLineDevise != null) {
-            totalDevise = totalDevise.add(totalLineDevise);
+    /**
+     * Retire des totaux globaux une ligne précédemment ajoutée. Impossible si une remise est
+     * répartie car elle dépend de toutes les lignes.
+     * 
+     * @param line une ligne ajoutée par {@link #addLine(Line, int, boolean)}.
+     */
+    public void removeLine(Line line) {
+        if (this.remiseHT != 0) {
+            throw new IllegalStateException("Impossible de retirer une ligne lorsqu'une remise est répartie");
         }
+        add(line, line.ht, true, false, true);
+    }
 
-        // Total Poids
+    /**
+     * Remise à zéro des totaux de la sélection, les totaux globaux sont conservés.
+     */
+    public void clearSelection() {
+        this.selectedRows = null;
+        this.totalTTCSel = BigDecimal.ZERO;
+        this.totalHASel = BigDecimal.ZERO;
+        this.totalServiceSel = BigDecimal.ZERO;
+        this.totalDeviseSel = BigDecimal.ZERO;
+        this.mapHtSel.clear();
+        this.mapHtTVASel.clear();
+    }
 
-        totalPoids += nPoids == null ? 0 : nPoids.doubleValue();
+    /**
+     * Ajoute une ligne aux seuls totaux de la sélection. Impossible si une remise est répartie.
+     * 
+     * @param line la ligne sélectionnée.
+     */
+    public void addSelectedLine(Line line) {
+        if (this.remiseHT != 0) {
+            throw new IllegalStateException("Impossible d'ajouter une ligne à la sélection lorsqu'une remise est répartie");
+        }
+        add(line, line.ht, false, true, false);
+    }
 
-        // Calcul total sélectionné
-        boolean selection = containsInt(selectedRows, lineNumber);
-        if (selection) {
+    private void add(Line line, BigDecimal totalLineHT, boolean global, boolean selection, boolean remove) {
+        final BigDecimal lineHT = remove ? totalLineHT.negate() : totalLineHT;
+        final BigDecimal lineHA = remove ? line.ha.negate() : line.ha;
+        final BigDecimal lineDevise = remove ? line.devise.negate() : line.devise;
 
-            totalHASel = totalHASel.add(totalHALigne);
+        SQLRowAccessor cpt = line.compte;
+        // Total Service
+        final boolean service = bServiceActive != null && bServiceActive && line.service;
+        if (service) {
+            cpt = this.rowDefaultCptService;
+        }
 
-            if (bServiceActive != null && bServiceActive) {
-                if (service != null && service.booleanValue()) {
-                    totalServiceSel = totalServiceSel.add(totalLineHT);
-                }
+        if (global) {
+            if (service) {
+                totalService = totalService.add(lineHT);
             }
 
-            if (totalLineDevise != null) {
-                totalDeviseSel = totalDeviseSel.add(totalLineDevise);
-            }
-        }
+            // Total HA
+            this.totalHA = this.totalHA.add(lineHA);
+
+            // Total Devise
+            totalDevise = totalDevise.add(lineDevise);
 
-        // TODO Ne pas fetcher la TVA pour chaque instance de TotalCalculator utiliser un cache
-        if (mapTVA == null) {
-            fetchTVA();
+            // Total Poids
+            totalPoids = remove ? totalPoids.subtract(line.poids) : totalPoids.add(line.poids);
         }
-        final SQLRowAccessor foreignTVA = rowAccessorLine.getForeign("ID_TAXE");
-        Integer idTVA = null;
-        if (foreignTVA != null) {
-            idTVA = foreignTVA.getID();
+
+        if (selection) {
+
+            totalHASel = totalHASel.add(lineHA);
+
+            if (service) {
+                totalServiceSel = totalServiceSel.add(lineHT);
+            }
+
+            totalDeviseSel = totalDeviseSel.add(lineDevise);
         }
-        addHT(totalLineHT, mapTVA.get(idTVA), cpt, selection);
+
+        addHT(totalLineHT, mapTVA.get(line.idTVA), cpt, global, selection, remove);
     }
 
     /**
@@ -439,7 +586,7 @@ public class TotalCalculator {
     }
 
     public double getTotalPoids() {
-        return totalPoids;
+        return totalPoids.doubleValue();
     }
 
     public BigDecimal getTotalService() {
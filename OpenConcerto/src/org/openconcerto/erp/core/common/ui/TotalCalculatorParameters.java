@@ -13,15 +13,8 @@
  
  package org.openconcerto.erp.core.common.ui;
 
-import org.openconcerto.erp.config.ComptaPropsConfiguration;
-import org.openconcerto.sql.model.DBRoot;
+import org.openconcerto.erp.core.sales.product.model.ArticleCache;
 import org.openconcerto.sql.model.SQLRowAccessor;
-import org.openconcerto.sql.model.SQLRowValues;
-import org.openconcerto.sql.model.SQLRowValuesListFetcher;
-import org.openconcerto.sql.model.SQLSelect;
-import org.openconcerto.sql.model.SQLTable;
-import org.openconcerto.sql.model.Where;
-import org.openconcerto.utils.cc.ITransformer;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
@@ -81,45 +74,12 @@ public class TotalCalculatorParameters {
     public void fetchArticle() {
         final List<Integer> l = new ArrayList<Integer>(values.size());
         for (SQLRowAccessor r : values) {
-            l.add(r.getID());
-        }
-        final DBRoot root = ComptaPropsConfiguration.getInstanceCompta().getRootSociete();
-        final SQLTable articleTable = root.getTable("ARTICLE");
-        final SQLTable compteTable = root.getTable("COMPTE_PCE");
-        final SQLTable familleArticleTable = root.getTable("FAMILLE_ARTICLE");
-
-        final SQLRowValues rowValsC1 = new SQLRowValues(compteTable);
-        rowValsC1.put("NUMERO", null);
-        rowValsC1.put("ID", null);
-
-        final SQLRowValues rowValsC2 = new SQLRowValues(compteTable);
-        rowValsC2.put("NUMERO", null);
-        rowValsC2.put("ID", null);
-
-        final SQLRowValues rowValsF = new SQLRowValues(familleArticleTable);
-        rowValsF.put("NOM", null);
-        rowValsF.put("ID", null);
-        rowValsF.put("ID_FAMILLE_ARTICLE_PERE", null);
-        rowValsF.put("ID_COMPTE_PCE", rowValsC2);
-
-        final SQLRowValues rowVals = new SQLRowValues(articleTable);
-        rowVals.put("ID", null);
-        rowVals.put("ID_FAMILLE_ARTICLE", rowValsF);
-        rowVals.put("ID_COMPTE_PCE", rowValsC1);
-
-        final SQLRowValuesListFetcher fetch = SQLRowValuesListFetcher.create(rowVals);
-        fetch.setSelTransf(new ITransformer<SQLSelect, SQLSelect>() {
-            @Override
-            public SQLSelect transformChecked(SQLSelect input) {
-                input.andWhere(new Where(articleTable.getKey(), l));
-                return input;
+            final Object idArticle = r.getObject("ID_ARTICLE");
+            if (idArticle instanceof Number) {
+                l.add(((Number) idArticle).intValue());
             }
-        });
-
-        final List<SQLRowValues> rowValsList = fetch.fetch();
-        for (SQLRowValues sqlRowValues : rowValsList) {
-            mapArticle.put(sqlRowValues.getID(), sqlRowValues);
         }
+        mapArticle.putAll(ArticleCache.getCache().getArticles(l));
     }
 
 }
@@ -22,6 +22,7 @@ import org.openconcerto.sql.model.SQLRowAccessor;
 import org.openconcerto.sql.model.SQLRowValues;
 import org.openconcerto.sql.sqlobject.SQLRequestComboBox;
 import org.openconcerto.sql.view.list.RowValuesTable;
+import org.openconcerto.sql.view.list.RowValuesTableModel;
 import org.openconcerto.sql.view.list.SQLTableElement;
 import org.openconcerto.ui.DefaultGridBagConstraints;
 import org.openconcerto.ui.JLabelBold;
@@ -39,7 +40,13 @@ import java.beans.PropertyChangeSupport;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.swing.JLabel;
 import javax.swing.JPanel;
@@ -392,12 +399,31 @@ public class TotalPanel extends JPanel implements TableModelListener {
     }
 
     public void tableChanged(TableModelEvent e) {
+        final RowValuesTableModel model = this.table.getRowValuesTableModel();
+        if (e.getType() == TableModelEvent.UPDATE) {
+            if (e.getFirstRow() >= 0 && e.getLastRow() < model.getRowCount()) {
+                for (int i = e.getFirstRow(); i <= e.getLastRow(); i++) {
+                    this.dirtyLines.add(model.getRowValuesAt(i));
+                }
+            } else {
+                // whole table or unknown rows
+                this.dirtyLines.addAll(this.lines.keySet());
+            }
+        }
+        // inserted and deleted rows are found by comparing the rows with this.lines
         updateTotal();
     }
 
     private static String CLEAR = "";
     private SwingWorker2<TotalCalculator, Object> worker;
 
+    // Contribution de chaque ligne, seules les lignes nouvelles ou modifiées sont recalculées
+    private final Map<SQLRowValues, TotalCalculator.Line> lines = new IdentityHashMap<SQLRowValues, TotalCalculator.Line>();
+    private final Set<SQLRowValues> dirtyLines = Collections.newSetFromMap(new IdentityHashMap<SQLRowValues, Boolean>());
+    // Totaux globaux de this.lines sans remise, maintenus par différence
+    private TotalCalculator linesTotal;
+    private List<Object> linesTotalConfig;
+
     private void clearTextField() {
 
         if (textTotalDevise != null) {
@@ -422,6 +448,12 @@ public class TotalPanel extends JPanel implements TableModelListener {
         }
     }
 
+    private TotalCalculator createCalculator(final List<Object> config) {
+        final TotalCalculator calc = new TotalCalculator((String) config.get(0), (String) config.get(1), (String) config.get(2), (Boolean) config.get(3), null);
+        calc.setServiceActive((Boolean) config.get(4));
+        return calc;
+    }
+
     /**
      * 
      */
@@ -431,20 +463,39 @@ public class TotalPanel extends JPanel implements TableModelListener {
         final BigDecimal valPortHT;
 
         clearTextField();
-        // Clone rows to be thread safe
-        final List<SQLRowValues> vals = articleTable.getRowValuesAtLevel(1);
-        final List<SQLRowValues> list = new ArrayList<SQLRowValues>(vals.size());
-        for (SQLRowValues sqlRowValues : vals) {
-            list.add(sqlRowValues.asRowValues());
-        }
-
-
-        final TotalCalculatorParameters params = new TotalCalculatorParameters(list);
 
         // Total Service
         String val = DefaultNXProps.getInstance().getStringProperty("ArticleService");
         Boolean bServiceActive = Boolean.valueOf(val);
 
+        SQLTableElement tableElementTotalDevise = articleTable.getTableElementTotalDevise();
+        String fieldDevise = (tableElementTotalDevise == null ? null : tableElementTotalDevise.getField().getName());
+
+        SQLTableElement tableElementTotalHA = (articleTable.getPrebilanElement() == null) ? articleTable.getTotalHaElement() : articleTable.getPrebilanElement();
+        String fieldHA = (tableElementTotalHA == null ? null : tableElementTotalHA.getField().getName());
+        SQLTableElement tableElementTotalHT = articleTable.getPrixTotalHTElement();
+        String fieldHT = (tableElementTotalHT == null ? null : tableElementTotalHT.getField().getName());
+
+        // the contribution of every line depends on these
+        final List<Object> config = Arrays.<Object> asList(fieldHA, fieldHT, fieldDevise, achat, bServiceActive);
+        if (!config.equals(this.linesTotalConfig)) {
+            this.lines.clear();
+            this.dirtyLines.clear();
+            this.linesTotal = null;
+            this.linesTotalConfig = config;
+        }
+
+        final List<SQLRowValues> vals = articleTable.getRowValuesAtLevel(1);
+        // Clone new or modified rows to be thread safe
+        final Map<SQLRowValues, SQLRowValues> toCompute = new IdentityHashMap<SQLRowValues, SQLRowValues>();
+        for (SQLRowValues sqlRowValues : vals) {
+            if (this.dirtyLines.contains(sqlRowValues) || !this.lines.containsKey(sqlRowValues)) {
+                toCompute.put(sqlRowValues, sqlRowValues.asRowValues());
+            }
+        }
+
+        final TotalCalculatorParameters params = new TotalCalculatorParameters(new ArrayList<SQLRowValues>(toCompute.values()));
+
         final int[] selectedRows = this.table.getSelectedRows();
 
         // Remise à inclure
@@ -486,81 +537,97 @@ public class TotalPanel extends JPanel implements TableModelListener {
             rowValsPort = null;
         }
 
-        final Boolean isServiceActive = bServiceActive;
+        // copies mises à jour en arrière plan, puis remplaçant l'état de this dans done()
+        final Map<SQLRowValues, TotalCalculator.Line> newLines = new IdentityHashMap<SQLRowValues, TotalCalculator.Line>(this.lines);
+        final TotalCalculator previousTotal = this.linesTotal == null ? null : new TotalCalculator(this.linesTotal);
+
         if (worker != null) {
             worker.cancel(true);
         }
         worker = new SwingWorker2<TotalCalculator, Object>() {
 
+            private final Map<SQLRowValues, TotalCalculator.Line> computed = new IdentityHashMap<SQLRowValues, TotalCalculator.Line>();
+            private TotalCalculator.Line portLine;
+            private TotalCalculator newLinesTotal;
+
             @Override
             protected TotalCalculator doInBackground() throws Exception {
                 Thread.sleep(100);
                 params.fetchArticle();
 
-                SQLTableElement tableElementTotalDevise = articleTable.getTableElementTotalDevise();
-                String fieldDevise = (tableElementTotalDevise == null ? null : tableElementTotalDevise.getField().getName());
-
-                SQLTableElement tableElementTotalHA = (articleTable.getPrebilanElement() == null) ? articleTable.getTotalHaElement() : articleTable.getPrebilanElement();
-                String fieldHA = (tableElementTotalHA == null ? null : tableElementTotalHA.getField().getName());
-                SQLTableElement tableElementTotalHT = articleTable.getPrixTotalHTElement();
-                String fieldHT = (tableElementTotalHT == null ? null : tableElementTotalHT.getField().getName());
-
-                final TotalCalculator calc = new TotalCalculator(fieldHA, fieldHT, fieldDevise, achat, null);
-                calc.setSelectedRows(selectedRows);
-
-                // Calcul avant remise
-                final BigDecimal totalHTAvtremise;
-
-                final int size = list.size();
-                calc.setServiceActive(isServiceActive);
-                if (valRemiseHT != 0) {
-
-                    for (int i = 0; i < size; i++) {
-                        SQLRowValues rowVals = list.get(i);
-                        calc.addLine(rowVals, params.getMapArticle().get(rowVals.getInt("ID_ARTICLE")), i, false);
+                // only used to create lines, the totals in computeTotal()
+                final TotalCalculator calc = createCalculator(config);
+                for (final Map.Entry<SQLRowValues, SQLRowValues> e : toCompute.entrySet()) {
+                    final Object id = e.getValue().getObject("ID_ARTICLE");
+                    this.computed.put(e.getKey(), calc.createLine(e.getValue(), (id == null) ? null : params.getMapArticle().get(id)));
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedException();
                     }
-
-                    // TVA Port inclus
-                    // if (this.selPortTVA != null && !valPortHT.equals(BigDecimal.ZERO)) {
-                    //
-                    // SQLRow tvaPort = this.selPortTVA.getSelectedRow();
-                    // if (tvaPort != null) {
-                    // calc.addLine(-1, valPortHT, null, null, 1, 0, false, tvaPort, false);
-                    // }
-                    // }
-                    totalHTAvtremise = calc.getTotalHT();
-                } else {
-                    totalHTAvtremise = BigDecimal.ZERO;
                 }
 
-                calc.initValues();
-                calc.setSelectedRows(selectedRows);
-                calc.setRemise(valRemiseHT, totalHTAvtremise);
+                if (rowValsPort != null) {
+                    this.portLine = calc.createLine(rowValsPort, null);
+                }
+                // accès à la base (préférences, compte d'écart) : pas dans done()
+                return computeTotal();
+            }
 
-                if (Thread.currentThread().isInterrupted()) {
-                    throw new InterruptedException();
+            private TotalCalculator computeTotal() {
+                // Mise à jour des lignes modifiées
+                final TotalCalculator linesTotal = previousTotal == null ? createCalculator(config) : previousTotal;
+                this.newLinesTotal = linesTotal;
+                final Set<SQLRowValues> current = Collections.newSetFromMap(new IdentityHashMap<SQLRowValues, Boolean>());
+                current.addAll(vals);
+                final Iterator<Map.Entry<SQLRowValues, TotalCalculator.Line>> iter = newLines.entrySet().iterator();
+                while (iter.hasNext()) {
+                    final Map.Entry<SQLRowValues, TotalCalculator.Line> e = iter.next();
+                    if (!current.contains(e.getKey())) {
+                        linesTotal.removeLine(e.getValue());
+                        iter.remove();
+                    }
+                }
+                for (final Map.Entry<SQLRowValues, TotalCalculator.Line> e : this.computed.entrySet()) {
+                    final TotalCalculator.Line old = newLines.put(e.getKey(), e.getValue());
+                    if (old != null) {
+                        linesTotal.removeLine(old);
+                    }
+                    linesTotal.addLine(e.getValue(), 0, false);
                 }
 
+                final TotalCalculator calc;
+                final int size = vals.size();
+                if (valRemiseHT == 0) {
+                    calc = new TotalCalculator(linesTotal);
+                    calc.clearSelection();
+                    for (final int selectedRow : selectedRows) {
+                        if (selectedRow < size) {
+                            calc.addSelectedLine(newLines.get(vals.get(selectedRow)));
+                        }
+                    }
+                    calc.setSelectedRows(selectedRows);
+                } else {
+                    // La remise est répartie au prorata de toutes les lignes
 
-                // Total des elements
-                int rowCount = size;
-                for (int i = 0; i < rowCount; i++) {
-                    SQLRowValues values = list.get(i);
+                    // Calcul avant remise
+                    final BigDecimal totalHTAvtremise = linesTotal.getTotalHT();
 
-                    Object id = values.getObject("ID_ARTICLE");
-                    calc.addLine(values, (id == null) ? null : params.getMapArticle().get(id), i, i == (rowCount - 1));
+                    calc = createCalculator(config);
+                    calc.setSelectedRows(selectedRows);
+                    calc.setRemise(valRemiseHT, totalHTAvtremise);
+
+                    // Total des elements
+                    for (int i = 0; i < size; i++) {
+                        calc.addLine(newLines.get(vals.get(i)), i, i == (size - 1));
+                    }
                 }
 
                 // TVA Port inclus
-                if (rowValsPort != null) {
-                    calc.addLine(rowValsPort, null, 0, false);
+                if (this.portLine != null) {
+                    calc.addLine(this.portLine, 0, false);
                 }
 
                 // Verification du resultat ht +tva = ttc
                 calc.checkResult();
-                if (Thread.currentThread().isInterrupted()) {
-                    throw new InterruptedException();
-                }
                 return calc;
             }
 
@@ -572,9 +639,13 @@ public class TotalPanel extends JPanel implements TableModelListener {
                     // une autre maj arrive
                     return;
                 }
-                TotalCalculator calc;
+                final TotalCalculator calc;
                 try {
                     calc = get();
+                    lines.clear();
+                    lines.putAll(newLines);
+                    linesTotal = this.newLinesTotal;
+                    dirtyLines.removeAll(this.computed.keySet());
 
                     BigDecimal totalHT = calc.getTotalHT();
 
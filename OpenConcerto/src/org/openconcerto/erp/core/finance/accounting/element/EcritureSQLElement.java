@@ -44,16 +44,19 @@ import org.openconcerto.sql.view.list.SQLTableModelSourceOnline;
 import org.openconcerto.ui.DefaultGridBagConstraints;
 import org.openconcerto.ui.JDate;
 import org.openconcerto.utils.ExceptionHandler;
+import org.openconcerto.utils.cc.IClosure;
 
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -359,13 +362,22 @@ public class EcritureSQLElement extends ComptaSQLConfElement {
 
         if (myListEcriture.size() != 0) {
 
+            final List<Integer> ids = new ArrayList<Integer>(myListEcriture.size());
             for (int i = 0; i < myListEcriture.size(); i++) {
                 Object[] objTmp = (Object[]) myListEcriture.get(i);
-                valideEcriture(Integer.parseInt(objTmp[0].toString()));
+                ids.add(Integer.parseInt(objTmp[0].toString()));
+            }
+            // une seule requête pour la pièce
+            final Set<String> fields = valideEcritures(tableEcriture, new Where(tableEcriture.getKey(), ids), UserManager.getInstance().getCurrentUser().getId());
+            for (final Integer id : ids) {
+                tableEcriture.fireTableModified(id, fields);
             }
         }
     }
 
+    // nombre de mouvements validés par requête
+    private static final int VALIDATION_MVTS_MAX = 1000;
+
     /**
      * Validation des ecritures avant la date d
      * 
@@ -373,25 +385,38 @@ public class EcritureSQLElement extends ComptaSQLConfElement {
      * @param cloture
      */
     public static final void validationEcrituresBefore(Date d, boolean cloture) {
+        validationEcrituresBefore(d, cloture, null, null);
+    }
 
-        SQLBase base = ((ComptaPropsConfiguration) Configuration.getInstance()).getSQLBaseSociete();
-        SQLTable tableEcriture = base.getTable("ECRITURE");
+    /**
+     * Validation des ecritures avant la date d.
+     * 
+     * @param d date
+     * @param cloture
+     * @param progress appelé avec le pourcentage de mouvements validés, peut être
+     *        <code>null</code>.
+     * @see #validationEcrituresBefore(Date, boolean, Integer, IClosure)
+     */
+    public static final void validationEcrituresBefore(Date d, boolean cloture, IClosure<Integer> progress) {
+        validationEcrituresBefore(d, cloture, null, progress);
+    }
 
-        // on recupere l'ensemble des mouvements à valider
-        SQLSelect selEcriture = new SQLSelect(base);
-        selEcriture.addSelect(tableEcriture.getField("ID_MOUVEMENT"));
-        selEcriture.setDistinct(true);
-        Where w1 = new Where(tableEcriture.getField("DATE"), "<=", d);
-        Where w2 = new Where(tableEcriture.getField("VALIDE"), "=", Boolean.FALSE);
-        selEcriture.setWhere(w1.and(w2));
-        List l = (List) base.getDataSource().execute(selEcriture.asString(), new ArrayListHandler());
+    /**
+     * Validation des ecritures avant la date d. Les mouvements sont validés par lots de
+     * {@value #VALIDATION_MVTS_MAX}, chaque lot par une seule requête, et un seul événement est
+     * envoyé pour la table ECRITURE à la fin.
+     * 
+     * @param d date
+     * @param cloture
+     * @param idJournal seuls les mouvements ayant une écriture non validée dans ce journal sont
+     *        validés, <code>null</code> pour tous les journaux.
+     * @param progress appelé avec le pourcentage de mouvements validés, peut être
+     *        <code>null</code>.
+     */
+    public static final void validationEcrituresBefore(Date d, boolean cloture, Integer idJournal, IClosure<Integer> progress) {
 
-        // validation de tous les mouvements
-        for (int i = 0; i < l.size(); i++) {
-            Object[] tmp = (Object[]) l.get(i);
-            System.err.println("Validation du mouvement " + tmp[0]);
-            validationEcritures(Integer.parseInt(tmp[0].toString()));
-        }
+        SQLBase base = ((ComptaPropsConfiguration) Configuration.getInstance()).getSQLBaseSociete();
+        valideMouvementsBefore(base.getTable("ECRITURE"), d, idJournal, UserManager.getInstance().getCurrentUser().getId(), progress);
 
         if (cloture) {
 
@@ -414,18 +439,78 @@ public class EcritureSQLElement extends ComptaSQLConfElement {
         }
     }
 
-    private static final void valideEcriture(int id) {
-        SQLTable tableEcriture = ((ComptaPropsConfiguration) Configuration.getInstance()).getSQLBaseSociete().getTable("ECRITURE");
-        SQLRowValues rowVals = new SQLRowValues(tableEcriture);
-        rowVals.put("VALIDE", Boolean.TRUE);
-        rowVals.put("DATE_VALIDE", new java.sql.Date(new Date().getTime()));
-        rowVals.put("IDUSER_VALIDE", UserManager.getInstance().getCurrentUser().getId());
-
-        try {
-            rowVals.update(id);
-        } catch (SQLException e) {
-            e.printStackTrace();
+    /**
+     * Valide les mouvements ayant une écriture non validée avant la date d.
+     * 
+     * @param tableEcriture la table ECRITURE.
+     * @param d date
+     * @param idJournal seuls les mouvements ayant une écriture non validée dans ce journal sont
+     *        validés, <code>null</code> pour tous les journaux.
+     * @param idUser l'utilisateur qui valide.
+     * @param progress appelé avec le pourcentage de mouvements validés, peut être
+     *        <code>null</code>.
+     * @return le nombre de mouvements validés.
+     */
+    static final int valideMouvementsBefore(SQLTable tableEcriture, Date d, Integer idJournal, int idUser, IClosure<Integer> progress) {
+        // on recupere l'ensemble des mouvements à valider
+        SQLSelect selEcriture = new SQLSelect(tableEcriture.getBase());
+        selEcriture.addSelect(tableEcriture.getField("ID_MOUVEMENT"));
+        selEcriture.setDistinct(true);
+        Where w1 = new Where(tableEcriture.getField("DATE"), "<=", d);
+        Where w2 = new Where(tableEcriture.getField("VALIDE"), "=", Boolean.FALSE);
+        Where w = w1.and(w2);
+        if (idJournal != null) {
+            w = w.and(new Where(tableEcriture.getField("ID_JOURNAL"), "=", idJournal));
+        }
+        selEcriture.setWhere(w);
+        List l = (List) tableEcriture.getDBSystemRoot().getDataSource().execute(selEcriture.asString(), new ArrayListHandler());
+
+        final List<Integer> idsMvt = new ArrayList<Integer>(l.size());
+        for (int i = 0; i < l.size(); i++) {
+            Object[] tmp = (Object[]) l.get(i);
+            idsMvt.add(Integer.parseInt(tmp[0].toString()));
+        }
+
+        // validation de tous les mouvements
+        Set<String> fields = null;
+        for (int i = 0; i < idsMvt.size(); i += VALIDATION_MVTS_MAX) {
+            final List<Integer> lot = idsMvt.subList(i, Math.min(i + VALIDATION_MVTS_MAX, idsMvt.size()));
+            Where wLot = new Where(tableEcriture.getField("ID_MOUVEMENT"), lot);
+            wLot = wLot.and(new Where(tableEcriture.getField("VALIDE"), "=", Boolean.FALSE));
+            wLot = wLot.and(new Where(tableEcriture.getArchiveField(), "=", 0));
+            fields = valideEcritures(tableEcriture, wLot, idUser);
+            if (progress != null) {
+                progress.executeChecked((i + lot.size()) * 100 / idsMvt.size());
+            }
+        }
+        if (fields != null) {
+            tableEcriture.fireTableModified(SQLRow.NONEXISTANT_ID, fields);
+        }
+        return idsMvt.size();
+    }
+
+    /**
+     * Valide en une requête les écritures, sans envoyer d'événement.
+     * 
+     * @param tableEcriture la table ECRITURE.
+     * @param w les écritures à valider.
+     * @param idUser l'utilisateur qui valide.
+     * @return les champs modifiés.
+     */
+    private static final Set<String> valideEcritures(SQLTable tableEcriture, Where w, int idUser) {
+        final UpdateBuilder update = new UpdateBuilder(tableEcriture);
+        update.setObject("VALIDE", Boolean.TRUE);
+        update.setObject("DATE_VALIDE", new java.sql.Date(new Date().getTime()));
+        update.setObject("IDUSER_VALIDE", idUser);
+        if (tableEcriture.getModifDateField() != null) {
+            update.setObject(tableEcriture.getModifDateField(), new Timestamp(System.currentTimeMillis()));
+        }
+        if (tableEcriture.getModifUserField() != null) {
+            update.setObject(tableEcriture.getModifUserField(), idUser);
         }
+        update.setWhere(w);
+        tableEcriture.getDBSystemRoot().getDataSource().execute(update.asString());
+        return update.getFieldsNames();
     }
 
     public void archiveMouvement(int idMvt) {
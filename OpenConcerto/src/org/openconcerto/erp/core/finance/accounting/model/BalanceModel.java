@@ -20,9 +20,7 @@ import org.openconcerto.sql.Configuration;
 import org.openconcerto.sql.model.SQLBase;
 import org.openconcerto.sql.model.SQLSelect;
 import org.openconcerto.sql.model.SQLTable;
-import org.openconcerto.sql.model.Where;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
@@ -111,49 +109,17 @@ public class BalanceModel extends AbstractTableModel {
 
     public void getBalance() {
 
-        // Compte numero -- totalDebit
-        Map<Number, Long> mapCompteDebit = new HashMap<Number, Long>();
-        Map<Number, Long> mapCompteCredit = new HashMap<Number, Long>();
+        // Compte ID -- {totalDebit, totalCredit}
+        final Map<Integer, long[]> mapCompte = SoldesMensuelsCache.getCache().getSoldes(null, null, null);
         Vector<Compte> comptes = new Vector<Compte>();
         this.totalDebitBalance = 0;
         this.totalCreditBalance = 0;
 
         SQLBase base = ((ComptaPropsConfiguration) Configuration.getInstance()).getSQLBaseSociete();
         SQLTable compteTable = base.getTable("COMPTE_PCE");
-        SQLTable ecritureTable = base.getTable("ECRITURE");
-
-        SQLSelect sel = new SQLSelect(base);
-
-        // On recupere le solde des comptes
-        sel.addSelect(compteTable.getField("ID"));
-        sel.addSelect(ecritureTable.getField("DEBIT"), "SUM");
-        sel.addSelect(ecritureTable.getField("CREDIT"), "SUM");
-        sel.addSelect(compteTable.getField("NUMERO"));
-        sel.setDistinct(true);
-        sel.setWhere(new Where(compteTable.getField("ID"), "=", ecritureTable.getField("ID_COMPTE_PCE")));
-        sel.setWaitPreviousWriteTX(false);
-
-        String req = sel.asString() + " GROUP BY \"COMPTE_PCE\".\"ID\",\"COMPTE_PCE\".\"NUMERO\"  ORDER BY \"COMPTE_PCE\".\"NUMERO\"";
-
-        System.out.println(req);
-
-        Object ob = base.getDataSource().execute(req, new ArrayListHandler());
-
-        List myList = (List) ob;
-
-        if (myList.size() != 0) {
-
-            for (int i = 0; i < myList.size(); i++) {
-
-                Object[] tmp = (Object[]) myList.get(i);
-
-                mapCompteDebit.put((Number) tmp[0], Long.parseLong(tmp[1].toString()));
-                mapCompteCredit.put((Number) tmp[0], Long.parseLong(tmp[2].toString()));
-            }
-        }
 
         // Création du vecteur balance
-        sel = new SQLSelect(base);
+        SQLSelect sel = new SQLSelect(base);
 
         sel.addSelect(compteTable.getKey());
         sel.addSelect(compteTable.getField("NUMERO"));
@@ -162,7 +128,6 @@ public class BalanceModel extends AbstractTableModel {
         sel.addRawOrder("\"COMPTE_PCE\".\"NUMERO\"");
 
         String reqCompte = sel.asString();
-        System.out.println(req);
 
         Object obCompte = base.getDataSource().execute(reqCompte, new ArrayListHandler());
 
@@ -177,12 +142,10 @@ public class BalanceModel extends AbstractTableModel {
 
                 long totalDebit = 0;
                 long totalCredit = 0;
-                if (mapCompteDebit.get(tmp[0]) != null) {
-                    totalDebit = Long.parseLong(mapCompteDebit.get(tmp[0]).toString());
-                }
-
-                if (mapCompteCredit.get(tmp[0]) != null) {
-                    totalCredit = Long.parseLong(mapCompteCredit.get(tmp[0]).toString());
+                final long[] solde = mapCompte.get(((Number) tmp[0]).intValue());
+                if (solde != null) {
+                    totalDebit = solde[0];
+                    totalCredit = solde[1];
                 }
 
                 this.totalDebitBalance += totalDebit;
@@ -193,12 +156,10 @@ public class BalanceModel extends AbstractTableModel {
                     if (tmpNext[1].toString().trim().startsWith(tmp[1].toString().trim())) {
                         System.err.println("Sous Compte " + tmpNext[1].toString().trim());
 
-                        if (mapCompteDebit.get(tmpNext[0]) != null) {
-                            totalDebit += Long.parseLong(mapCompteDebit.get(tmpNext[0]).toString());
-                        }
-
-                        if (mapCompteCredit.get(tmpNext[0]) != null) {
-                            totalCredit += Long.parseLong(mapCompteCredit.get(tmpNext[0]).toString());
+                        final long[] soldeNext = mapCompte.get(((Number) tmpNext[0]).intValue());
+                        if (soldeNext != null) {
+                            totalDebit += soldeNext[0];
+                            totalCredit += soldeNext[1];
                         }
                     } else {
                         break;
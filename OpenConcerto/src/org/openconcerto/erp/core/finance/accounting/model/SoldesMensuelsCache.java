@@ -0,0 +1,505 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.core.finance.accounting.model;
+
+import org.openconcerto.erp.config.ComptaPropsConfiguration;
+import org.openconcerto.sql.Configuration;
+import org.openconcerto.sql.model.DBRoot;
+import org.openconcerto.sql.model.SQLRow;
+import org.openconcerto.sql.model.SQLSelect;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.model.SQLTableEvent;
+import org.openconcerto.sql.model.SQLTableEvent.Mode;
+import org.openconcerto.sql.model.SQLTableModifiedListener;
+import org.openconcerto.sql.model.Where;
+import org.openconcerto.utils.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.dbutils.handlers.ArrayListHandler;
+
+/**
+ * Soldes des écritures agrégés par compte, mois et journal. Les données sont chargées en une
+ * requête puis tenues à jour à partir des modifications de la table ECRITURE : les insertions et
+ * les archivages sont appliqués incrémentalement, toute autre modification des montants provoque
+ * un rechargement à la prochaine lecture. Les modifications faites par d'autres postes ne levant pas
+ * d'événement, la table est aussi comparée périodiquement (nombre de lignes, plus grand ID et date
+ * de modification) : tout écart non expliqué par les modifications locales provoque un
+ * rechargement.
+ *
+ * @see #checkConsistency()
+ */
+public final class SoldesMensuelsCache {
+
+    private static SoldesMensuelsCache instance;
+
+    synchronized public static SoldesMensuelsCache getCache() {
+        if (instance == null) {
+            instance = new SoldesMensuelsCache(((ComptaPropsConfiguration) Configuration.getInstance()).getRootSociete());
+        }
+        return instance;
+    }
+
+    // champs dont la modification ne change pas les soldes
+    private static final Set<String> NEUTRAL_FIELDS = new HashSet<String>(Arrays.asList("NOM", "LETTRAGE", "DATE_LETTRAGE", "POINTEE", "DATE_POINTEE", "VALIDE", "DATE_VALIDE", "IDUSER_MODIFY",
+            "MODIFICATION_DATE", "ORDRE"));
+
+    // délai minimum entre deux comparaisons avec la table
+    private static final long RECONCILE_DELAY = 10 * 1000;
+    // vérifier le cache après chaque mise à jour incrémentale
+    private static final boolean CHECK = Boolean.getBoolean("org.openconcerto.erp.soldesMensuels.check");
+
+    private static final int DEBIT = 0;
+    private static final int CREDIT = 1;
+
+    static int getMonthKey(final Calendar c) {
+        return c.get(Calendar.YEAR) * 12 + c.get(Calendar.MONTH);
+    }
+
+    private final SQLTable ecritureTable, compteTable;
+
+    // ID_COMPTE_PCE -> mois (année * 12 + mois) -> ID_JOURNAL -> {débit, crédit}
+    private final Map<Integer, TreeMap<Integer, Map<Integer, long[]>>> soldes = new HashMap<Integer, TreeMap<Integer, Map<Integer, long[]>>>();
+    // ID -> NUMERO des comptes non archivés
+    private Map<Integer, String> numeros = null;
+    private boolean loaded = false;
+    private final Set<Integer> pendingAdded = new LinkedHashSet<Integer>();
+    // archivages et désarchivages en attente, deux bascules successives s'annulent
+    private final Set<Integer> pendingArchived = new LinkedHashSet<Integer>();
+    // état de la table lors de la dernière comparaison
+    private Number lastMaxID = null;
+    private Date lastModif = null;
+    private long lastCount = 0;
+    private long lastReconcile = 0;
+    // écritures modifiées localement depuis la dernière comparaison
+    private final Set<Integer> seenIDs = new HashSet<Integer>();
+
+    private SoldesMensuelsCache(final DBRoot root) {
+        this.ecritureTable = root.getTable("ECRITURE");
+        this.compteTable = root.getTable("COMPTE_PCE");
+
+        this.ecritureTable.addTableModifiedListener(new SQLTableModifiedListener() {
+            @Override
+            public void tableModified(SQLTableEvent evt) {
+                ecritureModified(evt);
+            }
+        });
+        this.compteTable.addTableModifiedListener(new SQLTableModifiedListener() {
+            @Override
+            public void tableModified(SQLTableEvent evt) {
+                synchronized (SoldesMensuelsCache.this) {
+                    SoldesMensuelsCache.this.numeros = null;
+                }
+            }
+        });
+    }
+
+    private synchronized void ecritureModified(final SQLTableEvent evt) {
+        if (!this.loaded) {
+            return;
+        }
+        final int id = evt.getId();
+        this.seenIDs.add(id);
+        if (id < SQLRow.MIN_VALID_ID || evt.getMode() == Mode.ROW_DELETED) {
+            this.invalidate();
+        } else if (evt.getMode() == Mode.ROW_ADDED) {
+            this.pendingAdded.add(id);
+        } else {
+            final Set<String> fields = new HashSet<String>(evt.getFieldNames());
+            fields.removeAll(NEUTRAL_FIELDS);
+            if (fields.isEmpty()) {
+                return;
+            }
+            if (fields.size() == 1 && fields.contains(this.ecritureTable.getArchiveField().getName())) {
+                // une écriture pas encore intégrée sera lue dans son état courant
+                if (!this.pendingAdded.contains(id) && !this.pendingArchived.remove(id)) {
+                    this.pendingArchived.add(id);
+                }
+            } else {
+                this.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Force le rechargement complet des soldes à la prochaine lecture.
+     */
+    public synchronized void invalidate() {
+        this.loaded = false;
+        this.soldes.clear();
+        this.pendingAdded.clear();
+        this.pendingArchived.clear();
+        this.seenIDs.clear();
+    }
+
+    private void add(final Number idCompte, final Number idJournal, final Date date, final long debit, final long credit) {
+        if (idCompte == null || date == null) {
+            return;
+        }
+        final Integer cptKey = idCompte.intValue();
+        TreeMap<Integer, Map<Integer, long[]>> byMonth = this.soldes.get(cptKey);
+        if (byMonth == null) {
+            byMonth = new TreeMap<Integer, Map<Integer, long[]>>();
+            this.soldes.put(cptKey, byMonth);
+        }
+        final Calendar c = Calendar.getInstance();
+        c.setTime(date);
+        final Integer monthKey = getMonthKey(c);
+        Map<Integer, long[]> byJournal = byMonth.get(monthKey);
+        if (byJournal == null) {
+            byJournal = new HashMap<Integer, long[]>(4);
+            byMonth.put(monthKey, byJournal);
+        }
+        final Integer journalKey = idJournal == null ? SQLRow.NONEXISTANT_ID : idJournal.intValue();
+        long[] s = byJournal.get(journalKey);
+        if (s == null) {
+            s = new long[2];
+            byJournal.put(journalKey, s);
+        }
+        s[DEBIT] += debit;
+        s[CREDIT] += credit;
+    }
+
+    private SQLSelect createSelect() {
+        final SQLSelect sel = new SQLSelect();
+        sel.addSelect(this.ecritureTable.getField("ID_COMPTE_PCE"));
+        sel.addSelect(this.ecritureTable.getField("ID_JOURNAL"));
+        sel.addSelect(this.ecritureTable.getField("DATE"));
+        sel.addSelect(this.ecritureTable.getField("DEBIT"), "SUM");
+        sel.addSelect(this.ecritureTable.getField("CREDIT"), "SUM");
+        sel.addGroupBy(this.ecritureTable.getField("ID_COMPTE_PCE"));
+        sel.addGroupBy(this.ecritureTable.getField("ID_JOURNAL"));
+        sel.addGroupBy(this.ecritureTable.getField("DATE"));
+        return sel;
+    }
+
+    private List<Object[]> execute(final SQLSelect sel) {
+        @SuppressWarnings("unchecked")
+        final List<Object[]> l = (List<Object[]>) this.ecritureTable.getDBSystemRoot().getDataSource().execute(sel.asString(), new ArrayListHandler());
+        return l;
+    }
+
+    private static long toLong(final Object o) {
+        return o == null ? 0 : ((Number) o).longValue();
+    }
+
+    private Object[] readSignature() {
+        final SQLSelect sel = new SQLSelect();
+        sel.setArchivedPolicy(SQLSelect.BOTH);
+        sel.addSelect(this.ecritureTable.getKey(), "MAX");
+        sel.addSelectFunctionStar("COUNT");
+        if (this.ecritureTable.getModifDateField() != null) {
+            sel.addSelect(this.ecritureTable.getModifDateField(), "MAX");
+        }
+        return this.execute(sel).get(0);
+    }
+
+    private void setSignature(final Object[] sig) {
+        this.lastMaxID = (Number) sig[0];
+        this.lastCount = toLong(sig[1]);
+        this.lastModif = sig.length > 2 ? (Date) sig[2] : null;
+        this.lastReconcile = System.currentTimeMillis();
+        this.seenIDs.clear();
+    }
+
+    /**
+     * Compare la table avec son état lors de la dernière comparaison : les lignes ajoutées ou
+     * modifiées depuis doivent toutes avoir levé un événement local, sinon le cache est invalidé.
+     */
+    private void reconcile() {
+        final Object[] sig = this.readSignature();
+        final Number maxID = (Number) sig[0];
+        final Date modif = sig.length > 2 ? (Date) sig[2] : null;
+        final boolean sameMaxID = maxID == null ? this.lastMaxID == null : this.lastMaxID != null && maxID.longValue() == this.lastMaxID.longValue();
+        final boolean sameModif = modif == null ? this.lastModif == null : modif.equals(this.lastModif);
+        if (sameMaxID && sameModif && toLong(sig[1]) == this.lastCount) {
+            this.lastReconcile = System.currentTimeMillis();
+            return;
+        }
+
+        final SQLSelect sel = new SQLSelect();
+        sel.setArchivedPolicy(SQLSelect.BOTH);
+        sel.addSelect(this.ecritureTable.getKey());
+        Where w = new Where(this.ecritureTable.getKey(), ">", this.lastMaxID == null ? SQLRow.NONEXISTANT_ID : this.lastMaxID.intValue());
+        if (this.ecritureTable.getModifDateField() != null) {
+            if (this.lastModif == null) {
+                w = w.or(new Where(this.ecritureTable.getModifDateField(), "<>", (Object) null));
+            } else {
+                w = w.or(new Where(this.ecritureTable.getModifDateField(), ">", this.lastModif));
+            }
+        }
+        sel.setWhere(w);
+        boolean explained = true;
+        long added = 0;
+        for (final Object[] tmp : this.execute(sel)) {
+            final int id = ((Number) tmp[0]).intValue();
+            if (this.lastMaxID == null || id > this.lastMaxID.intValue()) {
+                added++;
+            }
+            if (!this.seenIDs.contains(id)) {
+                explained = false;
+                break;
+            }
+        }
+        if (explained && toLong(sig[1]) == this.lastCount + added) {
+            this.setSignature(sig);
+        } else {
+            Log.get().info("Écritures modifiées par un autre poste, rechargement des soldes mensuels");
+            this.invalidate();
+        }
+    }
+
+    private void checkLoaded() {
+        assert Thread.holdsLock(this);
+        if (this.loaded && System.currentTimeMillis() - this.lastReconcile > RECONCILE_DELAY) {
+            this.reconcile();
+        }
+        if (!this.loaded) {
+            // un rechargement complet rend caduques les modifications en attente
+            this.pendingAdded.clear();
+            this.pendingArchived.clear();
+            this.soldes.clear();
+            this.setSignature(this.readSignature());
+            for (final Object[] tmp : this.execute(this.createSelect())) {
+                this.add((Number) tmp[0], (Number) tmp[1], (Date) tmp[2], toLong(tmp[3]), toLong(tmp[4]));
+            }
+            this.loaded = true;
+        } else if (!this.pendingAdded.isEmpty() || !this.pendingArchived.isEmpty()) {
+            final Set<Integer> ids = new HashSet<Integer>(this.pendingAdded);
+            ids.addAll(this.pendingArchived);
+            final SQLSelect sel = new SQLSelect();
+            sel.setArchivedPolicy(SQLSelect.BOTH);
+            sel.addSelect(this.ecritureTable.getKey());
+            sel.addSelect(this.ecritureTable.getArchiveField());
+            sel.addSelect(this.ecritureTable.getField("ID_COMPTE_PCE"));
+            sel.addSelect(this.ecritureTable.getField("ID_JOURNAL"));
+            sel.addSelect(this.ecritureTable.getField("DATE"));
+            sel.addSelect(this.ecritureTable.getField("DEBIT"));
+            sel.addSelect(this.ecritureTable.getField("CREDIT"));
+            sel.setWhere(new Where(this.ecritureTable.getKey(), ids));
+            for (final Object[] tmp : this.execute(sel)) {
+                final Integer id = ((Number) tmp[0]).intValue();
+                final boolean archived = toLong(tmp[1]) != 0;
+                final long sign;
+                if (this.pendingAdded.contains(id)) {
+                    sign = archived ? 0 : 1;
+                } else {
+                    sign = archived ? -1 : 1;
+                }
+                if (sign != 0) {
+                    this.add((Number) tmp[2], (Number) tmp[3], (Date) tmp[4], sign * toLong(tmp[5]), sign * toLong(tmp[6]));
+                }
+            }
+            this.pendingAdded.clear();
+            this.pendingArchived.clear();
+            if (CHECK) {
+                this.checkConsistency();
+            }
+        }
+    }
+
+    /**
+     * Les numéros des comptes non archivés.
+     *
+     * @return ID_COMPTE_PCE -> NUMERO.
+     */
+    public synchronized Map<Integer, String> getNumeros() {
+        if (this.numeros == null) {
+            final SQLSelect sel = new SQLSelect();
+            sel.addSelect(this.compteTable.getKey());
+            sel.addSelect(this.compteTable.getField("NUMERO"));
+            final Map<Integer, String> res = new HashMap<Integer, String>();
+            for (final Object[] tmp : this.execute(sel)) {
+                if (tmp[1] != null) {
+                    res.put(((Number) tmp[0]).intValue(), tmp[1].toString());
+                }
+            }
+            this.numeros = Collections.unmodifiableMap(res);
+        }
+        return this.numeros;
+    }
+
+    /**
+     * Les totaux débit et crédit par compte sur une période. Les mois entiers sont lus dans le
+     * cache, les éventuels mois incomplets aux bornes sont calculés dans la base.
+     *
+     * @param dateDebut début de la période inclus, <code>null</code> pour ne pas borner.
+     * @param dateFin fin de la période incluse, <code>null</code> pour ne pas borner.
+     * @param journaux les ID_JOURNAL à prendre en compte, <code>null</code> pour tous.
+     * @return ID_COMPTE_PCE -> {débit, crédit}.
+     */
+    public synchronized Map<Integer, long[]> getSoldes(final Date dateDebut, final Date dateFin, final Collection<Integer> journaux) {
+        this.checkLoaded();
+
+        final Calendar c = Calendar.getInstance();
+        // premier et dernier mois entièrement couverts par la période
+        Integer firstMonth = null;
+        Date headEnd = null;
+        if (dateDebut != null) {
+            c.setTime(dateDebut);
+            firstMonth = getMonthKey(c);
+            if (c.get(Calendar.DAY_OF_MONTH) != 1) {
+                c.set(Calendar.DAY_OF_MONTH, c.getActualMaximum(Calendar.DAY_OF_MONTH));
+                headEnd = c.getTime();
+                firstMonth++;
+            }
+        }
+        Integer lastMonth = null;
+        Date tailStart = null;
+        if (dateFin != null) {
+            c.setTime(dateFin);
+            lastMonth = getMonthKey(c);
+            if (c.get(Calendar.DAY_OF_MONTH) != c.getActualMaximum(Calendar.DAY_OF_MONTH)) {
+                c.set(Calendar.DAY_OF_MONTH, 1);
+                tailStart = c.getTime();
+                lastMonth--;
+            }
+        }
+
+        final Map<Integer, long[]> res = new HashMap<Integer, long[]>();
+        if (firstMonth == null || lastMonth == null || firstMonth <= lastMonth) {
+            for (final Map.Entry<Integer, TreeMap<Integer, Map<Integer, long[]>>> e : this.soldes.entrySet()) {
+                Map<Integer, Map<Integer, long[]>> months = e.getValue();
+                if (firstMonth != null && lastMonth != null) {
+                    months = e.getValue().subMap(firstMonth, true, lastMonth, true);
+                } else if (firstMonth != null) {
+                    months = e.getValue().tailMap(firstMonth, true);
+                } else if (lastMonth != null) {
+                    months = e.getValue().headMap(lastMonth, true);
+                }
+                long debit = 0, credit = 0;
+                for (final Map<Integer, long[]> byJournal : months.values()) {
+                    for (final Map.Entry<Integer, long[]> j : byJournal.entrySet()) {
+                        if (journaux == null || journaux.contains(j.getKey())) {
+                            debit += j.getValue()[DEBIT];
+                            credit += j.getValue()[CREDIT];
+                        }
+                    }
+                }
+                if (debit != 0 || credit != 0) {
+                    res.put(e.getKey(), new long[] { debit, credit });
+                }
+            }
+        }
+
+        // mois incomplets
+        if (headEnd != null && tailStart != null && !headEnd.before(tailStart)) {
+            // la période est contenue dans un seul mois
+            this.addFromDB(res, dateDebut, dateFin, journaux);
+        } else {
+            if (headEnd != null) {
+                this.addFromDB(res, dateDebut, headEnd, journaux);
+            }
+            if (tailStart != null) {
+                this.addFromDB(res, tailStart, dateFin, journaux);
+            }
+        }
+        return res;
+    }
+
+    private void addFromDB(final Map<Integer, long[]> res, final Date d1, final Date d2, final Collection<Integer> journaux) {
+        final SQLSelect sel = new SQLSelect();
+        sel.addSelect(this.ecritureTable.getField("ID_COMPTE_PCE"));
+        sel.addSelect(this.ecritureTable.getField("DEBIT"), "SUM");
+        sel.addSelect(this.ecritureTable.getField("CREDIT"), "SUM");
+        Where w = new Where(this.ecritureTable.getField("DATE"), d1, d2);
+        if (journaux != null) {
+            w = w.and(new Where(this.ecritureTable.getField("ID_JOURNAL"), journaux));
+        }
+        sel.setWhere(w);
+        sel.addGroupBy(this.ecritureTable.getField("ID_COMPTE_PCE"));
+        for (final Object[] tmp : this.execute(sel)) {
+            if (tmp[0] == null) {
+                continue;
+            }
+            final Integer idCompte = ((Number) tmp[0]).intValue();
+            long[] s = res.get(idCompte);
+            if (s == null) {
+                s = new long[2];
+                res.put(idCompte, s);
+            }
+            s[DEBIT] += toLong(tmp[1]);
+            s[CREDIT] += toLong(tmp[2]);
+        }
+    }
+
+    /**
+     * Compare le cache avec les totaux calculés directement sur les écritures. En cas d'écart le
+     * cache est invalidé.
+     *
+     * @return les écarts constatés, vide si le cache est cohérent.
+     */
+    public synchronized List<String> checkConsistency() {
+        this.checkLoaded();
+        final Map<List<Integer>, long[]> expected = new HashMap<List<Integer>, long[]>();
+        final Calendar c = Calendar.getInstance();
+        for (final Object[] tmp : this.execute(this.createSelect())) {
+            if (tmp[0] == null || tmp[2] == null) {
+                continue;
+            }
+            c.setTime((Date) tmp[2]);
+            final List<Integer> key = Arrays.asList(((Number) tmp[0]).intValue(), getMonthKey(c), tmp[1] == null ? SQLRow.NONEXISTANT_ID : ((Number) tmp[1]).intValue());
+            long[] s = expected.get(key);
+            if (s == null) {
+                s = new long[2];
+                expected.put(key, s);
+            }
+            s[DEBIT] += toLong(tmp[3]);
+            s[CREDIT] += toLong(tmp[4]);
+        }
+
+        final List<String> res = new ArrayList<String>();
+        for (final Map.Entry<Integer, TreeMap<Integer, Map<Integer, long[]>>> e : this.soldes.entrySet()) {
+            for (final Map.Entry<Integer, Map<Integer, long[]>> m : e.getValue().entrySet()) {
+                for (final Map.Entry<Integer, long[]> j : m.getValue().entrySet()) {
+                    final List<Integer> key = Arrays.asList(e.getKey(), m.getKey(), j.getKey());
+                    final long[] exp = expected.remove(key);
+                    final long[] actual = j.getValue();
+                    final long expDebit = exp == null ? 0 : exp[DEBIT];
+                    final long expCredit = exp == null ? 0 : exp[CREDIT];
+                    if (expDebit != actual[DEBIT] || expCredit != actual[CREDIT]) {
+                        res.add(toString(key) + " : " + Arrays.toString(actual) + " au lieu de " + expDebit + ", " + expCredit);
+                    }
+                }
+            }
+        }
+        for (final Map.Entry<List<Integer>, long[]> e : expected.entrySet()) {
+            if (e.getValue()[DEBIT] != 0 || e.getValue()[CREDIT] != 0) {
+                res.add(toString(e.getKey()) + " : absent au lieu de " + e.getValue()[DEBIT] + ", " + e.getValue()[CREDIT]);
+            }
+        }
+        if (!res.isEmpty()) {
+            Log.get().warning("Soldes mensuels incohérents, rechargement : " + res);
+            this.invalidate();
+        }
+        return res;
+    }
+
+    private static String toString(final List<Integer> key) {
+        final int month = key.get(1);
+        return "compte " + key.get(0) + " " + (month % 12 + 1) + "/" + (month / 12) + " journal " + key.get(2);
+    }
+}
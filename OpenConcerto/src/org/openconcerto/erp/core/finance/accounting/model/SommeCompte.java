@@ -23,6 +23,7 @@ import org.openconcerto.sql.model.Where;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.dbutils.handlers.ArrayListHandler;
 
@@ -43,6 +44,52 @@ public class SommeCompte {
     SQLTable ecritureTable = base.getTable("ECRITURE");
     SQLTable compteTable = base.getTable("COMPTE_PCE");
 
+    /**
+     * Les totaux par compte lus dans {@link SoldesMensuelsCache}, uniquement sans poste analytique.
+     */
+    private Map<Integer, long[]> getSoldes(Date dateDebut, Date dateFin) {
+        assert this.rowAnalytique == null;
+        return SoldesMensuelsCache.getCache().getSoldes(dateDebut, dateFin, null);
+    }
+
+    // même filtre que les LIKE des requêtes
+    private static boolean matches(String numeroCompte, int numeroStart, int numeroEnd, boolean includeAllEnd) {
+        if (numeroCompte.startsWith(String.valueOf(numeroStart))) {
+            return true;
+        }
+        for (int i = numeroStart + 1; i < numeroEnd + 1; i++) {
+            if ((i == numeroEnd) && (!includeAllEnd)) {
+                if (numeroCompte.equals(String.valueOf(i))) {
+                    return true;
+                }
+            } else if (numeroCompte.startsWith(String.valueOf(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final int SOLDE = 0;
+    private static final int SOLDE_DEBITEUR = 1;
+    private static final int SOLDE_CREDITEUR = 2;
+
+    private long soldeFromCache(int numeroStart, int numeroEnd, boolean includeAllEnd, Date dateDebut, Date dateFin, int type) {
+        final Map<Integer, String> numeros = SoldesMensuelsCache.getCache().getNumeros();
+        long solde = 0;
+        for (final Map.Entry<Integer, long[]> e : getSoldes(dateDebut, dateFin).entrySet()) {
+            final String numeroCompte = numeros.get(e.getKey());
+            if (numeroCompte != null && matches(numeroCompte, numeroStart, numeroEnd, includeAllEnd)) {
+                final long s = e.getValue()[0] - e.getValue()[1];
+                if (type == SOLDE || (type == SOLDE_DEBITEUR && s > 0)) {
+                    solde += s;
+                } else if (type == SOLDE_CREDITEUR && s < 0) {
+                    solde -= s;
+                }
+            }
+        }
+        return solde;
+    }
+
     private void addAnalytiqueJoin(SQLSelect sel) {
         if (this.rowAnalytique != null) {
             SQLTable tableAssoc = ecritureTable.getTable("ASSOCIATION_ANALYTIQUE");
@@ -61,6 +108,18 @@ public class SommeCompte {
      * @return le solde debiteur
      **********************************************************************************************/
     public long sommeCompteFils(String numero, Date dateDebut, Date dateFin) {
+        if (this.rowAnalytique == null) {
+            final String prefix = numero.trim();
+            final Map<Integer, String> numeros = SoldesMensuelsCache.getCache().getNumeros();
+            long solde = 0;
+            for (final Map.Entry<Integer, long[]> e : getSoldes(dateDebut, dateFin).entrySet()) {
+                final String numeroCompte = numeros.get(e.getKey());
+                if (numeroCompte != null && numeroCompte.startsWith(prefix)) {
+                    solde += e.getValue()[0] - e.getValue()[1];
+                }
+            }
+            return solde;
+        }
         long sommeDebit = 0;
         long sommeCredit = 0;
 
@@ -116,6 +175,9 @@ public class SommeCompte {
      * @return le solde debiteur total des comptes
      **********************************************************************************************/
     public long soldeCompte(int numeroStart, int numeroEnd, boolean includeAllEnd, Date dateDebut, Date dateFin) {
+        if (this.rowAnalytique == null) {
+            return soldeFromCache(numeroStart, numeroEnd, includeAllEnd, dateDebut, dateFin, SOLDE);
+        }
 
         long sommeDebit = 0;
         long sommeCredit = 0;
@@ -174,6 +236,9 @@ public class SommeCompte {
     }
 
     public long soldeCompteDebiteur(int numeroStart, int numeroEnd, boolean includeAllEnd, Date dateDebut, Date dateFin) {
+        if (this.rowAnalytique == null) {
+            return soldeFromCache(numeroStart, numeroEnd, includeAllEnd, dateDebut, dateFin, SOLDE_DEBITEUR);
+        }
 
         SQLTable ecritureTable = base.getTable("ECRITURE");
         SQLTable compteTable = base.getTable("COMPTE_PCE");
@@ -230,6 +295,9 @@ public class SommeCompte {
     // FIXME soldeCompteCrediteur(47, 475, boolean includeAllEnd) --> LIKE 47, 48, 49, 50 , ...,
     // 474, 475
     public long soldeCompteCrediteur(int numeroStart, int numeroEnd, boolean includeAllEnd, Date dateDebut, Date dateFin) {
+        if (this.rowAnalytique == null) {
+            return soldeFromCache(numeroStart, numeroEnd, includeAllEnd, dateDebut, dateFin, SOLDE_CREDITEUR);
+        }
 
         SQLTable ecritureTable = base.getTable("ECRITURE");
         SQLTable compteTable = base.getTable("COMPTE_PCE");
@@ -291,6 +359,20 @@ public class SommeCompte {
      * @return le solde du compte passé en parametre
      **********************************************************************************************/
     public long soldeCompte(String numero) {
+        if (this.rowAnalytique == null) {
+            final String n = numero.trim();
+            final Map<Integer, long[]> soldes = getSoldes(null, null);
+            long solde = 0;
+            for (final Map.Entry<Integer, String> e : SoldesMensuelsCache.getCache().getNumeros().entrySet()) {
+                if (e.getValue().equals(n)) {
+                    final long[] s = soldes.get(e.getKey());
+                    if (s != null) {
+                        solde += s[0] - s[1];
+                    }
+                }
+            }
+            return solde;
+        }
         long sommeDebit = 0;
         long sommeCredit = 0;
 
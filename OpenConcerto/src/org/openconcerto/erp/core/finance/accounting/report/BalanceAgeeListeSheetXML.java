@@ -198,12 +198,25 @@ public class BalanceAgeeListeSheetXML extends AbstractListeSheetXml {
         // Calendar c = Calendar.getInstance();
         // final long timeInMillis = c.getTimeInMillis();
         final long timeInMillis = this.fin.getTime();
+
+        // factures et modes de règlement chargés en une requête chacun et non pas par écriture
+        final List<Integer> idsFact = new ArrayList<Integer>();
+        for (SQLRowValues sqlRow : l) {
+            SQLRowAccessor rowMvt = sqlRow.getForeign("ID_MOUVEMENT");
+            if (rowMvt.getString("SOURCE").equalsIgnoreCase("SAISIE_VENTE_FACTURE")) {
+                idsFact.add(rowMvt.getInt("IDSOURCE"));
+            }
+        }
+        final Map<Integer, SQLRow> facts = fact.getTable().getRows(idsFact);
+        final Map<Integer, SQLRow> modesRegl = SQLRow.getForeignRowsByID(facts.values(), "ID_MODE_REGLEMENT");
+
         for (SQLRowValues sqlRow : l) {
             long date = sqlRow.getDate("DATE").getTimeInMillis();
             SQLRowAccessor rowMvt = sqlRow.getForeign("ID_MOUVEMENT");
             if (rowMvt.getString("SOURCE").equalsIgnoreCase("SAISIE_VENTE_FACTURE")) {
-                SQLRow rowFact = fact.getTable().getRow(rowMvt.getInt("IDSOURCE"));
-                date = ModeDeReglementSQLElement.calculDate(rowFact.getForeignRow("ID_MODE_REGLEMENT"), rowFact.getDate("DATE").getTime()).getTime();
+                SQLRow rowFact = facts.get(rowMvt.getInt("IDSOURCE"));
+                SQLRow rowModeRegl = modesRegl.get(rowFact.getInt("ID_MODE_REGLEMENT"));
+                date = ModeDeReglementSQLElement.calculDate(rowModeRegl, rowFact.getDate("DATE").getTime()).getTime();
             }
 
             long time = timeInMillis - date;
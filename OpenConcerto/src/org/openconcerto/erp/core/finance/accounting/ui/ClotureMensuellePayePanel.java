@@ -15,15 +15,10 @@
 
 import org.openconcerto.erp.config.ComptaPropsConfiguration;
 import org.openconcerto.erp.core.common.element.MoisSQLElement;
-import org.openconcerto.erp.core.humanresources.payroll.element.FichePayeSQLElement;
-import org.openconcerto.erp.generationEcritures.GenerationMvtFichePaye;
+import org.openconcerto.erp.core.humanresources.payroll.model.ClotureMensuellePaye;
 import org.openconcerto.sql.Configuration;
-import org.openconcerto.sql.model.SQLBase;
-import org.openconcerto.sql.model.SQLRow;
-import org.openconcerto.sql.model.SQLSelect;
-import org.openconcerto.sql.model.SQLTable;
-import org.openconcerto.sql.model.Where;
 import org.openconcerto.sql.sqlobject.ElementComboBox;
+import org.openconcerto.utils.CollectionUtils;
 import org.openconcerto.utils.ExceptionHandler;
 
 import java.awt.GridBagConstraints;
@@ -33,7 +28,6 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 
@@ -43,14 +37,15 @@ import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JTextField;
 import javax.swing.SwingUtilities;
-
-import org.apache.commons.dbutils.handlers.ArrayListHandler;
+import javax.swing.SwingWorker;
 
 public class ClotureMensuellePayePanel extends JPanel {
 
-    private final SQLBase base = ((ComptaPropsConfiguration) Configuration.getInstance()).getSQLBaseSociete();
+    private final JProgressBar bar = new JProgressBar();
+    private final JLabel labelEtat = new JLabel(" ");
 
     public ClotureMensuellePayePanel() {
 
@@ -96,7 +91,12 @@ public class ClotureMensuellePayePanel extends JPanel {
         c.gridy++;
         this.add(boxCompta, c);
 
-        JButton buttonClot = new JButton("Clôturer");
+        c.gridy++;
+        this.add(this.bar, c);
+        c.gridy++;
+        this.add(this.labelEtat, c);
+
+        final JButton buttonClot = new JButton("Clôturer");
         JButton buttonFermer = new JButton("Fermer");
 
         JPanel panelButton = new JPanel();
@@ -116,83 +116,54 @@ public class ClotureMensuellePayePanel extends JPanel {
 
         buttonClot.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
+                final int idMois = selMois.getSelectedId();
+                final int annee;
                 try {
-
-                    // Valider les fiches non validés des salariés actifs
-                    if (boxValid.isSelected()) {
-                        SQLSelect selFiche = new SQLSelect();
-                        SQLTable tableFiche = ClotureMensuellePayePanel.this.base.getTable("FICHE_PAYE");
-                        SQLTable tableSalarie = ClotureMensuellePayePanel.this.base.getTable("SALARIE");
-                        SQLTable tableInfosSal = ClotureMensuellePayePanel.this.base.getTable("INFOS_SALARIE_PAYE");
-                        selFiche.addSelect(tableFiche.getField("ID"));
-
-                        selFiche.setWhere(new Where(tableFiche.getField("VALIDE"), "=", Boolean.FALSE));
-                        selFiche.andWhere(new Where(tableFiche.getField("ID_MOIS"), "=", selMois.getSelectedId()));
-                        selFiche.andWhere(new Where(tableFiche.getField("ANNEE"), "=", new Integer(textAnnee.getText())));
-                        selFiche.andWhere(new Where(tableSalarie.getField("ID"), "=", tableFiche.getField("ID_SALARIE")));
-                        selFiche.andWhere(new Where(tableInfosSal.getField("ID"), "=", tableSalarie.getField("ID_INFOS_SALARIE_PAYE")));
-
-                        // FIXME ne pas valider les fiches d'un employé renvoyé
-
-                        // Where w2 = new Where(tableInfosSal.getField("DATE_SORTIE"), "IS",
-                        // "NULL");
-                        Calendar cal = Calendar.getInstance();
-                        cal.set(Calendar.DATE, 1);
-                        cal.set(Calendar.MONTH, selMois.getSelectedId() - 2);
-                        cal.set(Calendar.YEAR, Integer.parseInt(textAnnee.getText()));
-                        cal.set(Calendar.DATE, cal.getActualMaximum(Calendar.DATE));
-
-                        Where w = new Where(tableInfosSal.getField("DATE_SORTIE"), "<=", cal.getTime());
-                        w = w.or(new Where(tableInfosSal.getField("DATE_SORTIE"), "=", (Object) null));
-                        selFiche.andWhere(w);
-                        String req = selFiche.asString();
-                        System.err.println(req);
-                        List l = (List) ClotureMensuellePayePanel.this.base.getDataSource().execute(req, new ArrayListHandler());
-
-                        for (int i = 0; i < l.size(); i++) {
-
-                            Object[] tmp = (Object[]) l.get(i);
-                            SQLRow rowFicheTmp = tableFiche.getRow(Integer.parseInt(tmp[0].toString()));
-                            System.err.println(rowFicheTmp);
-                            FichePayeSQLElement.validationFiche(rowFicheTmp.getID());
-                        }
+                    annee = Integer.parseInt(textAnnee.getText().trim());
+                } catch (NumberFormatException ex) {
+                    JOptionPane.showMessageDialog(ClotureMensuellePayePanel.this, "Année incorrecte");
+                    return;
+                }
+                final boolean valider = boxValid.isSelected();
+                final boolean compta = boxCompta.isSelected();
+                final ClotureMensuellePaye cloture = new ClotureMensuellePaye(((ComptaPropsConfiguration) Configuration.getInstance()).getRootSociete(), idMois, annee);
+                buttonClot.setEnabled(false);
+                // la clôture peut être longue avec beaucoup de salariés, ne pas bloquer l'EDT
+                new SwingWorker<Integer, Object>() {
+                    @Override
+                    protected Integer doInBackground() throws Exception {
+                        return cloture.cloturer(valider, compta, new ClotureMensuellePaye.ProgressListener() {
+                            @Override
+                            public void progress(final String etape, final int done, final int total) {
+                                SwingUtilities.invokeLater(new Runnable() {
+                                    public void run() {
+                                        ClotureMensuellePayePanel.this.bar.setMaximum(total);
+                                        ClotureMensuellePayePanel.this.bar.setValue(done);
+                                        ClotureMensuellePayePanel.this.labelEtat.setText(etape);
+                                    }
+                                });
+                            }
+                        });
                     }
 
-                    // cloture du mois et generation compta
-
-                    SQLSelect selFiche = new SQLSelect(ClotureMensuellePayePanel.this.base);
-                    SQLTable tableFiche = ClotureMensuellePayePanel.this.base.getTable("FICHE_PAYE");
-                    SQLTable tableMois = ClotureMensuellePayePanel.this.base.getTable("MOIS");
-                    selFiche.addSelect(tableFiche.getField("ID"));
-
-                    selFiche.setWhere(new Where(tableFiche.getField("VALIDE"), "=", Boolean.TRUE));
-                    selFiche.andWhere(new Where(tableFiche.getField("ID_MOIS"), "=", selMois.getSelectedId()));
-                    selFiche.andWhere(new Where(tableFiche.getField("ANNEE"), "=", new Integer(textAnnee.getText())));
-
-                    String req = selFiche.asString();
-
-                    List l = (List) ClotureMensuellePayePanel.this.base.getDataSource().execute(req, new ArrayListHandler());
-
-                    if (l != null && l.size() > 0) {
-                        int[] idS = new int[l.size()];
-                        SQLRow rowMois = tableMois.getRow(selMois.getSelectedId());
-
-                        for (int i = 0; i < l.size(); i++) {
-
-                            Object[] tmp = (Object[]) l.get(i);
-                            idS[i] = Integer.parseInt(tmp[0].toString());
-                            SQLRow rowFiche = tableFiche.getRow(idS[i]);
-                            FichePayeSQLElement.clotureMensuelle(selMois.getSelectedId(), Integer.parseInt(textAnnee.getText()), rowFiche.getInt("ID_SALARIE"));
-                        }
-                        if (boxCompta.isSelected()) {
-                            new GenerationMvtFichePaye(idS, rowMois.getString("NOM"), textAnnee.getText());
+                    @Override
+                    protected void done() {
+                        buttonClot.setEnabled(true);
+                        try {
+                            get();
+                            final List<String> refused = cloture.getRefused();
+                            if (refused.isEmpty()) {
+                                JOptionPane.showMessageDialog(null, "Clôture terminée");
+                            } else {
+                                JOptionPane.showMessageDialog(null, "Clôture terminée.\nLes fiches de paye des salariés suivants n'ont pas été validées, la période est cloturée :\n"
+                                        + CollectionUtils.join(refused, "\n"), "Clôture terminée", JOptionPane.INFORMATION_MESSAGE);
+                            }
+                        } catch (Exception ex) {
+                            ClotureMensuellePayePanel.this.labelEtat.setText("Clôture annulée");
+                            ExceptionHandler.handle("Unable to complete operation", ex);
                         }
                     }
-                    System.err.println("ClotureMensuellePayePanel.ClotureMensuellePayePanel().new ActionListener() {...}.actionPerformed()");
-                    JOptionPane.showMessageDialog(null, "Clôture terminée");
-                } catch (Exception ex) {
-                    ExceptionHandler.handle("Unable to complete operation", ex);
-                }
+                }.execute();
             }
         });
     }
@@ -32,6 +32,7 @@ import org.openconcerto.ui.DefaultGridBagConstraints;
 import org.openconcerto.ui.JDate;
 import org.openconcerto.ui.JLabelBold;
 import org.openconcerto.utils.ExceptionHandler;
+import org.openconcerto.utils.cc.IClosure;
 
 import java.awt.Component;
 import java.awt.GridBagConstraints;
@@ -58,6 +59,7 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JProgressBar;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 
 import org.apache.commons.dbutils.handlers.ArrayListHandler;
 
@@ -181,16 +183,34 @@ public class CloturePanel extends JPanel {
 
         this.valider.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
+                CloturePanel.this.valider.setEnabled(false);
+                CloturePanel.this.annul.setEnabled(false);
+                // les composants ne se lisent que dans l'EDT
+                final Date dateOuverture = CloturePanel.this.dateOuv.getValue();
+                final Date dateFermeture = CloturePanel.this.dateFerm.getValue();
+                // ne pas bloquer l'EDT pour afficher l'avancement
+                new SwingWorker<Object, Object>() {
+                    @Override
+                    protected Object doInBackground() throws Exception {
+                        clotureExercice(dateOuverture, dateFermeture);
+                        return null;
+                    }
 
-                try {
-                    clotureExercice();
-                    // show OK works fine
-                    Component comp = SwingUtilities.getRoot(CloturePanel.this);
-                    JOptionPane.showMessageDialog(CloturePanel.this, "Exercice clôturé", "Fin de la clôture", JOptionPane.INFORMATION_MESSAGE);
-                    ((JFrame) comp).dispose();
-                } catch (Exception ex) {
-                    ExceptionHandler.handle("Erreur lors de la clôture", ex);
-                }
+                    @Override
+                    protected void done() {
+                        CloturePanel.this.annul.setEnabled(true);
+                        try {
+                            get();
+                            // show OK works fine
+                            Component comp = SwingUtilities.getRoot(CloturePanel.this);
+                            JOptionPane.showMessageDialog(CloturePanel.this, "Exercice clôturé", "Fin de la clôture", JOptionPane.INFORMATION_MESSAGE);
+                            ((JFrame) comp).dispose();
+                        } catch (Exception ex) {
+                            CloturePanel.this.valider.setEnabled(isDateValid());
+                            ExceptionHandler.handle("Erreur lors de la clôture", ex);
+                        }
+                    }
+                }.execute();
             }
         });
 
@@ -221,7 +241,28 @@ public class CloturePanel extends JPanel {
 
     private final SQLTable tablePrefCompte = this.base.getTable("PREFS_COMPTE");
 
-    private void clotureExercice() throws SQLException {
+    // appelé hors de l'EDT par clotureExercice()
+    private void setEtat(final String text, final int step) {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                CloturePanel.this.opEnCours.setText(text);
+                if (step >= 0) {
+                    CloturePanel.this.bar.setValue(step);
+                }
+            }
+        });
+    }
+
+    private IClosure<Integer> createValidationProgress(final String text) {
+        return new IClosure<Integer>() {
+            @Override
+            public void executeChecked(Integer percent) {
+                setEtat(text + " (" + percent + "%)", -1);
+            }
+        };
+    }
+
+    private void clotureExercice(final Date dateOuverture, final Date dateFermeture) throws SQLException {
 
         SQLRow rowPrefCompte = this.tablePrefCompte.getRow(2);
         int id_Compte_Bilan_Ouverture = rowPrefCompte.getInt("ID_COMPTE_PCE_BILAN_O");
@@ -237,38 +278,30 @@ public class CloturePanel extends JPanel {
         /*******************************************************************************************
          * Validation des écritures
          ******************************************************************************************/
-        EcritureSQLElement.validationEcrituresBefore((Date) this.rowExercice.getObject("DATE_FIN"), true);
+        this.setEtat("En cours: validation des écritures", -1);
+        EcritureSQLElement.validationEcrituresBefore((Date) this.rowExercice.getObject("DATE_FIN"), true, createValidationProgress("En cours: validation des écritures"));
         /*******************************************************************************************
          * Solde des comptes de gestion 6* et 7* (génération du résultat)
          ******************************************************************************************/
-        this.opEnCours.setText("En cours: solde des comptes 6 et 7");
-        long time = new Date().getTime();
-        System.err.println("Start :: " + time);
+        this.setEtat("En cours: solde des comptes 6 et 7", -1);
         soldeCompte(false);
 
         /*******************************************************************************************
          * Solde des autres comptes (comptes de bilan)
          ******************************************************************************************/
-        this.opEnCours.setText("En cours: solde des comptes autres que 6 et 7");
-        this.bar.setValue(1);
+        this.setEtat("En cours: solde des comptes autres que 6 et 7", 1);
         soldeCompte(true);
 
-        long time2 = new Date().getTime();
-        System.err.println("Stop :: " + time2);
-        System.err.println("Time :: " + (time2 - time));
-
         /*******************************************************************************************
          * Validation des écritures de clotures
          ******************************************************************************************/
-        this.opEnCours.setText("En cours: validation des écritures de l'exercice");
-        this.bar.setValue(2);
-        EcritureSQLElement.validationEcrituresBefore((Date) this.rowExercice.getObject("DATE_FIN"), true);
+        this.setEtat("En cours: validation des écritures de l'exercice", 2);
+        EcritureSQLElement.validationEcrituresBefore((Date) this.rowExercice.getObject("DATE_FIN"), true, createValidationProgress("En cours: validation des écritures de l'exercice"));
 
         /*******************************************************************************************
          * Reouverture des comptes de bilan
          ******************************************************************************************/
-        this.opEnCours.setText("En cours: report des à nouveaux");
-        this.bar.setValue(3);
+        this.setEtat("En cours: report des à nouveaux", 3);
         // transfert du compte bilan fermeture vers le compte bilan ouverture
         SQLTable ecritureTable = this.base.getTable("ECRITURE");
         SQLTable compteTable = this.base.getTable("COMPTE_PCE");
@@ -318,17 +351,17 @@ public class CloturePanel extends JPanel {
 
         // A nouveaux
         Object[] compteAnouveau = this.mRAN.keySet().toArray();
-        GenerationMvtVirement genAnouveaux = new GenerationMvtVirement(id_Compte_Bilan_Ouverture, 1, 0, 0, "A nouveaux", this.dateOuv.getValue(), JournalSQLElement.OD, "A nouveaux");
+        GenerationMvtVirement genAnouveaux = new GenerationMvtVirement(id_Compte_Bilan_Ouverture, 1, 0, 0, "A nouveaux", dateOuverture, JournalSQLElement.OD, "A nouveaux");
         for (int i = 0; i < this.mRAN.keySet().size(); i++) {
 
             long solde = this.mRAN.get(compteAnouveau[i]).longValue();
 
             // if (solde != 0) {
             if (solde > 0) {
-                genAnouveaux.setValues(id_Compte_Bilan_Ouverture, Integer.parseInt(compteAnouveau[i].toString()), 0, Math.abs(solde), "A nouveaux", this.dateOuv.getValue(), JournalSQLElement.OD,
+                genAnouveaux.setValues(id_Compte_Bilan_Ouverture, Integer.parseInt(compteAnouveau[i].toString()), 0, Math.abs(solde), "A nouveaux", dateOuverture, JournalSQLElement.OD,
                         false);
             } else {
-                genAnouveaux.setValues(id_Compte_Bilan_Ouverture, Integer.parseInt(compteAnouveau[i].toString()), Math.abs(solde), 0, "A nouveaux", this.dateOuv.getValue(), JournalSQLElement.OD,
+                genAnouveaux.setValues(id_Compte_Bilan_Ouverture, Integer.parseInt(compteAnouveau[i].toString()), Math.abs(solde), 0, "A nouveaux", dateOuverture, JournalSQLElement.OD,
                         false);
             }
             genAnouveaux.genereMouvement();
@@ -347,8 +380,8 @@ public class CloturePanel extends JPanel {
 
         // Creation d'un nouvel exercice
         valsExercice.put("CLOTURE", Boolean.FALSE);
-        valsExercice.put("DATE_DEB", new java.sql.Date(this.dateOuv.getValue().getTime()));
-        valsExercice.put("DATE_FIN", new java.sql.Date(this.dateFerm.getValue().getTime()));
+        valsExercice.put("DATE_DEB", new java.sql.Date(dateOuverture.getTime()));
+        valsExercice.put("DATE_FIN", new java.sql.Date(dateFermeture.getTime()));
         valsExercice.put("ID_SOCIETE_COMMON", this.rowSociete.getID());
         try {
             SQLRow rowNewEx = valsExercice.insert();
@@ -362,8 +395,7 @@ public class CloturePanel extends JPanel {
 
             e.printStackTrace();
         }
-        this.bar.setValue(4);
-        this.opEnCours.setText("Etat: clôture termninée");
+        this.setEtat("Etat: clôture termninée", 4);
     }
 
     private void soldeCompte(boolean compteBilan) throws SQLException {
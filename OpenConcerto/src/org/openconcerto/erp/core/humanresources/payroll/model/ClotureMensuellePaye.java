@@ -0,0 +1,537 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.core.humanresources.payroll.model;
+
+import org.openconcerto.erp.generationEcritures.GenerationMvtFichePaye;
+import org.openconcerto.sql.model.DBRoot;
+import org.openconcerto.sql.model.IResultSetHandler;
+import org.openconcerto.sql.model.SQLBase;
+import org.openconcerto.sql.model.SQLDataSource;
+import org.openconcerto.sql.model.SQLField;
+import org.openconcerto.sql.model.SQLRow;
+import org.openconcerto.sql.model.SQLRowAccessor;
+import org.openconcerto.sql.model.SQLRowValues;
+import org.openconcerto.sql.model.SQLRowValuesListFetcher;
+import org.openconcerto.sql.model.SQLSelect;
+import org.openconcerto.sql.model.SQLSyntax;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.model.Where;
+import org.openconcerto.sql.request.UpdateBuilder;
+import org.openconcerto.sql.users.UserManager;
+import org.openconcerto.sql.utils.SQLUtils;
+import org.openconcerto.sql.utils.SQLUtils.SQLFactory;
+import org.openconcerto.utils.CollectionUtils;
+import org.openconcerto.utils.cc.ITransformer;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Clôture mensuelle de la paye pour tous les salariés. Contrairement à
+ * FichePayeSQLElement.validationFiche() qui traite une fiche à la fois, les fiches, salariés et
+ * cumuls du mois sont chargés en quelques requêtes, les nouveaux cumuls sont calculés en mémoire
+ * puis écrits par lots. Le tout est fait dans une seule transaction, hors de l'EDT.
+ */
+public final class ClotureMensuellePaye {
+
+    public static interface ProgressListener {
+        /**
+         * Appelé hors de l'EDT à chaque étape.
+         * 
+         * @param etape la description de l'étape en cours.
+         * @param done le nombre d'étapes terminées.
+         * @param total le nombre total d'étapes.
+         */
+        public void progress(String etape, int done, int total);
+    }
+
+    private static final int STEPS = 9;
+    // nombre de lignes par INSERT
+    private static final int INSERT_BATCH = 500;
+    private static final String[] CUMULS = { "SAL_BRUT", "CSG", "COT_SAL", "COT_PAT", "NET_IMP", "NET_A_PAYER" };
+    // lignes du salarié copiées dans la fiche validée
+    private static final List<String> COPIES = Arrays.asList("ID_VARIABLE_SALARIE", "ID_CUMULS_CONGES", "ID_CUMULS_PAYE", "ID_REGLEMENT_PAYE");
+
+    private final DBRoot root;
+    private final int idMois;
+    private final int annee;
+    private final SQLTable tableFiche;
+    private final SQLTable tableFicheElt;
+    private final SQLTable tableSal;
+    private final SQLTable tableCumuls;
+    private final SQLTable tableConges;
+    private final SQLTable tableVariable;
+    private final List<String> refused;
+    private ProgressListener listener;
+    private int step;
+
+    public ClotureMensuellePaye(final DBRoot root, final int idMois, final int annee) {
+        this.root = root;
+        this.idMois = idMois;
+        this.annee = annee;
+        this.tableFiche = root.getTable("FICHE_PAYE");
+        this.tableFicheElt = root.getTable("FICHE_PAYE_ELEMENT");
+        this.tableSal = root.getTable("SALARIE");
+        this.tableCumuls = root.getTable("CUMULS_PAYE");
+        this.tableConges = root.getTable("CUMULS_CONGES");
+        this.tableVariable = root.getTable("VARIABLE_SALARIE");
+        this.refused = new ArrayList<String>();
+    }
+
+    /**
+     * Les salariés dont la fiche n'a pu être validée car la période est déjà cloturée.
+     * 
+     * @return les noms des salariés.
+     */
+    public final List<String> getRefused() {
+        return Collections.unmodifiableList(this.refused);
+    }
+
+    /**
+     * Clôture le mois. Ne pas appeler depuis l'EDT.
+     * 
+     * @param valider <code>true</code> pour valider d'abord les fiches non validées.
+     * @param compta <code>true</code> pour générer les écritures comptables.
+     * @param l pour suivre l'avancement, peut être <code>null</code>.
+     * @return le nombre de fiches clôturées.
+     * @throws SQLException si une erreur survient, rien n'est alors modifié.
+     */
+    public final int cloturer(final boolean valider, final boolean compta, final ProgressListener l) throws SQLException {
+        this.listener = l;
+        this.step = 0;
+        this.refused.clear();
+        final int[] res = SQLUtils.executeAtomic(this.root.getDBSystemRoot().getDataSource(), new SQLFactory<int[]>() {
+            @Override
+            public int[] create() throws SQLException {
+                if (valider)
+                    validerFiches();
+                final int[] ids = cloturerMois();
+                if (compta && ids.length > 0) {
+                    progress("Génération des écritures comptables");
+                    final String nomMois = ClotureMensuellePaye.this.root.getTable("MOIS").getRow(ClotureMensuellePaye.this.idMois).getString("NOM");
+                    try {
+                        GenerationMvtFichePaye.genereSynchrone(ids, nomMois, String.valueOf(ClotureMensuellePaye.this.annee));
+                    } catch (SQLException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new SQLException("Erreur pendant la génération des écritures comptables", e);
+                    }
+                }
+                return ids;
+            }
+        });
+        // les insertions et mises à jour par lots ne déclenchent pas d'évènement
+        for (final SQLTable t : Arrays.asList(this.tableFiche, this.tableFicheElt, this.tableSal, this.tableCumuls, this.tableConges, this.tableVariable, this.root.getTable("REGLEMENT_PAYE"))) {
+            t.fireTableModified(SQLRow.NONEXISTANT_ID);
+        }
+        if (this.listener != null)
+            this.listener.progress("Clôture terminée", STEPS, STEPS);
+        return res.length;
+    }
+
+    private void progress(final String etape) {
+        if (this.listener != null)
+            this.listener.progress(etape, this.step++, STEPS);
+    }
+
+    private final SQLDataSource getDS() {
+        return this.root.getDBSystemRoot().getDataSource();
+    }
+
+    private static List<String> getContentFieldsNames(final SQLTable t) {
+        final List<String> res = new ArrayList<String>();
+        for (final SQLField f : t.getContentFields()) {
+            res.add(f.getName());
+        }
+        return res;
+    }
+
+    private List<SQLRowValues> fetchFichesAValider() {
+        final SQLRowValues graph = new SQLRowValues(this.tableFiche);
+        graph.putNulls("ID_MOIS", "ANNEE", "DU", "AU", "ID_PROFIL_PAYE", "ACOMPTE", "CONGES_ACQUIS");
+        for (final String c : CUMULS) {
+            graph.put(c, null);
+        }
+        final SQLRowValues sal = graph.putRowValues("ID_SALARIE").putNulls("NOM", "PRENOM", "DERNIER_MOIS", "DERNIERE_ANNEE");
+        for (final String fk : COPIES) {
+            sal.putRowValues(fk).putNulls(getContentFieldsNames(this.tableSal.getForeignTable(fk)));
+        }
+        final SQLRowValues infos = sal.putRowValues("ID_INFOS_SALARIE_PAYE").putNulls("DATE_SORTIE", "CONGES_PAYES", "ID_IDCC");
+        infos.putRowValues("ID_CONTRAT_SALARIE").putNulls("NATURE");
+
+        final SQLRowValuesListFetcher fetcher = SQLRowValuesListFetcher.create(graph);
+        fetcher.setSelTransf(new ITransformer<SQLSelect, SQLSelect>() {
+            @Override
+            public SQLSelect transformChecked(SQLSelect input) {
+                final SQLTable t = ClotureMensuellePaye.this.tableFiche;
+                input.andWhere(new Where(t.getField("VALIDE"), "=", Boolean.FALSE));
+                input.andWhere(new Where(t.getField("ID_MOIS"), "=", ClotureMensuellePaye.this.idMois));
+                input.andWhere(new Where(t.getField("ANNEE"), "=", ClotureMensuellePaye.this.annee));
+                input.addFieldOrder(t.getKey());
+                return input;
+            }
+        });
+
+        // FIXME ne pas valider les fiches d'un employé renvoyé
+        final Calendar cal = Calendar.getInstance();
+        cal.set(Calendar.DATE, 1);
+        cal.set(Calendar.MONTH, this.idMois - 2);
+        cal.set(Calendar.YEAR, this.annee);
+        cal.set(Calendar.DATE, cal.getActualMaximum(Calendar.DATE));
+        final Date finMois = cal.getTime();
+
+        final List<SQLRowValues> res = new ArrayList<SQLRowValues>();
+        final Set<Integer> salaries = new HashSet<Integer>();
+        for (final SQLRowValues fiche : fetcher.fetch()) {
+            final SQLRowAccessor rowSal = fiche.getForeign("ID_SALARIE");
+            final Date sortie = (Date) rowSal.getForeign("ID_INFOS_SALARIE_PAYE").getObject("DATE_SORTIE");
+            if (sortie != null && sortie.after(finMois))
+                continue;
+            // On teste que la fiche est entrée dans une période non cloturée
+            final int moisClot = rowSal.getInt("DERNIER_MOIS");
+            final int anneeClot = rowSal.getInt("DERNIERE_ANNEE");
+            if (!(((anneeClot == 0) ? true : this.annee > anneeClot) || ((moisClot == 0 || moisClot == 13) ? true : this.idMois > moisClot))) {
+                this.refused.add(rowSal.getString("NOM") + " " + rowSal.getString("PRENOM"));
+                continue;
+            }
+            // la validation crée la fiche suivante, un salarié n'a donc qu'une fiche en cours
+            if (salaries.add(rowSal.getID()))
+                res.add(fiche);
+        }
+        return res;
+    }
+
+    // même traitement que FichePayeSQLElement.validationFiche() pour toutes les fiches
+    private void validerFiches() throws SQLException {
+        this.progress("Chargement des fiches de paye");
+        final List<SQLRowValues> fiches = this.fetchFichesAValider();
+        final int size = fiches.size();
+        if (size == 0)
+            return;
+        final List<Integer> ficheIDs = new ArrayList<Integer>(size);
+        for (final SQLRowValues fiche : fiches) {
+            ficheIDs.add(fiche.getID());
+        }
+
+        // valider les elements des fiches
+        this.progress("Validation des éléments");
+        final UpdateBuilder validElts = new UpdateBuilder(this.tableFicheElt);
+        validElts.setObject("VALIDE", Boolean.TRUE);
+        setMetadata(validElts, this.tableFicheElt);
+        validElts.setWhere(new Where(this.tableFicheElt.getField("ID_FICHE_PAYE"), ficheIDs));
+        getDS().execute(validElts.asString());
+
+        // Sauvegarde des valeurs des fiches (cumuls, conges, ...)
+        this.progress("Sauvegarde des cumuls");
+        final Map<String, List<Number>> copies = new HashMap<String, List<Number>>();
+        for (final String fk : COPIES) {
+            final SQLTable t = this.tableSal.getForeignTable(fk);
+            final List<String> fields = getContentFieldsNames(t);
+            final List<List<Object>> rows = new ArrayList<List<Object>>(size);
+            for (final SQLRowValues fiche : fiches) {
+                final SQLRowAccessor toCopy = fiche.getForeign("ID_SALARIE").getForeign(fk);
+                final List<Object> row = new ArrayList<Object>(fields.size());
+                for (final String f : fields) {
+                    row.add(toCopy.getObject(f));
+                }
+                rows.add(row);
+            }
+            copies.put(fk, this.insert(t, fields, rows));
+        }
+
+        // creer et associer une nouvelle fiche au salarie
+        this.progress("Création des nouvelles fiches");
+        final List<String> newFicheFields = Arrays.asList("ID_MOIS", "ANNEE", "DU", "AU", "ID_PROFIL_PAYE", "ID_SALARIE", "CONGES_ACQUIS");
+        final List<List<Object>> newFiches = new ArrayList<List<Object>>(size);
+        for (final SQLRowValues fiche : fiches) {
+            final SQLRowAccessor rowSal = fiche.getForeign("ID_SALARIE");
+            newFiches.add(Arrays.asList(fiche.getObject("ID_MOIS"), fiche.getObject("ANNEE"), fiche.getObject("DU"), fiche.getObject("AU"), fiche.getObject("ID_PROFIL_PAYE"), rowSal.getID(),
+                    rowSal.getForeign("ID_INFOS_SALARIE_PAYE").getObject("CONGES_PAYES")));
+        }
+        final List<Number> newFicheIDs = this.insert(this.tableFiche, newFicheFields, newFiches);
+        final Map<Integer, Number> newFicheByOld = new HashMap<Integer, Number>(size);
+        for (int i = 0; i < size; i++) {
+            newFicheByOld.put(ficheIDs.get(i), newFicheIDs.get(i));
+        }
+
+        // On recopie les elements des fiches de paye
+        this.progress("Copie des éléments");
+        final SQLSelect selAllElt = new SQLSelect();
+        selAllElt.addSelect(this.tableFicheElt.getField("ID_FICHE_PAYE"));
+        selAllElt.addSelect(this.tableFicheElt.getField("SOURCE"));
+        selAllElt.addSelect(this.tableFicheElt.getField("IDSOURCE"));
+        selAllElt.addSelect(this.tableFicheElt.getField("POSITION"));
+        selAllElt.setWhere(new Where(this.tableFicheElt.getField("ID_FICHE_PAYE"), ficheIDs));
+        selAllElt.addFieldOrder(this.tableFicheElt.getField("ID_FICHE_PAYE"));
+        selAllElt.addFieldOrder(this.tableFicheElt.getField("POSITION"));
+        @SuppressWarnings("unchecked")
+        final List<Object[]> elts = (List<Object[]>) getDS().execute(selAllElt.asString(), new IResultSetHandler(SQLDataSource.ARRAY_LIST_HANDLER, false));
+        final List<List<Object>> newElts = new ArrayList<List<Object>>(elts.size());
+        for (final Object[] elt : elts) {
+            newElts.add(Arrays.asList(elt[1], elt[2], elt[3], newFicheByOld.get(((Number) elt[0]).intValue())));
+        }
+        this.insert(this.tableFicheElt, Arrays.asList("SOURCE", "IDSOURCE", "POSITION", "ID_FICHE_PAYE"), newElts);
+
+        // on effectue le cumul
+        this.progress("Calcul des cumuls");
+        final List<String> cumulFields = new ArrayList<String>(CUMULS.length);
+        for (final String c : CUMULS) {
+            cumulFields.add(c + "_C");
+        }
+        final List<List<Object>> newCumuls = new ArrayList<List<Object>>(size);
+        final List<Number> congesIDs = new ArrayList<Number>(size);
+        final List<List<Object>> conges = new ArrayList<List<Object>>(size);
+        for (final SQLRowValues fiche : fiches) {
+            final SQLRowAccessor rowSal = fiche.getForeign("ID_SALARIE");
+            final SQLRowAccessor rowCumuls = rowSal.getForeign("ID_CUMULS_PAYE");
+            final List<Object> cumul = new ArrayList<Object>(CUMULS.length);
+            for (final String c : CUMULS) {
+                float v = rowCumuls.getFloat(c + "_C") + fiche.getFloat(c);
+                if (c.equals("NET_A_PAYER"))
+                    v += fiche.getFloat("ACOMPTE");
+                cumul.add(Float.valueOf(v));
+            }
+            newCumuls.add(cumul);
+
+            // Calcul des congés
+            final SQLRowAccessor rowConges = rowSal.getForeign("ID_CUMULS_CONGES");
+            final float congeCumule = rowConges.getFloat("ACQUIS") + fiche.getFloat("CONGES_ACQUIS");
+            final float congeRestant = rowConges.getFloat("RESTANT") - rowSal.getForeign("ID_VARIABLE_SALARIE").getFloat("CONGES_PRIS");
+            congesIDs.add(rowConges.getID());
+            conges.add(Arrays.<Object> asList(Float.valueOf(congeCumule), Float.valueOf(congeRestant)));
+        }
+        final List<Number> newCumulIDs = this.insert(this.tableCumuls, cumulFields, newCumuls);
+
+        this.progress("Mise à jour des salariés");
+        this.update(this.tableConges, Arrays.asList("ACQUIS", "RESTANT"), congesIDs, conges);
+
+        final List<Number> salIDs = new ArrayList<Number>(size);
+        final List<List<Object>> sals = new ArrayList<List<Object>>(size);
+        final List<String> oldFicheFields = new ArrayList<String>(COPIES);
+        oldFicheFields.addAll(Arrays.asList("NATURE_EMPLOI", "ID_IDCC", "VALIDE"));
+        final List<List<Object>> oldFiches = new ArrayList<List<Object>>(size);
+        final List<Integer> variableIDs = new ArrayList<Integer>(size);
+        for (int i = 0; i < size; i++) {
+            final SQLRowValues fiche = fiches.get(i);
+            final SQLRowAccessor rowSal = fiche.getForeign("ID_SALARIE");
+            salIDs.add(rowSal.getID());
+            sals.add(Arrays.<Object> asList(newFicheIDs.get(i), newCumulIDs.get(i)));
+
+            final List<Object> oldFiche = new ArrayList<Object>(oldFicheFields.size());
+            for (final String fk : COPIES) {
+                oldFiche.add(copies.get(fk).get(i));
+            }
+            final SQLRowAccessor rInfosSalPaye = rowSal.getForeign("ID_INFOS_SALARIE_PAYE");
+            oldFiche.add(rInfosSalPaye.getForeign("ID_CONTRAT_SALARIE").getObject("NATURE"));
+            oldFiche.add(rInfosSalPaye.getObject("ID_IDCC"));
+            oldFiche.add(Boolean.TRUE);
+            oldFiches.add(oldFiche);
+
+            variableIDs.add(rowSal.getForeignID("ID_VARIABLE_SALARIE"));
+        }
+        this.update(this.tableSal, Arrays.asList("ID_FICHE_PAYE", "ID_CUMULS_PAYE"), salIDs, sals);
+        final List<Number> oldFicheIDs = new ArrayList<Number>(ficheIDs);
+        this.update(this.tableFiche, oldFicheFields, oldFicheIDs, oldFiches);
+
+        // Remise à 0 des variables sal
+        final UpdateBuilder resetVariables = new UpdateBuilder(this.tableVariable);
+        for (final SQLField field : this.tableVariable.getContentFields()) {
+            resetVariables.setObject(field, Float.valueOf(0));
+        }
+        if (this.tableVariable.contains("NB_JOUR_MOIS")) {
+            resetVariables.setObject("NB_JOUR_MOIS", Float.valueOf(31));
+            resetVariables.setObject("NB_JOUR_TRAV", Float.valueOf(31));
+        }
+        setMetadata(resetVariables, this.tableVariable);
+        resetVariables.setWhere(new Where(this.tableVariable.getKey(), variableIDs));
+        getDS().execute(resetVariables.asString());
+    }
+
+    // cf. FichePayeSQLElement.clotureMensuelle()
+    private int[] cloturerMois() throws SQLException {
+        this.progress("Clôture du mois");
+        final SQLSelect selFiche = new SQLSelect();
+        selFiche.addSelect(this.tableFiche.getKey());
+        selFiche.addSelect(this.tableFiche.getField("ID_SALARIE"));
+        selFiche.setWhere(new Where(this.tableFiche.getField("VALIDE"), "=", Boolean.TRUE));
+        selFiche.andWhere(new Where(this.tableFiche.getField("ID_MOIS"), "=", this.idMois));
+        selFiche.andWhere(new Where(this.tableFiche.getField("ANNEE"), "=", this.annee));
+        selFiche.addFieldOrder(this.tableFiche.getKey());
+        @SuppressWarnings("unchecked")
+        final List<Object[]> l = (List<Object[]>) getDS().execute(selFiche.asString(), new IResultSetHandler(SQLDataSource.ARRAY_LIST_HANDLER, false));
+        final int[] res = new int[l.size()];
+        final Set<Integer> salIDs = new HashSet<Integer>();
+        for (int i = 0; i < res.length; i++) {
+            res[i] = ((Number) l.get(i)[0]).intValue();
+            salIDs.add(((Number) l.get(i)[1]).intValue());
+        }
+        if (salIDs.size() > 0) {
+            // on verifie que le mois et l'année sont > aux anciennes valeurs
+            final UpdateBuilder update = new UpdateBuilder(this.tableSal);
+            update.setObject("DERNIER_MOIS", this.idMois);
+            update.setObject("DERNIERE_ANNEE", this.annee);
+            setMetadata(update, this.tableSal);
+            update.setWhere(new Where(this.tableSal.getKey(), salIDs).and(new Where(this.tableSal.getField("DERNIERE_ANNEE"), "<", this.annee)).and(
+                    new Where(this.tableSal.getField("DERNIER_MOIS"), "<", this.idMois)));
+            getDS().execute(update.asString());
+        }
+        return res;
+    }
+
+    /**
+     * Insère des lignes par lots.
+     * 
+     * @param t la table.
+     * @param fields les champs.
+     * @param rows les valeurs, dans l'ordre de <code>fields</code>.
+     * @return les ID insérés, dans l'ordre de <code>rows</code>.
+     * @throws SQLException si une erreur survient.
+     */
+    private List<Number> insert(final SQLTable t, final List<String> fields, final List<List<Object>> rows) throws SQLException {
+        final List<Number> res = new ArrayList<Number>(rows.size());
+        if (rows.isEmpty())
+            return res;
+        final List<String> cols = new ArrayList<String>(fields);
+        // SQLRowValues.insert() remplit ces champs, les INSERT bruts doivent le faire aussi
+        final Map<SQLField, Object> metadata = getMetadata(t, true, fields);
+        for (final SQLField f : metadata.keySet()) {
+            cols.add(f.getName());
+        }
+        final SQLField orderField = t.getOrderField();
+        BigDecimal order = null;
+        if (orderField != null) {
+            cols.add(orderField.getName());
+            order = t.getMaxOrder(false);
+        }
+        final List<String> quotedCols = new ArrayList<String>(cols.size());
+        for (final String col : cols) {
+            quotedCols.add(SQLBase.quoteIdentifier(col));
+        }
+        final String colsSQL = "(" + CollectionUtils.join(quotedCols, ", ") + ") ";
+        final SQLSyntax syntax = SQLSyntax.get(t);
+        for (int start = 0; start < rows.size(); start += INSERT_BATCH) {
+            final List<List<Object>> batch = rows.subList(start, Math.min(start + INSERT_BATCH, rows.size()));
+            final List<List<String>> values = new ArrayList<List<String>>(batch.size());
+            for (final List<Object> row : batch) {
+                final List<String> sqlRow = new ArrayList<String>(cols.size());
+                for (int i = 0; i < fields.size(); i++) {
+                    sqlRow.add(t.getField(fields.get(i)).getType().toString(row.get(i)));
+                }
+                for (final Map.Entry<SQLField, Object> e : metadata.entrySet()) {
+                    sqlRow.add(e.getKey().getType().toString(e.getValue()));
+                }
+                if (orderField != null) {
+                    order = order.add(BigDecimal.ONE);
+                    sqlRow.add(orderField.getType().toString(order));
+                }
+                values.add(sqlRow);
+            }
+            res.addAll(SQLRowValues.insertIDs(t, colsSQL + syntax.getValues(values, cols.size())));
+        }
+        return res;
+    }
+
+    /**
+     * Met à jour des lignes avec un seul PreparedStatement exécuté par lots.
+     * 
+     * @param t la table.
+     * @param fields les champs à mettre à jour.
+     * @param ids les ID des lignes.
+     * @param rows les valeurs, dans l'ordre de <code>fields</code>.
+     * @throws SQLException si une erreur survient.
+     */
+    private void update(final SQLTable t, final List<String> fields, final List<Number> ids, final List<List<Object>> rows) throws SQLException {
+        if (ids.isEmpty())
+            return;
+        final List<String> sets = new ArrayList<String>(fields.size());
+        for (final String f : fields) {
+            sets.add(SQLBase.quoteIdentifier(f) + " = ?");
+        }
+        final Map<SQLField, Object> metadata = getMetadata(t, false, fields);
+        for (final Map.Entry<SQLField, Object> e : metadata.entrySet()) {
+            sets.add(SQLBase.quoteIdentifier(e.getKey().getName()) + " = " + e.getKey().getType().toString(e.getValue()));
+        }
+        final String req = "UPDATE " + t.getSQLName().quote() + " SET " + CollectionUtils.join(sets, ", ") + " WHERE " + SQLBase.quoteIdentifier(t.getKey().getName()) + " = ?";
+        // appelé depuis executeAtomic(), donc dans la connexion de la transaction
+        final PreparedStatement pStmt = getDS().getConnection().prepareStatement(req);
+        try {
+            for (int i = 0; i < ids.size(); i++) {
+                final List<Object> row = rows.get(i);
+                for (int j = 0; j < row.size(); j++) {
+                    pStmt.setObject(j + 1, row.get(j));
+                }
+                pStmt.setObject(row.size() + 1, ids.get(i));
+                pStmt.addBatch();
+            }
+            pStmt.executeBatch();
+        } finally {
+            pStmt.close();
+        }
+    }
+
+    /**
+     * Les valeurs des champs de date et d'utilisateur de création et de modification, comme
+     * SQLRowValues les renseigne. Le champ utilisateur est omis s'il n'y a pas d'utilisateur
+     * connecté (la valeur par défaut de la base s'applique alors).
+     * 
+     * @param t la table.
+     * @param creation <code>true</code> pour inclure aussi les champs de création.
+     * @param excluded les noms des champs déjà fournis par l'appelant.
+     * @return les champs existants et leur valeur.
+     */
+    private static Map<SQLField, Object> getMetadata(final SQLTable t, final boolean creation, final Collection<String> excluded) {
+        final Map<SQLField, Object> res = new LinkedHashMap<SQLField, Object>();
+        final Timestamp now = new Timestamp(System.currentTimeMillis());
+        final int userID = UserManager.getUserID();
+        final Integer user = userID < SQLRow.MIN_VALID_ID ? null : Integer.valueOf(userID);
+        if (creation) {
+            putMetadata(res, t.getCreationDateField(), now);
+            putMetadata(res, t.getCreationUserField(), user);
+        }
+        putMetadata(res, t.getModifDateField(), now);
+        putMetadata(res, t.getModifUserField(), user);
+        final Iterator<SQLField> iter = res.keySet().iterator();
+        while (iter.hasNext()) {
+            if (excluded.contains(iter.next().getName()))
+                iter.remove();
+        }
+        return res;
+    }
+
+    private static void putMetadata(final Map<SQLField, Object> m, final SQLField f, final Object val) {
+        if (f != null && val != null)
+            m.put(f, val);
+    }
+
+    private static void setMetadata(final UpdateBuilder update, final SQLTable t) {
+        for (final Map.Entry<SQLField, Object> e : getMetadata(t, false, Collections.<String> emptySet()).entrySet()) {
+            update.setObject(e.getKey(), e.getValue());
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.core.reports.history.model;
+
+import org.openconcerto.sql.model.DBRoot;
+import org.openconcerto.sql.model.IResultSetHandler;
+import org.openconcerto.sql.model.SQLDataSource;
+import org.openconcerto.sql.model.SQLRow;
+import org.openconcerto.sql.model.SQLSelect;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.model.Where;
+import org.openconcerto.utils.CollectionUtils;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.commons.dbutils.handlers.ArrayListHandler;
+
+/**
+ * Chiffres de l'historique d'un client. Les totaux sont calculés en une seule requête, chaque
+ * chiffre étant une sous-requête, seul le délai moyen de paiement nécessite des requêtes
+ * supplémentaires.
+ */
+public final class BilanClient {
+
+    private static final int NB_VENTES_COMPTOIR = 0;
+    private static final int TOTAL_VENTES_COMPTOIR = 1;
+    private static final int NB_VENTES_FACTURE = 2;
+    private static final int TOTAL_VENTES_FACTURE = 3;
+    private static final int TOTAL_VENTES_ARTICLE = 4;
+    private static final int NB_CHEQUES = 5;
+    private static final int TOTAL_CHEQUES = 6;
+    private static final int NB_CHEQUES_NON_ENCAISSES = 7;
+    private static final int NB_ECHEANCES = 8;
+    private static final int TOTAL_ECHEANCES = 9;
+    private static final int NB_RELANCES = 10;
+    private static final int NB_PROPOSITIONS = 11;
+    private static final int TOTAL_PROPOSITIONS = 12;
+    private static final int TOTAL_VENTES_COMPTOIR_TOUS = 13;
+    private static final int TOTAL_VENTES_FACTURE_TOUS = 14;
+
+    private static SQLSelect createSelect(final SQLTable t, final String field, final String function, final Where w) {
+        final SQLSelect sel = new SQLSelect();
+        sel.addSelect(field == null ? t.getKey() : t.getField(field), function);
+        if (w != null)
+            sel.setWhere(w);
+        return sel;
+    }
+
+    private static Where and(final Where w1, final Where w2) {
+        return w1 == null ? w2 : w1.and(w2);
+    }
+
+    private static long toLong(final Object o) {
+        return o == null ? 0 : ((Number) o).longValue();
+    }
+
+    /**
+     * Calcule les chiffres d'un client.
+     * 
+     * @param root la base de la société.
+     * @param idClient l'ID du client, {@link SQLRow#UNDEFINED_ID} (la ligne « Tous » de la liste) ou
+     *        {@link SQLRow#NONEXISTANT_ID} (aucune sélection) pour tous les clients.
+     * @return les chiffres.
+     */
+    public static BilanClient compute(final DBRoot root, final int idClient) {
+        final boolean oneClient = idClient > SQLRow.UNDEFINED_ID;
+        final SQLTable tableComptoir = root.getTable("SAISIE_VENTE_COMPTOIR");
+        final SQLTable tableFacture = root.getTable("SAISIE_VENTE_FACTURE");
+        final SQLTable tableFactureElt = root.getTable("SAISIE_VENTE_FACTURE_ELEMENT");
+        final SQLTable tableCheque = root.getTable("CHEQUE_A_ENCAISSER");
+        final SQLTable tableEcheance = root.getTable("ECHEANCE_CLIENT");
+        final SQLTable tableRelance = root.getTable("RELANCE");
+        final SQLTable tableDevis = root.getTable("DEVIS");
+
+        final Map<SQLTable, Where> wClient = new HashMap<SQLTable, Where>();
+        if (oneClient) {
+            for (final SQLTable t : new SQLTable[] { tableComptoir, tableFacture, tableCheque, tableEcheance, tableRelance, tableDevis }) {
+                wClient.put(t, new Where(t.getField("ID_CLIENT"), "=", idClient));
+            }
+        }
+        Where wArticle = null;
+        if (oneClient) {
+            wArticle = new Where(tableFactureElt.getField("ID_SAISIE_VENTE_FACTURE"), "=", tableFacture.getKey());
+            wArticle = wArticle.and(wClient.get(tableFacture));
+        }
+        // comme la liste des échéances de l'historique
+        final Where wNotRegle = new Where(tableEcheance.getField("REGLE"), "=", Boolean.FALSE).and(new Where(tableEcheance.getField("REG_COMPTA"), "=", Boolean.FALSE));
+
+        // dans l'ordre des constantes
+        final List<SQLSelect> selects = new ArrayList<SQLSelect>();
+        selects.add(createSelect(tableComptoir, null, "COUNT", wClient.get(tableComptoir)));
+        selects.add(createSelect(tableComptoir, "MONTANT_HT", "SUM", wClient.get(tableComptoir)));
+        selects.add(createSelect(tableFacture, null, "COUNT", wClient.get(tableFacture)));
+        selects.add(createSelect(tableFacture, "T_HT", "SUM", wClient.get(tableFacture)));
+        selects.add(createSelect(tableFactureElt, "T_PV_HT", "SUM", wArticle));
+        selects.add(createSelect(tableCheque, null, "COUNT", wClient.get(tableCheque)));
+        selects.add(createSelect(tableCheque, "MONTANT", "SUM", wClient.get(tableCheque)));
+        selects.add(createSelect(tableCheque, null, "COUNT", and(wClient.get(tableCheque), new Where(tableCheque.getField("ENCAISSE"), "=", Boolean.FALSE))));
+        selects.add(createSelect(tableEcheance, null, "COUNT", and(wClient.get(tableEcheance), wNotRegle)));
+        selects.add(createSelect(tableEcheance, "MONTANT", "SUM", and(wClient.get(tableEcheance), wNotRegle)));
+        selects.add(createSelect(tableRelance, null, "COUNT", wClient.get(tableRelance)));
+        selects.add(createSelect(tableDevis, null, "COUNT", wClient.get(tableDevis)));
+        selects.add(createSelect(tableDevis, "T_HT", "SUM", wClient.get(tableDevis)));
+        selects.add(createSelect(tableComptoir, "MONTANT_HT", "SUM", null));
+        selects.add(createSelect(tableFacture, "T_HT", "SUM", null));
+
+        final List<String> subQueries = new ArrayList<String>(selects.size());
+        for (final SQLSelect sel : selects) {
+            subQueries.add("(" + sel.asString() + ")");
+        }
+        // l'historique doit refléter la base, pas le cache des requêtes
+        final Object[] res = (Object[]) root.getDBSystemRoot().getDataSource().execute("SELECT " + CollectionUtils.join(subQueries, ", "),
+                new IResultSetHandler(SQLDataSource.ARRAY_HANDLER, false));
+
+        return new BilanClient(res, computeDelaiPaiementMoyen(root, idClient));
+    }
+
+    private static void addDatesToMap(final DBRoot root, final SQLSelect selDateFacture, final Map<Object, Date> mapDateFact) {
+        @SuppressWarnings("unchecked")
+        final List<Object[]> lDateFact = (List<Object[]>) root.getDBSystemRoot().getDataSource().execute(selDateFacture.asString(), new ArrayListHandler());
+        for (final Object[] tmp : lDateFact) {
+            mapDateFact.put(tmp[1], (Date) tmp[0]);
+        }
+    }
+
+    // délai moyen en jours entre la facturation d'une pièce et son dernier encaissement
+    private static int computeDelaiPaiementMoyen(final DBRoot root, final int idClient) {
+        final Map<Object, Date> mapDateFact = new HashMap<Object, Date>();
+        // On recupere les dates de facturations VF
+        final SQLSelect selDateFacture = new SQLSelect();
+        final SQLTable tableFacture = root.getTable("SAISIE_VENTE_FACTURE");
+        final SQLTable tableEncaisse = root.getTable("ENCAISSER_MONTANT");
+        final SQLTable tableEcheance = root.getTable("ECHEANCE_CLIENT");
+        final SQLTable tableMvt = root.getTable("MOUVEMENT");
+        selDateFacture.addSelect(tableFacture.getField("DATE"));
+        selDateFacture.addSelect(tableMvt.getField("ID_PIECE"));
+        Where w = new Where(tableFacture.getField("ID_MOUVEMENT"), "=", tableMvt.getKey());
+        if (idClient > SQLRow.UNDEFINED_ID) {
+            w = w.and(new Where(tableFacture.getField("ID_CLIENT"), "=", idClient));
+        }
+        selDateFacture.setWhere(w);
+        addDatesToMap(root, selDateFacture, mapDateFact);
+
+        // On recupere les dates de facturations
+        final SQLSelect selDateFactureC = new SQLSelect();
+        final SQLTable tableComptoir = root.getTable("SAISIE_VENTE_COMPTOIR");
+        selDateFactureC.addSelect(tableComptoir.getField("DATE"));
+        selDateFactureC.addSelect(tableMvt.getField("ID_PIECE"));
+        Where wC = new Where(tableComptoir.getField("ID_MOUVEMENT"), "=", tableMvt.getKey());
+        if (idClient > SQLRow.UNDEFINED_ID) {
+            wC = wC.and(new Where(tableComptoir.getField("ID_CLIENT"), "=", idClient));
+        }
+        selDateFactureC.setWhere(wC);
+        addDatesToMap(root, selDateFactureC, mapDateFact);
+
+        // On recupere les dates d'encaissement, la dernière par pièce
+        final SQLSelect selDateEncaisse = new SQLSelect();
+        selDateEncaisse.addSelect(tableEncaisse.getField("DATE"), "MAX");
+        selDateEncaisse.addSelect(tableMvt.getField("ID_PIECE"));
+        Where wEncaisse = new Where(tableEcheance.getField("ID"), "=", tableEncaisse.getField("ID_ECHEANCE_CLIENT"));
+        wEncaisse = wEncaisse.and(new Where(tableEcheance.getField("ID_MOUVEMENT"), "=", tableMvt.getField("ID")));
+        wEncaisse = wEncaisse.and(new Where(tableEcheance.getArchiveField(), "=", 1));
+        if (idClient > SQLRow.UNDEFINED_ID) {
+            wEncaisse = wEncaisse.and(new Where(tableEcheance.getField("ID_CLIENT"), "=", idClient));
+        }
+        selDateEncaisse.setWhere(wEncaisse);
+        selDateEncaisse.setArchivedPolicy(SQLSelect.BOTH);
+        selDateEncaisse.addGroupBy(tableMvt.getField("ID_PIECE"));
+        final Map<Object, Date> mapDateEncaisse = new HashMap<Object, Date>();
+        addDatesToMap(root, selDateEncaisse, mapDateEncaisse);
+
+        // Calcul moyenne
+        int cpt = 0;
+        int day = 0;
+        final Calendar cal1 = Calendar.getInstance();
+        final Calendar cal2 = Calendar.getInstance();
+        for (final Entry<Object, Date> e : mapDateFact.entrySet()) {
+            final Date dFact = e.getValue();
+            final Date dEncaisse = mapDateEncaisse.get(e.getKey());
+
+            if (dFact != null && dEncaisse != null) {
+                cpt++;
+                cal1.setTime(dFact);
+                cal2.setTime(dEncaisse);
+                cal1.set(Calendar.HOUR, 0);
+                cal1.set(Calendar.MINUTE, 0);
+                cal1.set(Calendar.SECOND, 0);
+                cal1.set(Calendar.MILLISECOND, 0);
+                cal2.set(Calendar.HOUR, 0);
+                cal2.set(Calendar.MINUTE, 0);
+                cal2.set(Calendar.SECOND, 0);
+                cal2.set(Calendar.MILLISECOND, 0);
+                day += (cal2.getTime().getTime() - cal1.getTime().getTime()) / 86400000;
+            }
+        }
+        return cpt == 0 ? 0 : day / cpt;
+    }
+
+    private final long[] values;
+    private final long totalVentesArticle;
+    private final int delaiPaiementMoyen;
+    private final int pourcentageVentes;
+
+    private BilanClient(final Object[] res, final int delaiPaiementMoyen) {
+        this.values = new long[res.length];
+        for (int i = 0; i < res.length; i++) {
+            if (i != TOTAL_VENTES_ARTICLE)
+                this.values[i] = toLong(res[i]);
+        }
+        this.totalVentesArticle = res[TOTAL_VENTES_ARTICLE] == null ? 0 : Math.round(((Number) res[TOTAL_VENTES_ARTICLE]).doubleValue() * 100.0D);
+        this.delaiPaiementMoyen = delaiPaiementMoyen;
+        final long totalTous = this.values[TOTAL_VENTES_COMPTOIR_TOUS] + this.values[TOTAL_VENTES_FACTURE_TOUS];
+        this.pourcentageVentes = totalTous == 0 ? 0 : (int) ((this.getTotalVentesComptoir() + this.getTotalVentesFacture()) * 100 / totalTous);
+    }
+
+    public long getNbVentesComptoir() {
+        return this.values[NB_VENTES_COMPTOIR];
+    }
+
+    public long getTotalVentesComptoir() {
+        return this.values[TOTAL_VENTES_COMPTOIR];
+    }
+
+    public long getNbVentesFacture() {
+        return this.values[NB_VENTES_FACTURE];
+    }
+
+    public long getTotalVentesFacture() {
+        return this.values[TOTAL_VENTES_FACTURE];
+    }
+
+    public long getTotalVentesArticle() {
+        return this.totalVentesArticle;
+    }
+
+    public long getNbCheques() {
+        return this.values[NB_CHEQUES];
+    }
+
+    public long getTotalCheques() {
+        return this.values[TOTAL_CHEQUES];
+    }
+
+    public long getNbChequesNonEncaisses() {
+        return this.values[NB_CHEQUES_NON_ENCAISSES];
+    }
+
+    public long getNbFacturesImpayees() {
+        return this.values[NB_ECHEANCES];
+    }
+
+    public long getTotalFacturesImpayees() {
+        return this.values[TOTAL_ECHEANCES];
+    }
+
+    public long getNbRelances() {
+        return this.values[NB_RELANCES];
+    }
+
+    public long getNbPropositions() {
+        return this.values[NB_PROPOSITIONS];
+    }
+
+    public long getTotalPropositions() {
+        return this.values[TOTAL_PROPOSITIONS];
+    }
+
+    public int getDelaiPaiementMoyen() {
+        return this.delaiPaiementMoyen;
+    }
+
+    public int getPourcentageVentes() {
+        return this.pourcentageVentes;
+    }
+}
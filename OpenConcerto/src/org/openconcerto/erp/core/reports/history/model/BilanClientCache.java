@@ -0,0 +1,134 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.core.reports.history.model;
+
+import org.openconcerto.erp.config.ComptaPropsConfiguration;
+import org.openconcerto.sql.Configuration;
+import org.openconcerto.sql.model.DBRoot;
+import org.openconcerto.sql.model.SQLTableEvent;
+import org.openconcerto.sql.model.SQLTableModifiedListener;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Derniers bilans calculés par client, vidé dès qu'une des tables utilisées par
+ * {@link BilanClient#compute(DBRoot, int)} est modifiée. Les modifications faites par d'autres
+ * postes ne levant pas d'événement, un bilan n'est conservé que {@value #TTL} ms.
+ */
+public final class BilanClientCache {
+
+    private static final int MAX_SIZE = 32;
+    /**
+     * Durée de validité d'un bilan en ms.
+     */
+    public static final long TTL = 60 * 1000;
+    private static final String[] TABLES = { "SAISIE_VENTE_FACTURE", "SAISIE_VENTE_FACTURE_ELEMENT", "SAISIE_VENTE_COMPTOIR", "CHEQUE_A_ENCAISSER", "ECHEANCE_CLIENT", "ENCAISSER_MONTANT",
+            "RELANCE", "DEVIS" };
+
+    private static BilanClientCache instance;
+
+    synchronized public static BilanClientCache getCache() {
+        if (instance == null) {
+            instance = new BilanClientCache(((ComptaPropsConfiguration) Configuration.getInstance()).getRootSociete());
+        }
+        return instance;
+    }
+
+    private final DBRoot root;
+    private static final class Entry {
+        private final BilanClient bilan;
+        private final long time;
+
+        Entry(final BilanClient bilan, final long time) {
+            this.bilan = bilan;
+            this.time = time;
+        }
+    }
+
+    private final Map<Integer, Entry> bilans;
+    // incrémenté à chaque modification, pour ne pas mettre en cache un bilan calculé avant
+    private long generation;
+
+    private BilanClientCache(final DBRoot root) {
+        this.root = root;
+        this.bilans = new LinkedHashMap<Integer, Entry>(MAX_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, BilanClientCache.Entry> eldest) {
+                return size() > MAX_SIZE;
+            }
+        };
+        this.generation = 0;
+        final SQLTableModifiedListener l = new SQLTableModifiedListener() {
+            @Override
+            public void tableModified(SQLTableEvent evt) {
+                clear();
+            }
+        };
+        for (final String t : TABLES) {
+            root.getTable(t).addTableModifiedListener(l);
+        }
+    }
+
+    public synchronized void clear() {
+        this.bilans.clear();
+        this.generation++;
+    }
+
+    public synchronized long getGeneration() {
+        return this.generation;
+    }
+
+    /**
+     * Le bilan en cache.
+     * 
+     * @param idClient l'ID du client.
+     * @return le bilan, <code>null</code> s'il n'est pas en cache.
+     */
+    public synchronized BilanClient getIfPresent(final int idClient) {
+        final Entry e = this.bilans.get(idClient);
+        if (e == null)
+            return null;
+        if (System.currentTimeMillis() - e.time >= TTL) {
+            this.bilans.remove(idClient);
+            return null;
+        }
+        return e.bilan;
+    }
+
+    /**
+     * Le bilan d'un client, calculé si nécessaire. Ne pas appeler depuis l'EDT.
+     * 
+     * @param idClient l'ID du client.
+     * @return le bilan.
+     */
+    public BilanClient get(final int idClient) {
+        final long gen;
+        final long time;
+        synchronized (this) {
+            final BilanClient res = this.getIfPresent(idClient);
+            if (res != null)
+                return res;
+            gen = this.generation;
+        }
+        // avant le calcul, pour ne pas prolonger la validité
+        time = System.currentTimeMillis();
+        final BilanClient res = BilanClient.compute(this.root, idClient);
+        synchronized (this) {
+            if (gen == this.generation)
+                this.bilans.put(idClient, new Entry(res, time));
+        }
+        return res;
+    }
+}
@@ -14,27 +14,21 @@
  package org.openconcerto.erp.core.reports.history.ui;
 
 import org.openconcerto.erp.config.ComptaPropsConfiguration;
+import org.openconcerto.erp.core.reports.history.model.BilanClient;
+import org.openconcerto.erp.core.reports.history.model.BilanClientCache;
 import org.openconcerto.erp.preferences.DefaultNXProps;
-import org.openconcerto.sql.model.SQLBase;
-import org.openconcerto.sql.model.SQLSelect;
-import org.openconcerto.sql.model.SQLTable;
-import org.openconcerto.sql.model.Where;
+import org.openconcerto.sql.model.SQLRow;
 import org.openconcerto.utils.GestionDevise;
 
 import java.awt.GridLayout;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
 
-import org.apache.commons.dbutils.handlers.ArrayListHandler;
-
 public class HistoriqueClientBilanPanel extends JPanel {
     private final JLabel labelVentesComptoir = new JLabel();
     private final JLabel labelVentesFacture = new JLabel();
@@ -59,6 +53,10 @@ public class HistoriqueClientBilanPanel extends JPanel {
     private long nbFacturesImpayees;
     private long totalFacturesImpayees;
     private int poucentageVentes;
+    private FutureTask<BilanClient> pending;
+    private int pendingClient;
+    private long pendingGeneration;
+    private long requestID;
 
     public HistoriqueClientBilanPanel() {
         super();
@@ -87,252 +85,77 @@ public class HistoriqueClientBilanPanel extends JPanel {
         add(this.labelTotalVentesArticle);
     }
 
-    public synchronized void updateRelance(final List<Integer> listId) {
-        final int nb = listId.size();
-        if (this.nbRelances != nb) {
-            setRelances(nb);
-            updateLabels();
+    /**
+     * Met à jour les chiffres du client, calculés en arrière plan. Un calcul en cours pour un
+     * autre client est abandonné.
+     * 
+     * @param idClient l'ID du client, {@link SQLRow#UNDEFINED_ID} (la ligne « Tous » de la liste) ou
+     *        {@link SQLRow#NONEXISTANT_ID} (aucune sélection) pour tous les clients.
+     */
+    public synchronized void update(final int idClient) {
+        final BilanClientCache cache = BilanClientCache.getCache();
+        final BilanClient inCache = cache.getIfPresent(idClient);
+        final long generation = cache.getGeneration();
+        // toutes les listes du client sont rafraîchies en même temps
+        if (inCache == null && this.pending != null && this.pendingClient == idClient && this.pendingGeneration == generation)
+            return;
+        if (this.pending != null) {
+            this.pending.cancel(false);
+            this.pending = null;
         }
-    }
-
-    public synchronized void updateEcheance(final List<Integer> listId) {
-
-        ComptaPropsConfiguration.getInstanceCompta().getNonInteractiveSQLExecutor().execute(new Runnable() {
-
-            @Override
-            public void run() {
-
-                long valueTotal = 0;
-                if (listId != null && listId.size() > 0) {
-                    final SQLBase base = ((ComptaPropsConfiguration) ComptaPropsConfiguration.getInstance()).getSQLBaseSociete();
-                    final SQLSelect select = new SQLSelect();
-                    final SQLTable table = base.getTable("ECHEANCE_CLIENT");
-                    select.addSelect(table.getField("MONTANT"), "SUM");
-                    select.setWhere(new Where(table.getKey(), listId));
-                    final Number n = (Number) base.getDBSystemRoot().getDataSource().executeScalar(select.asString());
-                    if (n != null) {
-                        valueTotal = n.longValue();
-                    }
-                }
-                setNbFacturesImpayees(listId == null ? 0 : listId.size());
-                setTotalFacturesImpayees(valueTotal);
-                updateLabels();
-
-            }
-        });
-
-    }
-
-    public synchronized void updateVFData(final List<Integer> listId, final int idClient) {
-        ComptaPropsConfiguration.getInstanceCompta().getNonInteractiveSQLExecutor().execute(new Runnable() {
-
-            @Override
-            public void run() {
-                final SQLBase base = ((ComptaPropsConfiguration) ComptaPropsConfiguration.getInstance()).getSQLBaseSociete();
-
-                long valueTotal = 0;
-                if (listId != null && listId.size() > 0) {
-                    final SQLSelect select = new SQLSelect();
-                    final SQLTable table = base.getTable("SAISIE_VENTE_FACTURE");
-                    select.addSelect(table.getField("T_HT"), "SUM");
-                    select.setWhere(new Where(table.getKey(), listId));
-                    final Number n = (Number) base.getDBSystemRoot().getDataSource().executeScalar(select.asString());
-                    if (n != null) {
-                        valueTotal = n.longValue();
-                    }
-                }
-
-                final Map<Object, Date> mapDateFact = new HashMap<Object, Date>();
-                // On recupere les dates de facturations VF
-                final SQLSelect selDateFacture = new SQLSelect();
-                final SQLTable tableFacture = base.getTable("SAISIE_VENTE_FACTURE");
-                final SQLTable tableEncaisse = base.getTable("ENCAISSER_MONTANT");
-                final SQLTable tableEcheance = base.getTable("ECHEANCE_CLIENT");
-                final SQLTable tableMvt = base.getTable("MOUVEMENT");
-                selDateFacture.addSelect(tableFacture.getField("DATE"));
-                selDateFacture.addSelect(tableMvt.getField("ID_PIECE"));
-                Where w = new Where(tableFacture.getField("ID_MOUVEMENT"), "=", tableMvt.getKey());
-                if (idClient > 1) {
-                    w = w.and(new Where(tableFacture.getField("ID_CLIENT"), "=", idClient));
-                }
-                selDateFacture.setWhere(w);
-
-                addDatesToMap(base, selDateFacture, mapDateFact);
-
-                // On recupere les dates de facturations
-                final SQLSelect selDateFactureC = new SQLSelect();
-                final SQLTable tableComptoir = base.getTable("SAISIE_VENTE_COMPTOIR");
-                selDateFactureC.addSelect(tableComptoir.getField("DATE"));
-                selDateFactureC.addSelect(tableMvt.getField("ID_PIECE"));
-                Where wC = new Where(tableComptoir.getField("ID_MOUVEMENT"), "=", tableMvt.getKey());
-                if (idClient > 1) {
-                    wC = wC.and(new Where(tableComptoir.getField("ID_CLIENT"), "=", idClient));
-                }
-                selDateFactureC.setWhere(wC);
-                addDatesToMap(base, selDateFactureC, mapDateFact);
-
-                // On recupere les dates d'encaissement
-                final SQLSelect selDateEncaisse = new SQLSelect();
-                selDateEncaisse.addSelect(tableEncaisse.getField("DATE"));
-                selDateEncaisse.addSelect(tableMvt.getField("ID_PIECE"));
-                selDateEncaisse.addSelect(tableEcheance.getField("ID"));
-                Where wEncaisse = new Where(tableEcheance.getField("ID"), "=", tableEncaisse.getField("ID_ECHEANCE_CLIENT"));
-                wEncaisse = wEncaisse.and(new Where(tableEcheance.getField("ID_MOUVEMENT"), "=", tableMvt.getField("ID")));
-                wEncaisse = wEncaisse.and(new Where(tableEcheance.getArchiveField(), "=", 1));
-
-                if (idClient > 1) {
-                    wEncaisse = wEncaisse.and(new Where(tableEcheance.getField("ID_CLIENT"), "=", idClient));
-                }
-
-                selDateEncaisse.setWhere(wEncaisse);
-                selDateEncaisse.setArchivedPolicy(SQLSelect.BOTH);
-
-                final List<Object[]> lDateEncaisse = (List<Object[]>) base.getDataSource().execute(selDateEncaisse.asString(), new ArrayListHandler());
-                final Map<Object, Date> mapDateEncaisse = new HashMap<Object, Date>();
-                for (int i = 0; i < lDateEncaisse.size(); i++) {
-                    final Object[] tmp = lDateEncaisse.get(i);
-                    final Date d2 = (Date) tmp[0];
-                    final Object d = mapDateEncaisse.get(tmp[1]);
-                    if (d != null) {
-                        final Date d1 = (Date) d;
-                        if (d1.before(d2)) {
-                            mapDateEncaisse.put(tmp[1], d2);
-                        }
-                    } else {
-                        mapDateEncaisse.put(tmp[1], d2);
-                    }
-                }
-
-                // Calcul moyenne
-                int cpt = 0;
-                int day = 0;
-                final Calendar cal1 = Calendar.getInstance();
-                final Calendar cal2 = Calendar.getInstance();
-                for (final Iterator i = mapDateFact.keySet().iterator(); i.hasNext();) {
-                    final Object key = i.next();
-                    final Date dFact = mapDateFact.get(key);
-                    final Date dEncaisse = mapDateEncaisse.get(key);
-
-                    if (dFact != null && dEncaisse != null) {
-                        cpt++;
-                        cal1.setTime(dFact);
-                        cal2.setTime(dEncaisse);
-                        cal1.set(Calendar.HOUR, 0);
-                        cal1.set(Calendar.MINUTE, 0);
-                        cal1.set(Calendar.SECOND, 0);
-                        cal1.set(Calendar.MILLISECOND, 0);
-                        cal2.set(Calendar.HOUR, 0);
-                        cal2.set(Calendar.MINUTE, 0);
-                        cal2.set(Calendar.SECOND, 0);
-                        cal2.set(Calendar.MILLISECOND, 0);
-                        day += (cal2.getTime().getTime() - cal1.getTime().getTime()) / 86400000;
-                    }
-                }
-
-                setPoucentageVentes(cpt == 0 ? 0 : day / cpt);
-                setTotalVentesFacture(valueTotal);
-                setNbVentesFacture(listId == null ? 0 : listId.size());
-                updateLabels();
-            }
-        });
-    }
-
-    public synchronized void updateVFArticleData(final List<Integer> listId, final int idClient) {
-        ComptaPropsConfiguration.getInstanceCompta().getNonInteractiveSQLExecutor().execute(new Runnable() {
-
+        final long reqID = ++this.requestID;
+        if (inCache != null) {
+            this.setBilan(inCache);
+            return;
+        }
+        final FutureTask<BilanClient> f = new FutureTask<BilanClient>(new Callable<BilanClient>() {
             @Override
-            public void run() {
-                final SQLBase base = ((ComptaPropsConfiguration) ComptaPropsConfiguration.getInstance()).getSQLBaseSociete();
-
-                double valueTotal = 0;
-                if (listId != null && listId.size() > 0) {
-                    final SQLSelect select = new SQLSelect();
-                    final SQLTable tableElt = base.getTable("SAISIE_VENTE_FACTURE_ELEMENT");
-                    select.addSelect(tableElt.getField("T_PV_HT"), "SUM");
-                    select.setWhere(new Where(tableElt.getKey(), listId));
-                    final Number n = (Number) base.getDBSystemRoot().getDataSource().executeScalar(select.asString());
-                    if (n != null) {
-                        valueTotal = n.doubleValue();
-                    }
-                }
-
-                setTotalVentesArticle(Math.round(valueTotal * 100.0D));
-                updateLabels();
+            public BilanClient call() throws Exception {
+                return cache.get(idClient);
             }
-        });
-    }
-
-    private void addDatesToMap(final SQLBase base, final SQLSelect selDateFacture, final Map mapDateFact) {
-        final List<Object[]> lDateFact = (List<Object[]>) base.getDataSource().execute(selDateFacture.asString(), new ArrayListHandler());
-
-        final int size = lDateFact.size();
-        for (int i = 0; i < size; i++) {
-            final Object[] tmp = lDateFact.get(i);
-            mapDateFact.put(tmp[1], tmp[0]);
-        }
-    }
-
-    public synchronized void updateVCData(final List<Integer> listId) {
-        ComptaPropsConfiguration.getInstanceCompta().getNonInteractiveSQLExecutor().execute(new Runnable() {
-
+        }) {
             @Override
-            public void run() {
-                final SQLBase base = ((ComptaPropsConfiguration) ComptaPropsConfiguration.getInstance()).getSQLBaseSociete();
-
-                long valueTotal = 0;
-
-                if (listId != null && listId.size() > 0) {
-                    final SQLSelect select = new SQLSelect();
-                    final SQLTable table = base.getTable("SAISIE_VENTE_COMPTOIR");
-                    select.addSelect(table.getField("MONTANT_HT"), "SUM");
-                    select.setWhere(new Where(table.getKey(), listId));
-                    final Number n = (Number) base.getDBSystemRoot().getDataSource().executeScalar(select.asString());
-                    if (n != null) {
-                        valueTotal = n.longValue();
+            protected void done() {
+                if (this.isCancelled())
+                    return;
+                synchronized (HistoriqueClientBilanPanel.this) {
+                    // un autre client a été sélectionné entre temps
+                    if (reqID != HistoriqueClientBilanPanel.this.requestID)
+                        return;
+                    HistoriqueClientBilanPanel.this.pending = null;
+                    try {
+                        setBilan(this.get());
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    } catch (ExecutionException e) {
+                        e.printStackTrace();
                     }
                 }
-
-                setNbVentesComptoir(listId == null ? 0 : listId.size());
-                setTotalVentesComptoir(valueTotal);
-                updateLabels();
             }
-        });
+        };
+        this.pending = f;
+        this.pendingClient = idClient;
+        this.pendingGeneration = generation;
+        ComptaPropsConfiguration.getInstanceCompta().getNonInteractiveSQLExecutor().execute(f);
     }
 
-
-    public synchronized void updateChequeData(final List<Integer> listId) {
-        ComptaPropsConfiguration.getInstanceCompta().getNonInteractiveSQLExecutor().execute(new Runnable() {
-
-            @Override
-            public void run() {
-                final SQLBase base = ((ComptaPropsConfiguration) ComptaPropsConfiguration.getInstance()).getSQLBaseSociete();
-                final SQLTable table = base.getTable("CHEQUE_A_ENCAISSER");
-                long valueTotalTmp = 0;
-                long valueNonEncaisseTmp = 0;
-
-                if (listId != null && listId.size() > 0) {
-                    // Total
-                    final SQLSelect select = new SQLSelect();
-                    select.addSelect(table.getField("MONTANT"), "SUM");
-                    select.setWhere(new Where(table.getKey(), listId));
-                    Number n = (Number) base.getDBSystemRoot().getDataSource().executeScalar(select.asString());
-                    if (n != null) {
-                        valueTotalTmp = n.longValue();
-                    }
-                    // Total non encaissé
-                    select.setWhere(new Where(table.getKey(), listId).and(new Where(table.getField("ENCAISSE"), "=", Boolean.FALSE)));
-                    n = (Number) base.getDBSystemRoot().getDataSource().executeScalar(select.asString());
-                    if (n != null) {
-                        valueNonEncaisseTmp = n.longValue();
-                    }
-                }
-
-                setNbTotalCheques(listId == null ? 0 : listId.size());
-                setNbChequesNonEncaisses(valueNonEncaisseTmp);
-                setTotalCheques(valueTotalTmp);
-                updateLabels();
-            }
-        });
+    private void setBilan(final BilanClient bilan) {
+        setNbVentesComptoir(bilan.getNbVentesComptoir());
+        setTotalVentesComptoir(bilan.getTotalVentesComptoir());
+        setNbVentesFacture(bilan.getNbVentesFacture());
+        setTotalVentesFacture(bilan.getTotalVentesFacture());
+        setTotalVentesArticle(bilan.getTotalVentesArticle());
+        setNbTotalCheques(bilan.getNbCheques());
+        setTotalCheques(bilan.getTotalCheques());
+        setNbChequesNonEncaisses(bilan.getNbChequesNonEncaisses());
+        setRelances(bilan.getNbRelances());
+        setDelaiPaiementMoyen(bilan.getDelaiPaiementMoyen());
+        setNbPropositions(bilan.getNbPropositions());
+        setTotalPropositions(bilan.getTotalPropositions());
+        setNbFacturesImpayees(bilan.getNbFacturesImpayees());
+        setTotalFacturesImpayees(bilan.getTotalFacturesImpayees());
+        setPoucentageVentes(bilan.getPourcentageVentes());
+        updateLabels();
     }
 
     // Ventes comptoir
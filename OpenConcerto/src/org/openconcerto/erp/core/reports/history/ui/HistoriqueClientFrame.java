@@ -15,10 +15,12 @@
 
 import org.openconcerto.erp.config.ComptaPropsConfiguration;
 import org.openconcerto.erp.core.common.ui.PanelFrame;
+import org.openconcerto.erp.core.reports.history.model.BilanClientCache;
 import org.openconcerto.erp.preferences.DefaultNXProps;
 import org.openconcerto.sql.Configuration;
 import org.openconcerto.sql.model.SQLBase;
 import org.openconcerto.sql.model.SQLField;
+import org.openconcerto.sql.model.SQLRow;
 import org.openconcerto.sql.model.SQLRowAccessor;
 import org.openconcerto.sql.model.SQLTable;
 import org.openconcerto.sql.model.Where;
@@ -63,6 +65,8 @@ public class HistoriqueClientFrame {
         map.put(b.getTable("SAISIE_VENTE_FACTURE_ELEMENT"), b.getTable("SAISIE_VENTE_FACTURE_ELEMENT").getField("ID_SAISIE_VENTE_FACTURE"));
         map.put(b.getTable("DEVIS_ELEMENT"), b.getTable("DEVIS_ELEMENT").getField("ID_DEVIS"));
 
+        // les listes sont rechargées à l'ouverture, les chiffres doivent l'être aussi
+        BilanClientCache.getCache().clear();
         final HistoriqueClientBilanPanel bilanPanel = new HistoriqueClientBilanPanel();
         SQLTable tableEch = Configuration.getInstance().getRoot().findTable("ECHEANCE_CLIENT");
         Where wNotRegle = new Where(tableEch.getField("REGLE"), "=", Boolean.FALSE);
@@ -70,46 +74,16 @@ public class HistoriqueClientFrame {
 
         this.listPanel = new ListeHistoriquePanel("Clients", JListSQLTablePanel.createComboRequest(Configuration.getInstance().getDirectory().getElement(b.getTable("CLIENT")), true), mapList,
                 bilanPanel, map, wNotRegle);
-        this.listPanel.addListenerTable(new TableModelListener() {
+        // un seul calcul pour toutes les listes, le bilan ne dépend que du client
+        final TableModelListener bilanListener = new TableModelListener() {
             public void tableChanged(TableModelEvent arg0) {
-                bilanPanel.updateRelance(HistoriqueClientFrame.this.listPanel.getListId("RELANCE"));
+                final SQLRowAccessor rowSel = HistoriqueClientFrame.this.listPanel.getSelectedRow();
+                bilanPanel.update(rowSel == null ? SQLRow.NONEXISTANT_ID : rowSel.getID());
             }
-        }, "RELANCE");
-
-        this.listPanel.addListenerTable(new TableModelListener() {
-            public void tableChanged(TableModelEvent arg0) {
-                bilanPanel.updateEcheance(HistoriqueClientFrame.this.listPanel.getListId("ECHEANCE_CLIENT"));
-            }
-        }, "ECHEANCE_CLIENT");
-
-        this.listPanel.addListenerTable(new TableModelListener() {
-            public void tableChanged(TableModelEvent arg0) {
-                bilanPanel.updateChequeData(HistoriqueClientFrame.this.listPanel.getListId("CHEQUE_A_ENCAISSER"));
-            }
-        }, "CHEQUE_A_ENCAISSER");
-
-        this.listPanel.addListenerTable(new TableModelListener() {
-            public void tableChanged(TableModelEvent arg0) {
-                bilanPanel.updateVCData(HistoriqueClientFrame.this.listPanel.getListId("SAISIE_VENTE_COMPTOIR"));
-            }
-        }, "SAISIE_VENTE_COMPTOIR");
-
-        this.listPanel.addListenerTable(new TableModelListener() {
-            public void tableChanged(TableModelEvent arg0) {
-                SQLRowAccessor rowSel = HistoriqueClientFrame.this.listPanel.getSelectedRow();
-                int id = (rowSel == null) ? -1 : rowSel.getID();
-                bilanPanel.updateVFData(HistoriqueClientFrame.this.listPanel.getListId("SAISIE_VENTE_FACTURE"), id);
-            }
-        }, "SAISIE_VENTE_FACTURE");
-
-        this.listPanel.addListenerTable(new TableModelListener() {
-            public void tableChanged(TableModelEvent arg0) {
-
-                SQLRowAccessor rowSel = HistoriqueClientFrame.this.listPanel.getSelectedRow();
-                int id = (rowSel == null) ? -1 : rowSel.getID();
-                bilanPanel.updateVFArticleData(HistoriqueClientFrame.this.listPanel.getListId("SAISIE_VENTE_FACTURE_ELEMENT"), id);
-            }
-        }, "SAISIE_VENTE_FACTURE_ELEMENT");
+        };
+        for (final String t : Arrays.asList("RELANCE", "ECHEANCE_CLIENT", "CHEQUE_A_ENCAISSER", "SAISIE_VENTE_COMPTOIR", "SAISIE_VENTE_FACTURE", "SAISIE_VENTE_FACTURE_ELEMENT", "DEVIS")) {
+            this.listPanel.addListenerTable(bilanListener, t);
+        }
 
         this.panelFrame = new PanelFrame(this.listPanel, "Historique client");
         this.panelFrame.addWindowListener(new WindowAdapter() {
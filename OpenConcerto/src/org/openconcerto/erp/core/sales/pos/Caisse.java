@@ -27,6 +27,7 @@ import org.openconcerto.erp.core.sales.pos.model.Article;
 import org.openconcerto.erp.core.sales.pos.model.Paiement;
 import org.openconcerto.erp.core.sales.pos.model.ReceiptCode;
 import org.openconcerto.erp.core.sales.pos.model.Ticket;
+import org.openconcerto.erp.core.sales.pos.model.TicketJournal;
 import org.openconcerto.erp.core.sales.pos.model.TicketLine;
 import org.openconcerto.erp.core.supplychain.stock.element.StockItemsUpdater;
 import org.openconcerto.erp.core.supplychain.stock.element.StockItemsUpdater.Type;
@@ -290,6 +291,7 @@ public class Caisse {
                     try {
                         // it's OK if some files cannot be moved, the next call will try again
                         ReceiptCode.archiveCompletelyImported();
+                        TicketJournal.getInstance(Caisse.getID()).archiveCompletelyImported(ReceiptCode.getRootDir(true));
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
@@ -375,7 +377,8 @@ public class Caisse {
     }
 
     public static List<Ticket> allTickets() {
-        final List<Ticket> l = new ArrayList<Ticket>();
+        final List<Ticket> l = new ArrayList<Ticket>(TicketJournal.getInstance(Caisse.getID()).getTicketsToImport());
+        // tickets enregistrés avant le journal
         for (final File f : ReceiptCode.getReceiptsToImport(Caisse.getID())) {
             final Ticket ticket = Ticket.parseFile(f);
             if (ticket != null) {
@@ -14,8 +14,6 @@
  package org.openconcerto.erp.core.sales.pos.model;
 
 import java.math.BigDecimal;
-import java.util.HashMap;
-import java.util.Map;
 
 public class Article {
     private Categorie s;
@@ -26,13 +24,18 @@ public class Article {
     String barCode = "empty barcode";
     String code = "";
     private final int id;
-    private static Map<String, Article> codes = new HashMap<String, Article>();
 
     public Article(Categorie s1, String string, int id) {
+        this(s1, string, id, true);
+    }
+
+    // les articles des catégories du catalogue sont calculés par celui-ci
+    Article(Categorie s1, String string, int id, boolean addToCategorie) {
         this.s = s1;
         this.id = id;
         this.name = string;
-        s1.addArticle(this);
+        if (addToCategorie)
+            s1.addArticle(this);
     }
 
     public int getId() {
@@ -57,7 +60,6 @@ public class Article {
 
     public void setBarCode(String bar) {
         this.barCode = bar;
-        codes.put(bar, this);
     }
 
     public void setPriceInCents(BigDecimal priceInCents) {
@@ -95,6 +97,6 @@ public class Article {
     }
 
     public static Article getArticleFromBarcode(String code) {
-        return codes.get(code);
+        return Catalogue.getInstance().getArticleFromBarcode(code);
     }
 }
@@ -0,0 +1,429 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.core.sales.pos.model;
+
+import org.openconcerto.sql.Configuration;
+import org.openconcerto.sql.model.SQLDataSource;
+import org.openconcerto.sql.model.SQLField;
+import org.openconcerto.sql.model.SQLRow;
+import org.openconcerto.sql.model.SQLRowListRSH;
+import org.openconcerto.sql.model.SQLSelect;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.model.Where;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Le catalogue des articles de la caisse. Une instance n'est jamais modifiée une fois publiée : un
+ * rechargement en crée une nouvelle qui remplace atomiquement la précédente. Les articles sont
+ * indexés par code barre et par mot pour la recherche, et les articles de chaque catégorie
+ * (sous-catégories comprises) sont précalculés.
+ */
+public final class Catalogue {
+
+    // les transactions validées après un chargement peuvent être datées d'avant
+    private static final long MODIFICATION_MARGIN = 60 * 1000;
+    private static final int UNCLASSIFIED_ID = 0;
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{Nd}]+");
+
+    private static final Comparator<Article> NAME_COMPARATOR = new Comparator<Article>() {
+        @Override
+        public int compare(Article o1, Article o2) {
+            final int res = o1.getName().compareTo(o2.getName());
+            return res != 0 ? res : o1.getId() - o2.getId();
+        }
+    };
+
+    private static volatile Catalogue instance = new Catalogue(new Categories(Collections.<String> emptyList()), Collections.<Integer, Article> emptyMap(), Collections.<Integer, Long> emptyMap(), null);
+
+    public static Catalogue getInstance() {
+        return instance;
+    }
+
+    /**
+     * Charge entièrement le catalogue depuis la base.
+     * 
+     * @return le nouveau catalogue.
+     */
+    public static synchronized Catalogue load() {
+        instance = create(null);
+        return instance;
+    }
+
+    /**
+     * Recharge seulement les articles modifiés depuis le dernier chargement. Tout est rechargé si
+     * les familles ont changé ou si la table des articles n'a pas de date de modification.
+     * 
+     * @return le nouveau catalogue.
+     */
+    public static synchronized Catalogue reload() {
+        instance = create(instance);
+        return instance;
+    }
+
+    /**
+     * Le texte sans accent et en minuscule, tel qu'il est indexé.
+     * 
+     * @param s un texte.
+     * @return le texte normalisé.
+     */
+    static String normalize(final String s) {
+        return DIACRITICS.matcher(Normalizer.normalize(s, Normalizer.Form.NFD)).replaceAll("").toLowerCase();
+    }
+
+    static List<String> getWords(final String s) {
+        final List<String> res = new ArrayList<String>();
+        if (s != null) {
+            for (final String w : SEPARATORS.split(normalize(s))) {
+                if (w.length() > 0)
+                    res.add(w);
+            }
+        }
+        return res;
+    }
+
+    // l'arbre des familles, partagé par les catalogues tant qu'il ne change pas
+    private static final class Categories {
+        private final List<String> key;
+        private final List<Categorie> topLevel;
+        private final List<Categorie> all;
+        private final Map<Integer, Categorie> byID;
+        private final Categorie unclassified;
+
+        Categories(final List<String> key) {
+            this.key = key;
+            this.topLevel = new ArrayList<Categorie>();
+            this.all = new ArrayList<Categorie>();
+            this.byID = new HashMap<Integer, Categorie>();
+            this.unclassified = new Categorie(UNCLASSIFIED_ID, "Non classés");
+        }
+
+        final void add(final int id, final Categorie parent, final Categorie c) {
+            if (parent != null) {
+                parent.add(c);
+            } else {
+                this.topLevel.add(c);
+            }
+            this.all.add(c);
+            this.byID.put(id, c);
+        }
+
+        final Categories done() {
+            this.topLevel.add(this.unclassified);
+            this.all.add(this.unclassified);
+            return this;
+        }
+
+        final Categorie get(final int id) {
+            final Categorie res = this.byID.get(id);
+            return res == null ? this.unclassified : res;
+        }
+
+        // la catégorie de cet arbre ayant le même ID que c, qui peut venir d'un arbre précédent
+        final Categorie resolve(final Categorie c) {
+            if (c.getId() == UNCLASSIFIED_ID)
+                return this.unclassified;
+            return c.getId() < 0 ? null : this.byID.get(c.getId());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Catalogue create(final Catalogue previous) {
+        final Configuration conf = Configuration.getInstance();
+        final SQLDataSource ds = conf.getBase().getDataSource();
+        final SQLTable tableFamille = conf.getDirectory().getElement("FAMILLE_ARTICLE").getTable();
+        final SQLTable tableArticle = conf.getDirectory().getElement("ARTICLE").getTable();
+        final SQLField modifField = tableArticle.getModifDateField();
+
+        final SQLSelect selFamille = new SQLSelect(conf.getBase());
+        selFamille.addSelectStar(tableFamille);
+        selFamille.addRawOrder(tableFamille.getField("CODE").getFieldRef());
+        final List<SQLRow> familles = (List<SQLRow>) ds.execute(selFamille.asString(), SQLRowListRSH.createFromSelect(selFamille, tableFamille));
+        final List<String> famillesKey = new ArrayList<String>(familles.size());
+        for (final SQLRow row : familles) {
+            famillesKey.add(row.getID() + "/" + row.getInt("ID_FAMILLE_ARTICLE_PERE") + "/" + row.getString("NOM"));
+        }
+
+        final boolean incremental = previous != null && previous.modificationDate != null && modifField != null && previous.categories.key.equals(famillesKey);
+        final Categories categories;
+        if (incremental) {
+            categories = previous.categories;
+        } else {
+            categories = new Categories(famillesKey);
+            for (final SQLRow row : familles) {
+                // les pères sont avant leurs fils (tri par code)
+                final Categorie cP = categories.byID.get(row.getInt("ID_FAMILLE_ARTICLE_PERE"));
+                categories.add(row.getID(), cP, new Categorie(row.getID(), row.getString("NOM")));
+            }
+            categories.done();
+        }
+
+        final SQLSelect selArticle = new SQLSelect();
+        selArticle.addSelectStar(tableArticle);
+        if (incremental) {
+            // les archivés pour retirer les articles supprimés
+            selArticle.setArchivedPolicy(SQLSelect.BOTH);
+            selArticle.setWhere(new Where(modifField, ">=", new Timestamp(previous.modificationDate.getTime() - MODIFICATION_MARGIN)));
+        }
+        final List<SQLRow> rows = (List<SQLRow>) ds.execute(selArticle.asString(), SQLRowListRSH.createFromSelect(selArticle, tableArticle));
+
+        final Map<Integer, Article> articles = incremental ? new HashMap<Integer, Article>(previous.articlesByID) : new HashMap<Integer, Article>(rows.size() * 4 / 3 + 1);
+        final Map<Integer, Long> modifs = incremental ? new HashMap<Integer, Long>(previous.modifs) : new HashMap<Integer, Long>(rows.size() * 4 / 3 + 1);
+        Date maxModif = incremental ? previous.modificationDate : null;
+        for (final SQLRow row : rows) {
+            final Integer id = row.getID();
+            final Date modif = modifField == null ? null : (Date) row.getObject(modifField.getName());
+            final Long modifTime = modif == null ? null : modif.getTime();
+            if (modif != null && (maxModif == null || modif.after(maxModif)))
+                maxModif = modif;
+            // déjà chargé : garder le même objet, les lignes du ticket comparent les articles
+            if (incremental && modifTime != null && modifTime.equals(modifs.get(id)) && articles.containsKey(id))
+                continue;
+
+            final String name = row.getString("NOM") == null ? "" : row.getString("NOM").trim();
+            if (row.isArchived() || name.length() == 0) {
+                articles.remove(id);
+                modifs.remove(id);
+            } else {
+                final Article a = new Article(categories.get(row.getInt("ID_FAMILLE_ARTICLE")), name, id, false);
+                final String barcode = row.getString("CODE_BARRE");
+                if (barcode == null || barcode.trim().isEmpty()) {
+                    a.setBarCode(row.getString("CODE"));
+                } else {
+                    a.setBarCode(barcode);
+                }
+                a.setCode(row.getString("CODE"));
+                a.setIdTaxe(row.getInt("ID_TAXE"));
+                a.setPriceHTInCents((BigDecimal) row.getObject("PV_HT"));
+                a.setPriceInCents((BigDecimal) row.getObject("PV_TTC"));
+                articles.put(id, a);
+                modifs.put(id, modifTime);
+            }
+        }
+        return new Catalogue(categories, articles, modifs, maxModif);
+    }
+
+    private final Categories categories;
+    private final Map<Integer, Article> articlesByID;
+    private final Map<Integer, Long> modifs;
+    private final Date modificationDate;
+
+    // triés par nom
+    private final Article[] articles;
+    private final Map<String, Article> byBarcode;
+    // catégorie -> index dans articles, sous-catégories comprises
+    private final Map<Categorie, int[]> indexesByCategorie;
+    private final Map<Categorie, List<Article>> articlesByCategorie;
+    // triées par nom, sans tenir compte de la casse
+    private final List<Categorie> sortedCategories;
+    private final Map<Categorie, List<Article>> nonEmptyCategories;
+    // mots triés et index des articles les contenant
+    private final String[] words;
+    private final int[][] wordArticles;
+
+    private Catalogue(final Categories categories, final Map<Integer, Article> articlesByID, final Map<Integer, Long> modifs, final Date modificationDate) {
+        this.categories = categories;
+        this.articlesByID = articlesByID;
+        this.modifs = modifs;
+        this.modificationDate = modificationDate;
+
+        this.articles = articlesByID.values().toArray(new Article[articlesByID.size()]);
+        Arrays.sort(this.articles, NAME_COMPARATOR);
+
+        // en cas de doublon, l'article le plus récent
+        this.byBarcode = new HashMap<String, Article>(this.articles.length * 4 / 3 + 1);
+        for (final Article a : new TreeMap<Integer, Article>(articlesByID).values()) {
+            if (a.getBarCode() != null)
+                this.byBarcode.put(a.getBarCode(), a);
+        }
+
+        final Map<Categorie, List<Integer>> indexes = new IdentityHashMap<Categorie, List<Integer>>();
+        for (final Categorie c : categories.all) {
+            indexes.put(c, new ArrayList<Integer>());
+        }
+        final Map<String, List<Integer>> wordsMap = new HashMap<String, List<Integer>>();
+        for (int i = 0; i < this.articles.length; i++) {
+            final Article a = this.articles[i];
+            for (Categorie c = a.getCategorie(); c != null; c = c.getParent()) {
+                indexes.get(c).add(i);
+            }
+            final List<String> articleWords = getWords(a.getName());
+            articleWords.addAll(getWords(a.getCode()));
+            articleWords.addAll(getWords(a.getBarCode()));
+            for (final String w : articleWords) {
+                List<Integer> l = wordsMap.get(w);
+                if (l == null) {
+                    l = new ArrayList<Integer>(4);
+                    wordsMap.put(w, l);
+                }
+                // articles parcourus dans l'ordre, un mot peut apparaître plusieurs fois
+                if (l.isEmpty() || l.get(l.size() - 1) != i)
+                    l.add(i);
+            }
+        }
+
+        this.indexesByCategorie = new IdentityHashMap<Categorie, int[]>(indexes.size());
+        this.articlesByCategorie = new IdentityHashMap<Categorie, List<Article>>(indexes.size());
+        for (final Map.Entry<Categorie, List<Integer>> e : indexes.entrySet()) {
+            final int[] array = toArray(e.getValue());
+            final Article[] catArticles = new Article[array.length];
+            for (int i = 0; i < array.length; i++) {
+                catArticles[i] = this.articles[array[i]];
+            }
+            this.indexesByCategorie.put(e.getKey(), array);
+            this.articlesByCategorie.put(e.getKey(), Collections.unmodifiableList(Arrays.asList(catArticles)));
+        }
+
+        final List<Categorie> sorted = new ArrayList<Categorie>(categories.all);
+        Collections.sort(sorted, new Comparator<Categorie>() {
+            @Override
+            public int compare(Categorie o1, Categorie o2) {
+                return o1.getName().compareToIgnoreCase(o2.getName());
+            }
+        });
+        this.sortedCategories = Collections.unmodifiableList(sorted);
+        final Map<Categorie, List<Article>> nonEmpty = new LinkedHashMap<Categorie, List<Article>>();
+        for (final Categorie c : this.sortedCategories) {
+            final List<Article> l = this.articlesByCategorie.get(c);
+            if (!l.isEmpty())
+                nonEmpty.put(c, l);
+        }
+        this.nonEmptyCategories = Collections.unmodifiableMap(nonEmpty);
+
+        this.words = wordsMap.keySet().toArray(new String[wordsMap.size()]);
+        Arrays.sort(this.words);
+        this.wordArticles = new int[this.words.length][];
+        for (int i = 0; i < this.words.length; i++) {
+            this.wordArticles[i] = toArray(wordsMap.get(this.words[i]));
+        }
+    }
+
+    private static int[] toArray(final List<Integer> l) {
+        final int[] res = new int[l.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = l.get(i);
+        }
+        return res;
+    }
+
+    public final List<Categorie> getTopLevelCategories() {
+        return Collections.unmodifiableList(this.categories.topLevel);
+    }
+
+    public final List<Categorie> getAllCategories() {
+        return Collections.unmodifiableList(this.categories.all);
+    }
+
+    /**
+     * La catégorie de ce catalogue ayant le même ID que celle passée, qui peut venir d'un
+     * catalogue précédent.
+     * 
+     * @param c une catégorie, peut être <code>null</code>.
+     * @return la catégorie de ce catalogue, <code>c</code> si elle n'est pas dans le catalogue,
+     *         <code>null</code> si la famille a été supprimée.
+     */
+    public final Categorie getCategorie(final Categorie c) {
+        if (c == null || c.getId() < 0)
+            return c;
+        return this.categories.resolve(c);
+    }
+
+    public final int getArticleCount() {
+        return this.articles.length;
+    }
+
+    public final Article getArticleFromBarcode(final String code) {
+        return this.byBarcode.get(code);
+    }
+
+    /**
+     * Les articles d'une catégorie et de ses sous-catégories, triés par nom. Une catégorie d'un
+     * catalogue précédent (encore affichée après un rechargement complet) est retrouvée par son
+     * ID.
+     * 
+     * @param c une catégorie.
+     * @return les articles, <code>null</code> si <code>c</code> n'est pas dans ce catalogue.
+     */
+    public final List<Article> getArticles(final Categorie c) {
+        final List<Article> res = this.articlesByCategorie.get(c);
+        if (res != null)
+            return res;
+        final Categorie current = this.categories.resolve(c);
+        return current == null ? null : this.articlesByCategorie.get(current);
+    }
+
+    /**
+     * Recherche des articles. Chaque mot saisi doit commencer un mot du nom, du code ou du code
+     * barre de l'article, sans tenir compte de la casse ni des accents.
+     * 
+     * @param text le texte saisi.
+     * @return les catégories non vides triées par nom, avec leurs articles correspondants (ceux des
+     *         sous-catégories compris) triés par nom.
+     */
+    public final Map<Categorie, List<Article>> search(final String text) {
+        final List<String> parts = getWords(text);
+        if (parts.isEmpty())
+            return this.nonEmptyCategories;
+
+        BitSet found = null;
+        for (final String part : parts) {
+            final BitSet partFound = new BitSet(this.articles.length);
+            int i = Arrays.binarySearch(this.words, part);
+            if (i < 0)
+                i = -i - 1;
+            for (; i < this.words.length && this.words[i].startsWith(part); i++) {
+                for (final int index : this.wordArticles[i]) {
+                    partFound.set(index);
+                }
+            }
+            if (found == null)
+                found = partFound;
+            else
+                found.and(partFound);
+            if (found.isEmpty())
+                return Collections.emptyMap();
+        }
+
+        final Map<Categorie, List<Article>> res = new LinkedHashMap<Categorie, List<Article>>();
+        for (final Categorie c : this.sortedCategories) {
+            List<Article> l = null;
+            for (final int index : this.indexesByCategorie.get(c)) {
+                if (found.get(index)) {
+                    if (l == null)
+                        l = new ArrayList<Article>();
+                    l.add(this.articles[index]);
+                }
+            }
+            if (l != null)
+                res.put(c, l);
+        }
+        return res;
+    }
+}
@@ -20,8 +20,8 @@ import java.util.Comparator;
 import java.util.List;
 
 public class Categorie {
-    private static List<Categorie> topLevelCategories = new ArrayList<Categorie>();
-    private static List<Categorie> allCategories = new ArrayList<Categorie>();
+    // ID de la famille, négatif si la catégorie n'est pas dans le catalogue
+    private final int id;
     private String name;
     // Sous catégories
     private List<Categorie> l = new ArrayList<Categorie>();
@@ -30,15 +30,16 @@ public class Categorie {
     private Categorie parent;
 
     public Categorie(String string) {
-        this(string, false);
+        this(-1, string);
     }
 
-    public Categorie(String string, boolean top) {
+    Categorie(int id, String string) {
+        this.id = id;
         this.name = string;
-        if (top) {
-            topLevelCategories.add(this);
-        }
-        allCategories.add(this);
+    }
+
+    public int getId() {
+        return id;
     }
 
     @Override
@@ -64,11 +65,11 @@ public class Categorie {
     }
 
     public static List<Categorie> getTopLevelCategories() {
-        return topLevelCategories;
+        return Catalogue.getInstance().getTopLevelCategories();
     }
 
     public static List<Categorie> getAllCategories() {
-        return allCategories;
+        return Catalogue.getInstance().getAllCategories();
     }
 
     public List<Categorie> getSubCategories() {
@@ -80,6 +81,10 @@ public class Categorie {
     }
 
     public List<Article> getArticles() {
+        // précalculés pour les catégories du catalogue
+        final List<Article> catalogueArticles = Catalogue.getInstance().getArticles(this);
+        if (catalogueArticles != null)
+            return catalogueArticles;
         final List<Article> result = new ArrayList<Article>();
         result.addAll(articles);
         for (Categorie c : l) {
@@ -28,7 +28,6 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
@@ -53,12 +52,16 @@ public class ReceiptCode {
     }
 
     static public final File getDayDir(final Calendar cal, final boolean create) {
+        return getDayDir(getRootDir(), cal, create);
+    }
+
+    static public final File getDayDir(final File rootDir, final Calendar cal, final boolean create) {
         final int j = cal.get(Calendar.DAY_OF_MONTH);
         final int m = cal.get(Calendar.MONTH) + 1;
         final int a = cal.get(Calendar.YEAR);
         final List<String> dirs = Arrays.asList(DIGIT4_FORMAT.format(a), DIGIT2_FORMAT.format(m), DIGIT2_FORMAT.format(j));
         assert dirs.size() == DIR_DEPTH;
-        File res = getRootDir();
+        File res = rootDir;
         for (final String dir : dirs) {
             res = new File(res, dir);
         }
@@ -247,12 +250,25 @@ public class ReceiptCode {
         return getCode().replace(' ', '_') + EXT;
     }
 
+    final File getFile(final File rootDir, final TicketJournal.State state) {
+        final String suffix = state == TicketJournal.State.DELETED ? DELETED_SUFFIX : state == TicketJournal.State.IMPORTED ? IMPORTED_SUFFIX : "";
+        return new File(getDayDir(rootDir, getDay(), true), getFileName() + suffix);
+    }
+
     public void markDeleted() throws IOException {
-        mark(DELETED_SUFFIX);
+        final TicketJournal journal = TicketJournal.getInstance(getCaisseNb());
+        if (journal.contains(getCode()))
+            journal.markDeleted(getCode());
+        else
+            mark(DELETED_SUFFIX);
     }
 
     public void markImported() throws IOException {
-        mark(IMPORTED_SUFFIX);
+        final TicketJournal journal = TicketJournal.getInstance(getCaisseNb());
+        if (journal.contains(getCode()))
+            journal.markImported(getCode());
+        else
+            mark(IMPORTED_SUFFIX);
     }
 
     private final void mark(final String suffix) throws IOException {
@@ -262,14 +278,14 @@ public class ReceiptCode {
     }
 
     public final List<ReceiptCode> getSameDayCodes(final boolean includeAll) {
+        final List<ReceiptCode> res = new ArrayList<ReceiptCode>(TicketJournal.getInstance(getCaisseNb()).getCodes(getDay(), includeAll));
+        // tickets enregistrés avant le journal
         final File dir = getDir(false);
         final File[] listFiles = dir.listFiles(createFF(getCodePrefix(), includeAll, includeAll));
-        if (listFiles == null)
-            return Collections.emptyList();
-
-        final List<ReceiptCode> res = new ArrayList<ReceiptCode>(listFiles.length);
-        for (final File f : listFiles) {
-            res.add(fromFile(f));
+        if (listFiles != null) {
+            for (final File f : listFiles) {
+                res.add(fromFile(f));
+            }
         }
         return res;
     }
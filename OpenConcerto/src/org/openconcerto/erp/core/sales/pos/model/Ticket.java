@@ -27,11 +27,14 @@ import org.openconcerto.sql.model.SQLTable;
 import org.openconcerto.utils.DecimalUtils;
 import org.openconcerto.utils.Pair;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -65,8 +68,12 @@ public class Ticket {
 
     public static Ticket getTicketFromCode(String code) {
         try {
+            final ReceiptCode receiptCode = new ReceiptCode(code);
+            final TicketJournal journal = TicketJournal.getInstance(receiptCode.getCaisseNb());
+            if (journal.contains(receiptCode.getCode()))
+                return journal.getTicket(receiptCode.getCode());
             // Loading file
-            return parseFile(new ReceiptCode(code).getFile());
+            return parseFile(receiptCode.getFile());
         } catch (Exception e) {
             System.err.println("Error with ticket code : " + code);
             e.printStackTrace();
@@ -91,9 +98,7 @@ public class Ticket {
             final Calendar c = (Calendar) receiptCode.getDay().clone();
             c.set(Calendar.HOUR_OF_DAY, Integer.parseInt(h));
             c.set(Calendar.MINUTE, Integer.parseInt(m));
-            final Ticket t = new Ticket(receiptCode.getCaisseNb());
-            t.setCreationCal(c);
-            t.setNumber(receiptCode.getDayIndex());
+            final Ticket t = new Ticket(receiptCode.getCaisseNb(), c, receiptCode.getDayIndex());
 
             // article
             @SuppressWarnings("unchecked")
@@ -158,6 +163,101 @@ public class Ticket {
         initNumber();
     }
 
+    // ticket enregistré, inutile de chercher le prochain numéro
+    private Ticket(final int caisse, final Calendar creationCal, final int number) {
+        this.caisseNumber = caisse;
+        this.creationCal = creationCal;
+        this.number = number;
+    }
+
+    static Ticket read(final DataInput in) throws IOException, ParseException {
+        final ReceiptCode receiptCode = new ReceiptCode(in.readUTF());
+        final Calendar c = (Calendar) receiptCode.getDay().clone();
+        c.set(Calendar.HOUR_OF_DAY, in.readByte());
+        c.set(Calendar.MINUTE, in.readByte());
+        final Ticket t = new Ticket(receiptCode.getCaisseNb(), c, receiptCode.getDayIndex());
+
+        final int articleCount = in.readInt();
+        for (int i = 0; i < articleCount; i++) {
+            final int qte = in.readInt();
+            final BigDecimal prix = readBigDecimal(in);
+            final BigDecimal prixHT = readBigDecimal(in);
+            final int idTaxe = in.readInt();
+            final Categorie cat = new Categorie(readString(in));
+            final String codebarre = readString(in);
+            final String codeArt = readString(in);
+            final int id = in.readInt();
+            final Article art = new Article(cat, readString(in), id);
+            art.setPriceInCents(prix);
+            art.setCode(codeArt);
+            art.setPriceHTInCents(prixHT);
+            art.setIdTaxe(idTaxe);
+            art.barCode = codebarre;
+            t.items.add(new Pair<Article, Integer>(art, qte));
+        }
+        final int paiementCount = in.readInt();
+        for (int i = 0; i < paiementCount; i++) {
+            final Paiement p = new Paiement(in.readByte());
+            p.setMontantInCents(in.readInt());
+            t.paiements.add(p);
+        }
+        return t;
+    }
+
+    private static String readString(final DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(final DataOutput out, final String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null)
+            out.writeUTF(s);
+    }
+
+    private static BigDecimal readBigDecimal(final DataInput in) throws IOException {
+        final String s = readString(in);
+        return s == null ? null : new BigDecimal(s);
+    }
+
+    /**
+     * Ecrit ce ticket pour le journal, même contenu que le format XML.
+     * 
+     * @param out la destination.
+     * @param time l'heure d'enregistrement.
+     * @throws IOException if an error occurs while writing.
+     * @see #read(DataInput)
+     */
+    void write(final DataOutput out, final Calendar time) throws IOException {
+        out.writeUTF(this.getCode());
+        out.writeByte(time.get(Calendar.HOUR_OF_DAY));
+        out.writeByte(time.get(Calendar.MINUTE));
+        out.writeInt(this.items.size());
+        for (final Pair<Article, Integer> item : this.items) {
+            final Article a = item.getFirst();
+            out.writeInt(item.getSecond());
+            writeString(out, a.getPriceInCents() == null ? null : a.getPriceInCents().toString());
+            writeString(out, a.getPriceHTInCents() == null ? null : a.getPriceHTInCents().toString());
+            out.writeInt(a.getIdTaxe());
+            writeString(out, a.getCategorie().getName());
+            writeString(out, a.getBarCode());
+            writeString(out, a.getCode());
+            out.writeInt(a.getId());
+            writeString(out, a.getName());
+        }
+        int paiementCount = 0;
+        for (final Paiement paiement : this.paiements) {
+            if (paiement.getMontantInCents() > 0)
+                paiementCount++;
+        }
+        out.writeInt(paiementCount);
+        for (final Paiement paiement : this.paiements) {
+            if (paiement.getMontantInCents() > 0) {
+                out.writeByte(paiement.getType());
+                out.writeInt(paiement.getMontantInCents());
+            }
+        }
+    }
+
     public void setNumber(int i) {
         this.number = i;
     }
@@ -197,12 +297,26 @@ public class Ticket {
     }
 
     public void save() {
+        final Calendar now = getCalendar();
+        TicketJournal journal = null;
+        try {
+            journal = TicketJournal.getInstance(this.getCaisseNumber());
+            journal.append(this, now);
+        } catch (Exception e) {
+            e.printStackTrace();
+            // ne pas perdre la vente, mais si seul le fsync a échoué le ticket est déjà dans le
+            // journal et ne doit pas être enregistré deux fois
+            if (journal == null || !journal.contains(this.getCode()))
+                this.saveXML(getFile(), now);
+        }
+    }
+
+    final void saveXML(final File f, final Calendar time) {
         // Update Hour & Minute
-        int hour = getCalendar().get(Calendar.HOUR_OF_DAY);
-        int minute = getCalendar().get(Calendar.MINUTE);
+        int hour = time.get(Calendar.HOUR_OF_DAY);
+        int minute = time.get(Calendar.MINUTE);
 
         // Hierarchie: 2010/04/05/01_05042010_00002.xml
-        final File f = getFile();
         Element topLevel = new Element("ticket");
         topLevel.setAttribute(new Attribute("code", this.getCode()));
         topLevel.setAttribute("hour", String.valueOf(hour));
@@ -0,0 +1,491 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.core.sales.pos.model;
+
+import org.openconcerto.utils.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Le journal des tickets d'une caisse : un seul fichier auquel les tickets sont ajoutés, au lieu
+ * d'un fichier XML par ticket. Chaque enregistrement est préfixé par sa longueur et son CRC, ainsi
+ * un enregistrement incomplet (arrêt pendant l'écriture) est détecté et tronqué à l'ouverture. Les
+ * changements d'état (supprimé, importé) sont aussi ajoutés au journal, qui n'est jamais réécrit.
+ * L'index par code et par jour est construit en mémoire à l'ouverture. Les jours entièrement
+ * importés sont archivés au format XML par {@link #archiveCompletelyImported(File)}, qui réécrit le
+ * journal avec les seuls tickets restants.
+ */
+public final class TicketJournal {
+
+    public static enum State {
+        SAVED, DELETED, IMPORTED
+    }
+
+    // "OCTJ"
+    private static final int MAGIC = 0x4F43544A;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    // longueur puis CRC des données
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    private static final byte TICKET = 1;
+    private static final byte STATE = 2;
+
+    private static final Map<Integer, TicketJournal> instances = new HashMap<Integer, TicketJournal>();
+
+    public static synchronized TicketJournal getInstance(final int caisseNb) {
+        TicketJournal res = instances.get(caisseNb);
+        if (res == null) {
+            try {
+                res = new TicketJournal(getFile(caisseNb));
+            } catch (IOException e) {
+                throw new IllegalStateException("Impossible d'ouvrir le journal des tickets de la caisse " + caisseNb, e);
+            }
+            instances.put(caisseNb, res);
+        }
+        return res;
+    }
+
+    public static final File getFile(final int caisseNb) {
+        return new File(ReceiptCode.getRootDir(), "caisse_" + caisseNb + ".journal");
+    }
+
+    private static int getDayKey(final Calendar cal) {
+        return cal.get(Calendar.YEAR) * 10000 + (cal.get(Calendar.MONTH) + 1) * 100 + cal.get(Calendar.DAY_OF_MONTH);
+    }
+
+    private static int getCRC(final byte[] data) {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    private static final class Entry {
+        private final ReceiptCode code;
+        private final long offset;
+        private State state;
+
+        Entry(final ReceiptCode code, final long offset) {
+            this.code = code;
+            this.offset = offset;
+            this.state = State.SAVED;
+        }
+    }
+
+    private final File file;
+    private FileChannel channel;
+    // par code, dans l'ordre du journal
+    private final Map<String, Entry> entries;
+    private final TreeMap<Integer, List<Entry>> byDay;
+    private long end;
+    // les fsync concurrents sont regroupés
+    private final Object syncLock;
+    private long synced;
+
+    private TicketJournal(final File f) throws IOException {
+        this.file = f;
+        FileUtils.mkParentDirs(f);
+        this.entries = new LinkedHashMap<String, Entry>();
+        this.byDay = new TreeMap<Integer, List<Entry>>();
+        this.syncLock = new Object();
+        this.open();
+    }
+
+    private void open() throws IOException {
+        // arrêt ou erreur pendant archiveCompletelyImported(), entre les deux renommages
+        final File old = getOldFile(this.file);
+        if (!this.file.exists() && old.exists() && !old.renameTo(this.file))
+            throw new IOException("Couldn't rename " + old + " to " + this.file);
+        this.channel = new RandomAccessFile(this.file, "rw").getChannel();
+        this.entries.clear();
+        this.byDay.clear();
+        this.recover();
+    }
+
+    private static File getOldFile(final File f) {
+        return new File(f.getPath() + ".old");
+    }
+
+    private void recover() throws IOException {
+        final long size = this.channel.size();
+        if (size < HEADER_SIZE) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            this.channel.truncate(0);
+            while (header.hasRemaining())
+                this.channel.write(header, header.position());
+            this.channel.force(true);
+            this.end = HEADER_SIZE;
+        } else {
+            this.channel.position(0);
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(this.channel), 64 * 1024));
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a ticket journal : " + this.file);
+            final int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported version " + version + " : " + this.file);
+            long pos = HEADER_SIZE;
+            while (pos + RECORD_HEADER_SIZE <= size) {
+                final int length = in.readInt();
+                final int crc = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE || pos + RECORD_HEADER_SIZE + length > size)
+                    break;
+                final byte[] data = new byte[length];
+                in.readFully(data);
+                if (getCRC(data) != crc)
+                    break;
+                this.index(data, pos);
+                pos += RECORD_HEADER_SIZE + length;
+            }
+            if (pos < size) {
+                // enregistrement incomplet : le conserver à part puis tronquer
+                final File bad = new File(this.file.getPath() + "." + pos + ".bad");
+                System.err.println("TicketJournal: truncating " + this.file + " at " + pos + " (" + (size - pos) + " bytes saved in " + bad + ")");
+                final FileOutputStream out = new FileOutputStream(bad);
+                try {
+                    this.channel.transferTo(pos, size - pos, out.getChannel());
+                } finally {
+                    out.close();
+                }
+                this.channel.truncate(pos);
+                this.channel.force(true);
+            }
+            this.end = pos;
+        }
+        this.synced = this.end;
+    }
+
+    private void index(final byte[] data, final long offset) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        final byte type = in.readByte();
+        final String code = in.readUTF();
+        if (type == TICKET) {
+            final ReceiptCode receiptCode;
+            try {
+                receiptCode = new ReceiptCode(code);
+            } catch (ParseException e) {
+                throw new IOException("Invalid code " + code + " at " + offset, e);
+            }
+            final Entry entry = new Entry(receiptCode, offset);
+            final Entry previous = this.entries.put(code, entry);
+            final int dayKey = getDayKey(receiptCode.getDay());
+            List<Entry> l = this.byDay.get(dayKey);
+            if (l == null) {
+                l = new ArrayList<Entry>();
+                this.byDay.put(dayKey, l);
+            }
+            // enregistré à nouveau : la dernière version remplace la précédente
+            if (previous != null)
+                l.remove(previous);
+            l.add(entry);
+        } else if (type == STATE) {
+            final Entry entry = this.entries.get(code);
+            if (entry != null)
+                entry.state = State.values()[in.readByte()];
+        } else {
+            throw new IOException("Unknown record type " + type + " at " + offset);
+        }
+    }
+
+    // ajoute un enregistrement, retourne la position à atteindre par sync()
+    private synchronized long write(final byte[] data) throws IOException {
+        final ByteBuffer buf = createRecord(data);
+        final long pos = this.end;
+        while (buf.hasRemaining())
+            this.channel.write(buf, pos + buf.position());
+        this.index(data, pos);
+        this.end = pos + buf.limit();
+        return this.end;
+    }
+
+    private static ByteBuffer createRecord(final byte[] data) throws IOException {
+        if (data.length > MAX_RECORD_SIZE)
+            throw new IOException("Record too large : " + data.length);
+        final ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_SIZE + data.length);
+        buf.putInt(data.length).putInt(getCRC(data)).put(data).flip();
+        return buf;
+    }
+
+    private void sync(final long pos) throws IOException {
+        synchronized (this.syncLock) {
+            // déjà écrit par le fsync d'un autre appel
+            if (this.synced >= pos)
+                return;
+            final long toSync;
+            synchronized (this) {
+                toSync = this.end;
+            }
+            this.channel.force(false);
+            this.synced = toSync;
+        }
+    }
+
+    /**
+     * Ajoute un ticket au journal, et attend qu'il soit écrit sur le disque.
+     * 
+     * @param t le ticket.
+     * @param time l'heure d'enregistrement.
+     * @throws IOException if the ticket couldn't be written.
+     */
+    public void append(final Ticket t, final Calendar time) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(TICKET);
+        t.write(out, time);
+        out.close();
+        this.sync(this.write(bytes.toByteArray()));
+    }
+
+    public void markDeleted(final String code) throws IOException {
+        this.mark(code, State.DELETED);
+    }
+
+    public void markImported(final String code) throws IOException {
+        this.mark(code, State.IMPORTED);
+    }
+
+    private void mark(final String code, final State state) throws IOException {
+        if (!this.contains(code))
+            throw new IllegalArgumentException("Unknown ticket " + code);
+        this.sync(this.write(createStateRecord(code, state)));
+    }
+
+    private static byte[] createStateRecord(final String code, final State state) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(STATE);
+        out.writeUTF(code);
+        out.writeByte(state.ordinal());
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    public synchronized boolean contains(final String code) {
+        return this.entries.containsKey(code);
+    }
+
+    public synchronized State getState(final String code) {
+        final Entry entry = this.entries.get(code);
+        return entry == null ? null : entry.state;
+    }
+
+    /**
+     * Les codes des tickets d'un jour.
+     * 
+     * @param day le jour.
+     * @param includeAll <code>true</code> pour inclure les tickets supprimés ou importés.
+     * @return les codes, dans l'ordre d'enregistrement.
+     */
+    public synchronized List<ReceiptCode> getCodes(final Calendar day, final boolean includeAll) {
+        final List<Entry> l = this.byDay.get(getDayKey(day));
+        if (l == null)
+            return Collections.emptyList();
+        final List<ReceiptCode> res = new ArrayList<ReceiptCode>(l.size());
+        for (final Entry entry : l) {
+            if (includeAll || entry.state == State.SAVED)
+                res.add(entry.code);
+        }
+        return res;
+    }
+
+    public Ticket getTicket(final String code) throws IOException {
+        final Entry entry;
+        synchronized (this) {
+            entry = this.entries.get(code);
+        }
+        return entry == null ? null : this.read(entry.offset);
+    }
+
+    // synchronized : les positions changent quand le journal est réécrit
+    private synchronized Ticket read(final long offset) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        this.readFully(header, offset);
+        final int length = header.getInt(0);
+        final ByteBuffer data = ByteBuffer.allocate(length);
+        this.readFully(data, offset + RECORD_HEADER_SIZE);
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data.array()));
+        if (in.readByte() != TICKET)
+            throw new IOException("Not a ticket at " + offset);
+        try {
+            return Ticket.read(in);
+        } catch (ParseException e) {
+            throw new IOException("Invalid ticket at " + offset, e);
+        }
+    }
+
+    // positional read, doesn't change the position of the channel
+    private void readFully(final ByteBuffer buf, final long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            if (this.channel.read(buf, pos + buf.position()) < 0)
+                throw new EOFException("at " + pos);
+        }
+    }
+
+    private synchronized List<Entry> getEntries(final State state) {
+        final List<Entry> res = new ArrayList<Entry>();
+        for (final Entry entry : this.entries.values()) {
+            if (state == null || entry.state == state)
+                res.add(entry);
+        }
+        return res;
+    }
+
+    /**
+     * Les tickets ni supprimés ni importés.
+     * 
+     * @return les tickets, dans l'ordre d'enregistrement.
+     */
+    public List<Ticket> getTicketsToImport() {
+        final List<Entry> toImport = this.getEntries(State.SAVED);
+        final List<Ticket> res = new ArrayList<Ticket>(toImport.size());
+        for (final Entry entry : toImport) {
+            try {
+                res.add(this.read(entry.offset));
+            } catch (IOException e) {
+                System.err.println("Error with ticket : " + entry.code.getCode());
+                e.printStackTrace();
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Exporte les tickets au format XML d'avant le journal, un fichier par ticket dans la même
+     * hiérarchie que {@link ReceiptCode#getFile()}.
+     * 
+     * @param rootDir le dossier racine, eg "Tickets".
+     * @return le nombre de tickets exportés.
+     * @throws IOException if a ticket couldn't be read or a directory couldn't be created.
+     */
+    public int exportXML(final File rootDir) throws IOException {
+        int res = 0;
+        for (final Entry entry : this.getEntries(null)) {
+            final Ticket t = this.read(entry.offset);
+            t.saveXML(entry.code.getFile(rootDir, entry.state), t.getCreationCal());
+            res++;
+        }
+        return res;
+    }
+
+    /**
+     * Archive les jours dont tous les tickets sont supprimés ou importés, comme
+     * {@link ReceiptCode#archiveCompletelyImported()} : leurs tickets sont exportés au format XML
+     * dans <code>archiveDir</code>, puis le journal est réécrit sans eux pour qu'il ne grossisse
+     * pas indéfiniment. Le jour courant n'est jamais archivé, sinon la numérotation serait fausse.
+     * 
+     * @param archiveDir le dossier des tickets archivés, eg "Tickets archivés".
+     * @return le nombre de tickets archivés.
+     * @throws IOException if a ticket couldn't be exported or the journal couldn't be rewritten.
+     */
+    public int archiveCompletelyImported(final File archiveDir) throws IOException {
+        // même ordre que sync() : pas de fsync pendant le changement de fichier
+        synchronized (this.syncLock) {
+            synchronized (this) {
+                final int today = getDayKey(Ticket.getCalendar());
+                final Set<Integer> days = new HashSet<Integer>();
+                for (final Map.Entry<Integer, List<Entry>> e : this.byDay.entrySet()) {
+                    boolean done = e.getKey().intValue() != today;
+                    for (final Entry entry : e.getValue()) {
+                        if (entry.state == State.SAVED)
+                            done = false;
+                    }
+                    if (done)
+                        days.add(e.getKey());
+                }
+                if (days.isEmpty())
+                    return 0;
+
+                final List<Entry> toKeep = new ArrayList<Entry>();
+                int res = 0;
+                for (final Entry entry : this.entries.values()) {
+                    if (days.contains(getDayKey(entry.code.getDay()))) {
+                        final Ticket t = this.read(entry.offset);
+                        t.saveXML(entry.code.getFile(archiveDir, entry.state), t.getCreationCal());
+                        res++;
+                    } else {
+                        toKeep.add(entry);
+                    }
+                }
+
+                // nouveau journal : les enregistrements des tickets restants et leur état
+                final File tmp = new File(this.file.getPath() + ".tmp");
+                final FileChannel out = new RandomAccessFile(tmp, "rw").getChannel();
+                try {
+                    out.truncate(0);
+                    final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.putInt(MAGIC).putInt(VERSION).flip();
+                    while (header.hasRemaining())
+                        out.write(header);
+                    for (final Entry entry : toKeep) {
+                        final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+                        this.readFully(recordHeader, entry.offset);
+                        final long length = RECORD_HEADER_SIZE + recordHeader.getInt(0);
+                        long transferred = 0;
+                        while (transferred < length)
+                            transferred += this.channel.transferTo(entry.offset + transferred, length - transferred, out);
+                        if (entry.state != State.SAVED) {
+                            final ByteBuffer state = createRecord(createStateRecord(entry.code.getCode(), entry.state));
+                            while (state.hasRemaining())
+                                out.write(state);
+                        }
+                    }
+                    out.force(true);
+                } finally {
+                    out.close();
+                }
+
+                this.channel.close();
+                try {
+                    final File old = getOldFile(this.file);
+                    if (old.exists())
+                        FileUtils.rm(old);
+                    if (!this.file.renameTo(old))
+                        throw new IOException("Couldn't rename " + this.file + " to " + old);
+                    if (!tmp.renameTo(this.file))
+                        throw new IOException("Couldn't rename " + tmp + " to " + this.file);
+                    FileUtils.rm(old);
+                } finally {
+                    // le nouveau journal, ou l'ancien en cas d'erreur
+                    this.open();
+                }
+                return res;
+            }
+        }
+    }
+}
@@ -14,6 +14,7 @@
  package org.openconcerto.erp.core.sales.pos.ui;
 
 import org.openconcerto.erp.core.sales.pos.model.Article;
+import org.openconcerto.erp.core.sales.pos.model.Catalogue;
 import org.openconcerto.erp.core.sales.pos.model.Categorie;
 
 import java.util.ArrayList;
@@ -59,6 +60,13 @@ public class ArticleModel implements ListModel {
         fire();
     }
 
+    /**
+     * Affiche les articles de la catégorie courante dans le catalogue rechargé.
+     */
+    public void reload() {
+        setCategorie(Catalogue.getInstance().getCategorie(this.categorie));
+    }
+
     private void fire() {
         for (ListDataListener l : listeners) {
             l.contentsChanged(new ListDataEvent(this, ListDataEvent.CONTENTS_CHANGED, 0, this.listeners.size()));
@@ -45,6 +45,7 @@ import javax.swing.event.ListSelectionListener;
 
 public class ArticleSearchPanel extends JPanel implements ListSelectionListener, CaisseListener {
     private final ScrollableList list;
+    private final FilteredListModel model;
     private final CaisseControler controler;
 
     public ArticleSearchPanel(final CaisseControler controler) {
@@ -53,6 +54,7 @@ public class ArticleSearchPanel extends JPanel implements ListSelectionListener,
         this.setLayout(new GridBagLayout());
         final GridBagConstraints c = new GridBagConstraints();
         final FilteredListModel model = new FilteredListModel();
+        this.model = model;
         final Font f1 = new Font("Arial", Font.PLAIN, 24);
         final Font f2 = new Font("Arial", Font.PLAIN, 16);
         list = new ScrollableList(model) {
@@ -236,6 +238,12 @@ public class ArticleSearchPanel extends JPanel implements ListSelectionListener,
         return s;
     }
 
+    // le catalogue a été rechargé, refaire la recherche en cours
+    void catalogueReloaded() {
+        this.categoryCache.clear();
+        this.model.reload();
+    }
+
     @Override
     public void caisseStateChanged() {
 
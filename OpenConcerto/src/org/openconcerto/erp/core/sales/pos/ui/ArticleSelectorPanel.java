@@ -19,13 +19,20 @@ import java.awt.GridLayout;
 import javax.swing.JPanel;
 
 public class ArticleSelectorPanel extends JPanel {
+    private final CategorieSelector categorieSelector;
+
     ArticleSelectorPanel(CaisseControler controller) {
         final ArticleSelector comp = new ArticleSelector(controller);
         this.setLayout(new GridLayout(0, 2));
-        this.add(new CategorieSelector(controller, comp.getModel()));
+        this.categorieSelector = new CategorieSelector(controller, comp.getModel());
+        this.add(this.categorieSelector);
 
         this.add(comp);
        
     }
 
+    void catalogueReloaded() {
+        this.categorieSelector.catalogueReloaded();
+    }
+
 }
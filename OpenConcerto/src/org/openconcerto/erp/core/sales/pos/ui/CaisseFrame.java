@@ -129,6 +129,7 @@ public class CaisseFrame extends JFrame {
 
     public void showCaisse() {
         System.out.println("CaisseFrame.showCaisse()");
+        this.t.reloadArticles();
         this.invalidate();
         this.setContentPane(this.t);
         this.validate();
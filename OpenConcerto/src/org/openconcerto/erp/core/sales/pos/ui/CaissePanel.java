@@ -14,13 +14,7 @@
  package org.openconcerto.erp.core.sales.pos.ui;
 
 import org.openconcerto.erp.core.sales.pos.Caisse;
-import org.openconcerto.erp.core.sales.pos.model.Article;
-import org.openconcerto.erp.core.sales.pos.model.Categorie;
-import org.openconcerto.sql.Configuration;
-import org.openconcerto.sql.element.SQLElement;
-import org.openconcerto.sql.model.SQLRow;
-import org.openconcerto.sql.model.SQLRowListRSH;
-import org.openconcerto.sql.model.SQLSelect;
+import org.openconcerto.erp.core.sales.pos.model.Catalogue;
 import org.openconcerto.utils.ExceptionHandler;
 
 import java.awt.Color;
@@ -33,13 +27,10 @@ import java.awt.RenderingHints;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.geom.Rectangle2D;
-import java.math.BigDecimal;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
 public class CaissePanel extends JPanel implements CaisseListener {
     private CaisseControler controler;
@@ -126,62 +117,38 @@ public class CaissePanel extends JPanel implements CaisseListener {
         this.controler.addCaisseListener(this);
     }
 
-    @SuppressWarnings("unchecked")
     private void loadArticles() {
+        Catalogue.load();
+    }
 
-        final Map<Integer, Categorie> categoriesMap = new HashMap<Integer, Categorie>();
-
-        SQLElement eltFam = Configuration.getInstance().getDirectory().getElement("FAMILLE_ARTICLE");
-        SQLElement eltArticle = Configuration.getInstance().getDirectory().getElement("ARTICLE");
-
-        SQLSelect selFamille = new SQLSelect(Configuration.getInstance().getBase());
-
-        selFamille.addSelectStar(eltFam.getTable());
-        selFamille.addRawOrder(eltFam.getTable().getField("CODE").getFieldRef());
-        List<SQLRow> l = (List<SQLRow>) Configuration.getInstance().getBase().getDataSource().execute(selFamille.asString(), SQLRowListRSH.createFromSelect(selFamille, eltFam.getTable()));
-
-        for (SQLRow row : l) {
-            // Map id -> Category
-            final Categorie cP = categoriesMap.get(row.getInt("ID_FAMILLE_ARTICLE_PERE"));
-            Categorie c;
-            if (cP != null) {
-                c = new Categorie(row.getString("NOM"));
-                cP.add(c);
-            } else {
-                c = new Categorie(row.getString("NOM"), true);
-            }
-
-            categoriesMap.put(row.getID(), c);
-        }
-
-        final SQLSelect selArticle = new SQLSelect();
-        selArticle.addSelectStar(eltArticle.getTable());
-        List<SQLRow> l2 = (List<SQLRow>) Configuration.getInstance().getBase().getDataSource().execute(selArticle.asString(), SQLRowListRSH.createFromSelect(selArticle, eltArticle.getTable()));
-
-        final Categorie cUnclassified = new Categorie("Non classés", true);
-        for (SQLRow row : l2) {
-
-            Categorie s1 = categoriesMap.get(row.getInt("ID_FAMILLE_ARTICLE"));
-            if (s1 == null) {
-                s1 = cUnclassified;
-                categoriesMap.put(row.getInt("ID_FAMILLE_ARTICLE"), cUnclassified);
-            }
-            final String name = row.getString("NOM").trim();
-            if (name.length() > 0) {
-                final Article a = new Article(s1, name, row.getID());
-                final String barcode = row.getString("CODE_BARRE");
-                if (barcode == null || barcode.trim().isEmpty()) {
-                    a.setBarCode(row.getString("CODE"));
-                } else {
-                    a.setBarCode(barcode);
+    /**
+     * Recharge en arrière plan les articles modifiés depuis le chargement.
+     */
+    void reloadArticles() {
+        final Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Catalogue.reload();
+                } catch (Exception e) {
+                    // garder le catalogue actuel
+                    ExceptionHandler.handle("Impossible de recharger les articles", e);
+                    return;
                 }
-                a.setCode(row.getString("CODE"));
-                a.setIdTaxe(row.getInt("ID_TAXE"));
-                a.setPriceHTInCents((BigDecimal) row.getObject("PV_HT"));
-                a.setPriceInCents((BigDecimal) row.getObject("PV_TTC"));
+                // les modèles ne se modifient que dans l'EDT
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        CaissePanel.this.articleSelectorPanel.catalogueReloaded();
+                        CaissePanel.this.articleSearchPanel.catalogueReloaded();
+                    }
+                });
             }
-        }
-
+        });
+        t.setName("Catalogue reload");
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.setDaemon(true);
+        t.start();
     }
 
     @Override
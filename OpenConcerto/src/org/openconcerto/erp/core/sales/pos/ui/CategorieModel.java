@@ -13,6 +13,7 @@
  
  package org.openconcerto.erp.core.sales.pos.ui;
 
+import org.openconcerto.erp.core.sales.pos.model.Catalogue;
 import org.openconcerto.erp.core.sales.pos.model.Categorie;
 
 import java.util.ArrayList;
@@ -69,6 +70,14 @@ public class CategorieModel implements ListModel {
         fire();
     }
 
+    /**
+     * Affiche les sous-catégories de la catégorie courante dans le catalogue rechargé, les
+     * catégories de premier niveau si elle a été supprimée.
+     */
+    public void reload() {
+        setRoot(Catalogue.getInstance().getCategorie(this.categorie));
+    }
+
     private void fire() {
         for (ListDataListener l : listeners) {
             l.contentsChanged(new ListDataEvent(this, ListDataEvent.CONTENTS_CHANGED, 0, this.listeners.size()));
@@ -187,6 +187,23 @@ public class CategorieSelector extends JPanel implements ListSelectionListener,
         }
     }
 
+    // le catalogue a été rechargé, afficher ses catégories à la place des anciennes
+    void catalogueReloaded() {
+        this.model.reload();
+        final Categorie root = this.model.getRoot();
+        this.list.clearSelection();
+        if (root == null) {
+            this.comp.setTitle("Catégories");
+            this.comp.setPrevious(false);
+            this.previous = null;
+        } else {
+            this.comp.setTitle(root.getName());
+            this.comp.setPrevious(true);
+            this.previous = root.getParent();
+        }
+        this.articleModel.reload();
+    }
+
     @Override
     public void caisseStateChanged() {
         final Article articleSelected = this.controller.getArticleSelected();
@@ -14,13 +14,13 @@
  package org.openconcerto.erp.core.sales.pos.ui;
 
 import org.openconcerto.erp.core.sales.pos.model.Article;
+import org.openconcerto.erp.core.sales.pos.model.Catalogue;
 import org.openconcerto.erp.core.sales.pos.model.Categorie;
-import org.openconcerto.utils.StringUtils;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Stack;
 
 import javax.swing.AbstractListModel;
@@ -29,24 +29,11 @@ import javax.swing.SwingUtilities;
 public class FilteredListModel extends AbstractListModel {
     private final List<Object> items = new ArrayList<Object>();
     private final Stack<String> searches = new Stack<String>();
+    private String filter = "";
     Thread t;
 
     FilteredListModel() {
-        final List<Categorie> l = new ArrayList<Categorie>(Categorie.getAllCategories());
-        Collections.sort(l, new Comparator<Categorie>() {
-
-            @Override
-            public int compare(Categorie o1, Categorie o2) {
-                return o1.getName().compareToIgnoreCase(o2.getName());
-            }
-        });
-        for (Categorie categorie : l) {
-            final List<Article> articles = categorie.getArticles();
-            if (!articles.isEmpty()) {
-                items.add(categorie);
-                items.addAll(articles);
-            }
-        }
+        addAll(this.items, Catalogue.getInstance().search(""));
         t = new Thread(new Runnable() {
 
             @Override
@@ -56,48 +43,14 @@ public class FilteredListModel extends AbstractListModel {
                     String s = null;
                     synchronized (searches) {
                         if (!searches.isEmpty()) {
-                            s = searches.lastElement().toLowerCase();
+                            s = searches.lastElement();
                             searches.clear();
                         }
                     }
                     if (s != null) {
+                        // index du catalogue, pas de parcours de tous les articles
                         final List<Object> newitems = new ArrayList<Object>();
-                        for (Categorie categorie : l) {
-                            final List<Article> allArticles = categorie.getArticles();
-
-                            if (s.trim().isEmpty()) {
-                                if (!allArticles.isEmpty()) {
-                                    newitems.add(categorie);
-                                    newitems.addAll(allArticles);
-                                }
-
-                            } else {
-                                String[] parts = StringUtils.fastSplit(s, ' ').toArray(new String[] {});
-                                final int length = parts.length;
-                                final List<Article> articles = new ArrayList<Article>();
-                                int size = allArticles.size();
-                                for (int i = 0; i < size; i++) {
-                                    Article a = allArticles.get(i);
-                                    final String name = a.getName().toLowerCase() + a.getCode().toLowerCase() + a.getBarCode().toLowerCase();
-                                    for (int j = 0; j < length; j++) {
-
-                                        if (name.contains(parts[j])) {
-                                            if (j == length - 1) {
-                                                articles.add(a);
-                                            }
-
-                                        } else {
-                                            break;
-                                        }
-                                    }
-                                }
-
-                                if (!articles.isEmpty()) {
-                                    newitems.add(categorie);
-                                    newitems.addAll(articles);
-                                }
-                            }
-                        }
+                        addAll(newitems, Catalogue.getInstance().search(s));
                         SwingUtilities.invokeLater(new Runnable() {
 
                             @Override
@@ -124,6 +77,13 @@ public class FilteredListModel extends AbstractListModel {
         t.start();
     }
 
+    private static void addAll(final List<Object> l, final Map<Categorie, List<Article>> articlesByCategorie) {
+        for (final Entry<Categorie, List<Article>> e : articlesByCategorie.entrySet()) {
+            l.add(e.getKey());
+            l.addAll(e.getValue());
+        }
+    }
+
     @Override
     public int getSize() {
         return items.size();
@@ -136,10 +96,20 @@ public class FilteredListModel extends AbstractListModel {
 
     public void setFilter(String text) {
         System.err.println("FilteredListModel.setFilter() " + text);
+        filter = text;
         items.clear();
         synchronized (searches) {
             searches.add(text);
         }
     }
 
+    /**
+     * Refait la recherche courante dans le catalogue rechargé.
+     */
+    public void reload() {
+        synchronized (searches) {
+            searches.add(filter);
+        }
+    }
+
 }
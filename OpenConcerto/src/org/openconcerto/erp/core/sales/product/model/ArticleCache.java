@@ -0,0 +1,168 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.core.sales.product.model;
+
+import org.openconcerto.erp.config.ComptaPropsConfiguration;
+import org.openconcerto.sql.Configuration;
+import org.openconcerto.sql.model.DBRoot;
+import org.openconcerto.sql.model.SQLRow;
+import org.openconcerto.sql.model.SQLRowAccessor;
+import org.openconcerto.sql.model.SQLRowValues;
+import org.openconcerto.sql.model.SQLRowValuesListFetcher;
+import org.openconcerto.sql.model.SQLSelect;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.model.SQLTableEvent;
+import org.openconcerto.sql.model.SQLTableModifiedListener;
+import org.openconcerto.sql.model.Where;
+import org.openconcerto.utils.cc.ITransformer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache partagé des articles avec leurs comptes comptables (article et familles), utilisé pour le
+ * calcul des totaux. Les entrées sont invalidées par les modifications des tables ARTICLE,
+ * FAMILLE_ARTICLE et COMPTE_PCE.
+ */
+public final class ArticleCache {
+
+    private static ArticleCache instance;
+
+    synchronized public static ArticleCache getCache() {
+        if (instance == null) {
+            instance = new ArticleCache(((ComptaPropsConfiguration) Configuration.getInstance()).getRootSociete());
+        }
+        return instance;
+    }
+
+    private final SQLTable articleTable, familleArticleTable, compteTable;
+    private final Map<Integer, SQLRowAccessor> articles = new HashMap<Integer, SQLRowAccessor>();
+
+    private ArticleCache(final DBRoot root) {
+        this.articleTable = root.getTable("ARTICLE");
+        this.familleArticleTable = root.getTable("FAMILLE_ARTICLE");
+        this.compteTable = root.getTable("COMPTE_PCE");
+
+        this.articleTable.addTableModifiedListener(new SQLTableModifiedListener() {
+            @Override
+            public void tableModified(SQLTableEvent evt) {
+                if (evt.getId() < SQLRow.MIN_VALID_ID) {
+                    clear();
+                } else {
+                    remove(evt.getId());
+                }
+            }
+        });
+        // the graph includes families and accounts, any change to them can alter several articles
+        final SQLTableModifiedListener clearListener = new SQLTableModifiedListener() {
+            @Override
+            public void tableModified(SQLTableEvent evt) {
+                clear();
+            }
+        };
+        this.familleArticleTable.addTableModifiedListener(clearListener);
+        this.compteTable.addTableModifiedListener(clearListener);
+    }
+
+    public synchronized void clear() {
+        this.articles.clear();
+    }
+
+    private synchronized void remove(final int id) {
+        this.articles.remove(id);
+    }
+
+    /**
+     * Retourne l'article avec ses comptes, en le chargeant si nécessaire.
+     *
+     * @param id l'ID de l'article.
+     * @return l'article, <code>null</code> si inexistant.
+     */
+    public SQLRowAccessor getArticle(final Integer id) {
+        if (id == null) {
+            return null;
+        }
+        return getArticles(Collections.singleton(id)).get(id);
+    }
+
+    /**
+     * Retourne les articles demandés, les articles absents du cache étant chargés en une seule
+     * requête.
+     *
+     * @param ids les ID des articles.
+     * @return les articles par ID, les ID inexistants sont absents.
+     */
+    public Map<Integer, SQLRowAccessor> getArticles(final Collection<Integer> ids) {
+        final Map<Integer, SQLRowAccessor> res = new HashMap<Integer, SQLRowAccessor>(ids.size());
+        final List<Integer> missing = new ArrayList<Integer>();
+        synchronized (this) {
+            for (final Integer id : ids) {
+                if (id == null) {
+                    continue;
+                }
+                final SQLRowAccessor r = this.articles.get(id);
+                if (r == null) {
+                    missing.add(id);
+                } else {
+                    res.put(id, r);
+                }
+            }
+        }
+        if (!missing.isEmpty()) {
+            final List<SQLRowValues> fetched = fetch(missing);
+            synchronized (this) {
+                for (final SQLRowValues r : fetched) {
+                    this.articles.put(r.getID(), r);
+                    res.put(r.getID(), r);
+                }
+            }
+        }
+        return res;
+    }
+
+    private List<SQLRowValues> fetch(final List<Integer> ids) {
+        final SQLRowValues rowValsC1 = new SQLRowValues(this.compteTable);
+        rowValsC1.put("NUMERO", null);
+        rowValsC1.put("ID", null);
+
+        final SQLRowValues rowValsC2 = new SQLRowValues(this.compteTable);
+        rowValsC2.put("NUMERO", null);
+        rowValsC2.put("ID", null);
+
+        final SQLRowValues rowValsF = new SQLRowValues(this.familleArticleTable);
+        rowValsF.put("NOM", null);
+        rowValsF.put("ID", null);
+        rowValsF.put("ID_FAMILLE_ARTICLE_PERE", null);
+        rowValsF.put("ID_COMPTE_PCE", rowValsC2);
+
+        final SQLRowValues rowVals = new SQLRowValues(this.articleTable);
+        rowVals.put("ID", null);
+        rowVals.put("ID_FAMILLE_ARTICLE", rowValsF);
+        rowVals.put("ID_COMPTE_PCE", rowValsC1);
+
+        final SQLRowValuesListFetcher fetch = SQLRowValuesListFetcher.create(rowVals);
+        fetch.setSelTransf(new ITransformer<SQLSelect, SQLSelect>() {
+            @Override
+            public SQLSelect transformChecked(SQLSelect input) {
+                input.andWhere(new Where(ArticleCache.this.articleTable.getKey(), ids));
+                return input;
+            }
+        });
+        return fetch.fetch();
+    }
+}
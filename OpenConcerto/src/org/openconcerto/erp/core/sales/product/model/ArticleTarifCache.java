@@ -0,0 +1,230 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.core.sales.product.model;
+
+import org.openconcerto.erp.config.ComptaPropsConfiguration;
+import org.openconcerto.sql.Configuration;
+import org.openconcerto.sql.model.DBRoot;
+import org.openconcerto.sql.model.SQLRow;
+import org.openconcerto.sql.model.SQLRowAccessor;
+import org.openconcerto.sql.model.SQLRowListRSH;
+import org.openconcerto.sql.model.SQLSelect;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.model.SQLTableEvent;
+import org.openconcerto.sql.model.SQLTableModifiedListener;
+import org.openconcerto.sql.model.Where;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.dbutils.handlers.ArrayListHandler;
+
+/**
+ * Cache partagé des tarifs d'articles (ARTICLE_TARIF) par tarif puis par article, et des taux des
+ * devises. Les tarifs d'un même tarif sont chargés en une requête lors du premier accès, ainsi
+ * changer le tarif d'une pièce de plusieurs centaines de lignes ne fait plus de requête par
+ * ligne. Les entrées sont invalidées par les modifications des tables ARTICLE_TARIF et DEVISE. Les
+ * événements ne concernant que ce poste, avant d'être servis les tarifs sont aussi vérifiés (nombre
+ * de lignes, plus grand ID et date de modification) et les taux rechargés, au plus toutes les
+ * {@value #CHECK_DELAY} ms.
+ */
+public final class ArticleTarifCache {
+
+    private static ArticleTarifCache instance;
+
+    synchronized public static ArticleTarifCache getCache() {
+        if (instance == null) {
+            instance = new ArticleTarifCache(((ComptaPropsConfiguration) Configuration.getInstance()).getRootSociete());
+        }
+        return instance;
+    }
+
+    /**
+     * Délai maximum pendant lequel une modification faite par un autre poste peut être ignorée.
+     */
+    public static final long CHECK_DELAY = 5 * 1000;
+
+    // les lignes d'un tarif par article
+    private static final class Tarif {
+        // ID_ARTICLE -> première et dernière ligne ARTICLE_TARIF par ID
+        private final Map<Integer, SQLRow> first, last;
+
+        Tarif(final List<SQLRow> rows) {
+            final Map<Integer, SQLRow> f = new HashMap<Integer, SQLRow>(rows.size() * 4 / 3 + 1);
+            final Map<Integer, SQLRow> l = new HashMap<Integer, SQLRow>(rows.size() * 4 / 3 + 1);
+            for (final SQLRow r : rows) {
+                final Integer idArticle = r.getForeignID("ID_ARTICLE");
+                if (!f.containsKey(idArticle))
+                    f.put(idArticle, r);
+                l.put(idArticle, r);
+            }
+            this.first = Collections.unmodifiableMap(f);
+            this.last = Collections.unmodifiableMap(l);
+        }
+    }
+
+    private final SQLTable articleTarifTable, deviseTable;
+    // ID_TARIF -> tarif
+    private final Map<Integer, Tarif> tarifs = new HashMap<Integer, Tarif>();
+    // état de ARTICLE_TARIF lors du chargement des tarifs
+    private List<Object> signature = null;
+    private long lastCheck = 0;
+    // ID -> TAUX des devises, null si à charger
+    private Map<Integer, BigDecimal> taux = null;
+    private long tauxLoaded = 0;
+
+    private ArticleTarifCache(final DBRoot root) {
+        this.articleTarifTable = root.getTable("ARTICLE_TARIF");
+        this.deviseTable = root.getTable("DEVISE");
+
+        this.articleTarifTable.addTableModifiedListener(new SQLTableModifiedListener() {
+            @Override
+            public void tableModified(SQLTableEvent evt) {
+                // l'ancien tarif de la ligne n'est pas connu
+                clear();
+            }
+        });
+        this.deviseTable.addTableModifiedListener(new SQLTableModifiedListener() {
+            @Override
+            public void tableModified(SQLTableEvent evt) {
+                synchronized (ArticleTarifCache.this) {
+                    ArticleTarifCache.this.taux = null;
+                }
+            }
+        });
+    }
+
+    public synchronized void clear() {
+        this.tarifs.clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Object> readSignature() {
+        final SQLTable t = this.articleTarifTable;
+        // sans date de modification, les mises à jour ne sont pas détectables
+        if (t.getModifDateField() == null)
+            return null;
+        final SQLSelect sel = new SQLSelect();
+        sel.setArchivedPolicy(SQLSelect.BOTH);
+        sel.addSelect(t.getKey(), "MAX");
+        sel.addSelect(t.getModifDateField(), "MAX");
+        sel.addSelectFunctionStar("COUNT");
+        final List<Object[]> l = (List<Object[]>) t.getDBSystemRoot().getDataSource().execute(sel.asString(), new ArrayListHandler());
+        final Object[] res = l.get(0);
+        // les types numériques peuvent varier selon la base
+        return Arrays.<Object> asList(res[0] == null ? null : ((Number) res[0]).longValue(), res[1], ((Number) res[2]).longValue());
+    }
+
+    // vide les tarifs s'ils ont pu être modifiés par un autre poste
+    private void checkSignature() {
+        assert Thread.holdsLock(this);
+        final long now = System.currentTimeMillis();
+        if (now - this.lastCheck < CHECK_DELAY)
+            return;
+        this.lastCheck = now;
+        final List<Object> sig = this.readSignature();
+        if (sig == null || !sig.equals(this.signature))
+            this.tarifs.clear();
+        this.signature = sig;
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized Tarif getTarifs(final int idTarif) {
+        this.checkSignature();
+        Tarif res = this.tarifs.get(idTarif);
+        if (res == null) {
+            final SQLSelect sel = new SQLSelect();
+            sel.addSelectStar(this.articleTarifTable);
+            sel.setWhere(new Where(this.articleTarifTable.getField("ID_TARIF"), "=", idTarif));
+            sel.addFieldOrder(this.articleTarifTable.getKey());
+            final List<SQLRow> rows = (List<SQLRow>) this.articleTarifTable.getDBSystemRoot().getDataSource().execute(sel.asString(), SQLRowListRSH.createFromSelect(sel, this.articleTarifTable));
+            res = new Tarif(rows);
+            this.tarifs.put(idTarif, res);
+        }
+        return res;
+    }
+
+    /**
+     * Retourne le tarif d'un article. Si l'article a plusieurs prix pour ce tarif, la dernière ligne
+     * l'emporte, comme pour la complétion des lignes.
+     * 
+     * @param idArticle l'ID de l'article.
+     * @param idTarif l'ID du tarif.
+     * @return la ligne ARTICLE_TARIF, <code>null</code> si l'article n'a pas de prix pour ce tarif.
+     */
+    public SQLRowAccessor getArticleTarif(final int idArticle, final int idTarif) {
+        return this.getTarifs(idTarif).last.get(idArticle);
+    }
+
+    /**
+     * Retourne les tarifs de plusieurs articles, avec au plus une requête. Si un article a
+     * plusieurs prix pour ce tarif, la première ligne l'emporte, comme pour l'application d'un
+     * tarif aux lignes d'une pièce.
+     * 
+     * @param idsArticle les ID des articles.
+     * @param idTarif l'ID du tarif.
+     * @return les lignes ARTICLE_TARIF par ID d'article, les articles sans prix pour ce tarif sont
+     *         absents.
+     */
+    public Map<Integer, SQLRowAccessor> resolve(final Collection<Integer> idsArticle, final int idTarif) {
+        final Map<Integer, SQLRow> tarifs = this.getTarifs(idTarif).first;
+        final Map<Integer, SQLRowAccessor> res = new HashMap<Integer, SQLRowAccessor>(idsArticle.size() * 4 / 3 + 1);
+        for (final Integer id : idsArticle) {
+            final SQLRow r = id == null ? null : tarifs.get(id);
+            if (r != null)
+                res.put(id, r);
+        }
+        return res;
+    }
+
+    /**
+     * Retourne le taux d'une devise.
+     * 
+     * @param idDevise l'ID de la devise.
+     * @return le taux, <code>null</code> si la devise est indéfinie ou inexistante.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized BigDecimal getTaux(final int idDevise) {
+        final long now = System.currentTimeMillis();
+        if (this.taux == null || now - this.tauxLoaded >= CHECK_DELAY) {
+            final SQLSelect sel = new SQLSelect();
+            sel.addSelect(this.deviseTable.getKey());
+            sel.addSelect(this.deviseTable.getField("TAUX"));
+            final Map<Integer, BigDecimal> m = new HashMap<Integer, BigDecimal>();
+            for (final SQLRow r : (List<SQLRow>) this.deviseTable.getDBSystemRoot().getDataSource().execute(sel.asString(), SQLRowListRSH.createFromSelect(sel, this.deviseTable))) {
+                if (!r.isUndefined())
+                    m.put(r.getID(), r.getBigDecimal("TAUX"));
+            }
+            this.taux = m;
+            this.tauxLoaded = now;
+        }
+        return this.taux.get(idDevise);
+    }
+
+    /**
+     * Retourne le taux de la devise d'une ligne.
+     * 
+     * @param r une ligne avec un champ ID_DEVISE.
+     * @return le taux, <code>null</code> si aucune devise.
+     */
+    public BigDecimal getTaux(final SQLRowAccessor r) {
+        final int idDevise = r.getForeignID("ID_DEVISE");
+        return idDevise < SQLRow.MIN_VALID_ID ? null : this.getTaux(idDevise);
+    }
+}
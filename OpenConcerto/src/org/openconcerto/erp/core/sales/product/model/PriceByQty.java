@@ -32,20 +32,45 @@ public class PriceByQty {
         this.startDate = startDate;
     }
 
-    public static BigDecimal getPriceForQty(int qty, List<PriceByQty> list) {
-        BigDecimal result = null;
-        Collections.sort(list, new Comparator<PriceByQty>() {
+    private static final Comparator<PriceByQty> COMPARATOR = new Comparator<PriceByQty>() {
 
-            @Override
-            public int compare(PriceByQty o1, PriceByQty o2) {
+        @Override
+        public int compare(PriceByQty o1, PriceByQty o2) {
 
-                final int i = (int) (o1.qty - o2.qty);
-                if (i != 0) {
-                    return i;
-                }
-                return o1.startDate.compareTo(o2.startDate);
+            final int i = (int) (o1.qty - o2.qty);
+            if (i != 0) {
+                return i;
             }
-        });
+            return o1.startDate.compareTo(o2.startDate);
+        }
+    };
+
+    /**
+     * Trie les prix par quantité puis par date, pour que
+     * {@link #getPriceForQty(int, List)} n'ait pas à le faire.
+     * 
+     * @param list les prix.
+     * @return <code>list</code>.
+     */
+    public static List<PriceByQty> sort(List<PriceByQty> list) {
+        Collections.sort(list, COMPARATOR);
+        return list;
+    }
+
+    private static boolean isSorted(List<PriceByQty> list) {
+        final int size = list.size();
+        for (int i = 1; i < size; i++) {
+            if (COMPARATOR.compare(list.get(i - 1), list.get(i)) > 0)
+                return false;
+        }
+        return true;
+    }
+
+    public static BigDecimal getPriceForQty(int qty, List<PriceByQty> list) {
+        BigDecimal result = null;
+        // une liste déjà triée n'est que parcourue
+        if (!isSorted(list))
+            sort(list);
         Date now = new Date(System.currentTimeMillis());
         for (PriceByQty priceByQty : list) {
             if (priceByQty.qty > qty) {
@@ -18,6 +18,7 @@ import org.openconcerto.erp.core.common.ui.FastPrintAskFrame;
 import org.openconcerto.erp.core.common.ui.PreviewFrame;
 import org.openconcerto.erp.generationDoc.element.TypeModeleSQLElement;
 import org.openconcerto.erp.storage.CloudStorageEngine;
+import org.openconcerto.erp.storage.StorageDispatcher;
 import org.openconcerto.erp.storage.StorageEngine;
 import org.openconcerto.erp.storage.StorageEngines;
 import org.openconcerto.openoffice.OOUtils;
@@ -28,9 +29,7 @@ import org.openconcerto.sql.model.SQLBase;
 import org.openconcerto.sql.model.SQLRow;
 import org.openconcerto.utils.ExceptionHandler;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.HashMap;
@@ -216,26 +215,20 @@ public abstract class SheetXml {
         if (!pdfFile.canRead()) {
             ExceptionHandler.handle("Le fichier PDF " + pdfFile.getAbsolutePath() + " ne peut être lu.");
         }
+        // envoyés en arrière plan, cf. StorageDispatcher
+        final StorageDispatcher dispatcher = StorageDispatcher.getInstance();
         List<StorageEngine> engines = StorageEngines.getInstance().getActiveEngines();
         for (StorageEngine storageEngine : engines) {
             if (storageEngine.isConfigured() && storageEngine.allowAutoStorage()) {
                 final String path = storagePath;
                 try {
-                    storageEngine.connect();
-                    final BufferedInputStream inStream = new BufferedInputStream(new FileInputStream(pdfFile));
-                    storageEngine.store(inStream, path, pdfFile.getName(), true);
-                    inStream.close();
-                    storageEngine.disconnect();
+                    dispatcher.store(storageEngine, pdfFile, path, pdfFile.getName());
                 } catch (IOException e) {
                     ExceptionHandler.handle("Impossible de sauvegarder le PDF " + pdfFile.getAbsolutePath() + " vers " + path + "(" + storageEngine + ")", e);
                 }
                 if (storageEngine instanceof CloudStorageEngine) {
                     try {
-                        storageEngine.connect();
-                        final BufferedInputStream inStream = new BufferedInputStream(new FileInputStream(generatedFile));
-                        storageEngine.store(inStream, path, generatedFile.getName(), true);
-                        inStream.close();
-                        storageEngine.disconnect();
+                        dispatcher.store(storageEngine, generatedFile, path, generatedFile.getName());
                     } catch (IOException e) {
                         ExceptionHandler.handle("Impossible de sauvegarder le fichier généré " + generatedFile.getAbsolutePath() + " vers " + path + "(" + storageEngine + ")", e);
                     }
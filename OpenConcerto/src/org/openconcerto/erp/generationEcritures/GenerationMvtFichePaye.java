@@ -16,6 +16,8 @@
 import org.openconcerto.erp.core.finance.accounting.element.ComptePCESQLElement;
 import org.openconcerto.erp.core.finance.accounting.element.JournalSQLElement;
 import org.openconcerto.sql.Configuration;
+import org.openconcerto.sql.model.IResultSetHandler;
+import org.openconcerto.sql.model.SQLDataSource;
 import org.openconcerto.sql.model.SQLRow;
 import org.openconcerto.sql.model.SQLSelect;
 import org.openconcerto.sql.model.SQLTable;
@@ -24,13 +26,14 @@ import org.openconcerto.utils.ExceptionHandler;
 import org.openconcerto.utils.GestionDevise;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-
-import org.apache.commons.dbutils.handlers.ArrayListHandler;
+import java.util.Set;
 
 public final class GenerationMvtFichePaye extends GenerationEcritures implements Runnable {
 
@@ -51,6 +54,23 @@ public final class GenerationMvtFichePaye extends GenerationEcritures implements
     private Map<String, SQLTable> mapTableSource = new HashMap<String, SQLTable>();
 
     public GenerationMvtFichePaye(int[] idFichePaye, String mois, String annee) throws SQLException {
+        this(idFichePaye, mois, annee, true);
+    }
+
+    /**
+     * Génère les écritures dans le thread courant, par exemple dans la transaction de la clôture
+     * mensuelle.
+     * 
+     * @param idFichePaye les fiches de paye.
+     * @param mois le nom du mois.
+     * @param annee l'année.
+     * @throws Exception si une erreur survient.
+     */
+    public static void genereSynchrone(int[] idFichePaye, String mois, String annee) throws Exception {
+        new GenerationMvtFichePaye(idFichePaye, mois, annee, false).genereComptaFichePaye();
+    }
+
+    private GenerationMvtFichePaye(int[] idFichePaye, String mois, String annee, boolean async) throws SQLException {
 
         SQLTable tableNet = Configuration.getInstance().getBase().getTable("RUBRIQUE_NET");
         SQLTable tableBrut = Configuration.getInstance().getBase().getTable("RUBRIQUE_BRUT");
@@ -65,7 +85,8 @@ public final class GenerationMvtFichePaye extends GenerationEcritures implements
         this.annee = annee;
         this.mois = mois;
         this.idMvt = getNewMouvement("", 1, 1, "Paye " + this.mois + " " + this.annee);
-        new Thread(GenerationMvtFichePaye.this).start();
+        if (async)
+            new Thread(GenerationMvtFichePaye.this).start();
     }
 
     private void genereComptaFichePaye() throws Exception {
@@ -85,15 +106,33 @@ public final class GenerationMvtFichePaye extends GenerationEcritures implements
         this.mEcritures.put("ID_JOURNAL", journalOD);
         this.mEcritures.put("ID_MOUVEMENT", Integer.valueOf(this.idMvt));
 
+        // on charge en une fois les fiches, salariés et règlements
+        final List<Integer> ids = new ArrayList<Integer>(this.idFichePaye.length);
+        for (final int id : this.idFichePaye) {
+            ids.add(id);
+        }
+        final Map<Integer, SQLRow> fiches = tableFichePaye.getRows(ids);
+        final Set<Integer> idsSal = new HashSet<Integer>();
+        for (final SQLRow rowFiche : fiches.values()) {
+            idsSal.add(rowFiche.getForeignID("ID_SALARIE"));
+        }
+        final Map<Integer, SQLRow> salaries = tableSalarie.getRows(idsSal);
+        final Set<Integer> idsRegl = new HashSet<Integer>();
+        for (final SQLRow rowSal : salaries.values()) {
+            idsRegl.add(rowSal.getForeignID("ID_REGLEMENT_PAYE"));
+        }
+        final Map<Integer, SQLRow> reglements = tableReglementPaye.getRows(idsRegl);
+
+        int idComptePaye = rowPrefsCompte.getInt("ID_COMPTE_PCE_PAYE");
+        if (idComptePaye <= 1) {
+            idComptePaye = ComptePCESQLElement.getIdComptePceDefault("PayeRemunerationPersonnel");
+        }
+
         // Salaire Brut Debit
         // float totalSalaireBrut = 0.0F;
         for (int i = 0; i < this.idFichePaye.length; i++) {
-            SQLRow rowFiche = tableFichePaye.getRow(this.idFichePaye[i]);
-            SQLRow rowSal = tableSalarie.getRow(rowFiche.getInt("ID_SALARIE"));
-            int idComptePaye = rowPrefsCompte.getInt("ID_COMPTE_PCE_PAYE");
-            if (idComptePaye <= 1) {
-                idComptePaye = ComptePCESQLElement.getIdComptePceDefault("PayeRemunerationPersonnel");
-            }
+            SQLRow rowFiche = fiches.get(this.idFichePaye[i]);
+            SQLRow rowSal = salaries.get(rowFiche.getForeignID("ID_SALARIE"));
             this.mEcritures.put("ID_COMPTE_PCE", Integer.valueOf(idComptePaye));
             this.mEcritures.put("NOM", rowSal.getString("NOM") + " " + this.nom);
 
@@ -107,9 +146,9 @@ public final class GenerationMvtFichePaye extends GenerationEcritures implements
 
         // Salaire Brut Credit
         for (int i = 0; i < this.idFichePaye.length; i++) {
-            SQLRow rowFiche = tableFichePaye.getRow(this.idFichePaye[i]);
-            SQLRow rowSal = tableSalarie.getRow(rowFiche.getInt("ID_SALARIE"));
-            SQLRow rowRegl = tableReglementPaye.getRow(rowSal.getInt("ID_REGLEMENT_PAYE"));
+            SQLRow rowFiche = fiches.get(this.idFichePaye[i]);
+            SQLRow rowSal = salaries.get(rowFiche.getForeignID("ID_SALARIE"));
+            SQLRow rowRegl = reglements.get(rowSal.getForeignID("ID_REGLEMENT_PAYE"));
             int idComptePayeRegl = rowRegl.getInt("ID_COMPTE_PCE");
             if (idComptePayeRegl <= 1) {
                 idComptePayeRegl = ComptePCESQLElement.getIdComptePceDefault("PayeReglement");
@@ -132,8 +171,8 @@ public final class GenerationMvtFichePaye extends GenerationEcritures implements
 
         // Acomptes
         for (int i = 0; i < this.idFichePaye.length; i++) {
-            SQLRow rowFiche = tableFichePaye.getRow(this.idFichePaye[i]);
-            SQLRow rowSal = tableSalarie.getRow(rowFiche.getInt("ID_SALARIE"));
+            SQLRow rowFiche = fiches.get(this.idFichePaye[i]);
+            SQLRow rowSal = salaries.get(rowFiche.getForeignID("ID_SALARIE"));
 
             long acompte = GestionDevise.parseLongCurrency(String.valueOf(rowFiche.getFloat("ACOMPTE")));
             if (acompte != 0) {
@@ -147,7 +186,7 @@ public final class GenerationMvtFichePaye extends GenerationEcritures implements
                 this.mEcritures.put("CREDIT", Long.valueOf(acompte));
                 ajoutEcriture();
 
-                SQLRow rowRegl = tableReglementPaye.getRow(rowSal.getInt("ID_REGLEMENT_PAYE"));
+                SQLRow rowRegl = reglements.get(rowSal.getForeignID("ID_REGLEMENT_PAYE"));
                 int idComptePayeRegl = rowRegl.getInt("ID_COMPTE_PCE");
                 if (idComptePayeRegl <= 1) {
                     idComptePayeRegl = ComptePCESQLElement.getIdComptePceDefault("PayeReglement");
@@ -162,86 +201,47 @@ public final class GenerationMvtFichePaye extends GenerationEcritures implements
 
         // on recupere les élements de la fiche
         // ensemble des cotisations
-        SQLSelect selAllIDFicheElt = new SQLSelect(base);
-
-        selAllIDFicheElt.addSelect(tableFichePayeElt.getField("ID"));
-
-        Where w = null;
-        for (int i = 0; i < this.idFichePaye.length; i++) {
-            if (w == null) {
-                w = new Where(tableFichePayeElt.getField("ID_FICHE_PAYE"), "=", this.idFichePaye[i]);
-            } else {
-                w.and(new Where(tableFichePayeElt.getField("ID_FICHE_PAYE"), "=", this.idFichePaye[i]));
-            }
-        }
-
-        selAllIDFicheElt.setWhere(w);
-
-        selAllIDFicheElt.setDistinct(true);
+        SQLSelect selAllFicheElt = new SQLSelect(base);
+        selAllFicheElt.addSelect(tableFichePayeElt.getField("SOURCE"));
+        selAllFicheElt.addSelect(tableFichePayeElt.getField("MONTANT_SAL_DED"));
+        selAllFicheElt.addSelect(tableFichePayeElt.getField("MONTANT_PAT"));
+        selAllFicheElt.setWhere(new Where(tableFichePayeElt.getField("ID_FICHE_PAYE"), ids));
 
-        String reqAllIDFichelElt = selAllIDFicheElt.asString();
-
-        System.err.println("Request " + reqAllIDFichelElt);
-
-        Object[] objIDFicheElt = ((List) base.getDataSource().execute(reqAllIDFichelElt, new ArrayListHandler())).toArray();
-
-        System.err.println(objIDFicheElt.length + " elements to load");
+        @SuppressWarnings("unchecked")
+        final List<Object[]> ficheElts = (List<Object[]>) base.getDataSource().execute(selAllFicheElt.asString(), new IResultSetHandler(SQLDataSource.ARRAY_LIST_HANDLER, false));
 
         Map<Integer, Long> mapCompteDebSal = new HashMap<Integer, Long>();
         Map<Integer, Long> mapCompteDebPat = new HashMap<Integer, Long>();
         Map<Integer, Long> mapCompteCredSal = new HashMap<Integer, Long>();
         Map<Integer, Long> mapCompteCredPat = new HashMap<Integer, Long>();
 
-        for (int i = 0; i < objIDFicheElt.length; i++) {
-            SQLRow row = tableFichePayeElt.getRow(Integer.parseInt(((Object[]) objIDFicheElt[i])[0].toString()));
+        // on recupere les comptes tiers et charge de la caisse associée
+        final Integer idCompteCharge = Integer.valueOf(ComptePCESQLElement.getId("645"));
+        final Integer idCompteTiers = Integer.valueOf(ComptePCESQLElement.getId("437"));
+        final Integer idCompteSal = Integer.valueOf(ComptePCESQLElement.getId("421"));
 
-            String source = row.getString("SOURCE");
-            int idSource = row.getInt("IDSOURCE");
+        for (final Object[] row : ficheElts) {
 
-            if (source.trim().length() != 0) {
+            final String source = (String) row[0];
 
-                System.err.println("Source != null");
+            if (source != null && source.trim().length() != 0) {
 
                 if (this.mapTableSource.get(source) != null) {
-                    SQLRow rowSource = this.mapTableSource.get(source).getRow(idSource);
-
-                    if (rowSource.getTable().getName().equalsIgnoreCase("RUBRIQUE_COTISATION")) {
-                        // on recupere les comptes tiers et charge de la caisse associée
-                        int idCompteCharge = ComptePCESQLElement.getId("645");
-                        // }
 
-                        // int idCompteTiers = rowCaisse.getInt("ID_COMPTE_PCE_TIERS");
-                        // if (idCompteTiers <= 1) {
-                        int idCompteTiers = ComptePCESQLElement.getId("437");
-                        // }
+                    if (source.equalsIgnoreCase("RUBRIQUE_COTISATION")) {
 
                         // Cotisations sal.
-                        if (row.getFloat("MONTANT_SAL_DED") != 0) {
-
-                            Object montantCredObj = mapCompteCredSal.get(Integer.valueOf(idCompteTiers));
-                            long montantCred = (montantCredObj == null) ? 0 : ((Long) montantCredObj).longValue();
-                            montantCred += GestionDevise.parseLongCurrency(row.getObject("MONTANT_SAL_DED").toString());
-                            mapCompteCredSal.put(Integer.valueOf(idCompteTiers), Long.valueOf(montantCred));
-
-                            Object montantDebObj = mapCompteDebSal.get(Integer.valueOf(ComptePCESQLElement.getId("421")));
-                            long montantDeb = (montantDebObj == null) ? 0 : ((Long) montantDebObj).longValue();
-                            montantDeb += GestionDevise.parseLongCurrency(row.getObject("MONTANT_SAL_DED").toString());
-                            mapCompteDebSal.put(Integer.valueOf(ComptePCESQLElement.getId("421")), Long.valueOf(montantDeb));
+                        final long montantSal = row[1] == null ? 0 : GestionDevise.parseLongCurrency(row[1].toString());
+                        if (montantSal != 0) {
+                            addMontant(mapCompteCredSal, idCompteTiers, montantSal);
+                            addMontant(mapCompteDebSal, idCompteSal, montantSal);
                         }
 
                         // Cotisation pat.
-                        if (row.getFloat("MONTANT_PAT") != 0) {
-
-                            Object montantDebObj = mapCompteDebPat.get(Integer.valueOf(idCompteCharge));
-                            long montantDeb = (montantDebObj == null) ? 0 : ((Long) montantDebObj).longValue();
-                            montantDeb += GestionDevise.parseLongCurrency(row.getObject("MONTANT_PAT").toString());
-                            mapCompteDebPat.put(Integer.valueOf(idCompteCharge), Long.valueOf(montantDeb));
-
-                            Object montantCredObj = mapCompteCredPat.get(Integer.valueOf(idCompteTiers));
-                            long montantCred = (montantCredObj == null) ? 0 : ((Long) montantCredObj).longValue();
-                            montantCred += GestionDevise.parseLongCurrency(row.getObject("MONTANT_PAT").toString());
-                            mapCompteCredPat.put(Integer.valueOf(idCompteTiers), Long.valueOf(montantCred));
-
+                        final long montantPat = row[2] == null ? 0 : GestionDevise.parseLongCurrency(row[2].toString());
+                        if (montantPat != 0) {
+                            addMontant(mapCompteDebPat, idCompteCharge, montantPat);
+                            addMontant(mapCompteCredPat, idCompteTiers, montantPat);
                         }
                     }
 
@@ -291,6 +291,11 @@ public final class GenerationMvtFichePaye extends GenerationEcritures implements
         // MAYBE Reglement de la paie
     }
 
+    private static void addMontant(final Map<Integer, Long> m, final Integer idCompte, final long montant) {
+        final Long montantObj = m.get(idCompte);
+        m.put(idCompte, Long.valueOf((montantObj == null ? 0 : montantObj.longValue()) + montant));
+    }
+
     public void run() {
         try {
             genereComptaFichePaye();
@@ -13,6 +13,7 @@
  
  package org.openconcerto.erp.panel.compta;
 
+import org.openconcerto.sql.model.ConnectionHandlerNoSetup;
 import org.openconcerto.sql.model.DBRoot;
 import org.openconcerto.sql.model.SQLDataSource;
 import org.openconcerto.sql.model.SQLRow;
@@ -21,6 +22,7 @@ import org.openconcerto.sql.model.SQLSelectJoin;
 import org.openconcerto.sql.model.SQLTable;
 import org.openconcerto.sql.model.Where;
 import org.openconcerto.sql.request.UpdateBuilder;
+import org.openconcerto.sql.utils.SQLUtils;
 import org.openconcerto.utils.Tuple2;
 
 import java.io.BufferedOutputStream;
@@ -28,14 +30,82 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.dbutils.ResultSetHandler;
 
 public abstract class AbstractExport {
 
     static private final DateFormat FILE_DF = new SimpleDateFormat("yyyyMMdd");
     static private final DateFormat UNIQUE_DF = new SimpleDateFormat("yyyyMMdd_HHmmss");
+    static private final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The rows of a result set, read as they're iterated. Can only be iterated once.
+     */
+    static private final class ResultSetRows implements Iterable<Object[]>, Iterator<Object[]> {
+        private final ResultSet rs;
+        private final int columnCount;
+        private Boolean hasNext;
+        private int count;
+
+        ResultSetRows(final ResultSet rs) throws SQLException {
+            this.rs = rs;
+            this.columnCount = rs.getMetaData().getColumnCount();
+            this.hasNext = null;
+            this.count = 0;
+        }
+
+        public final int getCount() {
+            return this.count;
+        }
+
+        @Override
+        public Iterator<Object[]> iterator() {
+            return this;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (this.hasNext == null) {
+                try {
+                    this.hasNext = this.rs.next();
+                } catch (SQLException e) {
+                    throw new IllegalStateException("Couldn't read next row", e);
+                }
+            }
+            return this.hasNext;
+        }
+
+        @Override
+        public Object[] next() {
+            if (!this.hasNext())
+                throw new NoSuchElementException();
+            this.hasNext = null;
+            final Object[] res = new Object[this.columnCount];
+            try {
+                for (int i = 0; i < this.columnCount; i++) {
+                    res[i] = this.rs.getObject(i + 1);
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException("Couldn't read row " + this.count, e);
+            }
+            this.count++;
+            return res;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     private final DBRoot rootSociete;
     private final String type;
     private final String extension;
@@ -130,7 +200,7 @@ public abstract class AbstractExport {
         return sel;
     }
 
-    public final Tuple2<File, Number> export(final File selectedFile, Date from, Date to, SQLRow selectedJournal, boolean onlyNew) throws Exception {
+    public final Tuple2<File, Number> export(final File selectedFile, final Date from, final Date to, final SQLRow selectedJournal, final boolean onlyNew) throws Exception {
         synchronized (this) {
             if (this.used)
                 throw new IllegalStateException("Already used");
@@ -139,10 +209,6 @@ public abstract class AbstractExport {
         if (selectedFile == null)
             throw new IllegalArgumentException("Dossier sélectionné incorrect");
 
-        final int count = this.fetchData(from, to, selectedJournal, onlyNew);
-        if (count == 0)
-            return Tuple2.<File, Number> create(null, count);
-
         if (!selectedFile.isDirectory()) {
             throw new IllegalArgumentException("Vous n'avez pas sélectionné un dossier");
         }
@@ -153,23 +219,77 @@ public abstract class AbstractExport {
         // ExportOC_20131101-20131127_koala.144356.txt
         // MAYBE only include generation date if necessary
         final File fOut = new File(selectedFile, "ExportOC_" + FILE_DF.format(from) + "-" + FILE_DF.format(to) + "_" + this.type + "." + UNIQUE_DF.format(now) + this.extension);
-        final BufferedOutputStream bufOut = new BufferedOutputStream(new FileOutputStream(fOut.getAbsolutePath()));
+        final SQLSelect sel = this.getExportSelect(from, to, selectedJournal, onlyNew);
+
+        // the rows are written as they're read, and the export date is stored in the same
+        // transaction
+        final int count;
+        boolean written = false;
         try {
-            this.export(bufOut);
+            count = SQLUtils.executeAtomic(getDS(), new ConnectionHandlerNoSetup<Integer, SQLException>() {
+                @Override
+                public Integer handle(SQLDataSource ds) throws SQLException {
+                    final ResultSetRows rows = (ResultSetRows) ds.executeStreaming(sel.asString(), SQLDataSource.DEFAULT_FETCH_SIZE, new ResultSetHandler() {
+                        @Override
+                        public Object handle(ResultSet rs) throws SQLException {
+                            final ResultSetRows res = new ResultSetRows(rs);
+                            try {
+                                final BufferedOutputStream bufOut = new BufferedOutputStream(new FileOutputStream(fOut.getAbsolutePath()), BUFFER_SIZE);
+                                try {
+                                    export(bufOut, res);
+                                } finally {
+                                    bufOut.close();
+                                }
+                            } catch (IOException e) {
+                                throw new SQLException("Couldn't write " + fOut, e);
+                            }
+                            return res;
+                        }
+                    });
+                    if (rows.getCount() > 0) {
+                        // Store export date
+                        final UpdateBuilder update = new UpdateBuilder(getEcritureT());
+                        update.set("DATE_EXPORT", getEcritureT().getField("DATE_EXPORT").getType().toString(now));
+                        // onlyNew=true to not overwrite already exported
+                        update.setWhere(getWhere(from, to, selectedJournal, true));
+                        ds.execute(update.asString());
+                    }
+                    return rows.getCount();
+                }
+            });
+            written = true;
         } finally {
-            bufOut.close();
+            // don't leave a partial file
+            if (!written)
+                fOut.delete();
+        }
+        if (count == 0) {
+            fOut.delete();
+            return Tuple2.<File, Number> create(null, count);
         }
-        // Store export date
-        final UpdateBuilder update = new UpdateBuilder(getEcritureT());
-        update.set("DATE_EXPORT", getEcritureT().getField("DATE_EXPORT").getType().toString(now));
-        // onlyNew=true to not overwrite already exported
-        update.setWhere(getWhere(from, to, selectedJournal, true));
-        getDS().execute(update.asString());
 
         return Tuple2.<File, Number> create(fOut, count);
     }
 
-    protected abstract int fetchData(Date from, Date to, SQLRow selectedJournal, boolean onlyNew);
+    /**
+     * The request for the entries to export.
+     * 
+     * @param from the start of the period.
+     * @param to the end of the period.
+     * @param selectedJournal the journal, <code>null</code> for all.
+     * @param onlyNew <code>true</code> to only export entries never exported.
+     * @return the select, usually created with
+     *         {@link #createSelect(Date, Date, SQLRow, boolean)}.
+     */
+    protected abstract SQLSelect getExportSelect(Date from, Date to, SQLRow selectedJournal, boolean onlyNew);
 
-    protected abstract void export(final OutputStream out) throws IOException;
+    /**
+     * Write the entries. <code>rows</code> is read from the database as it's iterated, so it must
+     * only be iterated once, without keeping the rows.
+     * 
+     * @param out where to write.
+     * @param rows the result of {@link #getExportSelect(Date, Date, SQLRow, boolean)}.
+     * @throws IOException if an error occurs while writing.
+     */
+    protected abstract void export(final OutputStream out, final Iterable<Object[]> rows) throws IOException;
 }
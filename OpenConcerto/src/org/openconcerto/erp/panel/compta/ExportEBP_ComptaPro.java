@@ -31,11 +31,8 @@ import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.List;
 import java.util.Locale;
 
-import org.apache.commons.dbutils.handlers.ArrayListHandler;
-
 public class ExportEBP_ComptaPro extends AbstractExport {
     static private final Charset CHARSET = StringUtils.Cp1252;
     static private final char SEP = 0x0E;
@@ -49,14 +46,12 @@ public class ExportEBP_ComptaPro extends AbstractExport {
         return DECIMAL_FORMAT.format(BigDecimal.valueOf(n.longValue()).movePointLeft(2));
     }
 
-    private List<Object[]> data;
-
     public ExportEBP_ComptaPro(DBRoot rootSociete) {
         super(rootSociete, "EBPPro", ".txt");
     }
 
     @Override
-    protected int fetchData(Date from, Date to, SQLRow selectedJournal, boolean onlyNew) {
+    protected SQLSelect getExportSelect(Date from, Date to, SQLRow selectedJournal, boolean onlyNew) {
         final SQLTable tableEcriture = getEcritureT();
         final SQLTable tableMouvement = tableEcriture.getForeignTable("ID_MOUVEMENT");
         final SQLTable tableCompte = tableEcriture.getForeignTable("ID_COMPTE_PCE");
@@ -79,10 +74,7 @@ public class ExportEBP_ComptaPro extends AbstractExport {
         sel.addFieldOrder(tableEcriture.getField("DATE"));
         sel.addFieldOrder(tableMouvement.getField("NUMERO"));
 
-        @SuppressWarnings("unchecked")
-        final List<Object[]> l = (List<Object[]>) this.getRootSociete().getDBSystemRoot().getDataSource().execute(sel.asString(), new ArrayListHandler());
-        this.data = l;
-        return l == null ? 0 : l.size();
+        return sel;
     }
 
     private final String align(final Object o, final int widthIndex) {
@@ -95,11 +87,11 @@ public class ExportEBP_ComptaPro extends AbstractExport {
     }
 
     @Override
-    protected void export(OutputStream out) throws IOException {
+    protected void export(OutputStream out, Iterable<Object[]> rows) throws IOException {
         final Writer bufOut = new OutputStreamWriter(out, CHARSET);
         final DateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
         final String firstField = SPACES.substring(0, WIDTHS[0]);
-        for (final Object[] array : this.data) {
+        for (final Object[] array : rows) {
             int fieldIndex = 0;
             bufOut.write(align(firstField, fieldIndex++));
             bufOut.write(SEP);
@@ -115,7 +107,6 @@ public class ExportEBP_ComptaPro extends AbstractExport {
             // COMPTE_PCE.NOM
             bufOut.write(align(array[4], fieldIndex++, true));
             bufOut.write(SEP);
-            System.err.println("ExportEBP_Pro.export() " + array[5]);
             bufOut.write(align(array[5], fieldIndex++));
             bufOut.write(SEP);
             // ECRITURE.NOM
@@ -142,5 +133,6 @@ public class ExportEBP_ComptaPro extends AbstractExport {
 
             bufOut.write("\r\n");
         }
+        bufOut.flush();
     }
 }
@@ -35,8 +35,6 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 
-import org.apache.commons.dbutils.handlers.ArrayListHandler;
-
 public class ExportEBP_OL extends AbstractExport {
     static private final Charset CHARSET = StringUtils.Cp1252;
     static private final DecimalFormat DECIMAL_FORMAT = new DecimalFormat("##0.00000000", DecimalFormatSymbols.getInstance(Locale.FRANCE));
@@ -45,14 +43,12 @@ public class ExportEBP_OL extends AbstractExport {
         return DECIMAL_FORMAT.format(BigDecimal.valueOf(n.longValue()).movePointLeft(2));
     }
 
-    private List<Object[]> data;
-
     public ExportEBP_OL(DBRoot rootSociete) {
         super(rootSociete, "EBPOL", ".txt");
     }
 
     @Override
-    protected int fetchData(Date from, Date to, SQLRow selectedJournal, boolean onlyNew) {
+    protected SQLSelect getExportSelect(Date from, Date to, SQLRow selectedJournal, boolean onlyNew) {
         final SQLTable tableEcriture = getEcritureT();
         final SQLTable tableMouvement = tableEcriture.getForeignTable("ID_MOUVEMENT");
         final SQLTable tableCompte = tableEcriture.getForeignTable("ID_COMPTE_PCE");
@@ -73,14 +69,11 @@ public class ExportEBP_OL extends AbstractExport {
         sel.addFieldOrder(tableEcriture.getField("DATE"));
         sel.addFieldOrder(tableMouvement.getField("NUMERO"));
 
-        @SuppressWarnings("unchecked")
-        final List<Object[]> l = (List<Object[]>) this.getRootSociete().getDBSystemRoot().getDataSource().execute(sel.asString(), new ArrayListHandler());
-        this.data = l;
-        return l == null ? 0 : l.size();
+        return sel;
     }
 
     @Override
-    protected void export(OutputStream out) throws IOException {
+    protected void export(OutputStream out, Iterable<Object[]> rows) throws IOException {
         final Writer bufOut = new OutputStreamWriter(out, CHARSET);
         final CSVWriter csvWriter = new CSVWriter(bufOut, ';', '"', '"', "\r\n");
         final DateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
@@ -88,7 +81,7 @@ public class ExportEBP_OL extends AbstractExport {
 
         final List<String> line = new ArrayList<String>(fieldsCount);
         final String[] stringArray = new String[fieldsCount];
-        for (final Object[] array : this.data) {
+        for (final Object[] array : rows) {
             line.clear();
 
             // Journal
@@ -35,8 +35,6 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 
-import org.apache.commons.dbutils.handlers.ArrayListHandler;
-
 public class ExportFEC extends AbstractExport {
     static private final Charset CHARSET = StringUtils.ISO8859_15;
     static private final DecimalFormat DECIMAL_FORMAT = new DecimalFormat("##0.00", DecimalFormatSymbols.getInstance(Locale.FRANCE));
@@ -48,7 +46,6 @@ public class ExportFEC extends AbstractExport {
         return DECIMAL_FORMAT.format(BigDecimal.valueOf(n.longValue()).movePointLeft(2));
     }
 
-    private List<Object[]> data;
     private final char zoneSep = '\t';
     private final char recordSep = '\n';
     private final char replacement = ' ';
@@ -58,7 +55,7 @@ public class ExportFEC extends AbstractExport {
     }
 
     @Override
-    protected int fetchData(Date from, Date to, SQLRow selectedJournal, boolean onlyNew) {
+    protected SQLSelect getExportSelect(Date from, Date to, SQLRow selectedJournal, boolean onlyNew) {
         final SQLTable tableEcriture = getEcritureT();
         final SQLTable tableMouvement = tableEcriture.getForeignTable("ID_MOUVEMENT");
         final SQLTable tableCompte = tableEcriture.getForeignTable("ID_COMPTE_PCE");
@@ -84,10 +81,7 @@ public class ExportFEC extends AbstractExport {
         sel.addFieldOrder(tableEcriture.getField("DATE"));
         sel.addFieldOrder(tableMouvement.getField("NUMERO"));
 
-        @SuppressWarnings("unchecked")
-        final List<Object[]> l = (List<Object[]>) this.getRootSociete().getDBSystemRoot().getDataSource().execute(sel.asString(), new ArrayListHandler());
-        this.data = l;
-        return l == null ? 0 : l.size();
+        return sel;
     }
 
     private final void addEmptyField(final List<String> line) {
@@ -106,7 +100,7 @@ public class ExportFEC extends AbstractExport {
     }
 
     @Override
-    protected void export(OutputStream out) throws IOException {
+    protected void export(OutputStream out, Iterable<Object[]> rows) throws IOException {
         final Writer bufOut = new OutputStreamWriter(out, CHARSET);
         final DateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
         final int fieldsCount = COLS.size();
@@ -118,7 +112,7 @@ public class ExportFEC extends AbstractExport {
         bufOut.write(this.recordSep);
 
         final List<String> line = new ArrayList<String>(fieldsCount);
-        for (final Object[] array : this.data) {
+        for (final Object[] array : rows) {
             line.clear();
 
             // JournalCode
@@ -26,20 +26,15 @@ import java.io.OutputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.List;
-
-import org.apache.commons.dbutils.handlers.ArrayListHandler;
 
 public class ExportRelationExpertPanel extends AbstractExport {
 
-    private List<Object[]> data;
-
     public ExportRelationExpertPanel(DBRoot rootSociete) {
         super(rootSociete, "relationExpert", ".txt");
     }
 
     @Override
-    protected int fetchData(Date from, Date to, SQLRow selectedJournal, boolean onlyNew) {
+    protected SQLSelect getExportSelect(Date from, Date to, SQLRow selectedJournal, boolean onlyNew) {
         final SQLTable tableEcriture = getEcritureT();
         final SQLTable tableMouvement = tableEcriture.getForeignTable("ID_MOUVEMENT");
         final SQLTable tableCompte = tableEcriture.getForeignTable("ID_COMPTE_PCE");
@@ -63,24 +58,17 @@ public class ExportRelationExpertPanel extends AbstractExport {
         sel.addFieldOrder(tableEcriture.getField("ID_MOUVEMENT"));
         sel.addFieldOrder(tableCompte.getField("NUMERO"));
 
-        @SuppressWarnings("unchecked")
-        final List<Object[]> l = (List<Object[]>) this.getRootSociete().getDBSystemRoot().getDataSource().execute(sel.asString(), new ArrayListHandler());
-        this.data = l;
-        return l == null ? 0 : l.size();
+        return sel;
     }
 
     @Override
-    protected void export(OutputStream bufOut) throws IOException {
-        final List<Object[]> l = this.data;
+    protected void export(OutputStream bufOut, Iterable<Object[]> rows) throws IOException {
         final boolean containsCodeClient = getEcritureT().contains("CODE_CLIENT");
         final DateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy");
-        final int size = l.size();
-        for (int i = 0; i < size; i++) {
-
-            // Ligne à insérer dans le fichier
-            final StringBuffer line = new StringBuffer();
-
-            final Object[] tmp = l.get(i);
+        // Ligne à insérer dans le fichier
+        final StringBuilder line = new StringBuilder();
+        for (final Object[] tmp : rows) {
+            line.setLength(0);
 
             // Date
             final Date d = (Date) tmp[3];
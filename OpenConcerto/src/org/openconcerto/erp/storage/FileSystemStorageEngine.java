@@ -0,0 +1,78 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.storage;
+
+import org.openconcerto.utils.FileUtils;
+import org.openconcerto.utils.StreamUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stores documents in a local directory, e.g. a mounted network share. Also useful to exercise
+ * {@link StorageDispatcher} without a remote server.
+ */
+public class FileSystemStorageEngine implements StorageEngine {
+
+    private final File rootDir;
+
+    public FileSystemStorageEngine(final File rootDir) {
+        if (rootDir == null)
+            throw new NullPointerException("null root");
+        this.rootDir = rootDir;
+    }
+
+    public final File getRootDir() {
+        return this.rootDir;
+    }
+
+    @Override
+    public boolean isConfigured() {
+        return true;
+    }
+
+    @Override
+    public boolean allowAutoStorage() {
+        return true;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        FileUtils.mkdir_p(this.rootDir);
+    }
+
+    @Override
+    public void disconnect() throws IOException {
+    }
+
+    @Override
+    public void store(InputStream inStream, String remotePath, String title, boolean synchronous) throws IOException {
+        final File dir = new File(this.rootDir, remotePath.replace('\\', '/'));
+        FileUtils.mkdir_p(dir);
+        // write then rename so that a partial file is never visible
+        final File tmp = new File(dir, "." + title + ".tmp");
+        StreamUtils.copy(inStream, tmp);
+        final File dest = new File(dir, title);
+        if (dest.exists() && !dest.delete())
+            throw new IOException("Couldn't replace " + dest);
+        if (!tmp.renameTo(dest))
+            throw new IOException("Couldn't rename " + tmp + " to " + dest);
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getSimpleName() + " " + this.rootDir;
+    }
+}
@@ -0,0 +1,583 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.storage;
+
+import org.openconcerto.erp.config.ComptaPropsConfiguration;
+import org.openconcerto.erp.config.Log;
+import org.openconcerto.utils.ExceptionHandler;
+import org.openconcerto.utils.FileUtils;
+import org.openconcerto.utils.StreamUtils;
+import org.openconcerto.utils.ThreadFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Uploads documents to {@link StorageEngine storage engines} in the background. The content is
+ * first copied to an on-disk spool so that an upload survives a failure or a restart, then each
+ * engine uploads with a bounded number of threads. A failed upload is retried with an exponential
+ * backoff, and an upload identical to a pending or recently completed one (same engine, path,
+ * title and content hash) is skipped.
+ * <p>
+ * Engines are identified by the ID they were {@link #register(String, StorageEngine) registered}
+ * with, or else by their class name and found among the
+ * {@link StorageEngines#getActiveEngines() active engines}. The ID is saved in the spool, so an
+ * engine must be registered with the same ID at each start. Since engines usually keep their
+ * connection in a field, the default is one upload at a time per engine, see
+ * {@link #setMaxConcurrentUploads(String, int)}.
+ * </p>
+ */
+public class StorageDispatcher {
+
+    private static final String JOB_EXT = ".job";
+    private static final String DATA_EXT = ".data";
+    private static final String FAILED_EXT = ".failed";
+    private static final int MAX_ATTEMPTS = 12;
+    // 5 minutes for the engine to become active, the job is then resumed at the next start
+    private static final int MAX_ENGINE_WAITS = 60;
+    // in milliseconds
+    private static final long FIRST_RETRY_DELAY = 5000;
+    private static final long MAX_RETRY_DELAY = 3600 * 1000;
+    private static final int COMPLETED_CACHE_SIZE = 1024;
+
+    private static StorageDispatcher instance;
+
+    public static synchronized StorageDispatcher getInstance() {
+        if (instance != null)
+            return instance;
+        return getInstance(ComptaPropsConfiguration.getInstanceCompta().getConfDir());
+    }
+
+    /**
+     * The shared instance, created if needed with its spool in <code>confDir</code> and resuming
+     * the uploads left by a previous run.
+     * 
+     * @param confDir the configuration directory.
+     * @return the shared instance.
+     */
+    public static synchronized StorageDispatcher getInstance(final File confDir) {
+        if (instance == null) {
+            instance = new StorageDispatcher(new File(confDir, "StorageSpool"));
+            instance.resume();
+        }
+        return instance;
+    }
+
+    static String toHex(final byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    public static final class Metrics {
+        private final AtomicLong submitted = new AtomicLong();
+        private final AtomicLong deduplicated = new AtomicLong();
+        private final AtomicLong uploaded = new AtomicLong();
+        private final AtomicLong uploadedBytes = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong abandoned = new AtomicLong();
+        private final AtomicLong pending = new AtomicLong();
+
+        public final long getSubmitted() {
+            return this.submitted.get();
+        }
+
+        public final long getDeduplicated() {
+            return this.deduplicated.get();
+        }
+
+        public final long getUploaded() {
+            return this.uploaded.get();
+        }
+
+        public final long getUploadedBytes() {
+            return this.uploadedBytes.get();
+        }
+
+        /**
+         * The number of failed attempts, including those that were later retried successfully.
+         * 
+         * @return the number of failed attempts.
+         */
+        public final long getFailures() {
+            return this.failures.get();
+        }
+
+        /**
+         * The number of uploads given up after too many attempts. Their files stay in the spool.
+         * 
+         * @return the number of uploads given up.
+         */
+        public final long getAbandoned() {
+            return this.abandoned.get();
+        }
+
+        public final long getPending() {
+            return this.pending.get();
+        }
+
+        @Override
+        public String toString() {
+            return "submitted: " + getSubmitted() + ", deduplicated: " + getDeduplicated() + ", uploaded: " + getUploaded() + " (" + getUploadedBytes() + " bytes), failures: " + getFailures()
+                    + ", abandoned: " + getAbandoned() + ", pending: " + getPending();
+        }
+    }
+
+    private static final class Job {
+        private final String id;
+        private final String engine;
+        private final String remotePath;
+        private final String title;
+        private final String hash;
+        private int attempts;
+        // not saved : the engine may be active at the next start
+        private int engineWaits;
+
+        Job(final String id, final String engine, final String remotePath, final String title, final String hash, final int attempts) {
+            this.id = id;
+            this.engine = engine;
+            this.remotePath = remotePath;
+            this.title = title;
+            this.hash = hash;
+            this.attempts = attempts;
+        }
+
+        final String getKey() {
+            return this.engine + '\0' + this.remotePath + '\0' + this.title + '\0' + this.hash;
+        }
+
+        @Override
+        public String toString() {
+            return this.title + " to " + this.remotePath + " (" + this.engine + ")";
+        }
+    }
+
+    private final File spoolDir;
+    private final int maxAttempts;
+    private final long firstRetryDelay;
+    private final Metrics metrics;
+    private final ScheduledExecutorService retryExecutor;
+    private final Map<String, StorageEngine> engines;
+    private final Map<String, ExecutorService> executors;
+    private final Map<String, Integer> maxConcurrentUploads;
+    // key -> job
+    private final Map<String, Job> pendingJobs;
+    // hash -> IDs of the jobs using the data file, including failed and postponed ones
+    private final Map<String, Set<String>> dataRefs;
+    private final Set<String> completedKeys;
+    private long jobCount;
+
+    public StorageDispatcher(final File spoolDir) {
+        this(spoolDir, MAX_ATTEMPTS, FIRST_RETRY_DELAY);
+    }
+
+    // for tests
+    StorageDispatcher(final File spoolDir, final int maxAttempts, final long firstRetryDelay) {
+        this.spoolDir = spoolDir;
+        this.maxAttempts = maxAttempts;
+        this.firstRetryDelay = firstRetryDelay;
+        this.metrics = new Metrics();
+        this.retryExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(StorageDispatcher.class.getSimpleName() + " retry ", true));
+        this.engines = new HashMap<String, StorageEngine>();
+        this.executors = new HashMap<String, ExecutorService>();
+        this.maxConcurrentUploads = new HashMap<String, Integer>();
+        this.pendingJobs = new HashMap<String, Job>();
+        this.dataRefs = new HashMap<String, Set<String>>();
+        this.completedKeys = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > COMPLETED_CACHE_SIZE;
+            }
+        });
+        this.jobCount = 0;
+    }
+
+    public final File getSpoolDir() {
+        return this.spoolDir;
+    }
+
+    public final Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Register an engine, e.g. to have more than one engine of the same class. Uploads spooled for
+     * <code>id</code> by a previous run are done once it's registered.
+     * 
+     * @param id the ID of the engine, saved in the spool.
+     * @param engine the engine.
+     * @throws IllegalStateException if another engine is registered with <code>id</code>.
+     */
+    public synchronized void register(final String id, final StorageEngine engine) {
+        final StorageEngine prev = this.engines.get(id);
+        if (prev != null && prev != engine)
+            throw new IllegalStateException(id + " already registered for " + prev);
+        this.engines.put(id, engine);
+    }
+
+    public synchronized void unregister(final String id) {
+        this.engines.remove(id);
+    }
+
+    /**
+     * The ID of an engine.
+     * 
+     * @param engine an engine.
+     * @return the ID it was registered with, or its class name.
+     */
+    public synchronized String getID(final StorageEngine engine) {
+        for (final Entry<String, StorageEngine> e : this.engines.entrySet()) {
+            if (e.getValue() == engine)
+                return e.getKey();
+        }
+        return engine.getClass().getName();
+    }
+
+    /**
+     * Set the number of simultaneous uploads for an engine. Only takes effect before its first
+     * upload.
+     * 
+     * @param engineClass the class of the engine.
+     * @param max the number of simultaneous uploads, greater than 0.
+     */
+    public void setMaxConcurrentUploads(final Class<? extends StorageEngine> engineClass, final int max) {
+        this.setMaxConcurrentUploads(engineClass.getName(), max);
+    }
+
+    /**
+     * Set the number of simultaneous uploads for an engine. Only takes effect before its first
+     * upload.
+     * 
+     * @param engineID the ID of the engine, see {@link #getID(StorageEngine)}.
+     * @param max the number of simultaneous uploads, greater than 0.
+     */
+    public synchronized void setMaxConcurrentUploads(final String engineID, final int max) {
+        if (max <= 0)
+            throw new IllegalArgumentException("Not strictly positive : " + max);
+        this.maxConcurrentUploads.put(engineID, max);
+    }
+
+    private synchronized ExecutorService getExecutor(final String engine) {
+        ExecutorService res = this.executors.get(engine);
+        if (res == null) {
+            final Integer max = this.maxConcurrentUploads.get(engine);
+            res = Executors.newFixedThreadPool(max == null ? 1 : max.intValue(), new ThreadFactory(StorageDispatcher.class.getSimpleName() + " " + engine + " ", true));
+            this.executors.put(engine, res);
+        }
+        return res;
+    }
+
+    /**
+     * Spool the passed file then upload it in the background.
+     * 
+     * @param engine where to upload.
+     * @param f the file to upload.
+     * @param remotePath the path of the directory, e.g. "Devis/2010".
+     * @param title the name of the file.
+     * @return <code>false</code> if the same upload was already pending or done.
+     * @throws IOException if the file couldn't be copied to the spool.
+     */
+    public boolean store(final StorageEngine engine, final File f, final String remotePath, final String title) throws IOException {
+        final InputStream in = new BufferedInputStream(new FileInputStream(f));
+        try {
+            return this.store(engine, in, remotePath, title);
+        } finally {
+            in.close();
+        }
+    }
+
+    public boolean store(final StorageEngine engine, final InputStream in, final String remotePath, final String title) throws IOException {
+        FileUtils.mkdir_p(this.spoolDir);
+        final String engineID = this.getID(engine);
+        final String jobID;
+        synchronized (this) {
+            jobID = System.currentTimeMillis() + "_" + this.jobCount++;
+        }
+        final String hash = this.spool(in, jobID);
+        final Job job = new Job(jobID, engineID, remotePath, title, hash, 0);
+        synchronized (this) {
+            this.metrics.submitted.incrementAndGet();
+            if (this.pendingJobs.containsKey(job.getKey()) || this.completedKeys.contains(job.getKey())) {
+                this.metrics.deduplicated.incrementAndGet();
+                this.releaseData(hash, jobID);
+                return false;
+            }
+            try {
+                this.writeJob(job);
+            } catch (IOException e) {
+                this.releaseData(hash, jobID);
+                throw e;
+            }
+            this.addPending(job);
+        }
+        this.submit(job);
+        return true;
+    }
+
+    // copy to the spool, returns the hash with a reference from jobID to the data file
+    private String spool(final InputStream in, final String jobID) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final File tmp = File.createTempFile("spool", ".tmp", this.spoolDir);
+        try {
+            StreamUtils.copy(new DigestInputStream(in, digest), tmp);
+            final String hash = toHex(digest.digest());
+            synchronized (this) {
+                final File dataFile = this.getDataFile(hash);
+                if (!dataFile.exists() && !tmp.renameTo(dataFile))
+                    throw new IOException("Couldn't rename " + tmp + " to " + dataFile);
+                this.addDataRef(hash, jobID);
+            }
+            return hash;
+        } finally {
+            if (tmp.exists())
+                tmp.delete();
+        }
+    }
+
+    private File getDataFile(final String hash) {
+        return new File(this.spoolDir, hash + DATA_EXT);
+    }
+
+    private File getJobFile(final Job job) {
+        return new File(this.spoolDir, job.id + JOB_EXT);
+    }
+
+    private synchronized void addDataRef(final String hash, final String jobID) {
+        Set<String> refs = this.dataRefs.get(hash);
+        if (refs == null) {
+            refs = new HashSet<String>(4);
+            this.dataRefs.put(hash, refs);
+        }
+        refs.add(jobID);
+    }
+
+    // delete the data file if no other job uses it
+    private synchronized void releaseData(final String hash, final String jobID) {
+        final Set<String> refs = this.dataRefs.get(hash);
+        if (refs != null)
+            refs.remove(jobID);
+        if (refs == null || refs.isEmpty()) {
+            this.dataRefs.remove(hash);
+            this.getDataFile(hash).delete();
+        }
+    }
+
+    private synchronized void addPending(final Job job) {
+        this.pendingJobs.put(job.getKey(), job);
+        this.metrics.pending.incrementAndGet();
+    }
+
+    private synchronized void removePending(final Job job) {
+        if (this.pendingJobs.remove(job.getKey()) != null)
+            this.metrics.pending.decrementAndGet();
+    }
+
+    private void writeJob(final Job job) throws IOException {
+        final Properties props = new Properties();
+        props.setProperty("engine", job.engine);
+        props.setProperty("remotePath", job.remotePath);
+        props.setProperty("title", job.title);
+        props.setProperty("hash", job.hash);
+        props.setProperty("attempts", String.valueOf(job.attempts));
+        // write then rename so that a partial job is never read
+        final File tmp = new File(this.spoolDir, job.id + JOB_EXT + ".tmp");
+        final OutputStream out = new FileOutputStream(tmp);
+        try {
+            props.store(out, null);
+        } finally {
+            out.close();
+        }
+        final File jobFile = this.getJobFile(job);
+        if (jobFile.exists() && !jobFile.delete())
+            throw new IOException("Couldn't replace " + jobFile);
+        if (!tmp.renameTo(jobFile))
+            throw new IOException("Couldn't rename " + tmp + " to " + jobFile);
+    }
+
+    /**
+     * Upload the jobs left in the spool by a previous run or postponed since their engine wasn't
+     * active.
+     * 
+     * @return the number of resumed jobs.
+     */
+    public int resume() {
+        final File[] jobFiles = this.spoolDir.listFiles();
+        if (jobFiles == null)
+            return 0;
+        int res = 0;
+        for (final File jobFile : jobFiles) {
+            final String name = jobFile.getName();
+            final boolean failed = name.endsWith(JOB_EXT + FAILED_EXT);
+            if (!failed && !name.endsWith(JOB_EXT))
+                continue;
+            final Properties props = new Properties();
+            try {
+                final InputStream in = new FileInputStream(jobFile);
+                try {
+                    props.load(in);
+                } finally {
+                    in.close();
+                }
+                final String id = name.substring(0, name.length() - (failed ? JOB_EXT.length() + FAILED_EXT.length() : JOB_EXT.length()));
+                final Job job = new Job(id, props.getProperty("engine"), props.getProperty("remotePath"), props.getProperty("title"), props.getProperty("hash"),
+                        Integer.parseInt(props.getProperty("attempts", "0")));
+                synchronized (this) {
+                    if (!this.getDataFile(job.hash).exists())
+                        continue;
+                    // failed jobs are kept with their data, which other jobs mustn't delete
+                    this.addDataRef(job.hash, job.id);
+                    if (failed || this.pendingJobs.containsKey(job.getKey()))
+                        continue;
+                    this.addPending(job);
+                }
+                this.submit(job);
+                res++;
+            } catch (Exception e) {
+                Log.get().log(Level.WARNING, "Couldn't resume " + jobFile, e);
+            }
+        }
+        return res;
+    }
+
+    private void submit(final Job job) {
+        this.getExecutor(job.engine).execute(new Runnable() {
+            @Override
+            public void run() {
+                upload(job);
+            }
+        });
+    }
+
+    private StorageEngine findEngine(final String engine) {
+        synchronized (this) {
+            final StorageEngine res = this.engines.get(engine);
+            if (res != null)
+                return res;
+        }
+        for (final StorageEngine e : StorageEngines.getInstance().getActiveEngines()) {
+            if (e.getClass().getName().equals(engine))
+                return e;
+        }
+        return null;
+    }
+
+    private void upload(final Job job) {
+        final StorageEngine engine = this.findEngine(job.engine);
+        if (engine == null || !engine.isConfigured()) {
+            // e.g. its module isn't started yet
+            if (++job.engineWaits >= MAX_ENGINE_WAITS) {
+                Log.get().warning("Engine not active, postponing " + job + " until the next start");
+                // keep the job file, its data and its reference to it for resume()
+                this.removePending(job);
+            } else {
+                this.retry(job, null);
+            }
+            return;
+        }
+        final File dataFile = this.getDataFile(job.hash);
+        try {
+            final InputStream in = new BufferedInputStream(new FileInputStream(dataFile));
+            try {
+                engine.connect();
+                try {
+                    engine.store(in, job.remotePath, job.title, true);
+                } finally {
+                    engine.disconnect();
+                }
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            this.metrics.failures.incrementAndGet();
+            Log.get().log(Level.WARNING, "Couldn't upload " + job + ", attempt " + (job.attempts + 1), e);
+            this.retry(job, e);
+            return;
+        }
+        this.metrics.uploaded.incrementAndGet();
+        this.metrics.uploadedBytes.addAndGet(dataFile.length());
+        synchronized (this) {
+            this.completedKeys.add(job.getKey());
+            this.removePending(job);
+            this.getJobFile(job).delete();
+            this.releaseData(job.hash, job.id);
+        }
+    }
+
+    /**
+     * Schedule another upload of <code>job</code>.
+     * 
+     * @param job the job to retry.
+     * @param cause why the upload failed, <code>null</code> if the engine wasn't active (not
+     *        counted as an attempt).
+     */
+    private void retry(final Job job, final Exception cause) {
+        if (cause != null) {
+            job.attempts++;
+            if (job.attempts >= this.maxAttempts) {
+                this.metrics.abandoned.incrementAndGet();
+                final File failedFile = new File(this.spoolDir, job.id + JOB_EXT + FAILED_EXT);
+                Log.get().severe("Giving up " + job + " after " + job.attempts + " attempts, see " + failedFile);
+                synchronized (this) {
+                    // keep the data and the reference of the failed job
+                    this.removePending(job);
+                    this.getJobFile(job).renameTo(failedFile);
+                }
+                ExceptionHandler.handle("Impossible d'envoyer " + job.title + " vers " + job.remotePath + " après " + job.attempts + " tentatives.\nLe document est conservé dans "
+                        + failedFile.getParent(), cause);
+                return;
+            }
+            try {
+                this.writeJob(job);
+            } catch (IOException e) {
+                Log.get().log(Level.WARNING, "Couldn't update " + this.getJobFile(job), e);
+            }
+        }
+        final long delay = Math.min(MAX_RETRY_DELAY, this.firstRetryDelay << Math.min(job.attempts, 20));
+        this.retryExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                submit(job);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+}
@@ -16,6 +16,7 @@
 import org.openconcerto.map.ui.MapViewerPanel;
 import org.openconcerto.utils.RTInterruptedException;
 import org.openconcerto.utils.StringUtils;
+import org.openconcerto.utils.ThreadFactory;
 
 import java.awt.Color;
 import java.awt.Polygon;
@@ -29,9 +30,14 @@ import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import javax.swing.JFrame;
@@ -40,32 +46,31 @@ import javax.swing.UIManager;
 
 public class Ville {
     // TODO: switch from Lambert to Mercator (see jmapprojlib SF project)
-    private static Map<String, Ville> map = new HashMap<String, Ville>();
     private static DatabaseAccessor accessor;
-    private final static List<Ville> villes = new ArrayList<Ville>(39000);
-    private final static List<String> villesNames = new ArrayList<String>(39000);
-    private final static List<PropertyChangeListener> listeners = new ArrayList<PropertyChangeListener>();
-    private static Thread init = null;
+    // immutable, replaced by each modification so that readers need no lock
+    private static volatile VilleIndex index = VilleIndex.EMPTY;
+    private final static List<PropertyChangeListener> listeners = new CopyOnWriteArrayList<PropertyChangeListener>();
+    // released when the asynchronous loading is done
+    private static volatile CountDownLatch initDone = new CountDownLatch(0);
     private static boolean loaded = false;
     private int nbMatch = 0;
 
-    public synchronized static void init(final DatabaseAccessor d) {
+    public static void init(final DatabaseAccessor d) {
 
         await();
-        accessor = d;
-        init = new Thread(new Runnable() {
+        final CountDownLatch latch = new CountDownLatch(1);
+        synchronized (Ville.class) {
+            accessor = d;
+            initDone = latch;
+        }
+        final Thread init = new Thread(new Runnable() {
             @Override
             public void run() {
-                synchronized (Ville.class) {
-                    parseFile();
-                    final List<Ville> l = d.read();
-                    for (final Ville ville : l) {
-                        addVilleSilently(ville);
-                    }
-                    init = null;
-                    Ville.class.notifyAll();
+                try {
+                    parseFile(null, d);
+                } finally {
+                    latch.countDown();
                 }
-
             }
         });
         init.setPriority(Thread.MIN_PRIORITY);
@@ -75,61 +80,106 @@ public class Ville {
     }
 
     private static void parseFile() {
-        parseFile(null);
+        parseFile(null, null);
     }
 
-    private static synchronized void parseFile(File mapDir) {
-        if (loaded) {
-            throw new IllegalStateException("Data already loaded");
+    /**
+     * Load the cities from the files, the regions and the cities of the database in parallel.
+     * 
+     * @param mapDir the directory of the files, <code>null</code> to use the embedded file.
+     * @param d the database, can be <code>null</code>.
+     */
+    private static void parseFile(final File mapDir, final DatabaseAccessor d) {
+        synchronized (Ville.class) {
+            if (loaded) {
+                throw new IllegalStateException("Data already loaded");
+            }
+            loaded = true;
         }
         long t1 = System.nanoTime();
+        final ExecutorService exec = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory("Ville loader ", true));
         try {
-            InputStreamReader fReader = null;
+            final List<Future<List<Ville>>> parts = new ArrayList<Future<List<Ville>>>();
             if (mapDir != null && mapDir.exists() && mapDir.list().length > 0) {
-                File[] files = mapDir.listFiles();
-                for (int i = 0; i < files.length; i++) {
-                    final File file = files[i];
-                    fReader = new FileReader(file);
-                    parse(fReader);
-                    fReader.close();
+                for (final File file : mapDir.listFiles()) {
+                    parts.add(exec.submit(new Callable<List<Ville>>() {
+                        @Override
+                        public List<Ville> call() throws Exception {
+                            return parse(new FileReader(file));
+                        }
+                    }));
                 }
-
             } else {
-                fReader = new InputStreamReader(Ville.class.getResourceAsStream("villes.txt"), "UTF8");
-                parse(fReader);
-                fReader.close();
-
+                parts.add(exec.submit(new Callable<List<Ville>>() {
+                    @Override
+                    public List<Ville> call() throws Exception {
+                        return parse(new InputStreamReader(Ville.class.getResourceAsStream("villes.txt"), "UTF8"));
+                    }
+                }));
+            }
+            final Future<?> regions = exec.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Region.parseFile();
+                }
+            });
+            if (d != null) {
+                parts.add(exec.submit(new Callable<List<Ville>>() {
+                    @Override
+                    public List<Ville> call() throws Exception {
+                        return d.read();
+                    }
+                }));
             }
 
-        } catch (final Exception e) {
-            e.printStackTrace();
+            // keep the order of the files then the database
+            final List<Ville> all = new ArrayList<Ville>(39000);
+            for (final Future<List<Ville>> part : parts) {
+                try {
+                    all.addAll(part.get());
+                } catch (final ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+            setIndex(new VilleIndex(all));
+            long t2 = System.nanoTime();
+            Logger.getLogger("map").config("parseFile took " + ((t2 - t1) / 1000000) + " ms");
+            try {
+                regions.get();
+            } catch (final ExecutionException e) {
+                e.printStackTrace();
+            }
+        } catch (final InterruptedException e) {
+            throw new RTInterruptedException(e);
+        } finally {
+            exec.shutdown();
         }
-        long t2 = System.nanoTime();
-        Logger.getLogger("map").config("parseFile took " + ((t2 - t1) / 1000000) + " ms");
-        Collections.sort(villesNames);
-        Region.parseFile();
-        loaded = true;
     }
 
-    private static void parse(InputStreamReader fReader) throws IOException {
+    private static List<Ville> parse(InputStreamReader fReader) throws IOException {
+        final List<Ville> res = new ArrayList<Ville>();
         final BufferedReader bufReader = new BufferedReader(fReader, 4 * 1024 * 1024);
-        String n = bufReader.readLine();
-
-        while (n != null) {
-            long pop = parsePositiveLong(bufReader.readLine());
-            long x = parsePositiveLong(bufReader.readLine());
-            long y = parsePositiveLong(bufReader.readLine());
-            String cp = bufReader.readLine();
-            final Ville v = new Ville(n, pop, x, y, cp);
-            if (v.xLambert > 0) {
-                addVilleSilently(v);
+        try {
+            String n = bufReader.readLine();
+
+            while (n != null) {
+                long pop = parsePositiveLong(bufReader.readLine());
+                long x = parsePositiveLong(bufReader.readLine());
+                long y = parsePositiveLong(bufReader.readLine());
+                String cp = bufReader.readLine();
+                final Ville v = new Ville(n, pop, x, y, cp);
+                if (v.xLambert > 0) {
+                    res.add(v);
+                }
+                n = bufReader.readLine();
             }
-            n = bufReader.readLine();
+        } finally {
+            bufReader.close();
         }
-        bufReader.close();
+        return res;
     }
 
-    private static final void parseLine(final String line) {
+    private static final Ville parseLine(final String line) {
 
         final List<String> strs = StringUtils.fastSplit(line, ';');
         final Ville v = new Ville(strs.get(3), parsePositiveLong(strs.get(4)), parsePositiveLong(strs.get(8)), parsePositiveLong(strs.get(9)), strs.get(2));
@@ -137,96 +187,100 @@ public class Ville {
             v.setMinimumZoom(parsePositiveLong(strs.get(10)));
         }
         if (v.xLambert > 0) {
-            addVilleSilently(v);
-            // System.out.println(v);
+            return v;
         }
-
+        return null;
     }
 
-    private static synchronized void addVilleSilently(final Ville v) {
-        villes.add(v);
-        final String villeEtCode = v.getVilleEtCode();
-        villesNames.add(villeEtCode);
-        map.put(villeEtCode, v);
+    private static synchronized void setIndex(final VilleIndex i) {
+        index = i;
     }
 
-    public static synchronized void addVille(final Ville v) {
-        final String villeEtCode = v.getVilleEtCode();
-        if (map.containsKey(villeEtCode)) {
-            return;
+    public static void addVille(final Ville v) {
+        await();
+        synchronized (Ville.class) {
+            final VilleIndex i = index;
+            if (i.containsVilleEtCode(v.getVilleEtCode())) {
+                return;
+            }
+            setIndex(i.add(v));
+            accessor.store(v);
         }
-        addVilleSilently(v);
-        accessor.store(v);
         fireListModified();
     }
 
-    public static synchronized void removeVille(final Ville v) {
+    public static void removeVille(final Ville v) {
         if (v != null) {
-            villes.remove(v);
-            final String villeEtCode = v.getVilleEtCode();
-            villesNames.remove(villeEtCode);
-            map.remove(villeEtCode);
-
-            accessor.delete(v);
+            await();
+            synchronized (Ville.class) {
+                setIndex(index.remove(v));
+                accessor.delete(v);
+            }
             fireListModified();
         }
     }
 
     // ** getter
 
-    private static final synchronized void await() {
-        if (init != null) {
-            try {
-                Ville.class.wait();
-            } catch (InterruptedException e) {
-                throw new RTInterruptedException(e);
-            }
+    private static final void await() {
+        try {
+            initDone.await();
+        } catch (InterruptedException e) {
+            throw new RTInterruptedException(e);
         }
     }
 
-    public static synchronized List<Ville> getVilles() {
+    private static final VilleIndex getIndex() {
         await();
-        return villes;
+        return index;
     }
 
-    public static synchronized List<String> getVillesNames() {
-        await();
-        return villesNames;
+    /**
+     * All the cities.
+     * 
+     * @return an immutable list, not modified by {@link #addVille(Ville)} or
+     *         {@link #removeVille(Ville)}.
+     */
+    public static List<Ville> getVilles() {
+        return getIndex().getVilles();
     }
 
-    public static synchronized Ville getVilleFromVilleEtCode(final String s) {
-        await();
-        return map.get(s);
+    /**
+     * The sorted "name (code)" of all the cities.
+     * 
+     * @return an immutable list, not modified by {@link #addVille(Ville)} or
+     *         {@link #removeVille(Ville)}.
+     */
+    public static List<String> getVillesNames() {
+        return getIndex().getVillesNames();
     }
 
-    public static synchronized Ville getVilleContaining(String string) {
-        string = string.trim().toLowerCase();
-        final List<Ville> l = getVilles();
-        final int size = l.size();
-        for (int i = 0; i < size; i++) {
-            final Ville v = l.get(i);
-            if (v.getName().toLowerCase().indexOf(string) >= 0) {
-                return v;
-            }
-        }
-        return null;
+    /**
+     * The "name (code)" starting with the passed string.
+     * 
+     * @param prefix the beginning of the name.
+     * @param max the maximum number of names.
+     * @param ignoreCase <code>true</code> to ignore case.
+     * @return the matching names.
+     */
+    public static List<String> getVillesNamesStartingWith(final String prefix, final int max, final boolean ignoreCase) {
+        return getIndex().getVillesNamesStartingWith(prefix, max, ignoreCase);
     }
 
-    public static synchronized List<Ville> getVillesContaining(String string) {
-        string = string.trim().toLowerCase();
-        List<Ville> list = new ArrayList<Ville>();
-        final List<Ville> l = getVilles();
-        final int size = l.size();
-        for (int i = 0; i < size; i++) {
-            final Ville v = l.get(i);
-            if (v.getName().toLowerCase().indexOf(string) >= 0) {
-                list.add(v);
-            }
-        }
-        return list;
+    public static Ville getVilleFromVilleEtCode(final String s) {
+        return getIndex().getVilleFromVilleEtCode(s);
+    }
+
+    public static Ville getVilleContaining(String string) {
+        final List<Ville> l = getIndex().getVillesContaining(string.trim().toLowerCase(), 1);
+        return l.isEmpty() ? null : l.get(0);
+    }
+
+    public static List<Ville> getVillesContaining(String string) {
+        return getIndex().getVillesContaining(string.trim().toLowerCase(), Integer.MAX_VALUE);
     }
 
-    public static synchronized Ville getVilleContaining(String string, String codepostal) {
+    public static Ville getVilleContaining(String string, String codepostal) {
         if (codepostal.length() < 0 && string.length() <= 2) {
             return null;
         }
@@ -252,17 +306,21 @@ public class Ville {
     }
 
     private static List<Ville> getVillesFromCode(String cp) {
+        return getIndex().getVillesFromCode(cp);
+    }
 
-        List<Ville> list = new ArrayList<Ville>();
-        final List<Ville> l = getVilles();
-        final int size = l.size();
-        for (int i = 0; i < size; i++) {
-            final Ville v = l.get(i);
-            if (v.getCodepostal().toLowerCase().indexOf(cp) >= 0) {
-                list.add(v);
-            }
-        }
-        return list;
+    /**
+     * The cities in a rectangle.
+     * 
+     * @param minX the minimum x in Lambert.
+     * @param maxX the maximum x in Lambert.
+     * @param minY the minimum y in Lambert.
+     * @param maxY the maximum y in Lambert.
+     * @param minPopulation only return cities with at least this population.
+     * @return the matching cities, in no particular order.
+     */
+    public static List<Ville> getVillesIn(final long minX, final long maxX, final long minY, final long maxY, final long minPopulation) {
+        return getIndex().getVillesIn(minX, maxX, minY, maxY, minPopulation);
     }
 
     /**
@@ -272,7 +330,7 @@ public class Ville {
      * @return the cities, or <code>null</code> si l'integralité des villes ou si la selection
      *         comporte moins de 3 points.
      */
-    public synchronized static List<Ville> getVilleIn(final MapPointSelection sel) {
+    public static List<Ville> getVilleIn(final MapPointSelection sel) {
         ArrayList<Ville> r = null;
         if (sel == null) {
             return null;
@@ -288,31 +346,10 @@ public class Ville {
 
                 p.addPoint((int) x, (int) y);
             }
-            final long minX = sel.getMinX();
-            final long maxX = sel.getMaxX();
-            final long minY = sel.getMinY();
-            final long maxY = sel.getMaxY();
-            final List<Ville> allVilles = Ville.getVilles();
-            // don't use for loop it generates an iterator which uses 25% of the time for this
-            // method
-            final int stop = allVilles.size();
-            for (int i = 0; i < stop; i++) {
-                final Ville v = allVilles.get(i);
-                // both get() took another 25%
-                final long x = v.getXLambert();
-                if (x > maxX)
-                    continue;
-                if (x < minX)
-                    continue;
-                final long y = v.getYLambert();
-                if (y > maxY)
-                    continue;
-                if (y < minY)
-                    continue;
-                if (!p.contains(x, y))
-                    continue;
-                r.add(v);
-                // System.out.println("match:" + v);
+            // only test the cities in the bounding box of the selection
+            for (final Ville v : getVillesIn(sel.getMinX(), sel.getMaxX(), sel.getMinY(), sel.getMaxY(), Long.MIN_VALUE)) {
+                if (p.contains(v.getXLambert(), v.getYLambert()))
+                    r.add(v);
             }
         }
         return r;
@@ -340,63 +377,20 @@ public class Ville {
         return value;
     }
 
-    public static synchronized long getMinXLambert() {
-        final List<Ville> l = getVilles();
-        if (l.size() > 0) {
-            long min = l.get(0).xLambert;
-            for (int i = 0; i < l.size(); i++) {
-                final Ville v = l.get(i);
-
-                if (v.xLambert < min) {
-                    min = v.xLambert;
-                }
-
-            }
-            return min;
-        } else {
-            return 0;
-        }
-
+    public static long getMinXLambert() {
+        return getIndex().getMinXLambert();
     }
 
-    static synchronized long getMaxXLambert() {
-        final List<Ville> l = getVilles();
-        if (l.size() > 0) {
-            long max = l.get(0).xLambert;
-            for (int i = 0; i < l.size(); i++) {
-                final Ville v = l.get(i);
-                if (v.xLambert > max) {
-                    max = v.xLambert;
-                }
-            }
-            return max;
-        } else {
-            return 0;
-        }
+    static long getMaxXLambert() {
+        return getIndex().getMaxXLambert();
     }
 
-    public static synchronized long getMinYLambert() {
-        final List<Ville> l = getVilles();
-        long min = l.get(0).yLambert;
-        for (int i = 0; i < l.size(); i++) {
-            final Ville v = l.get(i);
-            if (v.yLambert < min) {
-                min = v.yLambert;
-            }
-        }
-        return min;
+    public static long getMinYLambert() {
+        return getIndex().getMinYLambert();
     }
 
-    static synchronized long getMaxYLambert() {
-        final List<Ville> l = getVilles();
-        long max = l.get(0).yLambert;
-        for (int i = 0; i < l.size(); i++) {
-            final Ville v = l.get(i);
-            if (v.yLambert > max) {
-                max = v.yLambert;
-            }
-        }
-        return max;
+    static long getMaxYLambert() {
+        return getIndex().getMaxYLambert();
     }
 
     // *** instance
@@ -520,12 +514,16 @@ public class Ville {
 
     }
 
-    public static synchronized void sortByPopulation() {
-        sortByPopulation(villes);
-
+    public static void sortByPopulation() {
+        await();
+        synchronized (Ville.class) {
+            final List<Ville> l = new ArrayList<Ville>(index.getVilles());
+            sortByPopulation(l);
+            setIndex(new VilleIndex(l));
+        }
     }
 
-    public static synchronized void sortByPopulation(List<Ville> list) {
+    public static void sortByPopulation(List<Ville> list) {
         // Classe de la plus grande ville a la plus petite
         Collections.sort(list, new Comparator<Ville>() {
             @Override
@@ -538,9 +536,7 @@ public class Ville {
     }
 
     public static void addListener(PropertyChangeListener listener) {
-        if (!listeners.contains(listener)) {
-            listeners.add(listener);
-        }
+        ((CopyOnWriteArrayList<PropertyChangeListener>) listeners).addIfAbsent(listener);
     }
 
     public static void removeListener(PropertyChangeListener listener) {
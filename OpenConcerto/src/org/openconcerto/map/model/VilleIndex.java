@@ -0,0 +1,344 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.map.model;
+
+import org.openconcerto.utils.ArrayListOfInt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable index of cities : by "name (code)", by postal code, by trigrams of the name and by
+ * Lambert coordinates. Since it never changes once built, it can be read without any lock, a new
+ * index is created for each modification.
+ */
+final class VilleIndex {
+
+    static final VilleIndex EMPTY = new VilleIndex(Collections.<Ville> emptyList());
+
+    // max number of cities in a leaf of the quadtree
+    private static final int MAX_BUCKET = 32;
+    private static final int GRAM = 3;
+
+    private final List<Ville> villes;
+    private final List<String> villesNames;
+    // cities sorted by lower case "name (code)", for prefix searches
+    private final String[] lowerVillesEtCode;
+    private final Ville[] villesByLowerVilleEtCode;
+    private final String[] lowerNames;
+    private final Map<String, Ville> byVilleEtCode;
+    private final Map<String, List<Ville>> byCode;
+    private final int maxCodeLength;
+    private final Map<String, int[]> byTrigram;
+    private final Node root;
+
+    VilleIndex(final List<Ville> l) {
+        final int size = l.size();
+        this.villes = Collections.unmodifiableList(new ArrayList<Ville>(l));
+
+        this.byVilleEtCode = new HashMap<String, Ville>(size * 4 / 3 + 1);
+        final List<String> names = new ArrayList<String>(size);
+        final Map<String, List<Ville>> codes = new HashMap<String, List<Ville>>();
+        final Map<String, ArrayListOfInt> trigrams = new HashMap<String, ArrayListOfInt>();
+        int maxCodeLength = 0;
+        this.lowerNames = new String[size];
+        for (int i = 0; i < size; i++) {
+            final Ville v = this.villes.get(i);
+            final String villeEtCode = v.getVilleEtCode();
+            names.add(villeEtCode);
+            this.byVilleEtCode.put(villeEtCode, v);
+
+            final String code = v.getCodepostal().toLowerCase();
+            List<Ville> forCode = codes.get(code);
+            if (forCode == null) {
+                forCode = new ArrayList<Ville>(2);
+                codes.put(code, forCode);
+            }
+            forCode.add(v);
+            maxCodeLength = Math.max(maxCodeLength, code.length());
+
+            final String lowerName = v.getName().toLowerCase();
+            this.lowerNames[i] = lowerName;
+            final int stop = lowerName.length() - GRAM;
+            for (int j = 0; j <= stop; j++) {
+                final String gram = lowerName.substring(j, j + GRAM);
+                ArrayListOfInt ids = trigrams.get(gram);
+                if (ids == null) {
+                    ids = new ArrayListOfInt(4);
+                    trigrams.put(gram, ids);
+                }
+                // the same trigram can appear more than once in a name
+                if (ids.isEmpty() || ids.get(ids.size() - 1) != i)
+                    ids.add(i);
+            }
+        }
+        Collections.sort(names);
+        this.villesNames = Collections.unmodifiableList(names);
+        this.byCode = codes;
+        this.maxCodeLength = maxCodeLength;
+        this.byTrigram = new HashMap<String, int[]>(trigrams.size() * 4 / 3 + 1);
+        for (final Map.Entry<String, ArrayListOfInt> e : trigrams.entrySet()) {
+            this.byTrigram.put(e.getKey(), e.getValue().toArray());
+        }
+
+        final Ville[] sorted = this.villes.toArray(new Ville[size]);
+        Arrays.sort(sorted, new Comparator<Ville>() {
+            @Override
+            public int compare(Ville v1, Ville v2) {
+                return v1.getVilleEtCode().toLowerCase().compareTo(v2.getVilleEtCode().toLowerCase());
+            }
+        });
+        this.villesByLowerVilleEtCode = sorted;
+        this.lowerVillesEtCode = new String[size];
+        for (int i = 0; i < size; i++) {
+            this.lowerVillesEtCode[i] = sorted[i].getVilleEtCode().toLowerCase();
+        }
+
+        this.root = size == 0 ? null : Node.create(this.villes.toArray(new Ville[size]));
+    }
+
+    final List<Ville> getVilles() {
+        return this.villes;
+    }
+
+    final List<String> getVillesNames() {
+        return this.villesNames;
+    }
+
+    final Ville getVilleFromVilleEtCode(final String s) {
+        return this.byVilleEtCode.get(s);
+    }
+
+    final boolean containsVilleEtCode(final String s) {
+        return this.byVilleEtCode.containsKey(s);
+    }
+
+    /**
+     * The cities whose name contains the passed string, in the order of {@link #getVilles()}.
+     *
+     * @param lowerString a lower case string.
+     * @param max the maximum number of cities to return.
+     * @return the matching cities.
+     */
+    final List<Ville> getVillesContaining(final String lowerString, final int max) {
+        final List<Ville> res = new ArrayList<Ville>();
+        if (max <= 0)
+            return res;
+        if (lowerString.length() < GRAM) {
+            for (int i = 0; i < this.lowerNames.length; i++) {
+                if (this.lowerNames[i].indexOf(lowerString) >= 0) {
+                    res.add(this.villes.get(i));
+                    if (res.size() == max)
+                        break;
+                }
+            }
+        } else {
+            // use the shortest list of candidates, then check each one
+            int[] candidates = null;
+            final int stop = lowerString.length() - GRAM;
+            for (int j = 0; j <= stop; j++) {
+                final int[] ids = this.byTrigram.get(lowerString.substring(j, j + GRAM));
+                if (ids == null)
+                    return res;
+                if (candidates == null || ids.length < candidates.length)
+                    candidates = ids;
+            }
+            for (final int i : candidates) {
+                if (this.lowerNames[i].indexOf(lowerString) >= 0) {
+                    res.add(this.villes.get(i));
+                    if (res.size() == max)
+                        break;
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * The "name (code)" starting with the passed string.
+     *
+     * @param prefix the beginning of "name (code)".
+     * @param max the maximum number of names to return.
+     * @param ignoreCase <code>true</code> to ignore case.
+     * @return the matching names, in case insensitive order.
+     */
+    final List<String> getVillesNamesStartingWith(final String prefix, final int max, final boolean ignoreCase) {
+        final String lowerPrefix = prefix.toLowerCase();
+        int i = Arrays.binarySearch(this.lowerVillesEtCode, lowerPrefix);
+        if (i < 0)
+            i = -i - 1;
+        // the search can return any of equal names
+        while (i > 0 && this.lowerVillesEtCode[i - 1].equals(lowerPrefix))
+            i--;
+        final List<String> res = new ArrayList<String>();
+        while (i < this.lowerVillesEtCode.length && res.size() < max && this.lowerVillesEtCode[i].startsWith(lowerPrefix)) {
+            final String name = this.villesByLowerVilleEtCode[i].getVilleEtCode();
+            if (ignoreCase || name.startsWith(prefix))
+                res.add(name);
+            i++;
+        }
+        return res;
+    }
+
+    /**
+     * The cities whose postal code contains the passed string.
+     *
+     * @param lowerCode a lower case postal code or part of one.
+     * @return the matching cities.
+     */
+    final List<Ville> getVillesFromCode(final String lowerCode) {
+        // a code can only contain a string at least as long as itself
+        if (lowerCode.length() >= this.maxCodeLength) {
+            final List<Ville> l = this.byCode.get(lowerCode);
+            return l == null ? new ArrayList<Ville>(0) : new ArrayList<Ville>(l);
+        }
+        final List<Ville> list = new ArrayList<Ville>();
+        final int size = this.villes.size();
+        for (int i = 0; i < size; i++) {
+            final Ville v = this.villes.get(i);
+            if (v.getCodepostal().toLowerCase().indexOf(lowerCode) >= 0) {
+                list.add(v);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * The cities in the passed rectangle.
+     *
+     * @param minX the minimum x.
+     * @param maxX the maximum x.
+     * @param minY the minimum y.
+     * @param maxY the maximum y.
+     * @param minPopulation the minimum population, allow to filter small cities at low zoom.
+     * @return the matching cities.
+     */
+    final List<Ville> getVillesIn(final long minX, final long maxX, final long minY, final long maxY, final long minPopulation) {
+        final List<Ville> res = new ArrayList<Ville>();
+        if (this.root != null)
+            this.root.collect(minX, maxX, minY, maxY, minPopulation, res);
+        return res;
+    }
+
+    final long getMinXLambert() {
+        return this.root == null ? 0 : this.root.minX;
+    }
+
+    final long getMaxXLambert() {
+        return this.root == null ? 0 : this.root.maxX;
+    }
+
+    final long getMinYLambert() {
+        return this.root == null ? 0 : this.root.minY;
+    }
+
+    final long getMaxYLambert() {
+        return this.root == null ? 0 : this.root.maxY;
+    }
+
+    final VilleIndex add(final Ville v) {
+        final List<Ville> l = new ArrayList<Ville>(this.villes.size() + 1);
+        l.addAll(this.villes);
+        l.add(v);
+        return new VilleIndex(l);
+    }
+
+    final VilleIndex remove(final Ville v) {
+        final List<Ville> l = new ArrayList<Ville>(this.villes);
+        if (!l.remove(v))
+            return this;
+        return new VilleIndex(l);
+    }
+
+    // node of a point quadtree, with the exact bounding box and the biggest population of its
+    // cities to skip whole branches
+    private static final class Node {
+
+        static Node create(final Ville[] villes) {
+            long minX = Long.MAX_VALUE, minY = Long.MAX_VALUE, maxX = Long.MIN_VALUE, maxY = Long.MIN_VALUE, maxPop = Long.MIN_VALUE;
+            for (final Ville v : villes) {
+                minX = Math.min(minX, v.getXLambert());
+                maxX = Math.max(maxX, v.getXLambert());
+                minY = Math.min(minY, v.getYLambert());
+                maxY = Math.max(maxY, v.getYLambert());
+                maxPop = Math.max(maxPop, v.getPopulation());
+            }
+            if (villes.length <= MAX_BUCKET || (minX == maxX && minY == maxY)) {
+                return new Node(minX, maxX, minY, maxY, maxPop, villes, null);
+            }
+            final long midX = minX + (maxX - minX) / 2;
+            final long midY = minY + (maxY - minY) / 2;
+            final Map<Integer, List<Ville>> quadrants = new LinkedHashMap<Integer, List<Ville>>(4);
+            for (final Ville v : villes) {
+                final int q = (v.getXLambert() > midX ? 1 : 0) + (v.getYLambert() > midY ? 2 : 0);
+                List<Ville> l = quadrants.get(q);
+                if (l == null) {
+                    l = new ArrayList<Ville>();
+                    quadrants.put(q, l);
+                }
+                l.add(v);
+            }
+            final Node[] children = new Node[quadrants.size()];
+            int i = 0;
+            for (final List<Ville> l : quadrants.values()) {
+                children[i++] = create(l.toArray(new Ville[l.size()]));
+            }
+            return new Node(minX, maxX, minY, maxY, maxPop, null, children);
+        }
+
+        private final long minX, maxX, minY, maxY, maxPopulation;
+        private final Ville[] villes;
+        private final Node[] children;
+
+        private Node(long minX, long maxX, long minY, long maxY, long maxPopulation, Ville[] villes, Node[] children) {
+            this.minX = minX;
+            this.maxX = maxX;
+            this.minY = minY;
+            this.maxY = maxY;
+            this.maxPopulation = maxPopulation;
+            this.villes = villes;
+            this.children = children;
+        }
+
+        void collect(final long x0, final long x1, final long y0, final long y1, final long minPopulation, final List<Ville> res) {
+            if (this.maxPopulation < minPopulation || this.maxX < x0 || this.minX > x1 || this.maxY < y0 || this.minY > y1)
+                return;
+            if (this.children == null) {
+                final boolean allIn = this.minX >= x0 && this.maxX <= x1 && this.minY >= y0 && this.maxY <= y1;
+                for (final Ville v : this.villes) {
+                    if (v.getPopulation() < minPopulation)
+                        continue;
+                    if (allIn) {
+                        res.add(v);
+                    } else {
+                        final long x = v.getXLambert();
+                        final long y = v.getYLambert();
+                        if (x >= x0 && x <= x1 && y >= y0 && y <= y1)
+                            res.add(v);
+                    }
+                }
+            } else {
+                for (final Node child : this.children) {
+                    child.collect(x0, x1, y0, y1, minPopulation, res);
+                }
+            }
+        }
+    }
+}
@@ -15,13 +15,13 @@
 
 import org.openconcerto.map.model.Ville;
 import org.openconcerto.ui.component.ITextComboCache;
+import org.openconcerto.ui.component.ITextComboCompletion;
 
 import java.util.List;
 
 import javax.swing.JOptionPane;
 
-public class ITextComboCacheVille implements ITextComboCache {
-    final List<String> villesNames = Ville.getVillesNames();
+public class ITextComboCacheVille implements ITextComboCache, ITextComboCompletion {
 
     public Ville createVilleFrom(String string) {
         string = string.trim();
@@ -39,7 +39,7 @@ public class ITextComboCacheVille implements ITextComboCache {
 
     @Override
     public boolean isValid() {
-        return this.villesNames.size() > 0;
+        return Ville.getVillesNames().size() > 0;
     }
 
     public void addToCache(String string) {
@@ -59,6 +59,8 @@ public class ITextComboCacheVille implements ITextComboCache {
     }
 
     public List<String> getCache() {
+        // the list is replaced when a city is added or removed
+        final List<String> villesNames = Ville.getVillesNames();
         if (villesNames.size() <= 0) {
             throw new IllegalArgumentException("Ville.parseFile() and Region.parseFile() never called");
         }
@@ -67,12 +69,25 @@ public class ITextComboCacheVille implements ITextComboCache {
 
     @Override
     public List<String> loadCache(final boolean readCache) {
-        return villesNames;
+        return Ville.getVillesNames();
+    }
+
+    /**
+     * Les villes commençant par le texte saisi, sans parcourir toute la liste.
+     * 
+     * @param prefix le début de "VILLE (CODEPOSTAL)", en tenant compte de la casse comme
+     *        ITextCombo.
+     * @param max le nombre maximum de villes.
+     * @return les villes correspondantes.
+     */
+    @Override
+    public List<String> getCompletion(final String prefix, final int max) {
+        return Ville.getVillesNamesStartingWith(prefix, max, false);
     }
 
     @Override
     public String toString() {
-        return getClass().getSimpleName() + " with " + this.villesNames.size() + " cities";
+        return getClass().getSimpleName() + " with " + Ville.getVillesNames().size() + " cities";
     }
 
 }
@@ -26,27 +26,31 @@ import javax.swing.AbstractListModel;
  */
 public class VilleListModel extends AbstractListModel implements IMutableListModel<Ville> {
 
-    // MAYBE use an immutable collection and reload on demand
-
-    final List<Ville> villes = Ville.getVilles();
+    // the list of cities is replaced at each modification, so always read the current one
+    private int lastSize = 0;
 
     @Override
     public int getSize() {
-        return this.villes.size();
+        this.lastSize = Ville.getVilles().size();
+        return this.lastSize;
     }
 
     public void fireModify() {
-        fireContentsChanged(this, 0, villes.size() - 1);
+        final int size = Ville.getVilles().size();
+        final int max = Math.max(size, this.lastSize);
+        this.lastSize = size;
+        if (max > 0)
+            fireContentsChanged(this, 0, max - 1);
     }
 
     @Override
     public Ville getElementAt(int index) {
-        return this.villes.get(index);
+        return Ville.getVilles().get(index);
     }
 
     @Override
     public List<Ville> getList() {
-        return this.villes;
+        return Ville.getVilles();
     }
 
     // NEED TO BE FIRE BY A LISTENER ON VILLE
@@ -67,7 +71,7 @@ public class VilleListModel extends AbstractListModel implements IMutableListMod
 
     @Override
     public void removeElementAt(int index) {
-        Ville.removeVille(this.villes.get(index));
+        Ville.removeVille(Ville.getVilles().get(index));
     }
 
     @Override
@@ -85,7 +85,10 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
     private boolean gridActicvated;
 
     private List<RegionPointsCache> cacheRegions = new ArrayList<RegionPointsCache>();
+    // villes toujours affichées, les autres sont cherchées dans la zone visible
     private List<Ville> cacheVilles = new ArrayList<Ville>();
+    private final Set<Ville> hiddenVilles = new HashSet<Ville>();
+    private long minPopulation = Long.MAX_VALUE;
 
     // MODE
     public static final int MODE_MOVE = 0;
@@ -429,6 +432,16 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
                 continue;
             l.add(v);
         }
+        if (this.minPopulation != Long.MAX_VALUE) {
+            // y decreases from the top of the screen
+            final List<Ville> inView = Ville.getVillesIn(minXLambertViewable, maxXLambertViewable, maxYLambertViewable, minYLambertViewable, this.minPopulation);
+            final Set<Ville> already = new HashSet<Ville>(l);
+            for (final Ville v : inView) {
+                if (!this.hiddenVilles.contains(v) && already.add(v))
+                    l.add(v);
+            }
+            Ville.sortByPopulation(l);
+        }
 
         return l;
     }
@@ -539,10 +552,11 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
 
         final int zoom = this.currentZoomIndex;
         this.cacheVilles.clear();
-        final List<Ville> villes = Ville.getVilles();
+        this.hiddenVilles.clear();
         this.cacheVilles.addAll(this.alwayVisible);
 
         if (zoom == 0) {
+            this.minPopulation = Long.MAX_VALUE;
             addToCachedVille(Ville.getVilleFromVilleEtCode("Paris (75000)"));
             addToCachedVille(Ville.getVilleFromVilleEtCode("Lille (59800)"));
             addToCachedVille(Ville.getVilleFromVilleEtCode("Marseille (13000)"));
@@ -575,38 +589,33 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
         }
         // 5
 
-        // Ajoutes les villes dont la population correspond au zoom
-
-        final int vCount = villes.size();
-        for (int i = 0; i < vCount; i++) {
-            final Ville v = villes.get(i);
-            if (v.getPopulation() >= popMin)
-                addToCachedVille(v);
-        }
+        // les villes dont la population correspond au zoom sont cherchées à chaque affichage dans
+        // la zone visible
+        this.minPopulation = popMin;
 
         // Retires les villes en superposition
         if (zoom == 1) {
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Villeurbanne (69100)"));
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Aix-en-provence (13100)"));
+            hideIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Villeurbanne (69100)"));
+            hideIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Aix-en-provence (13100)"));
         } else if (zoom == 2) {
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Villeurbanne (69100)"));
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Villeneuve-d'ascq (59491)"));
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Sartrouville (78500)"));
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Versailles (78000)"));
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Vénissieux (69200)"));
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Pessac (33600)"));
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Antibes (06160)"));
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("La Seyne-sur-mer (83500)"));
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Mérignac (33700)"));
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Tourcoing (59200)"));
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Roubaix (59100)"));
+            hideIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Villeurbanne (69100)"));
+            hideIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Villeneuve-d'ascq (59491)"));
+            hideIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Sartrouville (78500)"));
+            hideIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Versailles (78000)"));
+            hideIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Vénissieux (69200)"));
+            hideIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Pessac (33600)"));
+            hideIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Antibes (06160)"));
+            hideIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("La Seyne-sur-mer (83500)"));
+            hideIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Mérignac (33700)"));
+            hideIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Tourcoing (59200)"));
+            hideIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Roubaix (59100)"));
         }
         Ville.sortByPopulation(this.cacheVilles);
     }
 
-    private void removeIfNotAlwaysVisible(Ville v) {
-        if (!this.alwayVisible.contains(v))
-            this.cacheVilles.remove(v);
+    private void hideIfNotAlwaysVisible(Ville v) {
+        if (v != null && !this.alwayVisible.contains(v))
+            this.hiddenVilles.add(v);
     }
 
     private void drawVille(Graphics2D g2, List<Ville> villes) {
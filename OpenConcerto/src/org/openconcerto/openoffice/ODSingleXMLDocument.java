@@ -46,7 +46,6 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
-import org.apache.commons.collections.Transformer;
 import org.jdom.Attribute;
 import org.jdom.Content;
 import org.jdom.DocType;
@@ -400,10 +399,16 @@ public class ODSingleXMLDocument extends ODXMLDocument implements Cloneable {
 
     /** Le nombre de fichiers concat */
     private int numero;
+    /** Le préfixe des noms du prochain fichier ajouté, cf. {@link #prefix(String)} */
+    private String namePrefix;
     /** Les styles présent dans ce document */
     private final Set<String> stylesNames;
     /** Les styles de liste présent dans ce document */
     private final Set<String> listStylesNames;
+    /** Les noms déjà présents sous les éléments de ce document, cf. {@link #mergeUnique} */
+    private final Map<String, NamesIndex> namesIndexes;
+    // compiled once since prefix() is called for each added element
+    private XPath[] prefixXPaths;
     /** Les fichiers référencés par ce document */
     private ODPackage pkg;
     private final ODMeta meta;
@@ -474,6 +479,7 @@ public class ODSingleXMLDocument extends ODXMLDocument implements Cloneable {
             } else {
                 this.numero = new BigDecimal(countValue.toString()).intValue();
             }
+            this.namePrefix = "_" + this.numero;
         } else {
             // if not hasCount(), it's not us that created content
             // so there should not be any 1_
@@ -482,6 +488,8 @@ public class ODSingleXMLDocument extends ODXMLDocument implements Cloneable {
 
         this.stylesNames = new HashSet<String>(64);
         this.listStylesNames = new HashSet<String>(16);
+        this.namesIndexes = new HashMap<String, NamesIndex>();
+        this.prefixXPaths = null;
 
         // little trick to find the common styles names (not to be prefixed so they remain
         // consistent across the added documents)
@@ -508,6 +516,9 @@ public class ODSingleXMLDocument extends ODXMLDocument implements Cloneable {
             throw new NullPointerException("Null package");
         this.stylesNames = new HashSet<String>(doc.stylesNames);
         this.listStylesNames = new HashSet<String>(doc.listStylesNames);
+        // the indexes reference the elements of doc
+        this.namesIndexes = new HashMap<String, NamesIndex>();
+        this.prefixXPaths = null;
         this.pkg = p;
         this.meta = ODMeta.create(this);
         this.setNumero(doc.numero);
@@ -521,6 +532,8 @@ public class ODSingleXMLDocument extends ODXMLDocument implements Cloneable {
 
     private void setNumero(int numero) {
         this.numero = numero;
+        // computed once since each name of each added document is prefixed
+        this.namePrefix = "_" + numero;
         this.meta.getUserMeta(COUNT, true).setValue(this.numero);
     }
 
@@ -1042,17 +1055,17 @@ public class ODSingleXMLDocument extends ODXMLDocument implements Cloneable {
      */
     protected final void detachDuplicate(Element elem) throws JDOMException {
         final String singularName = elem.getName().substring(0, elem.getName().length() - 1);
-        final List thisNames = getXPath("./text:" + singularName + "s/text:" + singularName + "/@text:name").selectNodes(getChild("body"));
-        org.apache.commons.collections.CollectionUtils.transform(thisNames, new Transformer() {
-            public Object transform(Object obj) {
-                return ((Attribute) obj).getValue();
-            }
-        });
+        final Namespace textNS = getVersion().getTEXT();
+        // the declarations are added by mergeBody() in getBody()
+        final Element thisDecls = this.getBody().getChild(singularName + "s", textNS);
+        if (thisDecls == null)
+            return;
+        final NamesIndex thisNames = this.getNamesIndex(thisDecls, singularName, textNS, "name", textNS);
 
         final Iterator iter = elem.getChildren().iterator();
         while (iter.hasNext()) {
             final Element decl = (Element) iter.next();
-            if (thisNames.contains(decl.getAttributeValue("name", getVersion().getTEXT()))) {
+            if (thisNames.contains(decl.getAttributeValue("name", textNS))) {
                 // on retire les déjà existant
                 iter.remove();
             }
@@ -1078,7 +1091,8 @@ public class ODSingleXMLDocument extends ODXMLDocument implements Cloneable {
      * @throws JDOMException if an error occurs.
      */
     Element prefix(Element elem, boolean references) throws JDOMException {
-        Iterator attrs = this.getXPath(".//@text:style-name | .//@table:style-name | .//@draw:style-name | .//@style:data-style-name | .//@style:apply-style-name").selectNodes(elem).iterator();
+        final XPath[] xps = this.getPrefixXPaths();
+        Iterator attrs = xps[0].selectNodes(elem).iterator();
         while (attrs.hasNext()) {
             Attribute attr = (Attribute) attrs.next();
             // text:list/@text:style-name references text:list-style
@@ -1087,7 +1101,7 @@ public class ODSingleXMLDocument extends ODXMLDocument implements Cloneable {
             }
         }
 
-        attrs = this.getXPath(".//@style:list-style-name").selectNodes(elem).iterator();
+        attrs = xps[1].selectNodes(elem).iterator();
         while (attrs.hasNext()) {
             Attribute attr = (Attribute) attrs.next();
             if (!this.listStylesNames.contains(attr.getValue())) {
@@ -1095,7 +1109,7 @@ public class ODSingleXMLDocument extends ODXMLDocument implements Cloneable {
             }
         }
 
-        attrs = this.getXPath(".//@style:page-master-name | .//@style:page-layout-name | .//@text:name | .//@form:name | .//@form:property-name").selectNodes(elem).iterator();
+        attrs = xps[2].selectNodes(elem).iterator();
         while (attrs.hasNext()) {
             final Attribute attr = (Attribute) attrs.next();
             final String parentName = attr.getParent().getName();
@@ -1105,7 +1119,7 @@ public class ODSingleXMLDocument extends ODXMLDocument implements Cloneable {
 
         // prefix references
         if (references) {
-            attrs = this.getXPath(".//@xlink:href[../@xlink:show='embed']").selectNodes(elem).iterator();
+            attrs = xps[3].selectNodes(elem).iterator();
             while (attrs.hasNext()) {
                 final Attribute attr = (Attribute) attrs.next();
                 final String prefixedPath = this.prefixPath(attr.getValue());
@@ -1116,6 +1130,15 @@ public class ODSingleXMLDocument extends ODXMLDocument implements Cloneable {
         return elem;
     }
 
+    private XPath[] getPrefixXPaths() throws JDOMException {
+        if (this.prefixXPaths == null) {
+            this.prefixXPaths = new XPath[] { this.getXPath(".//@text:style-name | .//@table:style-name | .//@draw:style-name | .//@style:data-style-name | .//@style:apply-style-name"),
+                    this.getXPath(".//@style:list-style-name"), this.getXPath(".//@style:page-master-name | .//@style:page-layout-name | .//@text:name | .//@form:name | .//@form:property-name"),
+                    this.getXPath(".//@xlink:href[../@xlink:show='embed']") };
+        }
+        return this.prefixXPaths;
+    }
+
     /**
      * Prefix a path.
      * 
@@ -1155,7 +1178,7 @@ public class ODSingleXMLDocument extends ODXMLDocument implements Cloneable {
     }
 
     private String prefix(String value) {
-        return "_" + this.numero + value;
+        return this.namePrefix + value;
     }
 
     private final ElementTransformer prefixTransf = new ElementTransformer() {
@@ -1202,34 +1225,126 @@ public class ODSingleXMLDocument extends ODXMLDocument implements Cloneable {
     }
 
     private List<String> mergeUnique(ODXMLDocument doc, String topElem, String elemToMerge, String attrFQName, ElementTransformer addTransf) throws JDOMException {
-        List<String> added = new ArrayList<String>();
-        Element thisParent = this.getChild(topElem, true);
-
-        XPath xp = this.getXPath("./" + elemToMerge + "/@" + attrFQName);
-
-        // les styles de ce document
-        List thisElemNames = xp.selectNodes(thisParent);
-        // on transforme la liste d'attributs en liste de String
-        org.apache.commons.collections.CollectionUtils.transform(thisElemNames, new Transformer() {
-            public Object transform(Object obj) {
-                return ((Attribute) obj).getValue();
-            }
-        });
+        final List<String> added = new ArrayList<String>();
+        final Element thisParent = this.getChild(topElem, true);
+        final Element otherParent = doc.getChild(topElem);
+        if (otherParent == null)
+            return added;
+
+        final int elemColon = elemToMerge.indexOf(':');
+        final String elemName = elemToMerge.substring(elemColon + 1);
+        final Namespace elemNS = this.getVersion().getNS(elemToMerge.substring(0, elemColon));
+        final int attrColon = attrFQName.indexOf(':');
+        final String attrName = attrFQName.substring(attrColon + 1);
+        final Namespace attrNS = this.getVersion().getNS(attrFQName.substring(0, attrColon));
+
+        // les styles de ce document, conservés d'un ajout à l'autre
+        final NamesIndex thisElemNames = this.getNamesIndex(thisParent, elemName, elemNS, attrName, attrNS);
 
         // pour chaque style de l'autre document
-        Iterator otherElemNames = xp.selectNodes(doc.getChild(topElem)).iterator();
-        while (otherElemNames.hasNext()) {
-            Attribute attr = (Attribute) otherElemNames.next();
+        for (final Object o : otherParent.getChildren(elemName, elemNS)) {
+            final Element otherElem = (Element) o;
+            final String name = otherElem.getAttributeValue(attrName, attrNS);
             // on l'ajoute si non déjà dedans
-            if (!thisElemNames.contains(attr.getValue())) {
-                thisParent.addContent(addTransf.transform((Element) attr.getParent().clone()));
-                added.add(attr.getValue());
+            if (name != null && !thisElemNames.contains(name)) {
+                thisParent.addContent(addTransf.transform((Element) otherElem.clone()));
+                thisElemNames.add(name);
+                added.add(name);
             }
         }
 
         return added;
     }
 
+    // attrName null to only know if there's an element, see NamesIndex.ANY
+    private NamesIndex getNamesIndex(final Element parent, final String elemName, final Namespace elemNS, final String attrName, final Namespace attrNS) {
+        final String key = parent.getQualifiedName() + "/" + elemNS.getPrefix() + ":" + elemName + (attrName == null ? "" : "/@" + attrNS.getPrefix() + ":" + attrName);
+        NamesIndex res = this.namesIndexes.get(key);
+        if (res == null || !res.update(parent)) {
+            res = new NamesIndex(parent, elemName, elemNS, attrName, attrNS);
+            this.namesIndexes.put(key, res);
+        }
+        return res;
+    }
+
+    /**
+     * Les valeurs d'un attribut des fils d'un élément. Permet de ne pas parcourir à chaque ajout
+     * tous les éléments déjà fusionnés. Les éléments ajoutés à la fin par ailleurs (par exemple les
+     * styles de données ajoutés à office:styles avant les style:style) sont indexés à leur tour,
+     * l'index n'est recalculé que si le début de l'élément a été modifié.
+     */
+    private static final class NamesIndex {
+        // the value for all elements if there's no attribute
+        static final String ANY = "";
+
+        private final Element parent;
+        private final String elemName;
+        private final Namespace elemNS;
+        private final String attrName;
+        private final Namespace attrNS;
+        private final Set<String> names;
+        private int contentSize;
+        // to check that the content was only appended to
+        private Content lastContent;
+
+        NamesIndex(final Element parent, final String elemName, final Namespace elemNS, final String attrName, final Namespace attrNS) {
+            this.parent = parent;
+            this.elemName = elemName;
+            this.elemNS = elemNS;
+            this.attrName = attrName;
+            this.attrNS = attrNS;
+            this.names = new HashSet<String>();
+            this.contentSize = 0;
+            this.lastContent = null;
+            this.indexAppended();
+        }
+
+        private void indexAppended() {
+            final int size = this.parent.getContentSize();
+            for (int i = this.contentSize; i < size; i++) {
+                final Content c = this.parent.getContent(i);
+                if (c instanceof Element) {
+                    final Element elem = (Element) c;
+                    if (this.elemName.equals(elem.getName()) && this.elemNS.equals(elem.getNamespace())) {
+                        final String name = this.attrName == null ? ANY : elem.getAttributeValue(this.attrName, this.attrNS);
+                        if (name != null)
+                            this.names.add(name);
+                    }
+                }
+            }
+            this.contentSize = size;
+            this.lastContent = size == 0 ? null : this.parent.getContent(size - 1);
+        }
+
+        /**
+         * Index the content appended to parent since the last call.
+         * 
+         * @param parent the element of the index.
+         * @return <code>false</code> if the index must be rebuilt.
+         */
+        final boolean update(final Element parent) {
+            if (this.parent != parent)
+                return false;
+            final int size = parent.getContentSize();
+            if (size < this.contentSize || (this.contentSize > 0 && parent.getContent(this.contentSize - 1) != this.lastContent))
+                return false;
+            if (size > this.contentSize)
+                this.indexAppended();
+            return true;
+        }
+
+        final boolean contains(final String name) {
+            return this.names.contains(name);
+        }
+
+        // to call after appending the element to parent
+        final void add(final String name) {
+            this.names.add(name);
+            this.contentSize = this.parent.getContentSize();
+            this.lastContent = this.parent.getContent(this.contentSize - 1);
+        }
+    }
+
     /**
      * Ajoute l'élément elemName de doc, s'il n'est pas dans ce document.
      * 
@@ -1238,7 +1353,18 @@ public class ODSingleXMLDocument extends ODXMLDocument implements Cloneable {
      * @throws JDOMException if elemName is not valid.
      */
     private void addStylesIfNotPresent(ODXMLDocument doc, String elemName) throws JDOMException {
-        this.addIfNotPresent(doc, "./office:styles/text:" + elemName);
+        // pas addIfNotPresent() qui parcourt tous les styles déjà fusionnés
+        final Namespace textNS = getVersion().getTEXT();
+        final Element thisStyles = this.getChild("styles", true);
+        final NamesIndex thisElems = this.getNamesIndex(thisStyles, elemName, textNS, null, null);
+        if (!thisElems.contains(NamesIndex.ANY)) {
+            final Element otherStyles = doc.getChild("styles");
+            final Element otherElem = otherStyles == null ? null : otherStyles.getChild(elemName, textNS);
+            if (otherElem != null) {
+                thisStyles.addContent((Element) otherElem.clone());
+                thisElems.add(NamesIndex.ANY);
+            }
+        }
     }
 
     /**
@@ -1366,6 +1492,8 @@ public class ODSingleXMLDocument extends ODXMLDocument implements Cloneable {
             contentTypeVersioned.setType(content);
             content.getRootElement().addContent(root.removeContent());
         }
+        // the style containers now belong to the split documents
+        this.invalidateStyleIndexes();
         return res;
     }
 
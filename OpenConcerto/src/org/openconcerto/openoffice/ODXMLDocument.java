@@ -104,6 +104,9 @@ public class ODXMLDocument {
     private final XMLFormatVersion version;
     private final ChildCreator childCreator;
     private final Map<String, Integer> styleNamesLast;
+    // style containers of our document (e.g. office:automatic-styles) -> index of their children,
+    // see invalidateStyleIndexes()
+    private final Map<Element, StyleIndex> styleIndexes;
 
     // before making it public, assure that content is really of version "version"
     // eg by checking some namespace
@@ -119,6 +122,7 @@ public class ODXMLDocument {
                 return this.size() > 15;
             }
         };
+        this.styleIndexes = new HashMap<Element, StyleIndex>(4);
     }
 
     public ODXMLDocument(Document content) {
@@ -254,7 +258,7 @@ public class ODXMLDocument {
 
         final Element masterStyles = root.getChild("master-styles", office);
         if (masterStyles != null) {
-            res = this.findStyleChild(root.getChild("master-page", getVersion().getSTYLE()), styleDesc.getElementNS(), styleDesc.getElementName(), family, name);
+            res = this.findStyleChild(masterStyles.getChild("master-page", getVersion().getSTYLE()), styleDesc.getElementNS(), styleDesc.getElementName(), family, name);
             if (res != null) {
                 return res;
             }
@@ -276,16 +280,112 @@ public class ODXMLDocument {
         }
     }
 
+    /**
+     * The children of a style container indexed by their name. The index is checked against the
+     * container before each use : if children were added or removed (even directly through JDOM,
+     * e.g. when merging documents) or if a found element was renamed, it is rebuilt. Since an
+     * element renamed to the searched name cannot be detected, a name not found is searched again
+     * in the container.
+     */
+    private static final class StyleIndex {
+        private final int contentSize;
+        private final Map<String, List<Element>> byName;
+
+        StyleIndex(final Element styles, final Namespace styleNS) {
+            this.contentSize = styles.getContentSize();
+            this.byName = new HashMap<String, List<Element>>();
+            for (final Object o : styles.getChildren()) {
+                this.add((Element) o, styleNS);
+            }
+        }
+
+        StyleIndex(final StyleIndex index, final Element added, final Namespace styleNS) {
+            this.contentSize = index.contentSize + 1;
+            // the previous instance is discarded, so the lists can be shared
+            this.byName = index.byName;
+            this.add(added, styleNS);
+        }
+
+        private void add(final Element styleElem, final Namespace styleNS) {
+            final String name = styleElem.getAttributeValue("name", styleNS);
+            if (name != null) {
+                List<Element> l = this.byName.get(name);
+                if (l == null) {
+                    l = new ArrayList<Element>(1);
+                    this.byName.put(name, l);
+                }
+                l.add(styleElem);
+            }
+        }
+
+        final boolean isValid(final Element styles) {
+            return this.contentSize == styles.getContentSize();
+        }
+
+        final List<Element> get(final String name) {
+            final List<Element> res = this.byName.get(name);
+            return res == null ? Collections.<Element> emptyList() : res;
+        }
+    }
+
+    private final StyleIndex getStyleIndex(final Element styles) {
+        StyleIndex res = this.styleIndexes.get(styles);
+        if (res == null || !res.isValid(styles)) {
+            res = new StyleIndex(styles, getVersion().getSTYLE());
+            // don't keep detached containers (e.g. after merging or splitting documents)
+            final Iterator<Element> iter = this.styleIndexes.keySet().iterator();
+            while (iter.hasNext()) {
+                if (iter.next().getDocument() != this.getDocument())
+                    iter.remove();
+            }
+            if (styles.getDocument() == this.getDocument())
+                this.styleIndexes.put(styles, res);
+        }
+        return res;
+    }
+
+    /**
+     * Forget the style indexes. Needed when style containers are detached from this document,
+     * otherwise they are only removed at the next index creation.
+     */
+    protected final void invalidateStyleIndexes() {
+        this.styleIndexes.clear();
+    }
+
     private final Element findStyleChild(final Element styles, final Namespace elemNS, final String elemName, final String family, final String name) {
         if (styles == null)
             return null;
 
         final Namespace styleNS = getVersion().getSTYLE();
+        if (name != null) {
+            final Element res = this.findIndexedStyleChild(this.getStyleIndex(styles), styles, elemNS, elemName, family, name);
+            if (res != null)
+                return res;
+        }
+
         // from JDOM : traversal through the List is best done with a Iterator
         for (final Object o : styles.getChildren(elemName, elemNS)) {
             final Element styleElem = (Element) o;
             // name first since it is more specific (and often includes family, eg "co2")
             if ((name == null || name.equals(styleElem.getAttributeValue("name", styleNS))) && (family == null || family.equals(StyleStyleDesc.getFamily(styleElem)))) {
+                // missed by the index, e.g. renamed
+                if (name != null)
+                    this.styleIndexes.remove(styles);
+                return styleElem;
+            }
+        }
+        return null;
+    }
+
+    private final Element findIndexedStyleChild(final StyleIndex index, final Element styles, final Namespace elemNS, final String elemName, final String family, final String name) {
+        final Namespace styleNS = getVersion().getSTYLE();
+        for (final Element styleElem : index.get(name)) {
+            // renamed or moved since the index was built
+            if (styleElem.getParent() != styles || !name.equals(styleElem.getAttributeValue("name", styleNS))) {
+                this.styleIndexes.remove(styles);
+                return null;
+            }
+            if (elemName.equals(styleElem.getName()) && elemNS.equals(styleElem.getNamespace()) && (family == null || family.equals(StyleStyleDesc.getFamily(styleElem)))) {
                 return styleElem;
             }
         }
@@ -336,7 +436,12 @@ public class ODXMLDocument {
     }
 
     public final void addAutoStyle(final Element styleElem) {
-        this.getChild("automatic-styles", true).addContent(styleElem);
+        final Element autoStyles = this.getChild("automatic-styles", true);
+        final StyleIndex index = this.styleIndexes.get(autoStyles);
+        autoStyles.addContent(styleElem);
+        // avoid rebuilding the index for each new style (e.g. when creating many cell styles)
+        if (index != null && index.contentSize + 1 == autoStyles.getContentSize())
+            this.styleIndexes.put(autoStyles, new StyleIndex(index, styleElem, getVersion().getSTYLE()));
     }
 
     public String asString() {
@@ -0,0 +1,104 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.openoffice.generation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ognl.Ognl;
+import ognl.OgnlException;
+
+/**
+ * Cache of parsed OGNL expressions, since the same conditions and parameters are evaluated for
+ * each part of each report. Thread-safe.
+ */
+public final class OGNLExpressions {
+
+    private static final int MAX_SIZE = 1024;
+
+    private static final Map<String, Object> trees = new LinkedHashMap<String, Object>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+            return this.size() > MAX_SIZE;
+        }
+    };
+    private static long hits = 0;
+    private static long misses = 0;
+
+    /**
+     * Return the parsed form of the passed expression.
+     * 
+     * @param expr an OGNL expression, e.g. "variante == 'court'".
+     * @return the parsed expression.
+     * @throws OgnlException if <code>expr</code> isn't valid.
+     */
+    public static Object parse(final String expr) throws OgnlException {
+        synchronized (trees) {
+            final Object res = trees.get(expr);
+            if (res != null) {
+                hits++;
+                return res;
+            }
+            misses++;
+        }
+        // parse outside the lock, at worst the same expression is parsed twice
+        final Object res = Ognl.parseExpression(expr);
+        synchronized (trees) {
+            trees.put(expr, res);
+        }
+        return res;
+    }
+
+    /**
+     * Evaluate an expression, only parsing it the first time.
+     * 
+     * @param expr an OGNL expression.
+     * @param root the root object.
+     * @return the value of <code>expr</code>.
+     * @throws OgnlException if <code>expr</code> isn't valid or couldn't be evaluated.
+     * @see Ognl#getValue(String, Object)
+     */
+    public static Object getValue(final String expr, final Object root) throws OgnlException {
+        return Ognl.getValue(parse(expr), root);
+    }
+
+    public static long getHits() {
+        synchronized (trees) {
+            return hits;
+        }
+    }
+
+    public static long getMisses() {
+        synchronized (trees) {
+            return misses;
+        }
+    }
+
+    public static int getSize() {
+        synchronized (trees) {
+            return trees.size();
+        }
+    }
+
+    public static void clear() {
+        synchronized (trees) {
+            trees.clear();
+            hits = 0;
+            misses = 0;
+        }
+    }
+
+    private OGNLExpressions() {
+    }
+}
@@ -39,7 +39,6 @@ import java.util.Stack;
 import java.util.concurrent.Callable;
 import java.util.concurrent.FutureTask;
 
-import ognl.Ognl;
 import ognl.OgnlException;
 import ognl.OgnlRuntime;
 import ognl.PropertyAccessor;
@@ -365,7 +364,7 @@ public class ReportGeneration<C extends GenerationCommon> {
     }
 
     public final boolean evaluatePredicate(String p) throws OgnlException {
-        return ((Boolean) Ognl.getValue(p, getCommonData())).booleanValue();
+        return ((Boolean) OGNLExpressions.getValue(p, getCommonData())).booleanValue();
     }
 
     /**
@@ -437,9 +436,10 @@ public class ReportGeneration<C extends GenerationCommon> {
         res.put("rg", this);
         res.put("variante", this.getReportType().getParam("variante"));
         res.put("dateFmt", DateFormat.getDateInstance(DateFormat.LONG));
+        // constant lambdas, the cache avoids parsing them for each generation
         try {
-            res.put("join", Ognl.getValue(":[@org.openconcerto.utils.CollectionUtils@join( #this, #sep == null ? ', ' : #sep )]", null));
-            res.put("silentFirst", Ognl.getValue(":[#this.size == 0 ? null : #this[0]]", null));
+            res.put("join", OGNLExpressions.getValue(":[@org.openconcerto.utils.CollectionUtils@join( #this, #sep == null ? ', ' : #sep )]", null));
+            res.put("silentFirst", OGNLExpressions.getValue(":[#this.size == 0 ? null : #this[0]]", null));
         } catch (OgnlException exn) {
             // n'arrive jamais, la syntaxe est correcte
             exn.printStackTrace();
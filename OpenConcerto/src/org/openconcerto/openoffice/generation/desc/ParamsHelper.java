@@ -13,6 +13,7 @@
  
  package org.openconcerto.openoffice.generation.desc;
 
+import org.openconcerto.openoffice.generation.OGNLExpressions;
 import org.openconcerto.utils.cc.IFactory;
 import org.openconcerto.xml.JDOMUtils;
 
@@ -20,7 +21,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
-import ognl.Ognl;
 import ognl.OgnlException;
 
 import org.jdom.Element;
@@ -119,7 +119,7 @@ public abstract class ParamsHelper {
 
     static Object evaluteOgnl(final String exprAttr, IFactory<?> data) {
         try {
-            return Ognl.getValue(exprAttr, data.createChecked());
+            return OGNLExpressions.getValue(exprAttr, data.createChecked());
         } catch (OgnlException e) {
             throw new IllegalArgumentException("error evaluating :" + exprAttr, e);
         }
@@ -42,7 +42,9 @@ import org.openconcerto.sql.request.ComboSQLRequest;
 import org.openconcerto.sql.request.ListSQLRequest;
 import org.openconcerto.sql.request.SQLCache;
 import org.openconcerto.sql.request.SQLFieldTranslator;
+import org.openconcerto.sql.request.UpdateBuilder;
 import org.openconcerto.sql.sqlobject.SQLTextCombo;
+import org.openconcerto.sql.users.UserManager;
 import org.openconcerto.sql.users.rights.UserRightsManager;
 import org.openconcerto.sql.utils.SQLUtils;
 import org.openconcerto.sql.utils.SQLUtils.SQLFactory;
@@ -75,6 +77,7 @@ import org.openconcerto.utils.i18n.Phrase;
 import java.awt.Component;
 import java.lang.reflect.Constructor;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -683,11 +686,15 @@ public abstract class SQLElement {
                     // avoid toString() which might make requests to display rows (eg archived)
                     if (Log.get().isLoggable(Level.FINEST))
                         Log.get().finest("will cut : " + externReferences);
+                    // one request per field, not per row
                     for (final Entry<SQLField, Set<SQLRow>> e : externReferences.entrySet()) {
                         final SQLField refKey = e.getKey();
+                        final List<Integer> ids = new ArrayList<Integer>(e.getValue().size());
                         for (final SQLRow ref : e.getValue()) {
-                            ref.createEmptyUpdateRow().putEmptyLink(refKey.getName()).update();
+                            ids.add(ref.getID());
                         }
+                        final Number emptyLink = refKey.getTable().getForeignTable(refKey.getName()).getUndefinedIDNumber();
+                        update(refKey.getTable(), Collections.singletonMap(refKey.getName(), (Object) emptyLink), ids);
                     }
                     Log.get().finest("done cutting links");
                 }
@@ -711,6 +718,50 @@ public abstract class SQLElement {
         return r;
     }
 
+    // above this number of rows, fire one event for the whole table instead of one per row
+    static private final int ROW_EVENTS_MAX = 50;
+    // maximum number of IDs in one UPDATE
+    static private final int UPDATE_MAX_IDS = 1000;
+
+    /**
+     * Update in a set-based manner the passed rows, i.e. one request per {@value #UPDATE_MAX_IDS}
+     * rows. Like {@link SQLRowValues#update(int)} the modification user and date are set. Fire
+     * either an event per row or, for many rows, one event for the whole table.
+     * 
+     * @param t the table to update.
+     * @param values the values to set.
+     * @param ids the IDs of the rows to update.
+     * @throws SQLException if an error occurs.
+     */
+    static private void update(final SQLTable t, final Map<String, ?> values, final List<? extends Number> ids) throws SQLException {
+        if (ids.isEmpty())
+            return;
+        final UpdateBuilder update = new UpdateBuilder(t);
+        for (final Entry<String, ?> e : values.entrySet()) {
+            update.setObject(e.getKey(), e.getValue());
+        }
+        final SQLField userField = t.getModifUserField();
+        final int userID = UserManager.getUserID();
+        if (userField != null && userID >= SQLRow.MIN_VALID_ID && !values.containsKey(userField.getName()))
+            update.setObject(userField, userID);
+        final SQLField dateField = t.getModifDateField();
+        if (dateField != null && !values.containsKey(dateField.getName()))
+            update.setObject(dateField, new Timestamp(System.currentTimeMillis()));
+
+        for (int i = 0; i < ids.size(); i += UPDATE_MAX_IDS) {
+            update.setWhere(new Where(t.getKey(), ids.subList(i, Math.min(i + UPDATE_MAX_IDS, ids.size()))));
+            t.getDBSystemRoot().getDataSource().execute(update.asString());
+        }
+
+        final Set<String> fields = update.getFieldsNames();
+        if (ids.size() > ROW_EVENTS_MAX) {
+            t.fireTableModified(SQLRow.NONEXISTANT_ID, fields);
+        } else {
+            for (final Number id : ids)
+                t.fireTableModified(id.intValue(), fields);
+        }
+    }
+
     // all rows will be either archived or unarchived (handling cycles)
     static private void setArchive(final Collection<SQLRowValuesCluster> clustersToArchive, final boolean archive) throws SQLException {
         final Set<SQLRowValues> toArchive = Collections.newSetFromMap(new IdentityHashMap<SQLRowValues, Boolean>());
@@ -723,32 +774,46 @@ public abstract class SQLElement {
             // or unarchive the maximum without foreigns
             int archivedCount = -1;
             while (archivedCount != 0) {
-                archivedCount = 0;
+                // rows ready in this pass don't link to each other, so they can be updated
+                // together, table by table
+                final List<SQLRowValues> ready = new ArrayList<SQLRowValues>();
+                final ListMap<SQLTable, Number> readyIDs = new ListMap<SQLTable, Number>();
                 final Iterator<SQLRowValues> iter = toArchive.iterator();
                 while (iter.hasNext()) {
                     final SQLRowValues desc = iter.next();
                     if (archive && !desc.hasReferents() || !archive && !desc.hasForeigns()) {
-                        SQLRowValues updateVals = linksCut.remove(desc.asRow());
-                        if (updateVals == null)
-                            updateVals = new SQLRowValues(desc.getTable());
-                        // ne pas faire les fire après sinon qd on efface plusieurs éléments
-                        // de la même table :
-                        // on fire pour le 1er => updateSearchList => IListe.select(userID)
-                        // hors si userID a aussi été archivé (mais il n'y a pas eu son fire
-                        // correspondant), le component va lancer un RowNotFound
-                        setArchive(updateVals, archive).setID(desc.getIDNumber());
-                        // don't check validity since table events might have not already be
-                        // fired
-                        assert updateVals.getGraph().size() == 1 : "Archiving a graph : " + updateVals.printGraph();
-                        updateVals.getGraph().store(StoreMode.COMMIT, false);
-                        // remove from graph
-                        desc.clear();
-                        desc.clearReferents();
-                        assert desc.getGraph().size() == 1 : "Next loop won't progress : " + desc.printGraph();
-                        archivedCount++;
+                        final SQLRowValues updateVals = linksCut.remove(desc.asRow());
+                        if (updateVals == null) {
+                            readyIDs.add(desc.getTable(), desc.getIDNumber());
+                        } else {
+                            // links to restore, rare enough (only in cycles) to be done one by
+                            // one
+                            setArchive(updateVals, archive).setID(desc.getIDNumber());
+                            // don't check validity since table events might have not already be
+                            // fired
+                            assert updateVals.getGraph().size() == 1 : "Archiving a graph : " + updateVals.printGraph();
+                            updateVals.getGraph().store(StoreMode.COMMIT, false);
+                        }
+                        ready.add(desc);
                         iter.remove();
                     }
                 }
+                // ne pas faire les fire après sinon qd on efface plusieurs éléments
+                // de la même table :
+                // on fire pour le 1er => updateSearchList => IListe.select(userID)
+                // hors si userID a aussi été archivé (mais il n'y a pas eu son fire
+                // correspondant), le component va lancer un RowNotFound
+                for (final Entry<SQLTable, List<Number>> e : readyIDs.entrySet()) {
+                    final SQLTable t = e.getKey();
+                    update(t, setArchive(new SQLRowValues(t), archive).getAbsolutelyAll(), e.getValue());
+                }
+                for (final SQLRowValues desc : ready) {
+                    // remove from graph
+                    desc.clear();
+                    desc.clearReferents();
+                    assert desc.getGraph().size() == 1 : "Next loop won't progress : " + desc.printGraph();
+                }
+                archivedCount = ready.size();
             }
 
             // if not empty there's at least one cycle
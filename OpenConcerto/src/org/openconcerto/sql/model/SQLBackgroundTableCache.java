@@ -13,9 +13,10 @@
  
  package org.openconcerto.sql.model;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 public class SQLBackgroundTableCache {
     private static SQLBackgroundTableCache instance;
@@ -46,6 +47,7 @@ public class SQLBackgroundTableCache {
         if (!isCached(t)) {
             final SQLBackgroundTableCacheItem item = new SQLBackgroundTableCacheItem(t, second);
             this.list.put(t, item);
+            t.addTableModifiedListener(item);
         }
     }
 
@@ -56,11 +58,12 @@ public class SQLBackgroundTableCache {
             public void run() {
                 while (true) {
                     try {
+                        final List<SQLBackgroundTableCacheItem> items;
                         synchronized (SQLBackgroundTableCache.this) {
-                            Set<SQLTable> set = list.keySet();
-                            for (SQLTable table : set) {
-                                getCacheForTable(table);
-                            }
+                            items = new ArrayList<SQLBackgroundTableCacheItem>(list.values());
+                        }
+                        for (final SQLBackgroundTableCacheItem item : items) {
+                            item.reloadFromDbIfNeeded();
                         }
                     } catch (Exception e) {
                         e.printStackTrace();
@@ -84,8 +87,12 @@ public class SQLBackgroundTableCache {
         return this.list.containsKey(t);
     }
 
-    public synchronized SQLBackgroundTableCacheItem getCacheForTable(SQLTable t) {
-        final SQLBackgroundTableCacheItem item = this.list.get(t);
+    public SQLBackgroundTableCacheItem getCacheForTable(SQLTable t) {
+        final SQLBackgroundTableCacheItem item;
+        synchronized (this) {
+            item = this.list.get(t);
+        }
+        // reload outside our lock so that other tables aren't blocked
         if (item != null) {
             item.reloadFromDbIfNeeded();
         }
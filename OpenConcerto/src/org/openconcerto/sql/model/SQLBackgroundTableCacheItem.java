@@ -13,64 +13,328 @@
  
  package org.openconcerto.sql.model;
 
+import org.openconcerto.sql.model.SQLTableEvent.Mode;
+
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.jcip.annotations.GuardedBy;
 
+/**
+ * Cached rows of a table. Readers use concurrent maps with hash indexes (the primary key, the CODE
+ * and NUMERO fields if present, and any field passed to {@link #addIndex(SQLField)} or to a lookup
+ * method), so they never lock nor scan the rows. The maps are kept current by
+ * {@link #tableModified(SQLTableEvent) table events}, which only update the entries of the
+ * modified row, and, once the timeout has passed, by only fetching the rows created or modified
+ * since the last load. A full reload is still done every {@value #FULL_RELOAD_FACTOR} timeouts to
+ * forget rows deleted by other clients. Requests are made outside the lock protecting the maps, so
+ * that adding an index never waits for the database.
+ */
 public class SQLBackgroundTableCacheItem implements SQLTableModifiedListener {
 
+    private static final int FULL_RELOAD_FACTOR = 10;
+    private static final String[] DEFAULT_INDEXES = { "CODE", "NUMERO" };
+    private static final SQLRow[] EMPTY = new SQLRow[0];
+
+    // the maps are modified with the item lock, read without
+    private static final class Snapshot {
+        private final ConcurrentSkipListMap<Integer, SQLRow> byID;
+        // for each key the rows sorted by ID, like the former linear scans the first row wins
+        private final ConcurrentMap<String, ConcurrentMap<Object, SQLRow[]>> indexes;
+        // null after a change
+        private volatile List<SQLRow> rows;
+        private int maxID;
+        private Object maxModifDate;
+
+        Snapshot(final Collection<SQLRow> rows, final Collection<String> indexedFields, final int previousMaxID) {
+            this.byID = new ConcurrentSkipListMap<Integer, SQLRow>();
+            for (final SQLRow r : rows) {
+                this.byID.put(r.getID(), r);
+            }
+            this.indexes = new ConcurrentHashMap<String, ConcurrentMap<Object, SQLRow[]>>();
+            for (final String f : indexedFields) {
+                this.addIndex(f);
+            }
+            this.rows = null;
+            this.maxID = previousMaxID;
+            this.maxModifDate = null;
+        }
+
+        final void addIndex(final String field) {
+            final ConcurrentMap<Object, SQLRow[]> index = new ConcurrentHashMap<Object, SQLRow[]>(this.byID.size() * 4 / 3 + 1);
+            for (final SQLRow r : this.byID.values()) {
+                for (final Object key : getIndexKeys(r, field))
+                    addToIndex(index, key, r);
+            }
+            this.indexes.put(field, index);
+        }
+
+        final void put(final SQLRow r, final SQLField modifField) {
+            final SQLRow old = this.byID.put(r.getID(), r);
+            for (final java.util.Map.Entry<String, ConcurrentMap<Object, SQLRow[]>> e : this.indexes.entrySet()) {
+                if (old != null) {
+                    for (final Object key : getIndexKeys(old, e.getKey()))
+                        removeFromIndex(e.getValue(), key, old.getID());
+                }
+                for (final Object key : getIndexKeys(r, e.getKey()))
+                    addToIndex(e.getValue(), key, r);
+            }
+            this.maxID = Math.max(this.maxID, r.getID());
+            if (modifField != null) {
+                final Object d = r.getObject(modifField.getName());
+                if (d != null && (this.maxModifDate == null || ((Date) d).after((Date) this.maxModifDate)))
+                    this.maxModifDate = d;
+            }
+            this.rows = null;
+        }
+
+        final void remove(final int id) {
+            final SQLRow old = this.byID.remove(id);
+            if (old == null)
+                return;
+            for (final java.util.Map.Entry<String, ConcurrentMap<Object, SQLRow[]>> e : this.indexes.entrySet()) {
+                for (final Object key : getIndexKeys(old, e.getKey()))
+                    removeFromIndex(e.getValue(), key, id);
+            }
+            this.rows = null;
+        }
+
+        final List<SQLRow> getRows() {
+            List<SQLRow> res = this.rows;
+            if (res == null) {
+                res = Collections.unmodifiableList(new ArrayList<SQLRow>(this.byID.values()));
+                this.rows = res;
+            }
+            return res;
+        }
+    }
+
+    // copy on write since the arrays are read without lock, usually of length 1
+    static private void addToIndex(final ConcurrentMap<Object, SQLRow[]> index, final Object key, final SQLRow r) {
+        final SQLRow[] old = index.get(key);
+        final SQLRow[] res;
+        if (old == null) {
+            res = new SQLRow[] { r };
+        } else {
+            res = new SQLRow[old.length + 1];
+            int i = 0;
+            while (i < old.length && old[i].getID() < r.getID()) {
+                res[i] = old[i];
+                i++;
+            }
+            res[i] = r;
+            System.arraycopy(old, i, res, i + 1, old.length - i);
+        }
+        index.put(key, res);
+    }
+
+    static private void removeFromIndex(final ConcurrentMap<Object, SQLRow[]> index, final Object key, final int id) {
+        final SQLRow[] old = index.get(key);
+        if (old == null)
+            return;
+        final List<SQLRow> res = new ArrayList<SQLRow>(old.length);
+        for (final SQLRow r : old) {
+            if (r.getID() != id)
+                res.add(r);
+        }
+        if (res.isEmpty())
+            index.remove(key);
+        else if (res.size() < old.length)
+            index.put(key, res.toArray(EMPTY));
+    }
+
+    // getFirstRowContains(int) compares like getInt(), getFirstRowContains(String) like
+    // getString(), so a number is indexed both ways
+    static private Object[] getIndexKeys(final SQLRow r, final String field) {
+        final Object o = r.getObject(field);
+        if (o == null)
+            return new Object[0];
+        else if (o instanceof Number)
+            return new Object[] { ((Number) o).intValue(), r.getString(field) };
+        else
+            return new Object[] { r.getString(field) };
+    }
+
     private SQLTable table;
     private int timeout;
-    private List<SQLRow> rows = new ArrayList<SQLRow>();
-    private long lastReload;// time in millis
+    @GuardedBy("this")
+    private final Set<String> indexedFields;
+    // only one request at a time so that they're applied in order, not held by readers
+    private final ReentrantLock fetchLock;
+    private volatile Snapshot snapshot;
+    private volatile long lastReload;// time in millis
+    @GuardedBy("fetchLock")
+    private long lastFullReload;
 
     public SQLBackgroundTableCacheItem(final SQLTable t, final int second) {
         this.table = t;
         this.timeout = second;
-
+        this.indexedFields = new LinkedHashSet<String>();
+        for (final String f : DEFAULT_INDEXES) {
+            if (t.getFieldsName().contains(f))
+                this.indexedFields.add(f);
+        }
+        this.fetchLock = new ReentrantLock();
+        this.snapshot = null;
     }
 
     @Override
     public void tableModified(SQLTableEvent evt) {
-        this.lastReload = 0;
-        reloadFromDbIfNeeded();
+        if (evt.getId() < SQLRow.MIN_VALID_ID) {
+            this.lastReload = 0;
+            this.fetchLock.lock();
+            try {
+                this.lastFullReload = 0;
+            } finally {
+                this.fetchLock.unlock();
+            }
+            reloadFromDbIfNeeded();
+        } else {
+            this.fetchLock.lock();
+            try {
+                if (this.snapshot == null)
+                    return;
+                if (evt.getMode() == Mode.ROW_DELETED) {
+                    synchronized (this) {
+                        this.snapshot.remove(evt.getId());
+                    }
+                } else {
+                    this.applyChanges(new Where(this.table.getKey(), "=", evt.getId()));
+                }
+            } finally {
+                this.fetchLock.unlock();
+            }
+        }
     }
 
-    @SuppressWarnings("unchecked")
-    public synchronized void reloadFromDbIfNeeded() {
-        final long delta = System.currentTimeMillis() - this.lastReload;
-        if (delta / 1000 > this.timeout) {
-            final SQLSelect sel = new SQLSelect();
-            sel.addSelectStar(this.table);
-            this.rows = Collections.unmodifiableList((List<SQLRow>) this.table.getBase().getDataSource().execute(sel.asString(), SQLRowListRSH.createFromSelect(sel, this.table)));
-            this.lastReload = System.currentTimeMillis();
+    private final boolean isStale() {
+        return this.snapshot == null || (System.currentTimeMillis() - this.lastReload) / 1000 > this.timeout;
+    }
+
+    public void reloadFromDbIfNeeded() {
+        // don't lock readers of an up to date cache
+        if (!isStale())
+            return;
+        // nor those of a cache being reloaded
+        if (this.snapshot == null)
+            this.fetchLock.lock();
+        else if (!this.fetchLock.tryLock())
+            return;
+        try {
+            if (!isStale())
+                return;
+            final long now = System.currentTimeMillis();
+            final SQLField modifField = this.table.getModifDateField();
+            if (this.snapshot == null || modifField == null || (now - this.lastFullReload) / 1000 > this.timeout * FULL_RELOAD_FACTOR) {
+                this.fullReload();
+                this.lastFullReload = now;
+            } else {
+                final Where w;
+                synchronized (this) {
+                    final Where newRows = new Where(this.table.getKey(), ">", this.snapshot.maxID);
+                    w = this.snapshot.maxModifDate == null ? newRows : newRows.or(new Where(modifField, ">=", this.snapshot.maxModifDate));
+                }
+                this.applyChanges(w);
+            }
+            this.lastReload = now;
+        } finally {
+            this.fetchLock.unlock();
         }
     }
 
-    public synchronized SQLRow getFirstRowContains(final int value, final SQLField field) {
-        for (SQLRow r : this.rows) {
-            if (r.getInt(field.getName()) == value && !r.isArchived()) {
-                return r;
+    @SuppressWarnings("unchecked")
+    private void fullReload() {
+        assert this.fetchLock.isHeldByCurrentThread();
+        final SQLSelect sel = new SQLSelect();
+        sel.addSelectStar(this.table);
+        final List<SQLRow> rows = (List<SQLRow>) this.table.getBase().getDataSource().execute(sel.asString(), SQLRowListRSH.createFromSelect(sel, this.table));
+        synchronized (this) {
+            final Snapshot s = new Snapshot(Collections.<SQLRow> emptyList(), this.indexedFields, this.snapshot == null ? SQLRow.MIN_VALID_ID - 1 : this.snapshot.maxID);
+            final SQLField modifField = this.table.getModifDateField();
+            for (final SQLRow r : rows) {
+                s.put(r, modifField);
             }
+            this.snapshot = s;
         }
-        return null;
     }
 
-    public synchronized SQLRow getFirstRowContains(final String value, final SQLField field) {
-        for (SQLRow r : this.rows) {
-            if (r.getString(field.getName()).equals(value) && !r.isArchived()) {
-                return r;
+    // fetch rows matching w, including archived ones to remove them
+    @SuppressWarnings("unchecked")
+    private void applyChanges(final Where w) {
+        assert this.fetchLock.isHeldByCurrentThread();
+        final SQLSelect sel = new SQLSelect();
+        sel.setArchivedPolicy(SQLSelect.BOTH);
+        sel.addSelectStar(this.table);
+        sel.setWhere(w);
+        final List<SQLRow> rows = (List<SQLRow>) this.table.getBase().getDataSource().execute(sel.asString(), SQLRowListRSH.createFromSelect(sel, this.table));
+        if (rows.isEmpty())
+            return;
+        synchronized (this) {
+            final SQLField modifField = this.table.getModifDateField();
+            for (final SQLRow r : rows) {
+                if (r.isArchived())
+                    this.snapshot.remove(r.getID());
+                else
+                    this.snapshot.put(r, modifField);
             }
         }
-        return null;
     }
 
-    public synchronized SQLRow getRowFromId(final int i) {
-        return getFirstRowContains(i, this.table.getKey());
+    private final Snapshot getSnapshot() {
+        final Snapshot res = this.snapshot;
+        if (res != null)
+            return res;
+        this.reloadFromDbIfNeeded();
+        return this.snapshot;
+    }
+
+    /**
+     * Index the passed field, so that {@link #getFirstRowContains(String, SQLField)} doesn't scan
+     * the rows.
+     * 
+     * @param field a field of our table.
+     */
+    public synchronized void addIndex(final SQLField field) {
+        final String name = field.getName();
+        if (this.indexedFields.add(name) && this.snapshot != null)
+            this.snapshot.addIndex(name);
+    }
+
+    private final SQLRow getFirst(final SQLField field, final Object value) {
+        ConcurrentMap<Object, SQLRow[]> index = this.getSnapshot().indexes.get(field.getName());
+        if (index == null) {
+            this.addIndex(field);
+            index = this.getSnapshot().indexes.get(field.getName());
+        }
+        final SQLRow[] res = index.get(value);
+        return res == null ? null : res[0];
+    }
+
+    public SQLRow getFirstRowContains(final int value, final SQLField field) {
+        if (field.equals(this.table.getKey()))
+            return this.getRowFromId(value);
+        return this.getFirst(field, value);
+    }
+
+    public SQLRow getFirstRowContains(final String value, final SQLField field) {
+        return this.getFirst(field, value);
+    }
+
+    public SQLRow getRowFromId(final int i) {
+        return this.getSnapshot().byID.get(i);
     }
 
-    public synchronized List<SQLRow> getRows() {
-        return this.rows;
+    public List<SQLRow> getRows() {
+        return this.getSnapshot().getRows();
     }
 
     public SQLTable getTable() {
@@ -16,6 +16,7 @@
 import org.openconcerto.sql.Log;
 import org.openconcerto.sql.State;
 import org.openconcerto.sql.request.SQLCache;
+import org.openconcerto.sql.utils.SQLUtils;
 import org.openconcerto.utils.CompareUtils;
 import org.openconcerto.utils.ExceptionHandler;
 import org.openconcerto.utils.ExceptionUtils;
@@ -32,6 +33,7 @@ import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -477,6 +479,64 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
         return this.execute(query, rsh, changeState, null);
     }
 
+    /**
+     * The default number of rows fetched at a time by
+     * {@link #executeStreaming(String, int, ResultSetHandler)}.
+     */
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+
+    /**
+     * Execute <code>query</code> without loading the whole result in memory. Contrary to
+     * {@link #execute(String, ResultSetHandler)}, <code>rsh</code> receives a forward only result
+     * set which fetches its rows as needed : if it doesn't keep them, the memory used doesn't
+     * depend on the number of rows. The cache is never used.
+     * <p>
+     * The query is executed in a transaction (the current one if any), since PostgreSQL only uses a
+     * cursor without auto-commit. MySQL streams rows one by one whatever <code>fetchSize</code>,
+     * for other systems it's passed to the driver. <code>rsh</code> can stop reading before the
+     * end, the result set is then closed (ATTN MySQL still reads the remaining rows).
+     * </p>
+     * 
+     * @param query the query to perform.
+     * @param fetchSize the number of rows to fetch at a time, e.g. {@link #DEFAULT_FETCH_SIZE}.
+     * @param rsh what to do with the result.
+     * @return the result of <code>rsh</code>.
+     * @throws SQLException if an error occurs.
+     */
+    public final Object executeStreaming(final String query, final int fetchSize, final ResultSetHandler rsh) throws SQLException {
+        if (fetchSize <= 0)
+            throw new IllegalArgumentException("Negative fetch size : " + fetchSize);
+        final long timeMs = System.currentTimeMillis();
+        final long time = System.nanoTime();
+        return SQLUtils.executeAtomic(this, new ConnectionHandlerNoSetup<Object, SQLException>() {
+            @Override
+            public Object handle(SQLDataSource ds) throws SQLException {
+                final Connection conn = ds.getConnection();
+                final long afterQueryInfo = System.nanoTime();
+                final Statement stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                try {
+                    stmt.setFetchSize(getSystem() == SQLSystem.MYSQL ? Integer.MIN_VALUE : fetchSize);
+                    ResultSet rs = stmt.executeQuery(query);
+                    final long afterExecute = System.nanoTime();
+                    final Object res;
+                    try {
+                        if (getSystem() == SQLSystem.DERBY || getSystem() == SQLSystem.POSTGRESQL) {
+                            rs = new SQLResultSet(rs);
+                        }
+                        res = rsh.handle(rs);
+                    } finally {
+                        rs.close();
+                    }
+                    final long afterHandle = System.nanoTime();
+                    SQLRequestLog.log(query, "Streaming.", conn, timeMs, time, time, afterQueryInfo, afterExecute, afterHandle, System.nanoTime());
+                    return res;
+                } finally {
+                    stmt.close();
+                }
+            }
+        }, true);
+    }
+
     private Object execute(final String query, final ResultSetHandler rsh, final Connection c) throws RTInterruptedException {
         // false since the vast majority of request do NOT change the state
         return this.execute(query, rsh, false, c);
@@ -522,7 +582,7 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
                 // cache actif
                 if (State.DEBUG)
                     State.INSTANCE.addCacheHit();
-                SQLRequestLog.log(query, "En cache.", timeMs, time);
+                SQLRequestLog.logCacheHit(query, timeMs, time);
                 return l.getRes();
             }
         }
@@ -579,7 +639,8 @@ public final class SQLDataSource extends BasicDataSource implements Cloneable {
             throw e;
         }
 
-        SQLRequestLog.log(query, "", info.getConnection(), timeMs, time, afterCache, afterQueryInfo, afterExecute, afterHandle, System.nanoTime());
+        SQLRequestLog.log(query, "", info.getConnection(), timeMs, time, afterCache, afterQueryInfo, afterExecute, afterHandle, System.nanoTime(),
+                result instanceof Collection ? ((Collection<?>) result).size() : -1);
 
         return result;
     }
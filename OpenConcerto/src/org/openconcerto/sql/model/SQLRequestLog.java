@@ -20,6 +20,7 @@ import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.FlowLayout;
+import java.awt.Font;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
@@ -104,6 +105,22 @@ public class SQLRequestLog {
     }
 
     public static void log(String query, String comment, int connectionId, long starAtMs, long startTime, long afterCache, long afterQueryInfo, long afterExecute, long afterHandle, long endTime) {
+        log(query, comment, connectionId, starAtMs, startTime, afterCache, afterQueryInfo, afterExecute, afterHandle, endTime, -1);
+    }
+
+    /**
+     * Log a request sent to the database. It is always recorded in {@link SQLRequestMetrics}, and
+     * also kept in this log if it's {@link #setEnabled(boolean) enabled}.
+     * 
+     * @param rowCount the number of returned rows, negative if unknown.
+     */
+    public static void log(String query, String comment, int connectionId, long starAtMs, long startTime, long afterCache, long afterQueryInfo, long afterExecute, long afterHandle, long endTime,
+            int rowCount) {
+        SQLRequestMetrics.getInstance().executed(query, comment, starAtMs, afterCache, afterQueryInfo, afterExecute, afterHandle, endTime, rowCount);
+        add(query, comment, connectionId, starAtMs, startTime, afterCache, afterQueryInfo, afterExecute, afterHandle, endTime);
+    }
+
+    private static void add(String query, String comment, int connectionId, long starAtMs, long startTime, long afterCache, long afterQueryInfo, long afterExecute, long afterHandle, long endTime) {
         if (enabled) {
             final String ex = ExceptionUtils.getStackTrace(new Exception());
 
@@ -114,15 +131,27 @@ public class SQLRequestLog {
 
     }
 
+    /**
+     * Log a request which didn't reach the database, it isn't recorded in
+     * {@link SQLRequestMetrics}.
+     */
     public static void log(String query, String comment, long starAtMs, long startTime) {
-        log(query, comment, 0, starAtMs, startTime, startTime, startTime, startTime, startTime, startTime);
+        add(query, comment, 0, starAtMs, startTime, startTime, startTime, startTime, startTime, startTime);
+    }
+
+    public static void logCacheHit(String query, long starAtMs, long startTime) {
+        SQLRequestMetrics.getInstance().cacheHit(query);
+        log(query, "En cache.", starAtMs, startTime);
     }
 
     public static void log(PreparedStatement pStmt, String comment, long timeMs, long startTime, long afterCache, long afterQueryInfo, long afterExecute, long afterHandle, long endTime) {
+        // the text of the statement is too costly to obtain, so group by comment. Callers pass
+        // afterExecute as afterCache, measure from startTime instead (no cache nor connection wait).
+        SQLRequestMetrics.getInstance().executed(null, comment, timeMs, startTime, startTime, afterExecute, afterHandle, endTime, -1);
         // only call potentially expensive and/or exceptions throwing methods if necessary
         if (enabled) {
             try {
-                log(pStmt.toString(), comment, pStmt.getConnection(), timeMs, startTime, afterCache, afterQueryInfo, afterExecute, afterHandle, endTime);
+                add(pStmt.toString(), comment, System.identityHashCode(pStmt.getConnection()), timeMs, startTime, afterCache, afterQueryInfo, afterExecute, afterHandle, endTime);
             } catch (Exception e) {
                 // never propagate exceptions
                 Log.get().log(Level.WARNING, "Couldn't log " + pStmt, e);
@@ -131,7 +160,12 @@ public class SQLRequestLog {
     }
 
     public static void log(String query, String comment, Connection conn, long timeMs, long startTime, long afterCache, long afterQueryInfo, long afterExecute, long afterHandle, long endTime) {
-        log(query, comment, System.identityHashCode(conn), timeMs, startTime, afterCache, afterQueryInfo, afterExecute, afterHandle, endTime);
+        log(query, comment, conn, timeMs, startTime, afterCache, afterQueryInfo, afterExecute, afterHandle, endTime, -1);
+    }
+
+    public static void log(String query, String comment, Connection conn, long timeMs, long startTime, long afterCache, long afterQueryInfo, long afterExecute, long afterHandle, long endTime,
+            int rowCount) {
+        log(query, comment, System.identityHashCode(conn), timeMs, startTime, afterCache, afterQueryInfo, afterExecute, afterHandle, endTime, rowCount);
     }
 
     private static void fireEvent() {
@@ -448,6 +482,14 @@ public class SQLRequestLog {
             }
         });
         bar.add(b2);
+        final JButton b3 = new JButton("Show metrics");
+        b3.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                showMetrics();
+            }
+        });
+        bar.add(b3);
 
         p.add(bar, BorderLayout.NORTH);
         table.setAutoResizeMode(JTable.AUTO_RESIZE_OFF);
@@ -551,6 +593,18 @@ public class SQLRequestLog {
         return this.threadId;
     }
 
+    private static void showMetrics() {
+        final JTextArea area = new JTextArea(SQLRequestMetrics.getInstance().toString());
+        area.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        area.setEditable(false);
+        final JFrame fMetrics = new JFrame("Metrics");
+        fMetrics.setContentPane(new JScrollPane(area));
+        fMetrics.setSize(960, 600);
+        fMetrics.setLocationRelativeTo(null);
+        fMetrics.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        fMetrics.setVisible(true);
+    }
+
     private static void showStack(final SQLRequestLogModel model, TableRowSorter<TableModel> sorter, int s) {
         if (s >= 0 && s < model.getRowCount()) {
             final SQLRequestLog rowAt = model.getRowAt(sorter.convertRowIndexToModel(s));
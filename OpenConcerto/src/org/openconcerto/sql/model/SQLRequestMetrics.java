@@ -0,0 +1,836 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.sql.model;
+
+import org.openconcerto.sql.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+
+/**
+ * Always-on statistics about executed requests, fed by the timing points of {@link SQLRequestLog}.
+ * Requests are grouped by their normalized text (literals replaced by <code>?</code>) and for each
+ * group, counters and a latency histogram are maintained without locking. To avoid building the
+ * normalized text at each execution, requests are first looked up by a hash of their
+ * {@link #getShape(String) shape}, only the first request of each shape is normalized. Requests
+ * slower than {@link #getSlowThreshold() a threshold} are logged and kept in a small ring buffer.
+ * 
+ * @see #getQueryStats()
+ * @see #dump(Appendable, int)
+ */
+public final class SQLRequestMetrics {
+
+    /**
+     * System property to set the slow request threshold in milliseconds, negative to disable.
+     */
+    public static final String SLOW_THRESHOLD_PROP = "org.openconcerto.sql.slowRequestMs";
+    /**
+     * System property to disable metrics.
+     */
+    public static final String DISABLED_PROP = "org.openconcerto.sql.metrics.disabled";
+    /**
+     * Histogram bucket <code>i</code> holds durations in [2^(i-1), 2^i[ microseconds, the last one
+     * holds everything above.
+     */
+    public static final int BUCKETS = 24;
+
+    // maximum number of normalized requests, further ones are grouped in OTHER
+    private static final int MAX_QUERIES = 2048;
+    // maximum number of shapes, further ones are normalized at each execution
+    private static final int MAX_SHAPES = 8 * MAX_QUERIES;
+    // FNV-1a
+    private static final long HASH_OFFSET = 0xcbf29ce484222325L;
+    private static final long HASH_PRIME = 0x100000001b3L;
+    // bit set of the characters of a list of numbers, all below 64
+    private static final long NUMBER_LIST_CHARS = 0x3FFL << '0' | 1L << '.' | 1L << ',' | 1L << ' ';
+    // bounds of normalize(), lists of literals are collapsed so most requests are much shorter
+    private static final int MAX_SCANNED_LENGTH = 64 * 1024;
+    private static final int MAX_NORMALIZED_LENGTH = 2048;
+    private static final int SLOW_RING_SIZE = 64;
+    private static final int MAX_LOGGED_LENGTH = 2048;
+    private static final String OTHER = "<other>";
+
+    private static final SQLRequestMetrics INSTANCE = new SQLRequestMetrics();
+
+    public static SQLRequestMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    static int getBucket(final long nanos) {
+        final long micros = nanos / 1000;
+        final int res = 64 - Long.numberOfLeadingZeros(micros);
+        return res < BUCKETS ? res : BUCKETS - 1;
+    }
+
+    /**
+     * The upper bound of a bucket.
+     * 
+     * @param bucket a bucket index.
+     * @return the exclusive upper bound in nanoseconds, {@link Long#MAX_VALUE} for the last one.
+     */
+    public static long getBucketLimit(final int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) * 1000;
+    }
+
+    /**
+     * Replace literals by <code>?</code> so that requests differing only by their values are
+     * grouped. Lists of literals (e.g. in <code>IN (1, 2, 3)</code>) are collapsed to one
+     * <code>?</code> and whitespace runs to one space. At most {@value #MAX_SCANNED_LENGTH}
+     * characters are read and {@value #MAX_NORMALIZED_LENGTH} produced, a longer request is cut
+     * and ends with <code>...</code>.
+     * 
+     * @param query an SQL request.
+     * @return the normalized request.
+     */
+    public static String normalize(final String query) {
+        final int l = Math.min(query.length(), MAX_SCANNED_LENGTH);
+        final StringBuilder sb = new StringBuilder(Math.min(l, 512));
+        int i = 0;
+        while (i < l && sb.length() < MAX_NORMALIZED_LENGTH) {
+            final char c = query.charAt(i);
+            if (c == '\'') {
+                // string literal, '' is an escaped quote
+                i++;
+                while (i < l) {
+                    if (query.charAt(i) == '\'') {
+                        if (i + 1 < l && query.charAt(i + 1) == '\'')
+                            i += 2;
+                        else
+                            break;
+                    } else {
+                        i++;
+                    }
+                }
+                i++;
+                appendParam(sb);
+            } else if (c == '"' || c == '`') {
+                // quoted identifier, keep as is
+                final int end = query.indexOf(c, i + 1);
+                final int stop = end < 0 || end >= l ? l : end + 1;
+                sb.append(query, i, stop);
+                i = stop;
+            } else if (isDigit(c) && (sb.length() == 0 || !isIdentifierPart(sb.charAt(sb.length() - 1)))) {
+                i = skipNumber(query, i + 1, l);
+                // fast path for lists of numbers, e.g. "IN (1, 2, 3)"
+                int next = skipSpaces(query, i, l);
+                while (next < l && query.charAt(next) == ',') {
+                    next = skipSpaces(query, next + 1, l);
+                    if (next < l && isDigit(query.charAt(next))) {
+                        i = skipNumber(query, next + 1, l);
+                        next = skipSpaces(query, i, l);
+                    } else {
+                        break;
+                    }
+                }
+                // a minus sign is part of the literal if it isn't a subtraction
+                final int last = sb.length() - 1;
+                if (last >= 0 && sb.charAt(last) == '-' && (last == 0 || !isIdentifierPart(sb.charAt(last - 1)) && sb.charAt(last - 1) != ')'))
+                    sb.setLength(last);
+                appendParam(sb);
+            } else if (Character.isWhitespace(c)) {
+                if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ')
+                    sb.append(' ');
+                i++;
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+        if (i < query.length()) {
+            // don't depend on where a list was cut, e.g. "(?, " and "(?," both become "(?..."
+            int len = sb.length();
+            while (len > 0 && (sb.charAt(len - 1) == ',' || sb.charAt(len - 1) == ' '))
+                len--;
+            sb.setLength(len);
+            sb.append("...");
+        }
+        return sb.toString();
+    }
+
+    // getShape() reads a copy of the request, avoiding the checks of String.charAt()
+    private static final ThreadLocal<char[]> SHAPE_BUFFER = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[1024];
+        }
+    };
+
+    /**
+     * A hash of the structure of a request : literals and lists of literals are skipped and
+     * whitespace runs count as one space. Requests with the same normalized text can have
+     * different shapes (e.g. <code>-1</code> and <code>1</code>) but requests with the same shape
+     * have the same normalized text, barring hash collisions. This only reads the request once
+     * and doesn't build a string, so it's faster than {@link #normalize(String)}.
+     * 
+     * @param query an SQL request.
+     * @return the hash of its shape.
+     */
+    static long getShape(final String query) {
+        final int l = Math.min(query.length(), MAX_SCANNED_LENGTH);
+        char[] q = SHAPE_BUFFER.get();
+        if (q.length < l) {
+            q = new char[Math.min(Math.max(l, 2 * q.length), MAX_SCANNED_LENGTH)];
+            SHAPE_BUFFER.set(q);
+        }
+        query.getChars(0, l, q, 0);
+        long h = HASH_OFFSET;
+        boolean afterIdentifierPart = false;
+        int i = 0;
+        while (i < l) {
+            final char c = q[i];
+            if (c == '\'' || isDigit(c) && !afterIdentifierPart) {
+                i = skipLiterals(q, i, l);
+                h = (h ^ '?') * HASH_PRIME;
+                afterIdentifierPart = false;
+            } else if (c == '"' || c == '`') {
+                // quoted identifier, may contain digits or quotes
+                h = (h ^ c) * HASH_PRIME;
+                i++;
+                while (i < l && q[i] != c)
+                    h = (h ^ q[i++]) * HASH_PRIME;
+                if (i < l)
+                    h = (h ^ q[i++]) * HASH_PRIME;
+                afterIdentifierPart = false;
+            } else if (c <= ' ') {
+                i++;
+                while (i < l && q[i] <= ' ')
+                    i++;
+                h = (h ^ ' ') * HASH_PRIME;
+                afterIdentifierPart = false;
+            } else {
+                h = (h ^ c) * HASH_PRIME;
+                afterIdentifierPart = isIdentifierPart(c);
+                i++;
+            }
+        }
+        // the cut of a long request depends on its literals
+        return i < query.length() ? ~h : h;
+    }
+
+    // skip a literal and the following ones separated by commas, e.g. "1, -2, 'a'", as long as
+    // normalize() collapses them : only lists of numbers can have spaces before commas. Invalid
+    // lists like "1 2" or "1,,2" are also skipped.
+    private static int skipLiterals(final char[] q, int i, final int l) {
+        while (true) {
+            final boolean number = q[i] != '\'';
+            i++;
+            if (number) {
+                // one loop for the whole list, lists of ids are the longest requests
+                while (i < l && q[i] < 64 && (NUMBER_LIST_CHARS >>> q[i] & 1) != 0)
+                    i++;
+                while (q[i - 1] == ',' || q[i - 1] == ' ')
+                    i--;
+            } else {
+                while (i < l) {
+                    if (q[i] == '\'') {
+                        if (i + 1 < l && q[i + 1] == '\'')
+                            i += 2;
+                        else
+                            break;
+                    } else {
+                        i++;
+                    }
+                }
+                i++;
+            }
+            int next = i;
+            while (next < l && q[next] == ' ')
+                next++;
+            if (next >= l || q[next] != ',')
+                return i;
+            final boolean spaceBefore = next > i;
+            next++;
+            while (next < l && q[next] == ' ')
+                next++;
+            if (next >= l)
+                return i;
+            final char c = q[next];
+            if (isDigit(c) && (number || !spaceBefore)) {
+                i = next;
+            } else if (!spaceBefore && (c == '\'' || c == '-' && next + 1 < l && isDigit(q[next + 1]))) {
+                i = c == '-' ? next + 1 : next;
+            } else {
+                return i;
+            }
+        }
+    }
+
+    private static int skipNumber(final String query, int i, final int l) {
+        while (i < l && (isDigit(query.charAt(i)) || query.charAt(i) == '.'))
+            i++;
+        return i;
+    }
+
+    private static int skipSpaces(final String query, int i, final int l) {
+        while (i < l && query.charAt(i) == ' ')
+            i++;
+        return i;
+    }
+
+    private static void appendParam(final StringBuilder sb) {
+        final int len = sb.length();
+        // collapse "?, ?" and "?,?"
+        if (len >= 3 && sb.charAt(len - 1) == ' ' && sb.charAt(len - 2) == ',' && sb.charAt(len - 3) == '?') {
+            sb.setLength(len - 2);
+        } else if (len >= 2 && sb.charAt(len - 1) == ',' && sb.charAt(len - 2) == '?') {
+            sb.setLength(len - 1);
+        } else {
+            sb.append('?');
+        }
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isIdentifierPart(final char c) {
+        if (c < 128)
+            return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || isDigit(c) || c == '_' || c == '$' || c == '.';
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '.';
+    }
+
+    private static void updateMax(final AtomicLong max, final long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value))
+            current = max.get();
+    }
+
+    private static long[] toArray(final AtomicLongArray a) {
+        final long[] res = new long[a.length()];
+        for (int i = 0; i < res.length; i++)
+            res[i] = a.get(i);
+        return res;
+    }
+
+    private static final class Counters {
+        private final String query;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong cacheHits = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+        private final AtomicLong executeNanos = new AtomicLong();
+        private final AtomicLong handleNanos = new AtomicLong();
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicLong rowCounted = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        Counters(final String query) {
+            this.query = query;
+        }
+
+        void executed(final long wait, final long execute, final long handle, final long total, final int rowCount) {
+            this.count.incrementAndGet();
+            this.totalNanos.addAndGet(total);
+            updateMax(this.maxNanos, total);
+            this.waitNanos.addAndGet(wait);
+            this.executeNanos.addAndGet(execute);
+            this.handleNanos.addAndGet(handle);
+            if (rowCount >= 0) {
+                this.rows.addAndGet(rowCount);
+                this.rowCounted.incrementAndGet();
+            }
+            this.histogram.incrementAndGet(getBucket(total));
+        }
+
+        QueryStats getStats() {
+            return new QueryStats(this.query, this.count.get(), this.cacheHits.get(), this.totalNanos.get(), this.maxNanos.get(), this.waitNanos.get(), this.executeNanos.get(),
+                    this.handleNanos.get(), this.rows.get(), this.rowCounted.get(), toArray(this.histogram));
+        }
+    }
+
+    /**
+     * An immutable snapshot of the statistics of one normalized request. Times are in nanoseconds.
+     */
+    public static final class QueryStats {
+        private final String query;
+        private final long count, cacheHits, totalNanos, maxNanos, waitNanos, executeNanos, handleNanos, rows, rowCounted;
+        private final long[] histogram;
+
+        QueryStats(String query, long count, long cacheHits, long totalNanos, long maxNanos, long waitNanos, long executeNanos, long handleNanos, long rows, long rowCounted, long[] histogram) {
+            this.query = query;
+            this.count = count;
+            this.cacheHits = cacheHits;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.waitNanos = waitNanos;
+            this.executeNanos = executeNanos;
+            this.handleNanos = handleNanos;
+            this.rows = rows;
+            this.rowCounted = rowCounted;
+            this.histogram = histogram;
+        }
+
+        /**
+         * The normalized request.
+         * 
+         * @return the request, <code>null</code> for the global statistics.
+         */
+        public final String getQuery() {
+            return this.query;
+        }
+
+        /**
+         * The number of times the request was sent to the database.
+         * 
+         * @return the number of executions.
+         */
+        public final long getCount() {
+            return this.count;
+        }
+
+        public final long getCacheHits() {
+            return this.cacheHits;
+        }
+
+        /**
+         * The proportion of requests answered by the cache.
+         * 
+         * @return the hit ratio between 0 and 1, {@link Double#NaN} if there was no request.
+         */
+        public final double getCacheHitRatio() {
+            final long total = this.cacheHits + this.count;
+            return total == 0 ? Double.NaN : this.cacheHits / (double) total;
+        }
+
+        public final long getTotalNanos() {
+            return this.totalNanos;
+        }
+
+        public final long getMaxNanos() {
+            return this.maxNanos;
+        }
+
+        public final long getMeanNanos() {
+            return this.count == 0 ? 0 : this.totalNanos / this.count;
+        }
+
+        /**
+         * The total time spent waiting for a connection.
+         * 
+         * @return the time in nanoseconds.
+         */
+        public final long getWaitNanos() {
+            return this.waitNanos;
+        }
+
+        public final long getExecuteNanos() {
+            return this.executeNanos;
+        }
+
+        public final long getHandleNanos() {
+            return this.handleNanos;
+        }
+
+        /**
+         * The number of rows returned, only for requests whose result is a collection.
+         * 
+         * @return the number of rows.
+         * @see #getRowCounted()
+         */
+        public final long getRows() {
+            return this.rows;
+        }
+
+        /**
+         * The number of executions for which the rows were counted.
+         * 
+         * @return the number of executions included in {@link #getRows()}.
+         */
+        public final long getRowCounted() {
+            return this.rowCounted;
+        }
+
+        /**
+         * The latency histogram.
+         * 
+         * @return the number of executions per bucket.
+         * @see SQLRequestMetrics#getBucketLimit(int)
+         */
+        public final long[] getHistogram() {
+            return this.histogram.clone();
+        }
+
+        /**
+         * An upper bound of a percentile of the latency, precise to a factor of 2.
+         * 
+         * @param p the percentile between 0 and 1, e.g. 0.99.
+         * @return the upper bound of the bucket containing the percentile in nanoseconds, 0 if
+         *         there was no execution.
+         */
+        public final long getPercentile(final double p) {
+            if (p < 0 || p > 1)
+                throw new IllegalArgumentException("Not between 0 and 1 : " + p);
+            long total = 0;
+            for (final long c : this.histogram)
+                total += c;
+            if (total == 0)
+                return 0;
+            final long rank = Math.max(1, (long) Math.ceil(p * total));
+            long seen = 0;
+            for (int i = 0; i < this.histogram.length; i++) {
+                seen += this.histogram[i];
+                if (seen >= rank)
+                    return Math.min(getBucketLimit(i), this.maxNanos);
+            }
+            return this.maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return this.getClass().getSimpleName() + " " + this.count + " executions, " + this.cacheHits + " cache hits, mean " + this.getMeanNanos() / 1000 + " us : " + this.query;
+        }
+    }
+
+    /**
+     * A request slower than the threshold.
+     */
+    public static final class SlowQuery {
+        private final long startMs;
+        private final long durationNanos;
+        private final String query;
+        private final String comment;
+        private final String thread;
+
+        SlowQuery(long startMs, long durationNanos, String query, String comment, String thread) {
+            this.startMs = startMs;
+            this.durationNanos = durationNanos;
+            this.query = query;
+            this.comment = comment;
+            this.thread = thread;
+        }
+
+        public final long getStartMs() {
+            return this.startMs;
+        }
+
+        public final long getDurationNanos() {
+            return this.durationNanos;
+        }
+
+        public final String getQuery() {
+            return this.query;
+        }
+
+        public final String getComment() {
+            return this.comment;
+        }
+
+        public final String getThread() {
+            return this.thread;
+        }
+
+        @Override
+        public String toString() {
+            return this.durationNanos / 1000000 + " ms in " + this.thread + " (" + this.comment + ") : " + this.query;
+        }
+    }
+
+    private static final class Groups {
+        // normalized request -> counters
+        private final ConcurrentMap<String, Counters> byNormalized = new ConcurrentHashMap<String, Counters>(256);
+        // shape -> counters of its normalized request
+        private final ConcurrentMap<Long, Counters> byShape = new ConcurrentHashMap<Long, Counters>(1024);
+    }
+
+    private volatile boolean enabled;
+    private volatile long slowThresholdNanos;
+    // replaced by reset() so that a concurrent execution can't add stale counters
+    private volatile Groups groups;
+    private final Counters global;
+    private final AtomicLongArray waitHistogram;
+    private final AtomicReferenceArray<SlowQuery> slowQueries;
+    private final AtomicInteger slowIndex;
+
+    private SQLRequestMetrics() {
+        this.enabled = !Boolean.getBoolean(DISABLED_PROP);
+        this.setSlowThreshold(Long.getLong(SLOW_THRESHOLD_PROP, 1000));
+        this.groups = new Groups();
+        this.global = new Counters(null);
+        this.waitHistogram = new AtomicLongArray(BUCKETS);
+        this.slowQueries = new AtomicReferenceArray<SlowQuery>(SLOW_RING_SIZE);
+        this.slowIndex = new AtomicInteger();
+    }
+
+    public final boolean isEnabled() {
+        return this.enabled;
+    }
+
+    public final void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * The threshold above which requests are logged.
+     * 
+     * @return the threshold in milliseconds, negative if disabled.
+     */
+    public final long getSlowThreshold() {
+        final long nanos = this.slowThresholdNanos;
+        return nanos == Long.MAX_VALUE ? -1 : nanos / 1000000;
+    }
+
+    public final void setSlowThreshold(final long ms) {
+        this.slowThresholdNanos = ms < 0 ? Long.MAX_VALUE : ms * 1000000;
+    }
+
+    // no memo of the raw text : most requests only differ by their values so it would always miss
+    private Counters getCounters(final String query) {
+        final Groups g = this.groups;
+        final Long shape = getShape(query);
+        Counters res = g.byShape.get(shape);
+        if (res == null) {
+            final String normalized = normalize(query);
+            res = g.byNormalized.get(normalized);
+            if (res == null) {
+                if (g.byNormalized.size() >= MAX_QUERIES) {
+                    res = g.byNormalized.get(OTHER);
+                    if (res == null)
+                        res = putIfAbsent(g.byNormalized, OTHER);
+                } else {
+                    res = putIfAbsent(g.byNormalized, normalized);
+                }
+            }
+            if (g.byShape.size() < MAX_SHAPES)
+                g.byShape.put(shape, res);
+        }
+        return res;
+    }
+
+    private static Counters putIfAbsent(final ConcurrentMap<String, Counters> m, final String key) {
+        final Counters newCounters = new Counters(key);
+        final Counters prev = m.putIfAbsent(key, newCounters);
+        return prev == null ? newCounters : prev;
+    }
+
+    /**
+     * Record a request answered by the cache.
+     * 
+     * @param query the request.
+     */
+    public final void cacheHit(final String query) {
+        if (!this.enabled)
+            return;
+        this.global.cacheHits.incrementAndGet();
+        this.getCounters(query).cacheHits.incrementAndGet();
+    }
+
+    /**
+     * Record a request sent to the database.
+     * 
+     * @param query the request, can be <code>null</code> if too costly to obtain.
+     * @param comment the comment, used to group requests if <code>query</code> is
+     *        <code>null</code>.
+     * @param startMs when the request started.
+     * @param afterCache when the cache was checked, this is the start of the measured time.
+     * @param afterQueryInfo when a connection was obtained.
+     * @param afterExecute when the database returned.
+     * @param afterHandle when the result was handled.
+     * @param endTime the end of the request.
+     * @param rowCount the number of returned rows, negative if unknown.
+     */
+    public final void executed(final String query, final String comment, final long startMs, final long afterCache, final long afterQueryInfo, final long afterExecute, final long afterHandle,
+            final long endTime, final int rowCount) {
+        if (!this.enabled)
+            return;
+        final long wait = afterQueryInfo - afterCache;
+        final long execute = afterExecute - afterQueryInfo;
+        final long handle = afterHandle - afterExecute;
+        final long total = endTime - afterCache;
+        this.global.executed(wait, execute, handle, total, rowCount);
+        this.waitHistogram.incrementAndGet(getBucket(wait));
+        this.getCounters(query == null ? "<" + comment + ">" : query).executed(wait, execute, handle, total, rowCount);
+        if (total >= this.slowThresholdNanos)
+            this.slow(query, comment, startMs, total);
+    }
+
+    private void slow(final String query, final String comment, final long startMs, final long total) {
+        final String q = query == null ? null : (query.length() > MAX_LOGGED_LENGTH ? query.substring(0, MAX_LOGGED_LENGTH) + "..." : query);
+        final SlowQuery slowQuery = new SlowQuery(startMs, total, q, comment, "[" + Thread.currentThread().getId() + "] " + Thread.currentThread().getName());
+        this.slowQueries.set((this.slowIndex.getAndIncrement() & Integer.MAX_VALUE) % SLOW_RING_SIZE, slowQuery);
+        Log.get().log(Level.INFO, "Slow request : {0}", slowQuery);
+    }
+
+    /**
+     * Statistics of all requests.
+     * 
+     * @return the global statistics.
+     */
+    public final QueryStats getGlobalStats() {
+        return this.global.getStats();
+    }
+
+    /**
+     * The histogram of the time spent waiting for a connection.
+     * 
+     * @return the number of requests per bucket.
+     * @see #getBucketLimit(int)
+     */
+    public final long[] getConnectionWaitHistogram() {
+        return toArray(this.waitHistogram);
+    }
+
+    /**
+     * Statistics per normalized request.
+     * 
+     * @return the statistics, most time consuming first.
+     */
+    public final List<QueryStats> getQueryStats() {
+        final Collection<Counters> counters = this.groups.byNormalized.values();
+        final List<QueryStats> res = new ArrayList<QueryStats>(counters.size());
+        for (final Counters c : counters)
+            res.add(c.getStats());
+        Collections.sort(res, new Comparator<QueryStats>() {
+            @Override
+            public int compare(QueryStats o1, QueryStats o2) {
+                final long t1 = o1.getTotalNanos(), t2 = o2.getTotalNanos();
+                return t1 < t2 ? 1 : (t1 == t2 ? 0 : -1);
+            }
+        });
+        return res;
+    }
+
+    /**
+     * The last slow requests.
+     * 
+     * @return the slow requests, oldest first.
+     */
+    public final List<SlowQuery> getSlowQueries() {
+        final int end = this.slowIndex.get() & Integer.MAX_VALUE;
+        final List<SlowQuery> res = new ArrayList<SlowQuery>(SLOW_RING_SIZE);
+        for (int i = 0; i < SLOW_RING_SIZE; i++) {
+            final SlowQuery q = this.slowQueries.get((end + i) % SLOW_RING_SIZE);
+            if (q != null)
+                res.add(q);
+        }
+        return res;
+    }
+
+    /**
+     * Forget all statistics. Not atomic : requests executing concurrently may be partially
+     * counted.
+     */
+    public final void reset() {
+        this.groups = new Groups();
+        for (final AtomicLong l : new AtomicLong[] { this.global.count, this.global.cacheHits, this.global.totalNanos, this.global.maxNanos, this.global.waitNanos, this.global.executeNanos,
+                this.global.handleNanos, this.global.rows, this.global.rowCounted })
+            l.set(0);
+        for (int i = 0; i < BUCKETS; i++) {
+            this.global.histogram.set(i, 0);
+            this.waitHistogram.set(i, 0);
+        }
+        for (int i = 0; i < SLOW_RING_SIZE; i++)
+            this.slowQueries.set(i, null);
+    }
+
+    /**
+     * Write a human readable report.
+     * 
+     * @param out where to write.
+     * @param max the maximum number of requests to write, negative for all.
+     * @throws IOException if an error occurs while writing.
+     */
+    public final void dump(final Appendable out, final int max) throws IOException {
+        final QueryStats g = this.getGlobalStats();
+        out.append("Requests: ").append(String.valueOf(g.getCount())).append(", cache hits: ").append(String.valueOf(g.getCacheHits()));
+        out.append(" (").append(formatRatio(g.getCacheHitRatio())).append(")\n");
+        out.append("Total: ").append(formatMs(g.getTotalNanos())).append(", connection wait: ").append(formatMs(g.getWaitNanos())).append(", execute: ").append(formatMs(g.getExecuteNanos()));
+        out.append(", handle: ").append(formatMs(g.getHandleNanos())).append(", rows: ").append(String.valueOf(g.getRows())).append('\n');
+        out.append("Latency p50: ").append(formatMs(g.getPercentile(0.5))).append(", p99: ").append(formatMs(g.getPercentile(0.99))).append(", max: ").append(formatMs(g.getMaxNanos()));
+        out.append('\n');
+        appendHistogram(out, "Latency", g.getHistogram());
+        appendHistogram(out, "Connection wait", this.getConnectionWaitHistogram());
+
+        out.append("\nBy request (total, count, mean, p99, max, cache hit ratio, rows):\n");
+        final List<QueryStats> stats = this.getQueryStats();
+        final int stop = max < 0 ? stats.size() : Math.min(max, stats.size());
+        for (int i = 0; i < stop; i++) {
+            final QueryStats s = stats.get(i);
+            out.append(formatMs(s.getTotalNanos())).append('\t').append(String.valueOf(s.getCount())).append('\t').append(formatMs(s.getMeanNanos())).append('\t');
+            out.append(formatMs(s.getPercentile(0.99))).append('\t').append(formatMs(s.getMaxNanos())).append('\t').append(formatRatio(s.getCacheHitRatio())).append('\t');
+            out.append(String.valueOf(s.getRows())).append('\t').append(s.getQuery()).append('\n');
+        }
+        if (stop < stats.size())
+            out.append("... ").append(String.valueOf(stats.size() - stop)).append(" more\n");
+
+        final List<SlowQuery> slowQueries = this.getSlowQueries();
+        if (!slowQueries.isEmpty()) {
+            out.append("\nSlow requests:\n");
+            for (final SlowQuery q : slowQueries)
+                out.append(q.toString()).append('\n');
+        }
+    }
+
+    /**
+     * Write the statistics per request in CSV.
+     * 
+     * @param out where to write.
+     * @throws IOException if an error occurs while writing.
+     */
+    public final void exportCSV(final Appendable out) throws IOException {
+        out.append("query;count;cacheHits;totalNanos;maxNanos;waitNanos;executeNanos;handleNanos;rows;rowCounted");
+        for (int i = 0; i < BUCKETS; i++)
+            out.append(";<").append(i == BUCKETS - 1 ? "inf" : String.valueOf(1L << i)).append("us");
+        out.append('\n');
+        for (final QueryStats s : this.getQueryStats()) {
+            out.append('"').append(s.getQuery().replace("\"", "\"\"")).append('"');
+            for (final long l : new long[] { s.getCount(), s.getCacheHits(), s.getTotalNanos(), s.getMaxNanos(), s.getWaitNanos(), s.getExecuteNanos(), s.getHandleNanos(), s.getRows(),
+                    s.getRowCounted() })
+                out.append(';').append(String.valueOf(l));
+            for (final long l : s.getHistogram())
+                out.append(';').append(String.valueOf(l));
+            out.append('\n');
+        }
+    }
+
+    private static void appendHistogram(final Appendable out, final String name, final long[] histogram) throws IOException {
+        out.append(name).append(" histogram:");
+        for (int i = 0; i < histogram.length; i++) {
+            if (histogram[i] > 0)
+                out.append(" <").append(i == BUCKETS - 1 ? "inf" : formatMs(getBucketLimit(i))).append(": ").append(String.valueOf(histogram[i]));
+        }
+        out.append('\n');
+    }
+
+    private static String formatMs(final long nanos) {
+        return String.format("%.3f ms", nanos / 1000000D);
+    }
+
+    private static String formatRatio(final double ratio) {
+        return Double.isNaN(ratio) ? "-" : String.format("%.1f%%", ratio * 100);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(4096);
+        try {
+            this.dump(sb, 50);
+        } catch (IOException e) {
+            // StringBuilder doesn't throw
+            throw new IllegalStateException(e);
+        }
+        return sb.toString();
+    }
+}
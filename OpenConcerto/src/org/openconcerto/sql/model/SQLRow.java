@@ -36,6 +36,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -45,6 +46,8 @@ import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.Predicate;
 import org.apache.commons.dbutils.ResultSetHandler;
 
+import net.jcip.annotations.GuardedBy;
+
 /**
  * Une ligne d'une table. Cette classe décrit une ligne et ne représente pas exactement une ligne
  * réelle, il n'y a pas unicité (cela reviendrait à recréer la base en Java !). Pour charger les
@@ -181,13 +184,229 @@ public class SQLRow extends SQLRowAccessor {
             if (row != null)
                 res.add(row);
         }
+        setSiblings(res);
+        return res;
+    }
+
+    /**
+     * Maximum number of IDs in one query of {@link #prefetch(Collection, Collection)}.
+     */
+    static final int PREFETCH_SIZE = 1000;
+
+    /**
+     * Les valeurs de lignes d'une même table, chargées toutes ensemble en une requête par paquet de
+     * {@value #PREFETCH_SIZE} dès que l'on demande celles de l'une d'elles. Si la table est modifiée
+     * après le chargement, les lignes non encore remplies doivent se recharger elles-mêmes.
+     */
+    private static final class Batch {
+        private final SQLTable table;
+        private final List<Integer> ids;
+        private final Set<Integer> idSet;
+        // null until fetched
+        private Map<Integer, Map<String, Object>> values;
+        private int modifCount;
+
+        Batch(final SQLTable table, final Collection<Integer> ids) {
+            this.table = table;
+            this.ids = new ArrayList<Integer>(ids);
+            this.idSet = new HashSet<Integer>(ids);
+        }
+
+        final boolean contains(final int id) {
+            return this.idSet.contains(id);
+        }
+
+        /**
+         * Remplit la ligne passée. Synchronisée pour ne charger les lignes qu'une seule fois, les
+         * appels concurrents attendent la fin du chargement.
+         * 
+         * @param r une ligne de la table.
+         * @return <code>false</code> si <code>r</code> n'est pas dans ce paquet ou si les valeurs
+         *         chargées ne sont plus à jour.
+         */
+        synchronized final boolean fill(final SQLRow r) {
+            if (!this.contains(r.getID()))
+                return false;
+            if (this.values == null) {
+                // before the request, so that a concurrent modification invalidates the result
+                this.modifCount = this.table.getModificationCount();
+                this.values = fetch(this.table, this.ids, null);
+            } else if (this.modifCount != this.table.getModificationCount()) {
+                return false;
+            }
+            final Map<String, Object> v = this.values.get(r.getID());
+            r.setValues(v == null ? null : new HashMap<String, Object>(v));
+            return true;
+        }
+    }
+
+    /**
+     * Des lignes chargées ensemble, e.g. par une même requête. Lorsque l'on demande la ligne
+     * pointée par une clef étrangère de l'une d'elles, celles pointées par cette clef pour toutes
+     * les lignes sont chargées en une seule requête. On évite ainsi une requête par ligne lors du
+     * parcours d'une liste, e.g. les comptes des écritures du grand livre.
+     */
+    private static final class Siblings {
+        private final List<SQLRow> rows;
+        @GuardedBy("this")
+        private final Map<String, Batch> foreignBatches;
+
+        Siblings(final List<SQLRow> rows) {
+            this.rows = rows;
+            this.foreignBatches = new HashMap<String, Batch>();
+        }
+
+        synchronized final Batch getForeignBatch(final SQLField field, final SQLTable foreignTable) {
+            Batch res = this.foreignBatches.get(field.getName());
+            if (res == null) {
+                final Set<Integer> ids = new LinkedHashSet<Integer>();
+                for (final SQLRow r : this.rows) {
+                    // only already loaded rows, never make a request
+                    final Map<String, Object> v = r.fetched ? r.values : null;
+                    final Object id = v == null ? null : v.get(field.getName());
+                    if (id instanceof Number)
+                        ids.add(((Number) id).intValue());
+                }
+                res = new Batch(foreignTable, ids);
+                this.foreignBatches.put(field.getName(), res);
+            }
+            return res;
+        }
+    }
+
+    // group by PREFETCH_SIZE to limit both the size of requests and the rows kept in memory
+    private static void setSiblings(final List<SQLRow> rows) {
+        if (rows.size() < 2)
+            return;
+        for (int i = 0; i < rows.size(); i += PREFETCH_SIZE) {
+            final List<SQLRow> chunk = new ArrayList<SQLRow>(rows.subList(i, Math.min(i + PREFETCH_SIZE, rows.size())));
+            final Siblings siblings = new Siblings(chunk);
+            for (final SQLRow r : chunk)
+                r.siblings = siblings;
+        }
+    }
+
+    // the values of the rows of t, by chunks of PREFETCH_SIZE, missing rows are absent from the
+    // result
+    private static Map<Integer, Map<String, Object>> fetch(final SQLTable t, final List<Integer> ids, final Collection<String> fields) {
+        final Map<Integer, Map<String, Object>> res = new HashMap<Integer, Map<String, Object>>();
+        for (int i = 0; i < ids.size(); i += PREFETCH_SIZE) {
+            final List<Integer> chunk = ids.subList(i, Math.min(i + PREFETCH_SIZE, ids.size()));
+            final SQLSelect sel = new SQLSelect(true);
+            if (fields == null) {
+                sel.addSelectStar(t);
+            } else {
+                final Set<String> names = new LinkedHashSet<String>(fields);
+                names.add(t.getKey().getName());
+                sel.addAllSelect(t, names);
+            }
+            sel.setWhere(new Where(t.getKey(), chunk));
+            // don't cache : the same list of IDs is unlikely to be requested again
+            @SuppressWarnings("unchecked")
+            final List<SQLRow> fetchedRows = (List<SQLRow>) t.getDBSystemRoot().getDataSource().execute(sel.asString(), new IResultSetHandler(SQLRowListRSH.createFromSelect(sel, t), false));
+            for (final SQLRow fetchedRow : fetchedRows)
+                res.put(fetchedRow.getID(), fetchedRow.values);
+        }
         return res;
     }
 
+    /**
+     * Crée des lignes non chargées, qui le seront toutes ensemble dès que l'on accédera aux valeurs
+     * de l'une d'elles.
+     * 
+     * @param table la table des lignes.
+     * @param ids les identifiants des lignes.
+     * @return les lignes indexées par ID, dans l'ordre de <code>ids</code>.
+     */
+    static Map<Integer, SQLRow> createBatch(final SQLTable table, final Collection<? extends Number> ids) {
+        final Map<Integer, SQLRow> res = new LinkedHashMap<Integer, SQLRow>();
+        for (final Number id : ids) {
+            if (id != null && !res.containsKey(id.intValue()))
+                res.put(id.intValue(), new SQLRow(table, id.intValue()));
+        }
+        final Batch batch = new Batch(table, res.keySet());
+        for (final SQLRow r : res.values())
+            r.batch = batch;
+        setSiblings(new ArrayList<SQLRow>(res.values()));
+        return res;
+    }
+
+    /**
+     * Charge en une seule requête par table les valeurs des lignes passées qui ne l'ont pas encore
+     * été.
+     * 
+     * @param rows les lignes à charger.
+     * @see #prefetch(Collection, Collection)
+     */
+    public static void prefetch(final Collection<? extends SQLRow> rows) {
+        prefetch(rows, null);
+    }
+
+    /**
+     * Charge, par paquets de {@value #PREFETCH_SIZE}, les valeurs des lignes passées qui ne l'ont
+     * pas encore été. Les lignes inexistantes sont marquées comme telles, cf {@link #exists()}.
+     * 
+     * @param rows les lignes à charger, éventuellement de tables différentes.
+     * @param fields les champs à charger, <code>null</code> pour tous. Comme toujours, un champ
+     *        absent sera chargé (avec tous les autres) à la demande.
+     */
+    public static void prefetch(final Collection<? extends SQLRow> rows, final Collection<String> fields) {
+        final Map<SQLTable, ListMap<Integer, SQLRow>> byTable = new LinkedHashMap<SQLTable, ListMap<Integer, SQLRow>>();
+        for (final SQLRow r : rows) {
+            if (r.fetched)
+                continue;
+            ListMap<Integer, SQLRow> byID = byTable.get(r.getTable());
+            if (byID == null) {
+                byID = new ListMap<Integer, SQLRow>();
+                byTable.put(r.getTable(), byID);
+            }
+            byID.add(r.getID(), r);
+        }
+        for (final Map.Entry<SQLTable, ListMap<Integer, SQLRow>> e : byTable.entrySet()) {
+            final ListMap<Integer, SQLRow> byID = e.getValue();
+            final Map<Integer, Map<String, Object>> values = fetch(e.getKey(), new ArrayList<Integer>(byID.keySet()), fields);
+            for (final Map.Entry<Integer, List<SQLRow>> idRows : byID.entrySet()) {
+                // missing rows don't exist
+                final Map<String, Object> v = values.get(idRows.getKey());
+                for (final SQLRow r : idRows.getValue()) {
+                    if (!r.fetched)
+                        r.setValues(v == null ? null : new HashMap<String, Object>(v));
+                }
+            }
+        }
+    }
+
+    /**
+     * Les lignes pointées par un champ d'un ensemble de lignes. Les lignes retournées ne sont pas
+     * chargées, elles le seront toutes en une requête au premier accès.
+     * 
+     * @param rows des lignes d'une même table, e.g. des écritures.
+     * @param foreignField une clef étrangère, e.g. "ID_COMPTE_PCE".
+     * @return les lignes pointées indexées par ID, e.g. les comptes des écritures.
+     */
+    public static Map<Integer, SQLRow> getForeignRowsByID(final Collection<? extends SQLRowAccessor> rows, final String foreignField) {
+        if (rows.isEmpty())
+            return Collections.emptyMap();
+        final SQLTable foreignTable = rows.iterator().next().getTable().getForeignTable(foreignField);
+        final List<Number> ids = new ArrayList<Number>(rows.size());
+        for (final SQLRowAccessor r : rows) {
+            final Object id = r.getObject(foreignField);
+            if (id instanceof Number)
+                ids.add((Number) id);
+            else if (id instanceof SQLRowAccessor)
+                ids.add(((SQLRowAccessor) id).getIDNumber());
+        }
+        return createBatch(foreignTable, ids);
+    }
+
     private final int ID;
     private final Number idNumber;
     private Map<String, Object> values;
     private boolean fetched;
+    // rows to fetch along with this one, null once fetched
+    private Batch batch;
+    // rows loaded along with this one, null if alone
+    private Siblings siblings;
 
     private SQLRow(SQLTable table, Number id) {
         super(table);
@@ -244,8 +463,13 @@ public class SQLRow extends SQLRowAccessor {
     }
 
     private Map<String, Object> getValues() {
-        if (!this.fetched)
-            this.fetchValues();
+        if (!this.fetched) {
+            final Batch b = this.batch;
+            this.batch = null;
+            // if not in the batch or if the batch is no longer up to date
+            if (b == null || !b.fill(this))
+                this.fetchValues();
+        }
         return this.values;
     }
 
@@ -286,6 +510,7 @@ public class SQLRow extends SQLRowAccessor {
         this.values = values;
         if (!this.fetched)
             this.fetched = true;
+        this.batch = null;
     }
 
     /**
@@ -475,6 +700,13 @@ public class SQLRow extends SQLRowAccessor {
         } else {
             final int foreignID = this.getInt(field.getName());
             final SQLRow foreignRow = new SQLRow(foreignTable, foreignID);
+            // load it along with the rows pointed to by our siblings
+            final Siblings s = this.siblings;
+            if (s != null) {
+                final Batch b = s.getForeignBatch(field, foreignTable);
+                if (b.contains(foreignID))
+                    foreignRow.batch = b;
+            }
             // we used to check coherence here before all our dbs had real foreign keys
             return mode.filter(foreignRow);
         }
@@ -14,6 +14,7 @@
  package org.openconcerto.sql.model;
 
 import org.openconcerto.utils.Tuple2;
+import org.openconcerto.utils.cc.IPredicate;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -146,6 +147,38 @@ public final class SQLRowListRSH implements ResultSetHandler {
         return (List<SQLRow>) indexes.get0().getDBSystemRoot().getDataSource().execute(sel.asString(), create(indexes));
     }
 
+    /**
+     * Pass each row of <code>sel</code> to <code>visitor</code> without loading the whole result.
+     * 
+     * @param sel the select, must only have one table.
+     * @param fetchSize the number of rows to fetch at a time, e.g.
+     *        {@link SQLDataSource#DEFAULT_FETCH_SIZE}.
+     * @param visitor passed each row, returns <code>false</code> to stop.
+     * @return the number of rows passed to <code>visitor</code>.
+     * @throws SQLException if an error occurs.
+     * @see SQLDataSource#executeStreaming(String, int, ResultSetHandler)
+     */
+    static public int stream(final SQLSelect sel, final int fetchSize, final IPredicate<? super SQLRow> visitor) throws SQLException {
+        final Tuple2<SQLTable, List<String>> indexes = getIndexes(sel, null, true);
+        final SQLTable t = indexes.get0();
+        final List<String> names = indexes.get1();
+        return ((Number) t.getDBSystemRoot().getDataSource().executeStreaming(sel.asString(), fetchSize, new ResultSetHandler() {
+            @Override
+            public Object handle(ResultSet rs) throws SQLException {
+                int count = 0;
+                boolean goOn = true;
+                while (goOn && rs.next()) {
+                    final SQLRow row = SQLRow.createFromRS(t, rs, names);
+                    if (row != null) {
+                        count++;
+                        goOn = visitor.evaluateChecked(row);
+                    }
+                }
+                return count;
+            }
+        })).intValue();
+    }
+
     private final SQLTable t;
     private final boolean tableOnly;
 
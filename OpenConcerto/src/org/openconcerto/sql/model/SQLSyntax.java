@@ -26,6 +26,7 @@ import org.openconcerto.utils.CollectionUtils;
 import org.openconcerto.utils.CompareUtils;
 import org.openconcerto.utils.ListMap;
 import org.openconcerto.utils.NetUtils;
+import org.openconcerto.utils.StreamUtils;
 import org.openconcerto.utils.StringUtils;
 import org.openconcerto.utils.Tuple2;
 import org.openconcerto.utils.cc.IClosure;
@@ -33,7 +34,10 @@ import org.openconcerto.utils.cc.ITransformer;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.sql.DatabaseMetaData;
 import java.sql.SQLException;
@@ -785,6 +789,47 @@ public abstract class SQLSyntax {
 
     protected abstract void _loadData(File f, SQLTable t) throws IOException, SQLException;
 
+    /**
+     * Load data from a stream in the same format as the files of
+     * {@link #storeData(DBRoot, File)}. This allows to decompress on the fly.
+     * 
+     * @param in the CSV data, not closed by this method.
+     * @param t the table to fill.
+     * @param delete <code>true</code> if the table should be emptied before loading.
+     * @param level the level to log at, <code>null</code> to not log.
+     * @throws IOException if an error occurs while reading <code>in</code>.
+     * @throws SQLException if an error occurs while loading data into the database.
+     */
+    public final void loadData(final InputStream in, final SQLTable t, final boolean delete, final Level level) throws IOException, SQLException {
+        if (level != null)
+            Log.get().log(level, "loading stream into " + t.getSQLName() + "... ");
+        if (delete)
+            t.getBase().getDataSource().execute("DELETE FROM " + t.getSQLName().quote());
+        _loadData(in, t);
+        t.fireTableModified(SQLRow.NONEXISTANT_ID);
+        if (level != null)
+            Log.get().log(level, "done loading into " + t.getSQLName());
+    }
+
+    /**
+     * Load data from a stream. This implementation goes through a temporary file, systems able to
+     * read from the client connection should override it.
+     * 
+     * @param in the CSV data.
+     * @param t the table to fill.
+     * @throws IOException if an error occurs while reading <code>in</code>.
+     * @throws SQLException if an error occurs while loading data into the database.
+     */
+    protected void _loadData(final InputStream in, final SQLTable t) throws IOException, SQLException {
+        final File tmp = File.createTempFile(getClass().getSimpleName() + "loadData", DATA_EXT);
+        try {
+            StreamUtils.copy(in, tmp);
+            _loadData(tmp, t);
+        } finally {
+            tmp.delete();
+        }
+    }
+
     /**
      * Dump the rows of <code>r</code> to <code>dir</code>. One file per table, named tableName
      * {@link #DATA_EXT} in CSV format (field sep: ",", field delimiter: "\"", line sep: "\n") with
@@ -814,6 +859,45 @@ public abstract class SQLSyntax {
 
     protected abstract void _storeData(SQLTable t, File f) throws IOException;
 
+    /**
+     * Dump the rows of <code>t</code> to a stream, in the same format as
+     * {@link #storeData(DBRoot, File)}. This allows to compress on the fly.
+     * 
+     * @param t the table to dump.
+     * @param out where to write the CSV data, not closed by this method.
+     * @throws IOException if an error occurred.
+     */
+    public final void storeData(final SQLTable t, final OutputStream out) throws IOException {
+        this._storeData(t, out);
+    }
+
+    /**
+     * Dump the rows of a table to a stream. This implementation goes through a temporary file,
+     * systems able to write to the client connection should override it.
+     * 
+     * @param t the table to dump.
+     * @param out where to write the CSV data.
+     * @throws IOException if an error occurred.
+     */
+    protected void _storeData(final SQLTable t, final OutputStream out) throws IOException {
+        final File tmp = File.createTempFile(getClass().getSimpleName() + "storeData", DATA_EXT);
+        try {
+            // some systems cannot overwrite files
+            tmp.delete();
+            _storeData(t, tmp);
+            if (tmp.exists()) {
+                final InputStream in = new FileInputStream(tmp);
+                try {
+                    StreamUtils.copy(in, out);
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
     /**
      * Whether the passed server runs on this machine.
      * 
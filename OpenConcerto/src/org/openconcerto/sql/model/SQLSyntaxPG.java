@@ -30,6 +30,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.sql.Array;
 import java.sql.Blob;
@@ -263,19 +265,22 @@ class SQLSyntaxPG extends SQLSyntax {
 
     @Override
     public void _loadData(final File f, final SQLTable t) throws IOException, SQLException {
+        final FileInputStream in = new FileInputStream(f);
+        try {
+            _loadData(in, t);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    protected void _loadData(final InputStream in, final SQLTable t) throws IOException, SQLException {
         final String copy = "COPY " + t.getSQLName().quote() + " FROM STDIN " + getDataOptions(t.getBase()) + ";";
         final Number count = t.getDBSystemRoot().getDataSource().useConnection(new ConnectionHandlerNoSetup<Number, IOException>() {
             @Override
             public Number handle(SQLDataSource ds) throws SQLException, IOException {
-                FileInputStream in = null;
-                try {
-                    in = new FileInputStream(f);
-                    final Connection conn = ((DelegatingConnection) ds.getConnection()).getInnermostDelegate();
-                    return ((PGConnection) conn).getCopyAPI().copyIn(copy, in);
-                } finally {
-                    if (in != null)
-                        in.close();
-                }
+                final Connection conn = ((DelegatingConnection) ds.getConnection()).getInnermostDelegate();
+                return ((PGConnection) conn).getCopyAPI().copyIn(copy, in);
             }
         });
 
@@ -297,6 +302,20 @@ class SQLSyntaxPG extends SQLSyntax {
         if (t.getFields().size() == 0)
             return;
 
+        final FileOutputStream out = new FileOutputStream(f);
+        try {
+            _storeData(t, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    protected void _storeData(final SQLTable t, final OutputStream out) throws IOException {
+        // if there's no fields, there's no data
+        if (t.getFields().size() == 0)
+            return;
+
         final String cols = CollectionUtils.join(t.getOrderedFields(), ",", new ITransformer<SQLField, String>() {
             @Override
             public String transformChecked(SQLField f) {
@@ -310,18 +329,11 @@ class SQLSyntaxPG extends SQLSyntax {
                 @Override
                 public Number handle(SQLDataSource ds) throws SQLException, IOException {
                     final Connection conn = ((DelegatingConnection) ds.getConnection()).getInnermostDelegate();
-                    FileOutputStream out = null;
-                    try {
-                        out = new FileOutputStream(f);
-                        return ((PGConnection) conn).getCopyAPI().copyOut(sql, out);
-                    } finally {
-                        if (out != null)
-                            out.close();
-                    }
+                    return ((PGConnection) conn).getCopyAPI().copyOut(sql, out);
                 }
             });
         } catch (Exception e) {
-            throw new IOException("unable to store " + t + " into " + f, e);
+            throw new IOException("unable to store " + t, e);
         }
     }
 
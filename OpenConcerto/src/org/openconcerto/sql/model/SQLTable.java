@@ -56,6 +56,7 @@ import java.util.ListIterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -312,6 +313,8 @@ public final class SQLTable extends SQLIdentifier implements SQLData, TableRef {
     private final ListMap<TransactionPoint, FireState> transactions;
     private final TransactionListener txListener;
     private final Object listenersMutex = new String("tableModifiedListeners mutex");
+    // incremented by each event, allow to know if data loaded earlier might be stale
+    private final AtomicInteger modificationCount = new AtomicInteger();
     // the id that foreign keys pointing to this, can use instead of NULL
     // a null value meaning not yet known
     @GuardedBy("this")
@@ -1015,6 +1018,19 @@ public final class SQLTable extends SQLIdentifier implements SQLData, TableRef {
         return row.exists() ? row : null;
     }
 
+    /**
+     * Retourne les lignes demandées sans les charger. Elles le seront toutes en une seule requête
+     * dès que l'on accédera aux valeurs de l'une d'elles, évitant ainsi une requête par ligne.
+     * 
+     * @param ids les identifiants des lignes, <code>null</code> étant ignoré.
+     * @return les lignes indexées par ID, dans l'ordre de <code>ids</code>, il faut tester
+     *         {@link SQLRow#exists()} pour savoir si elles existent dans la base.
+     * @see SQLRow#prefetch(Collection)
+     */
+    public Map<Integer, SQLRow> getRows(final Collection<? extends Number> ids) {
+        return SQLRow.createBatch(this, ids);
+    }
+
     /**
      * Retourne une la ligne demandée sans faire aucune vérification.
      * 
@@ -1398,7 +1414,18 @@ public final class SQLTable extends SQLIdentifier implements SQLData, TableRef {
         }
     }
 
+    /**
+     * The number of modifications fired so far.
+     * 
+     * @return the number of events fired, if it hasn't changed rows loaded before are still up to
+     *         date (at least as far as this VM knows).
+     */
+    final int getModificationCount() {
+        return this.modificationCount.get();
+    }
+
     private void fireTableModified(final SQLTableEvent evt) {
+        this.modificationCount.incrementAndGet();
         final FireState fireState;
         final TransactionPoint point = this.getDBSystemRoot().getDataSource().getTransactionPoint();
         final Boolean callbackAfterTxListeners;
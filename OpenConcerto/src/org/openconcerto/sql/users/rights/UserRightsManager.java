@@ -29,6 +29,7 @@ import org.openconcerto.utils.CompareUtils;
 import org.openconcerto.utils.CompareUtils.Equalizer;
 import org.openconcerto.utils.ExceptionHandler;
 import org.openconcerto.utils.ListMap;
+import org.openconcerto.utils.ThreadFactory;
 import org.openconcerto.utils.Tuple2;
 import org.openconcerto.utils.Tuple3;
 import org.openconcerto.utils.cc.IFactory;
@@ -38,9 +39,13 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import net.jcip.annotations.GuardedBy;
 
@@ -141,22 +146,113 @@ public class UserRightsManager {
             return mngr.getCurrentUser().getRights();
     }
 
+    // beyond that, stop memoizing the results of Equalizer (they might be created for each call)
+    private static final int MAX_MATCHED = 2048;
+
+    /**
+     * The rights of a code for a user, merged with those of the default user (i.e. in the order
+     * they're searched and with unique objects).
+     */
+    private static final class CodeDecisions {
+        private final List<Tuple2<String, Boolean>> entries;
+        // the result for non-null objects present before the first null object
+        private final Map<String, Boolean> exact;
+        // the result of the first null object, null if none
+        private final Boolean anyObject;
+        // the result if the requested object is null, null if no right matches
+        private final Boolean allObjects;
+
+        CodeDecisions(final List<Tuple2<String, Boolean>> entries) {
+            this.entries = entries;
+            this.exact = new HashMap<String, Boolean>();
+            Boolean anyObject = null;
+            Boolean allObjects = null;
+            for (final Tuple2<String, Boolean> t : entries) {
+                if (t.get0() == null) {
+                    anyObject = t.get1();
+                    if (allObjects == null)
+                        allObjects = anyObject;
+                    break;
+                }
+                if (!this.exact.containsKey(t.get0()))
+                    this.exact.put(t.get0(), t.get1());
+                if (allObjects == null && !t.get1())
+                    allObjects = Boolean.FALSE;
+            }
+            this.anyObject = anyObject;
+            this.allObjects = allObjects;
+        }
+    }
+
+    /**
+     * Immutable snapshot of the rights of a user, allowing to answer without locking.
+     */
+    private static final class Decisions {
+        // not null for super-user or no rights
+        private final Boolean constant;
+        // rights of the user only (for getObjects())
+        private final ListMap<String, Tuple2<String, Boolean>> own;
+        private final Map<String, CodeDecisions> byCode;
+        // the result if no right matches
+        private final boolean fallback;
+        // results of other Equalizer than OBJECT_EQ
+        private final ConcurrentHashMap<Tuple3<String, String, Equalizer<? super String>>, Boolean> matched;
+
+        Decisions(final ListMap<String, Tuple2<String, Boolean>> own, final ListMap<String, Tuple2<String, Boolean>> defaultRights) {
+            this.own = own;
+            this.matched = new ConcurrentHashMap<Tuple3<String, String, Equalizer<? super String>>, Boolean>();
+            if (own == SUPERUSER_RIGHTS || own == NO_RIGHTS) {
+                this.constant = own == SUPERUSER_RIGHTS;
+                this.byCode = Collections.emptyMap();
+                this.fallback = this.constant;
+            } else {
+                this.constant = null;
+                final boolean defaultIsConstant = defaultRights == null || defaultRights == SUPERUSER_RIGHTS || defaultRights == NO_RIGHTS;
+                this.fallback = defaultRights == SUPERUSER_RIGHTS;
+                final Set<String> codes = new HashSet<String>(own.keySet());
+                if (!defaultIsConstant)
+                    codes.addAll(defaultRights.keySet());
+                this.byCode = new HashMap<String, CodeDecisions>(codes.size());
+                for (final String code : codes) {
+                    // as explained in expand() we need unicity for null object, we have it for
+                    // each user, but we also need it between userID and undefinedID
+                    final Map<String, Tuple2<String, Boolean>> merged = new LinkedHashMap<String, Tuple2<String, Boolean>>();
+                    for (final Tuple2<String, Boolean> t : own.getNonNull(code)) {
+                        if (!merged.containsKey(t.get0()))
+                            merged.put(t.get0(), t);
+                    }
+                    if (!defaultIsConstant) {
+                        for (final Tuple2<String, Boolean> t : defaultRights.getNonNull(code)) {
+                            if (!merged.containsKey(t.get0()))
+                                merged.put(t.get0(), t);
+                        }
+                    }
+                    this.byCode.put(code, new CodeDecisions(new ArrayList<Tuple2<String, Boolean>>(merged.values())));
+                }
+            }
+        }
+    }
+
     // Gérer un droit avec une classe
     private final Map<String, MacroRight> macroRights;
-    // {user -> {code -> [<object, bool>]}}
-    private final Map<Integer, ListMap<String, Tuple2<String, Boolean>>> rights;
+    // {user -> decisions}, immutable and replaced when loading a user
+    private volatile Map<Integer, Decisions> decisions;
     private final SQLTable table;
     @GuardedBy("this")
     private SQLTableModifiedListener tableL;
-    @GuardedBy("rights")
+    // also guards loading and publishing decisions
+    @GuardedBy("javaRights")
     private final ListMap<Integer, RightTuple> javaRights;
+    // reload rights after a change, so that haveRight() doesn't have to
+    private final ExecutorService reloadExec;
 
     private UserRightsManager(final SQLTable t) {
         if (t == null)
             throw new NullPointerException("Missing table");
         this.macroRights = new HashMap<String, MacroRight>();
-        this.rights = new HashMap<Integer, ListMap<String, Tuple2<String, Boolean>>>();
+        this.decisions = Collections.emptyMap();
         this.javaRights = new ListMap<Integer, RightTuple>();
+        this.reloadExec = Executors.newSingleThreadExecutor(new ThreadFactory(UserRightsManager.class.getSimpleName() + " reload ", true));
         this.table = t;
         this.tableL = new SQLTableModifiedListener() {
             @Override
@@ -198,7 +294,7 @@ public class UserRightsManager {
     public void addRight(Integer userID, RightTuple right) {
         if (right == null)
             throw new NullPointerException("Null right entry");
-        synchronized (this.rights) {
+        synchronized (this.javaRights) {
             this.javaRights.add(getKey(userID), right);
             this.rightsInvalid();
         }
@@ -213,7 +309,7 @@ public class UserRightsManager {
     public void addRightForAdmins(RightTuple right) {
         if (right == null)
             throw new NullPointerException("Null right entry");
-        synchronized (this.rights) {
+        synchronized (this.javaRights) {
             this.javaRights.add(ADMIN_ID, right);
             this.rightsInvalid();
         }
@@ -233,7 +329,7 @@ public class UserRightsManager {
      * @see #addRight(Integer, RightTuple)
      */
     public void removeRight(final Integer userID, final RightTuple right) {
-        synchronized (this.rights) {
+        synchronized (this.javaRights) {
             if (right == null)
                 this.javaRights.remove(getKey(userID));
             else
@@ -254,6 +350,7 @@ public class UserRightsManager {
         if (this.isValid()) {
             this.getTable().removeTableModifiedListener(this.tableL);
             this.tableL = null;
+            this.reloadExec.shutdownNow();
         }
         assert !this.isValid();
     }
@@ -306,44 +403,41 @@ public class UserRightsManager {
      * @return <code>true</code> if the right is allowed.
      */
     public final boolean haveRight(final int userID, final String code, final String requestedObject, final Equalizer<? super String> objectMatcher) {
-        final Set<String> unicity = new HashSet<String>();
-        final Boolean userRight = haveRightP(userID, code, requestedObject, objectMatcher, unicity);
-        if (userRight != null)
-            return userRight;
-        final int defaultUser = getDefaultUserId();
-        if (defaultUser != userID) {
-            final Boolean defaultRight = haveRightP(defaultUser, code, requestedObject, objectMatcher, unicity);
-            if (defaultRight != null)
-                return defaultRight;
+        final Decisions d = getDecisions(userID);
+        // super-user
+        if (d.constant != null)
+            return d.constant;
+        final CodeDecisions codeDecisions = d.byCode.get(code);
+        if (codeDecisions == null)
+            return d.fallback;
+
+        final Boolean res;
+        if (requestedObject == null) {
+            // null for the requested object means that all right objects must be true
+            res = codeDecisions.allObjects;
+        } else if (objectMatcher == CompareUtils.OBJECT_EQ) {
+            final Boolean exact = codeDecisions.exact.get(requestedObject);
+            res = exact != null ? exact : codeDecisions.anyObject;
+        } else {
+            final Tuple3<String, String, Equalizer<? super String>> key = Tuple3.<String, String, Equalizer<? super String>> create(code, requestedObject, objectMatcher);
+            final Boolean memoized = d.matched.get(key);
+            if (memoized != null)
+                return memoized;
+            res = match(codeDecisions, requestedObject, objectMatcher);
+            final boolean resBool = res != null ? res : d.fallback;
+            if (d.matched.size() < MAX_MATCHED)
+                d.matched.put(key, resBool);
+            return resBool;
         }
-
-        return false;
+        return res != null ? res : d.fallback;
     }
 
-    private final Boolean haveRightP(final int userID, final String code, final String object, final Equalizer<? super String> objectMatcher, Set<String> unicity) {
-        final ListMap<String, Tuple2<String, Boolean>> rightsForUser = getRightsForUser(userID);
-        // super-user
-        if (rightsForUser == SUPERUSER_RIGHTS)
-            return true;
-        if (rightsForUser == NO_RIGHTS)
-            return false;
-
-        if (rightsForUser.containsKey(code)) {
-            for (final Tuple2<String, Boolean> t : rightsForUser.getNonNull(code)) {
-                // as explained in expand() we need unicity for null object, we have it for each
-                // user, but we also need it between userID and undefinedID
-                if (unicity.add(t.get0())) {
-                    // if the object of the right matches the requested object :
-                    // null for the right matches any requested object
-                    // null for the requested object means searching for all objects so we can't let
-                    // objectMatcher match and thus ignore subsequent objects
-                    if (t.get0() == null || (object != null && safeEquals(objectMatcher, t, object)))
-                        return t.get1();
-                    // but null for the requested object means that all right objects must be true
-                    else if (object == null && !t.get1())
-                        return false;
-                }
-            }
+    private final Boolean match(final CodeDecisions codeDecisions, final String object, final Equalizer<? super String> objectMatcher) {
+        for (final Tuple2<String, Boolean> t : codeDecisions.entries) {
+            // if the object of the right matches the requested object :
+            // null for the right matches any requested object
+            if (t.get0() == null || safeEquals(objectMatcher, t, object))
+                return t.get1();
         }
         return null;
     }
@@ -363,27 +457,54 @@ public class UserRightsManager {
         }
     }
 
-    // if the db change, clear our cache, that way the next method call will query the db again
+    // if the db change, clear our cache, that way the next method call will query the db again.
+    // Users already loaded are reloaded in the background.
     private final void rightsInvalid() {
-        synchronized (this.rights) {
+        final Set<Integer> loaded;
+        synchronized (this.javaRights) {
             // MAYBE find out diff, and fire some events
             // so that eg IListe add/rm appropriate buttons
-            this.rights.clear();
+            loaded = this.decisions.keySet();
+            this.decisions = Collections.emptyMap();
+        }
+        if (!loaded.isEmpty() && !this.reloadExec.isShutdown()) {
+            this.reloadExec.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (final Integer userID : loaded) {
+                        getDecisions(userID);
+                    }
+                }
+            });
         }
     }
 
-    private ListMap<String, Tuple2<String, Boolean>> getRightsForUser(final int userID) {
-        synchronized (this.rights) {
-            if (this.rights.containsKey(userID))
-                return this.rights.get(userID);
-            else {
-                final ListMap<String, Tuple2<String, Boolean>> rightsForUser = loadRightsForUser(userID);
-                this.rights.put(userID, rightsForUser);
-                return rightsForUser;
+    private Decisions getDecisions(final int userID) {
+        final Decisions res = this.decisions.get(userID);
+        if (res != null)
+            return res;
+        synchronized (this.javaRights) {
+            final Map<Integer, Decisions> current = this.decisions;
+            if (current.containsKey(userID))
+                return current.get(userID);
+            final Map<Integer, Decisions> newDecisions = new HashMap<Integer, Decisions>(current);
+            final int defaultUser = getDefaultUserId();
+            Decisions defaultDecisions = newDecisions.get(defaultUser);
+            if (defaultDecisions == null) {
+                defaultDecisions = new Decisions(loadRightsForUser(defaultUser), null);
+                newDecisions.put(defaultUser, defaultDecisions);
             }
+            final Decisions userDecisions = userID == defaultUser ? defaultDecisions : new Decisions(loadRightsForUser(userID), defaultDecisions.own);
+            newDecisions.put(userID, userDecisions);
+            this.decisions = Collections.unmodifiableMap(newDecisions);
+            return userDecisions;
         }
     }
 
+    private ListMap<String, Tuple2<String, Boolean>> getRightsForUser(final int userID) {
+        return getDecisions(userID).own;
+    }
+
     /**
      * Charge les droits définit dans la table USER_RIGHT.
      * 
@@ -59,6 +59,10 @@ import javax.swing.text.JTextComponent;
 public class BackupPanel extends JPanel implements ActionListener {
 
     public static final String RIGHT_CODE = "BACKUP";
+    /**
+     * The directory, inside the destination, of the {@link Backup} store.
+     */
+    public static final String STORE_DIR = "Store";
 
     private final DateFormat format = new SimpleDateFormat("EEEE", getTM().getTranslationsLocale());
 
@@ -351,10 +355,18 @@ public class BackupPanel extends JPanel implements ActionListener {
                             }
                         });
 
-                        // Sauvegarde des documents
-                        if (BackupPanel.this.dirs2save != null) {
-
-                            Backup backup = new Backup(fDest);
+                        // Sauvegarde des documents et de la base dans le dépôt dédupliqué, seuls
+                        // les blocs modifiés depuis la sauvegarde précédente sont copiés
+                        final Backup backup = new Backup(new File(fTmp, STORE_DIR));
+                        try {
+                            final File fBase = new File(fDest, "Base");
+                            if (fBase.exists()) {
+                                errors += backup.applyTo(fBase);
+                            }
+                            final File fBaseH2 = new File(fDest, "Base.zip");
+                            if (fBaseH2.exists()) {
+                                errors += backup.applyTo(fBaseH2);
+                            }
                             int i = 1;
                             for (File f : BackupPanel.this.dirs2save) {
                                 errors += backup.applyTo(f);
@@ -366,8 +378,11 @@ public class BackupPanel extends JPanel implements ActionListener {
                                 });
                                 i++;
                             }
+                            if (backup.commit() == null) {
+                                errors++;
+                            }
+                        } finally {
                             backup.close();
-
                         }
                         // Fin de sauvegarde
                         SwingUtilities.invokeLater(new Runnable() {
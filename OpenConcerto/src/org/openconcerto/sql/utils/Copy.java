@@ -42,8 +42,8 @@ import java.util.Set;
 import java.util.logging.Level;
 
 /**
- * To dump or restore a database. For each root there's a folder with its name, and inside a CSV
- * file for each table and a SQL file for each system.
+ * To dump or restore a database. For each root there's a folder with its name, and inside a
+ * gzipped CSV file for each table, a manifest and a SQL file for each system.
  * 
  * @author Sylvain
  */
@@ -54,6 +54,8 @@ public class Copy {
     private static final String NO_DATA = "noData";
     public static final String DELETE_TABLE = "deleteTable";
     public static final String NAME_TO_STORE = "nameToStore";
+    public static final String THREADS = "threads";
+    public static final String RESUME = "resume";
 
     private static void usage() {
         System.out.println("Usage: " + Copy.class.getName() + " [ -store | -load ] url directory");
@@ -64,6 +66,8 @@ public class Copy {
         System.out.println("\t" + NO_DATA + " = true to avoid dumping/restoring the data");
         System.out.println("\t" + DELETE_TABLE + " = (only for loading) true to empty tables before loading data");
         System.out.println("\t" + NAME_TO_STORE + " = (only for storing) root name to use when storing, e.g. allow to copy one root to another");
+        System.out.println("\t" + THREADS + " = number of tables to dump/restore at once, default is the number of processors");
+        System.out.println("\t" + RESUME + " = (only for loading) true to skip the tables loaded by an interrupted restore");
     }
 
     public static void main(String[] args) throws SQLException, IOException, URISyntaxException {
@@ -129,16 +133,17 @@ public class Copy {
     }
 
     public final void applyTo(final String rootName, final String newRootName, final String tableName) throws SQLException, IOException {
-        SQLUtils.executeAtomic(this.sysRoot.getDataSource(), new ConnectionHandlerNoSetup<Object, IOException>() {
+        final DBRoot r = SQLUtils.executeAtomic(this.sysRoot.getDataSource(), new ConnectionHandlerNoSetup<DBRoot, IOException>() {
             @Override
-            public Object handle(SQLDataSource ds) throws SQLException, IOException {
-                applyToP(rootName, newRootName == null ? rootName : newRootName, tableName);
-                return null;
+            public DBRoot handle(SQLDataSource ds) throws SQLException, IOException {
+                return applyToStruct(rootName, newRootName == null ? rootName : newRootName, tableName);
             }
         });
+        // data is copied with one connection per table, outside of the structure transaction
+        applyToData(r, rootName, newRootName == null ? rootName : newRootName, tableName);
     }
 
-    private void applyToP(final String rootName, final String newRootName, final String tableName) throws IOException, SQLException {
+    private DBRoot applyToStruct(final String rootName, final String newRootName, final String tableName) throws IOException, SQLException {
         DBRoot r = this.sysRoot.contains(rootName) ? this.sysRoot.getRoot(rootName) : null;
 
         if (!this.noStruct) {
@@ -183,7 +188,10 @@ public class Copy {
             }
             System.err.println("done");
         }
+        return r;
+    }
 
+    private void applyToData(final DBRoot r, final String rootName, final String newRootName, final String tableName) throws IOException, SQLException {
         if (!this.noData) {
             System.err.println("Data of " + rootName + " ... ");
             final SQLSyntax syntax = this.sysRoot.getServer().getSQLSystem().getSyntax();
@@ -191,10 +199,16 @@ public class Copy {
             // TODO support table with non-ASCII chars
             // eg : if on win with MySQL SET character_set_filesystem = latin1
             // may be just zip all data
-            if (this.store)
-                syntax.storeData(r, tableNames, this.getDir(newRootName));
-            else
+            final Integer threads = Integer.getInteger(THREADS);
+            final ParallelDataCopy copy = threads == null ? new ParallelDataCopy() : new ParallelDataCopy(threads);
+            if (this.store) {
+                copy.store(r, tableNames, this.getDir(newRootName));
+            } else if (ParallelDataCopy.hasManifest(this.getDir(rootName))) {
+                copy.load(this.getDir(rootName), r, tableNames, Boolean.getBoolean(DELETE_TABLE), Boolean.getBoolean(RESUME));
+            } else {
+                // dump made before compression
                 syntax.loadData(this.getDir(rootName), r, tableNames, Boolean.getBoolean(DELETE_TABLE));
+            }
             System.err.println("Data done");
         }
     }
@@ -0,0 +1,512 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.sql.utils;
+
+import org.openconcerto.sql.Log;
+import org.openconcerto.sql.model.ConnectionHandlerNoSetup;
+import org.openconcerto.sql.model.DBRoot;
+import org.openconcerto.sql.model.SQLDataSource;
+import org.openconcerto.sql.model.SQLSyntax;
+import org.openconcerto.sql.model.SQLSystem;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.model.graph.Link;
+import org.openconcerto.utils.FileUtils;
+import org.openconcerto.utils.RTInterruptedException;
+import org.openconcerto.utils.StringUtils;
+import org.openconcerto.utils.ThreadFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Dump or restore the data of a root, one gzipped CSV file per table, with several tables at once
+ * each on its own connection. The dump also writes a manifest with the number of rows and the CRC
+ * of each table so that a restore can be verified and, if interrupted, resumed.
+ *
+ * @see SQLSyntax#storeData(SQLTable, OutputStream)
+ * @see SQLSyntax#loadData(InputStream, SQLTable, boolean, Level)
+ */
+public class ParallelDataCopy {
+
+    public static final String DATA_EXT = SQLSyntax.DATA_EXT + ".gz";
+    public static final String MANIFEST = "manifest.txt";
+    // tables already loaded by an interrupted restore
+    private static final String RESTORED = "restored.txt";
+
+    public static final boolean hasManifest(final File dir) {
+        return new File(dir, MANIFEST).isFile();
+    }
+
+    /**
+     * Count the CSV records (outside of quotes, with backslash escapes) and compute the CRC of
+     * the bytes.
+     */
+    static final class Counter {
+        private final CRC32 crc = new CRC32();
+        private long lines = 0;
+        private boolean inQuotes = false;
+        private boolean escaped = false;
+        private boolean empty = true;
+        private boolean lastNewLine = false;
+
+        final void update(final byte[] b, final int off, final int len) {
+            if (len <= 0)
+                return;
+            this.crc.update(b, off, len);
+            this.empty = false;
+            for (int i = off; i < off + len; i++) {
+                final byte c = b[i];
+                if (this.escaped) {
+                    this.escaped = false;
+                } else if (this.inQuotes && c == '\\') {
+                    this.escaped = true;
+                } else if (c == '"') {
+                    this.inQuotes = !this.inQuotes;
+                } else if (c == '\n' && !this.inQuotes) {
+                    this.lines++;
+                }
+            }
+            this.lastNewLine = b[off + len - 1] == '\n';
+        }
+
+        /**
+         * The number of rows.
+         *
+         * @return the number of records minus the header.
+         */
+        final long getRows() {
+            if (this.empty)
+                return 0;
+            final long records = this.lastNewLine ? this.lines : this.lines + 1;
+            return records - 1;
+        }
+
+        final String getCRC() {
+            return Long.toHexString(this.crc.getValue());
+        }
+    }
+
+    static private final class CountingOutputStream extends FilterOutputStream {
+        private final Counter counter;
+
+        CountingOutputStream(OutputStream out, Counter counter) {
+            super(out);
+            this.counter = counter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.counter.update(b, off, len);
+            this.out.write(b, off, len);
+        }
+    }
+
+    static private final class CountingInputStream extends FilterInputStream {
+        private final Counter counter;
+
+        CountingInputStream(InputStream in, Counter counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            final int read = this.read(b, 0, 1);
+            return read < 0 ? read : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = this.in.read(b, off, len);
+            if (read > 0)
+                this.counter.update(b, off, read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            throw new IOException("Cannot skip");
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * An entry of the manifest.
+     */
+    static final class TableInfo {
+        private final long rows;
+        private final String crc;
+
+        TableInfo(long rows, String crc) {
+            this.rows = rows;
+            this.crc = crc;
+        }
+
+        @Override
+        public String toString() {
+            return this.rows + " rows, CRC " + this.crc;
+        }
+    }
+
+    private final int threads;
+
+    public ParallelDataCopy() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param threads the maximum number of tables processed at once, each one using a connection.
+     */
+    public ParallelDataCopy(final int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Invalid number of threads : " + threads);
+        this.threads = threads;
+    }
+
+    private File getFile(final File dir, final String tableName) {
+        return new File(dir, tableName + DATA_EXT);
+    }
+
+    private static Map<String, TableInfo> readManifest(final File dir) throws IOException {
+        final Map<String, TableInfo> res = new TreeMap<String, TableInfo>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(new File(dir, MANIFEST)), StringUtils.UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0)
+                    continue;
+                final String[] parts = line.split("\t");
+                if (parts.length != 3)
+                    throw new IOException("Invalid manifest line : " + line);
+                res.put(parts[0], new TableInfo(Long.parseLong(parts[1]), parts[2]));
+            }
+        } finally {
+            reader.close();
+        }
+        return res;
+    }
+
+    private static Set<String> readRestored(final File dir) throws IOException {
+        final File f = new File(dir, RESTORED);
+        if (!f.exists())
+            return Collections.emptySet();
+        final Set<String> res = new HashSet<String>();
+        for (final String line : FileUtils.read(f, StringUtils.UTF8).split("\n")) {
+            if (line.length() > 0)
+                res.add(line);
+        }
+        return res;
+    }
+
+    private ExecutorService createExecutor(final String name) {
+        return Executors.newFixedThreadPool(this.threads, new ThreadFactory(name + " ", true));
+    }
+
+    private static <T> T get(final Future<T> f) throws IOException, SQLException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            throw new RTInterruptedException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            else if (cause instanceof SQLException)
+                throw (SQLException) cause;
+            else if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            else
+                throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Dump the rows of <code>r</code> to <code>dir</code>.
+     *
+     * @param r the root to dump.
+     * @param tableNames the tables to dump, <code>null</code> meaning all.
+     * @param dir where to dump.
+     * @throws IOException if an error occurs.
+     */
+    public void store(final DBRoot r, final Set<String> tableNames, final File dir) throws IOException {
+        FileUtils.mkdir_p(dir);
+        final SQLSyntax syntax = SQLSyntax.get(r);
+        final Map<String, SQLTable> tables = new TreeMap<String, SQLTable>();
+        for (final SQLTable t : r.getTables()) {
+            if (tableNames == null || tableNames.contains(t.getName()))
+                tables.put(t.getName(), t);
+        }
+
+        final ExecutorService exec = createExecutor("Store " + r.getName());
+        try {
+            final Map<String, Future<TableInfo>> futures = new TreeMap<String, Future<TableInfo>>();
+            for (final SQLTable t : tables.values()) {
+                futures.put(t.getName(), exec.submit(new Callable<TableInfo>() {
+                    @Override
+                    public TableInfo call() throws Exception {
+                        Log.get().info("storing " + t.getSQLName() + "...");
+                        final Counter counter = new Counter();
+                        final OutputStream out = new CountingOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(getFile(dir, t.getName()))), 64 * 1024), counter);
+                        try {
+                            syntax.storeData(t, out);
+                        } finally {
+                            out.close();
+                        }
+                        final TableInfo res = new TableInfo(counter.getRows(), counter.getCRC());
+                        Log.get().info("done storing " + t.getSQLName() + " : " + res);
+                        return res;
+                    }
+                }));
+            }
+            final File tmp = new File(dir, MANIFEST + ".tmp");
+            final BufferedWriter w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StringUtils.UTF8));
+            try {
+                for (final Map.Entry<String, Future<TableInfo>> e : futures.entrySet()) {
+                    final TableInfo info = get(e.getValue());
+                    w.write(e.getKey() + "\t" + info.rows + "\t" + info.crc + "\n");
+                }
+            } catch (SQLException e) {
+                throw new IOException(e);
+            } finally {
+                w.close();
+            }
+            final File manifest = new File(dir, MANIFEST);
+            manifest.delete();
+            if (!tmp.renameTo(manifest))
+                throw new IOException("Unable to rename " + tmp + " to " + manifest);
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    /**
+     * Check the files of a dump against its manifest.
+     *
+     * @param dir the directory of the dump.
+     * @return the errors, empty if the dump is valid.
+     * @throws IOException if the manifest cannot be read.
+     */
+    public List<String> verify(final File dir) throws IOException {
+        final Map<String, TableInfo> manifest = readManifest(dir);
+        final ExecutorService exec = createExecutor("Verify " + dir.getName());
+        try {
+            final Map<String, Future<TableInfo>> futures = new TreeMap<String, Future<TableInfo>>();
+            for (final String tableName : manifest.keySet()) {
+                futures.put(tableName, exec.submit(new Callable<TableInfo>() {
+                    @Override
+                    public TableInfo call() throws Exception {
+                        final Counter counter = new Counter();
+                        final InputStream in = new CountingInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(getFile(dir, tableName))), 64 * 1024), counter);
+                        try {
+                            final byte[] buffer = new byte[64 * 1024];
+                            int read = 0;
+                            while (read >= 0) {
+                                read = in.read(buffer);
+                            }
+                        } finally {
+                            in.close();
+                        }
+                        return new TableInfo(counter.getRows(), counter.getCRC());
+                    }
+                }));
+            }
+            final List<String> res = new ArrayList<String>();
+            for (final Map.Entry<String, Future<TableInfo>> e : futures.entrySet()) {
+                final TableInfo expected = manifest.get(e.getKey());
+                try {
+                    final TableInfo actual = get(e.getValue());
+                    if (actual.rows != expected.rows || !actual.crc.equals(expected.crc))
+                        res.add(e.getKey() + " : " + actual + " instead of " + expected);
+                } catch (Exception exn) {
+                    res.add(e.getKey() + " : " + exn);
+                }
+            }
+            return res;
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    /**
+     * Load data from a dump made by {@link #store(DBRoot, Set, File)}. Tables are loaded after the
+     * tables they reference so that systems which only disable foreign key checks for the current
+     * session still work. The content of each file is checked against the manifest and each loaded
+     * table is recorded, so that <code>resume</code> can skip them if the restore is interrupted.
+     *
+     * @param dir the directory of the dump.
+     * @param r the root where to load.
+     * @param tableNames the tables to load, <code>null</code> meaning all tables of the manifest.
+     * @param delete <code>true</code> if tables should be emptied before loading.
+     * @param resume <code>true</code> to skip tables loaded by a previous interrupted call.
+     * @throws IOException if an error occurs while reading the files.
+     * @throws SQLException if an error occurs while loading data into the database.
+     */
+    public void load(final File dir, final DBRoot r, final Set<String> tableNames, final boolean delete, final boolean resume) throws IOException, SQLException {
+        final SQLSyntax syntax = SQLSyntax.get(r);
+        final Map<String, TableInfo> manifest = readManifest(dir);
+        if (tableNames != null)
+            manifest.keySet().retainAll(tableNames);
+        final File restoredFile = new File(dir, RESTORED);
+        final Set<String> restored = resume ? readRestored(dir) : Collections.<String> emptySet();
+        if (!resume)
+            restoredFile.delete();
+
+        final Set<SQLTable> toLoad = new LinkedHashSet<SQLTable>();
+        for (final String tableName : manifest.keySet()) {
+            final SQLTable t = r.getTable(tableName);
+            if (t == null)
+                Log.get().warning("table " + tableName + " doesn't exist in " + r);
+            else if (restored.contains(tableName))
+                Log.get().info("skipping already restored " + t.getSQLName());
+            else
+                toLoad.add(t);
+        }
+        // tables referenced by each table (excluding itself)
+        final Map<SQLTable, Set<SQLTable>> deps = new HashMap<SQLTable, Set<SQLTable>>();
+        for (final SQLTable t : toLoad) {
+            final Set<SQLTable> foreign = new HashSet<SQLTable>();
+            for (final Link l : r.getDBSystemRoot().getGraph().getForeignLinks(t)) {
+                if (l.getTarget() != t && toLoad.contains(l.getTarget()))
+                    foreign.add(l.getTarget());
+            }
+            deps.put(t, foreign);
+        }
+
+        final SQLDataSource ds = r.getDBSystemRoot().getDataSource();
+        // disabled during the whole load (tables in parallel, cycles), enabled again at the end
+        ds.execute(syntax.disableFKChecks(r));
+        // MySQL only disables checks for the current session
+        final boolean fkChecksPerSession = r.getServer().getSQLSystem() == SQLSystem.MYSQL;
+        final ExecutorService exec = createExecutor("Load " + r.getName());
+        try {
+            final CompletionService<SQLTable> completion = new ExecutorCompletionService<SQLTable>(exec);
+            final Set<SQLTable> done = new HashSet<SQLTable>();
+            int running = 0;
+            while (!toLoad.isEmpty() || running > 0) {
+                final List<SQLTable> ready = new ArrayList<SQLTable>();
+                for (final SQLTable t : toLoad) {
+                    if (done.containsAll(deps.get(t)))
+                        ready.add(t);
+                }
+                if (ready.isEmpty() && running == 0) {
+                    // cycle, the checks are disabled so just go on
+                    final SQLTable t = toLoad.iterator().next();
+                    Log.get().info("cycle in foreign keys of " + toLoad + ", loading " + t.getSQLName());
+                    ready.add(t);
+                }
+                for (final SQLTable t : ready) {
+                    toLoad.remove(t);
+                    running++;
+                    final TableInfo expected = manifest.get(t.getName());
+                    completion.submit(new Callable<SQLTable>() {
+                        @Override
+                        public SQLTable call() throws Exception {
+                            ds.useConnection(new ConnectionHandlerNoSetup<Object, IOException>() {
+                                @Override
+                                public Object handle(SQLDataSource ds) throws SQLException, IOException {
+                                    if (fkChecksPerSession)
+                                        ds.execute(syntax.disableFKChecks(r));
+                                    loadTable(syntax, dir, t, expected, delete);
+                                    return null;
+                                }
+                            });
+                            appendLine(restoredFile, t.getName());
+                            return t;
+                        }
+                    });
+                }
+                done.add(get(completion.take()));
+                running--;
+            }
+        } catch (InterruptedException e) {
+            throw new RTInterruptedException(e);
+        } finally {
+            exec.shutdownNow();
+            ds.execute(syntax.enableFKChecks(r));
+        }
+        // everything was loaded
+        restoredFile.delete();
+    }
+
+    static private synchronized void appendLine(final File f, final String line) throws IOException {
+        final OutputStream out = new FileOutputStream(f, true);
+        try {
+            out.write((line + "\n").getBytes(StringUtils.UTF8));
+        } finally {
+            out.close();
+        }
+    }
+
+    private void loadTable(final SQLSyntax syntax, final File dir, final SQLTable t, final TableInfo expected, final boolean delete) throws IOException, SQLException {
+        final int countBefore = delete ? 0 : t.getRowCount();
+        final Counter counter = new Counter();
+        final InputStream in = new CountingInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(getFile(dir, t.getName()))), 64 * 1024), counter);
+        try {
+            syntax.loadData(in, t, delete, Level.INFO);
+        } finally {
+            in.close();
+        }
+        final TableInfo actual = new TableInfo(counter.getRows(), counter.getCRC());
+        if (actual.rows != expected.rows || !actual.crc.equals(expected.crc))
+            throw new IOException("Corrupted data for " + t.getSQLName() + " : " + actual + " instead of " + expected);
+        final long loaded = t.getRowCount() - countBefore;
+        if (loaded != expected.rows)
+            throw new SQLException(loaded + " rows loaded in " + t.getSQLName() + " instead of " + expected.rows);
+    }
+}
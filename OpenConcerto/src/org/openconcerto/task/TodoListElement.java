@@ -16,23 +16,34 @@
 import org.openconcerto.sql.model.SQLRow;
 import org.openconcerto.sql.model.SQLRowAccessor;
 import org.openconcerto.sql.model.SQLRowValues;
+import org.openconcerto.utils.ThreadFactory;
 
 import java.sql.SQLException;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class TodoListElement {
 
+    // one thread for all elements to keep the order of the changes. The queue is unbounded : running
+    // a change in the caller when it's full would execute it before the pending ones.
+    private static final ExecutorService executor;
+    static {
+        final ThreadPoolExecutor exec = new ThreadPoolExecutor(1, 1, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory(TodoListElement.class.getSimpleName() + " writer ",
+                false));
+        exec.allowCoreThreadTimeOut(true);
+        executor = exec;
+    }
+
     SQLRowValues rowVals;
 
     public TodoListElement(SQLRowValues rowVals) {
         this.rowVals = rowVals;
     }
 
-    Executor executor = Executors.newSingleThreadExecutor();
-
     public void reloadValues(final SQLRowAccessor row) {
         executor.execute(new Runnable() {
             public void run() {
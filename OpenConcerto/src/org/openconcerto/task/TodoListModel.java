@@ -16,6 +16,7 @@
 import org.openconcerto.sql.Configuration;
 import org.openconcerto.sql.model.DBSystemRoot;
 import org.openconcerto.sql.model.IResultSetHandler;
+import org.openconcerto.sql.model.SQLDataSource;
 import org.openconcerto.sql.model.SQLField;
 import org.openconcerto.sql.model.SQLRow;
 import org.openconcerto.sql.model.SQLRowListRSH;
@@ -31,13 +32,16 @@ import org.openconcerto.utils.cc.IFactory;
 
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.JOptionPane;
 import javax.swing.JTable;
@@ -61,6 +65,12 @@ public class TodoListModel extends DefaultTableModel {
     private transient User currentUser;
     protected List<UserTaskRight> rights;
     private boolean historyVisible = false;
+    // état de la table lors du dernier remplissage (nombre, id max, date de modification max)
+    private Object[] lastState = null;
+    // les critères de sélection ont changé
+    private final AtomicBoolean reloadAll = new AtomicBoolean(true);
+    private long lastFullReload = 0;
+    private int lastFullReloadDay = -1;
 
     TodoListModel(User currentUser) {
         this.currentUser = currentUser;
@@ -117,11 +127,13 @@ public class TodoListModel extends DefaultTableModel {
         });
 
         final Map<Integer, TodoListElement> newDataVector = new LinkedHashMap<Integer, TodoListElement>();
+        // null si toutes les lignes ont été rechargées
+        final Set<Integer> reloadedIDs;
         try {
-            fillFromDatabase(newDataVector);
-
+            reloadedIDs = fillFromDatabase(newDataVector);
         } catch (Exception e) {
             e.printStackTrace();
+            invalidate();
             SwingUtilities.invokeLater(new Runnable() {
                 public void run() {
                     fireModelStateChanged(ModelStateListener.STATE_DEAD);
@@ -129,17 +141,28 @@ public class TodoListModel extends DefaultTableModel {
             });
             return;
         }
+        if (reloadedIDs != null && reloadedIDs.isEmpty()) {
+            // rien n'a changé
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    fireModelStateChanged(ModelStateListener.STATE_OK);
+                }
+            });
+            return;
+        }
 
         final Vector<Integer> rowsModified = new Vector<Integer>();
         final Vector<TodoListElement> rowsDeleted = new Vector<TodoListElement>();
-        // size before removing
-        final int newSize = newDataVector.size();
-        final int oldSize;
+        final int rowsAdded;
         synchronized (this.dataVector) {
-            oldSize = this.dataVector.size();
+            final int oldSize = this.dataVector.size();
             for (int i = 0; i < oldSize; i++) {
                 final TodoListElement elt = (TodoListElement) this.dataVector.get(i);
-                final TodoListElement eltN = newDataVector.remove(elt.getRowValues().getID());
+                final int id = elt.getRowValues().getID();
+                // les lignes non rechargées n'ont pas changé
+                if (reloadedIDs != null && !reloadedIDs.contains(id))
+                    continue;
+                final TodoListElement eltN = newDataVector.remove(id);
                 if (eltN == null) {
                     rowsDeleted.add(elt);
                 } else {
@@ -157,16 +180,18 @@ public class TodoListModel extends DefaultTableModel {
                 }
             }
 
+            rowsAdded = newDataVector.size();
             for (Integer i : newDataVector.keySet()) {
                 this.dataVector.add(newDataVector.get(i));
             }
         }
+        final int newSize = this.getRowCount();
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
                 if ((rowsModified.size() == newSize) && (rowsModified.size() > 0)) {
                     fireTableDataChanged();
                     fireModelStateChanged(ModelStateListener.CONTENT_MODIFIED);
-                } else if (newSize != oldSize) {
+                } else if (rowsDeleted.size() > 0 || rowsAdded > 0) {
                     fireTableDataChanged();
                     fireModelStateChanged(ModelStateListener.CONTENT_MODIFIED);
                 } else {
@@ -207,9 +232,84 @@ public class TodoListModel extends DefaultTableModel {
     private static final SQLTable tableTache = base.getRoot("Common").getTable("TACHE_COMMON");
     private final static Where where2 = new Where(tableTache.getField("ID_SOCIETE_COMMON"), "=", tableTache.getUndefinedID()).or(new Where(tableTache.getField("ID_SOCIETE_COMMON"), "=", societeID));
 
-    private synchronized void fillFromDatabase(final Map<Integer, TodoListElement> m) {
+    private static final int MAX_DELTA = 1000;
+    private static final long FULL_RELOAD_PERIOD = 10 * 60 * 1000;
+
+    /**
+     * Requête peu coûteuse permettant de savoir si des tâches ont changé.
+     * 
+     * @return le nombre de tâches, l'id max et la date de modification max.
+     */
+    private static Object[] getTableState() {
+        final SQLSelect sel = new SQLSelect(tableTache.getBase());
+        sel.setArchivedPolicy(SQLSelect.BOTH);
+        sel.addSelectFunctionStar("count");
+        sel.addSelect(tableTache.getKey(), "max");
+        sel.addSelect(tableTache.getModifDateField(), "max");
+        sel.setWhere(where2);
+        return (Object[]) base.getDataSource().execute(sel.asString(), new IResultSetHandler(SQLDataSource.ARRAY_HANDLER, false));
+    }
+
+    /**
+     * Les tâches créées, modifiées, archivées depuis le dernier remplissage.
+     * 
+     * @return les ids, <code>null</code> si un rechargement complet est nécessaire (e.g. des
+     *         tâches ont été supprimées).
+     */
+    @SuppressWarnings("unchecked")
+    private Set<Integer> getChangedIDs(final Object[] state) {
+        final int lastMaxID = this.lastState[1] == null ? 0 : ((Number) this.lastState[1]).intValue();
+        final SQLSelect sel = new SQLSelect(tableTache.getBase());
+        sel.setArchivedPolicy(SQLSelect.BOTH);
+        sel.addSelect(tableTache.getKey());
+        Where w = new Where(tableTache.getKey(), ">", lastMaxID);
+        if (this.lastState[2] != null)
+            w = w.or(new Where(tableTache.getModifDateField(), ">=", this.lastState[2]));
+        sel.setWhere(w.and(where2));
+        final Set<Integer> res = new HashSet<Integer>();
+        int created = 0;
+        for (final Number id : (List<Number>) base.getDataSource().execute(sel.asString(), new IResultSetHandler(SQLDataSource.COLUMN_LIST_HANDLER, false))) {
+            res.add(id.intValue());
+            if (id.intValue() > lastMaxID)
+                created++;
+        }
+        if (res.size() > MAX_DELTA || ((Number) this.lastState[0]).longValue() + created != ((Number) state[0]).longValue())
+            return null;
+        return res;
+    }
+
+    private void invalidate() {
+        this.reloadAll.set(true);
+    }
+
+    /**
+     * Remplit <code>m</code> avec les tâches visibles. Seules les tâches ayant changé depuis le
+     * dernier remplissage sont chargées, les autres tâches du modèle sont à conserver.
+     * 
+     * @param m les tâches chargées.
+     * @return les ids des tâches rechargées (celles absentes de <code>m</code> ne sont plus
+     *         visibles), <code>null</code> si toutes les tâches ont été rechargées.
+     */
+    private synchronized Set<Integer> fillFromDatabase(final Map<Integer, TodoListElement> m) {
         long time1 = System.currentTimeMillis();
 
+        final Calendar now = Calendar.getInstance();
+        final Object[] state = tableTache.getModifDateField() == null ? null : getTableState();
+        // l'historique visible dépend du jour
+        final boolean fullReload = this.reloadAll.getAndSet(false) || state == null || this.lastState == null || now.get(Calendar.DAY_OF_YEAR) != this.lastFullReloadDay || time1 - this.lastFullReload > FULL_RELOAD_PERIOD;
+        final Set<Integer> reloadedIDs;
+        if (fullReload) {
+            reloadedIDs = null;
+        } else if (Arrays.equals(state, this.lastState)) {
+            return Collections.emptySet();
+        } else {
+            reloadedIDs = getChangedIDs(state);
+            if (reloadedIDs != null && reloadedIDs.isEmpty()) {
+                this.lastState = state;
+                return reloadedIDs;
+            }
+        }
+
         final SQLSelect select = new SQLSelect(tableTache.getBase());
         select.addSelectStar(tableTache);
         Where where = new Where(tableTache.getField("ID_USER_COMMON_TO"), this.listIdListener);
@@ -228,7 +328,10 @@ public class TodoListModel extends DefaultTableModel {
             w3 = w3.or(w4);
             where = where.and(w3);
         }
-        select.setWhere(where.and(where2));
+        where = where.and(where2);
+        if (reloadedIDs != null)
+            where = where.and(new Where(tableTache.getKey(), reloadedIDs));
+        select.setWhere(where);
 
         select.addFieldOrder(tableTache.getField("ID_USER_COMMON_TO"));
         select.addFieldOrder(tableTache.getField("DATE_EXP"));
@@ -279,6 +382,11 @@ public class TodoListModel extends DefaultTableModel {
             if (add)
                 m.put(row.getID(), t);
         }
+        this.lastState = state;
+        if (reloadedIDs == null) {
+            this.lastFullReload = time1;
+            this.lastFullReloadDay = now.get(Calendar.DAY_OF_YEAR);
+        }
 
         long time2 = System.currentTimeMillis();
         final long t = time2 - time1;
@@ -289,6 +397,7 @@ public class TodoListModel extends DefaultTableModel {
         if (delay < MIN_DELAY)
             delay = MIN_DELAY;
         this.currentDelay = delay;
+        return reloadedIDs;
     }
 
     public int getColumnCount() {
@@ -550,15 +659,18 @@ public class TodoListModel extends DefaultTableModel {
 
     public void addIdListener(Integer id) {
         this.listIdListener.add(id);
+        invalidate();
         asynchronousFill();
     }
 
     public void addIdListenerSilently(Integer id) {
         this.listIdListener.add(id);
+        invalidate();
     }
 
     public void removeIdListener(Integer id) {
         this.listIdListener.remove(id);
+        invalidate();
         asynchronousFill();
     }
 
@@ -602,6 +714,9 @@ public class TodoListModel extends DefaultTableModel {
     }
 
     public synchronized void setHistoryVisible(boolean historyVisible) {
-        this.historyVisible = historyVisible;
+        if (this.historyVisible != historyVisible) {
+            this.historyVisible = historyVisible;
+            invalidate();
+        }
     }
 }
@@ -354,6 +354,12 @@ public class ITextCombo extends JComboBox implements ValueWrapper<String>, TextC
             return null;
         }
 
+        // the combo items come from the cache, use its index if any
+        if (!this.cacheLoading && this.cache instanceof ITextComboCompletion) {
+            final List<String> l = ((ITextComboCompletion) this.cache).getCompletion(string, 2);
+            return l.size() == 1 ? l.get(0) : null;
+        }
+
         int count = 0;
         String result = null;
         for (final Object obj : this.getListModel().getList()) {
@@ -0,0 +1,32 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.ui.component;
+
+import java.util.List;
+
+/**
+ * An {@link ITextComboCache} that can find the items starting with a string without iterating
+ * over all of them, e.g. with a sorted index.
+ */
+public interface ITextComboCompletion {
+
+    /**
+     * The items starting with the passed string, case sensitive like {@link ITextCombo}.
+     * 
+     * @param prefix the beginning of the items.
+     * @param max the maximum number of items to return.
+     * @return the matching items, at most <code>max</code>.
+     */
+    public List<String> getCompletion(final String prefix, final int max);
+}
@@ -17,12 +17,17 @@ import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
 public class RowsBulk implements Externalizable {
 
+    /**
+     * System property to deflate large payloads, this halves the encoding speed but saves about a
+     * third of the size.
+     */
+    public static final String DEFLATE_PROP = "org.openconcerto.ui.light.RowsBulk.deflate";
+
     private List<Row> rows;
     private int offset;
     private int total;
@@ -36,29 +41,15 @@ public class RowsBulk implements Externalizable {
         this.total = total;
     }
 
-    // Sending by column : size gain is 5%
+    // Sending by column with typed values, see RowsCodec
     @Override
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
         int rowCount = in.readInt();
         if (rowCount == 0) {
             this.rows = Collections.EMPTY_LIST;
         } else {
-            this.rows = new ArrayList<Row>(rowCount);// colcount
-            int columnCount = in.readByte();
-            // id
-            for (int j = 0; j < rowCount; j++) {
-                Row row = new Row(in.readLong(), columnCount);
-                this.rows.add(row);
-            }
-
-            for (int i = 0; i < columnCount; i++) {
-                for (int j = 0; j < rowCount; j++) {
-                    Object v = in.readObject();
-                    this.rows.get(j).addValue(v);
-                }
-
-            }
-
+            int columnCount = in.readUnsignedByte();
+            this.rows = RowsCodec.read(in, rowCount, columnCount);
         }
         this.offset = in.readInt();
         this.total = in.readInt();
@@ -73,25 +64,11 @@ public class RowsBulk implements Externalizable {
         if (rows.size() > 0) {
             // nbcols
             int columnCount = rows.get(0).getValues().size();
+            if (columnCount > 255)
+                throw new IllegalStateException("Too many columns : " + columnCount);
             out.writeByte(columnCount);
-            // ids
-            for (int j = 0; j < rowCount; j++) {
-                Row row = rows.get(j);
-                out.writeLong(row.getId());
-
-            }
-
-            // send cols by cols
-            for (int i = 0; i < columnCount; i++) {
-
-                for (int j = 0; j < rowCount; j++) {
-                    Row row = rows.get(j);
-                    Object v = row.getValues().get(i);
-                    out.writeObject(v);
-                }
-
-            }
-
+            // ids and values
+            RowsCodec.write(out, rows, columnCount);
         }
         out.writeInt(offset);
         out.writeInt(total);
@@ -0,0 +1,381 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.ui.light;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Typed columnar encoding of rows. Each column has a type tag : values of known types are written
+ * compactly (variable length integers, scaled longs for decimals, dictionary for strings) in a
+ * payload, deflated if large enough and {@link RowsBulk#DEFLATE_PROP} is set. Columns mixing types
+ * or of other types are written after the payload with {@link ObjectOutput#writeObject(Object)}.
+ */
+final class RowsCodec {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // payload size above which it's deflated if enabled
+    private static final int DEFLATE_THRESHOLD = 4096;
+
+    private static final byte FLAG_DEFLATED = 1;
+
+    // type tags
+    private static final byte NULL = 0;
+    private static final byte OBJECT = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte DECIMAL = 4;
+    private static final byte STRING = 5;
+    private static final byte BOOLEAN = 6;
+    private static final byte DATE = 7;
+    private static final byte SQL_DATE = 8;
+    private static final byte TIMESTAMP = 9;
+    // or'ed to the tag if the column contains null values, a bitmap is then written
+    private static final byte HAS_NULLS = (byte) 0x80;
+
+    private RowsCodec() {
+    }
+
+    static void write(final ObjectOutput out, final List<Row> rows, final int columnCount) throws IOException {
+        final int rowCount = rows.size();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(rowCount * (columnCount + 1) * 4);
+        final DataOutputStream payload = new DataOutputStream(bytes);
+        // ids are usually increasing
+        long previousID = 0;
+        for (int j = 0; j < rowCount; j++) {
+            final long id = rows.get(j).getId();
+            writeVarLong(payload, id - previousID);
+            previousID = id;
+        }
+        final List<Integer> objectColumns = new ArrayList<Integer>();
+        final Object[] column = new Object[rowCount];
+        for (int i = 0; i < columnCount; i++) {
+            for (int j = 0; j < rowCount; j++) {
+                column[j] = rows.get(j).getValues().get(i);
+            }
+            final byte tag = getTag(column);
+            if (tag == OBJECT) {
+                payload.writeByte(OBJECT);
+                objectColumns.add(i);
+            } else {
+                writeColumn(payload, tag, column);
+            }
+        }
+        payload.flush();
+
+        if (bytes.size() >= DEFLATE_THRESHOLD && Boolean.getBoolean(RowsBulk.DEFLATE_PROP)) {
+            final ByteArrayOutputStream deflated = new ByteArrayOutputStream(bytes.size() / 2);
+            final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            final OutputStream deflaterOut = new DeflaterOutputStream(deflated, deflater);
+            bytes.writeTo(deflaterOut);
+            deflaterOut.close();
+            deflater.end();
+            out.writeByte(FLAG_DEFLATED);
+            out.writeInt(deflated.size());
+            deflated.writeTo(new DataOutputStreamAdapter(out));
+        } else {
+            out.writeByte(0);
+            out.writeInt(bytes.size());
+            bytes.writeTo(new DataOutputStreamAdapter(out));
+        }
+
+        for (final Integer i : objectColumns) {
+            for (int j = 0; j < rowCount; j++) {
+                out.writeObject(rows.get(j).getValues().get(i));
+            }
+        }
+    }
+
+    static List<Row> read(final ObjectInput in, final int rowCount, final int columnCount) throws IOException, ClassNotFoundException {
+        final byte flags = in.readByte();
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        InputStream payloadIn = new ByteArrayInputStream(bytes);
+        if ((flags & FLAG_DEFLATED) != 0)
+            // DataInputStream reads the varints byte by byte
+            payloadIn = new BufferedInputStream(new InflaterInputStream(payloadIn), 8192);
+        final DataInputStream payload = new DataInputStream(payloadIn);
+
+        final List<Row> res = new ArrayList<Row>(rowCount);
+        long id = 0;
+        for (int j = 0; j < rowCount; j++) {
+            id += readVarLong(payload);
+            res.add(new Row(id, columnCount));
+        }
+        final Object[][] columns = new Object[columnCount][];
+        final List<Integer> objectColumns = new ArrayList<Integer>();
+        for (int i = 0; i < columnCount; i++) {
+            final byte tag = payload.readByte();
+            if (tag == OBJECT) {
+                objectColumns.add(i);
+            } else {
+                columns[i] = readColumn(payload, tag, rowCount);
+            }
+        }
+        payload.close();
+        for (final Integer i : objectColumns) {
+            final Object[] column = new Object[rowCount];
+            for (int j = 0; j < rowCount; j++) {
+                column[j] = in.readObject();
+            }
+            columns[i] = column;
+        }
+
+        for (int i = 0; i < columnCount; i++) {
+            for (int j = 0; j < rowCount; j++) {
+                res.get(j).addValue(columns[i][j]);
+            }
+        }
+        return res;
+    }
+
+    private static byte getTypeTag(final Object o) {
+        // exact classes, otherwise the subclass would be lost
+        final Class<?> c = o.getClass();
+        if (c == Integer.class)
+            return INTEGER;
+        else if (c == Long.class)
+            return LONG;
+        else if (c == BigDecimal.class)
+            return ((BigDecimal) o).unscaledValue().bitLength() < 64 ? DECIMAL : OBJECT;
+        else if (c == String.class)
+            return STRING;
+        else if (c == Boolean.class)
+            return BOOLEAN;
+        else if (c == Date.class)
+            return DATE;
+        else if (c == java.sql.Date.class)
+            return SQL_DATE;
+        else if (c == Timestamp.class)
+            return TIMESTAMP;
+        else
+            return OBJECT;
+    }
+
+    private static byte getTag(final Object[] column) {
+        byte res = NULL;
+        boolean hasNulls = false;
+        for (final Object o : column) {
+            if (o == null) {
+                hasNulls = true;
+            } else {
+                final byte tag = getTypeTag(o);
+                if (tag == OBJECT || (res != NULL && res != tag))
+                    return OBJECT;
+                res = tag;
+            }
+        }
+        return res != NULL && hasNulls ? (byte) (res | HAS_NULLS) : res;
+    }
+
+    private static void writeColumn(final DataOutput out, final byte tag, final Object[] column) throws IOException {
+        out.writeByte(tag);
+        if (tag == NULL)
+            return;
+        if ((tag & HAS_NULLS) != 0) {
+            final byte[] bitmap = new byte[(column.length + 7) / 8];
+            for (int j = 0; j < column.length; j++) {
+                if (column[j] == null)
+                    bitmap[j / 8] |= 1 << (j % 8);
+            }
+            out.write(bitmap);
+        }
+        final byte type = (byte) (tag & ~HAS_NULLS);
+        if (type == STRING) {
+            // dictionary of the distinct values, then the index of each value
+            final Map<String, Integer> dict = new HashMap<String, Integer>();
+            final List<String> values = new ArrayList<String>();
+            for (final Object o : column) {
+                if (o != null && !dict.containsKey(o)) {
+                    dict.put((String) o, values.size());
+                    values.add((String) o);
+                }
+            }
+            writeVarLong(out, values.size());
+            for (final String s : values) {
+                final byte[] utf8 = s.getBytes(UTF8);
+                writeVarLong(out, utf8.length);
+                out.write(utf8);
+            }
+            for (final Object o : column) {
+                if (o != null)
+                    writeVarLong(out, dict.get(o));
+            }
+        } else if (type == BOOLEAN) {
+            final byte[] bitmap = new byte[(column.length + 7) / 8];
+            for (int j = 0; j < column.length; j++) {
+                if (Boolean.TRUE.equals(column[j]))
+                    bitmap[j / 8] |= 1 << (j % 8);
+            }
+            out.write(bitmap);
+        } else {
+            for (final Object o : column) {
+                if (o == null)
+                    continue;
+                switch (type) {
+                case INTEGER:
+                case LONG:
+                    writeVarLong(out, ((Number) o).longValue());
+                    break;
+                case DECIMAL:
+                    final BigDecimal bd = (BigDecimal) o;
+                    writeVarLong(out, bd.scale());
+                    writeVarLong(out, bd.unscaledValue().longValue());
+                    break;
+                case DATE:
+                case SQL_DATE:
+                    writeVarLong(out, ((Date) o).getTime());
+                    break;
+                case TIMESTAMP:
+                    final Timestamp ts = (Timestamp) o;
+                    writeVarLong(out, ts.getTime());
+                    writeVarLong(out, ts.getNanos());
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown type " + type);
+                }
+            }
+        }
+    }
+
+    private static Object[] readColumn(final DataInput in, final byte tag, final int rowCount) throws IOException {
+        final Object[] res = new Object[rowCount];
+        if (tag == NULL)
+            return res;
+        final boolean[] isNull = new boolean[rowCount];
+        if ((tag & HAS_NULLS) != 0) {
+            final byte[] bitmap = new byte[(rowCount + 7) / 8];
+            in.readFully(bitmap);
+            for (int j = 0; j < rowCount; j++) {
+                isNull[j] = (bitmap[j / 8] & (1 << (j % 8))) != 0;
+            }
+        }
+        final byte type = (byte) (tag & ~HAS_NULLS);
+        if (type == STRING) {
+            final String[] values = new String[(int) readVarLong(in)];
+            for (int k = 0; k < values.length; k++) {
+                final byte[] utf8 = new byte[(int) readVarLong(in)];
+                in.readFully(utf8);
+                values[k] = new String(utf8, UTF8);
+            }
+            for (int j = 0; j < rowCount; j++) {
+                if (!isNull[j])
+                    res[j] = values[(int) readVarLong(in)];
+            }
+        } else if (type == BOOLEAN) {
+            final byte[] bitmap = new byte[(rowCount + 7) / 8];
+            in.readFully(bitmap);
+            for (int j = 0; j < rowCount; j++) {
+                if (!isNull[j])
+                    res[j] = Boolean.valueOf((bitmap[j / 8] & (1 << (j % 8))) != 0);
+            }
+        } else {
+            for (int j = 0; j < rowCount; j++) {
+                if (isNull[j])
+                    continue;
+                switch (type) {
+                case INTEGER:
+                    res[j] = Integer.valueOf((int) readVarLong(in));
+                    break;
+                case LONG:
+                    res[j] = Long.valueOf(readVarLong(in));
+                    break;
+                case DECIMAL:
+                    final int scale = (int) readVarLong(in);
+                    res[j] = new BigDecimal(BigInteger.valueOf(readVarLong(in)), scale);
+                    break;
+                case DATE:
+                    res[j] = new Date(readVarLong(in));
+                    break;
+                case SQL_DATE:
+                    res[j] = new java.sql.Date(readVarLong(in));
+                    break;
+                case TIMESTAMP:
+                    final Timestamp ts = new Timestamp(readVarLong(in));
+                    ts.setNanos((int) readVarLong(in));
+                    res[j] = ts;
+                    break;
+                default:
+                    throw new IOException("Unknown type " + type);
+                }
+            }
+        }
+        return res;
+    }
+
+    // zigzag then 7 bits per byte, so that small negative numbers are also short
+    static void writeVarLong(final DataOutput out, final long l) throws IOException {
+        long v = (l << 1) ^ (l >> 63);
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    static long readVarLong(final DataInput in) throws IOException {
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift > 63)
+                throw new IOException("Malformed variable length long");
+            b = in.readByte();
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    // allow to use ByteArrayOutputStream.writeTo()
+    private static final class DataOutputStreamAdapter extends OutputStream {
+        private final DataOutput out;
+
+        DataOutputStreamAdapter(final DataOutput out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+        }
+    }
+}
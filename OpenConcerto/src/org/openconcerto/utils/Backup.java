@@ -13,166 +13,338 @@
  
  package org.openconcerto.utils;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.math.BigInteger;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 
+/**
+ * A content-addressed backup store. Files are split in chunks named by their SHA-256 hash, so a
+ * chunk already present in the store (from a previous snapshot or another file) is never written
+ * twice. Each call to {@link #commit()} writes a small manifest listing the files of the snapshot
+ * and their chunks. Files whose size and modification date are unchanged since the last snapshot
+ * are not even read.
+ * <p>
+ * Layout of the store :
+ * <ul>
+ * <li><code>chunks/ab/abcdef...</code> the content of the chunks</li>
+ * <li><code>snapshots/yyyyMMdd-HHmmss.manifest</code> one manifest per snapshot</li>
+ * </ul>
+ * </p>
+ */
 public class Backup {
 
     static public final Logger getLogger() {
         return Logger.getLogger("org.openconcerto.backup");
     }
 
-    private Set<String> processedDir;
+    static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    static private final String MANIFEST_EXT = ".manifest";
+    static private final String HASH_ALGO = "SHA-256";
+    static private final String DIR_TYPE = "D";
+    static private final String FILE_TYPE = "F";
+
+    static private MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGO);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(HASH_ALGO + " is part of the standard vm", e);
+        }
+    }
+
+    /**
+     * An entry of a manifest.
+     */
+    static final class Entry {
+        private final boolean dir;
+        private final long lastModified;
+        private final long size;
+        private final List<String> chunks;
+        private final String path;
+
+        Entry(boolean dir, long lastModified, long size, List<String> chunks, String path) {
+            this.dir = dir;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.chunks = chunks;
+            this.path = path;
+        }
+
+        final boolean isUpToDate(final File f) {
+            return !this.dir && f.length() == this.size && f.lastModified() == this.lastModified;
+        }
+
+        final String toLine() {
+            final StringBuilder sb = new StringBuilder(128);
+            sb.append(this.dir ? DIR_TYPE : FILE_TYPE).append('\t').append(this.lastModified).append('\t').append(this.size).append('\t');
+            for (int i = 0; i < this.chunks.size(); i++) {
+                if (i > 0)
+                    sb.append(',');
+                sb.append(this.chunks.get(i));
+            }
+            // last since it can contain anything
+            sb.append('\t').append(this.path);
+            return sb.toString();
+        }
+
+        static Entry fromLine(final String line) {
+            final String[] parts = line.split("\t", 5);
+            if (parts.length != 5)
+                throw new IllegalArgumentException("Invalid manifest line : " + line);
+            final List<String> chunks = parts[3].length() == 0 ? Collections.<String> emptyList() : Arrays.asList(parts[3].split(","));
+            return new Entry(parts[0].equals(DIR_TYPE), Long.parseLong(parts[1]), Long.parseLong(parts[2]), chunks, parts[4]);
+        }
+    }
+
     private final File dest;
+    private final File chunksDir, snapshotsDir;
+    private final ExecutorService exec;
+    // path -> entry of the last snapshot, to avoid reading unchanged files
+    private Map<String, Entry> previous;
+    private final SortedMap<String, Entry> current = new TreeMap<String, Entry>();
+    private Set<String> processedDir;
 
+    /**
+     * Create a backup in the passed store.
+     *
+     * @param dest the root of the store, created if necessary.
+     */
     public Backup(File dest) {
         this.dest = dest;
+        this.chunksDir = new File(dest, "chunks");
+        this.snapshotsDir = new File(dest, "snapshots");
+        this.exec = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()), new ThreadFactory("Backup ", true));
+    }
+
+    public final File getDestination() {
+        return this.dest;
     }
 
-    static final int bufferSize = 512 * 1024;
+    private File getChunkFile(final String hash) {
+        return new File(new File(this.chunksDir, hash.substring(0, 2)), hash);
+    }
 
     /**
-     * Copy of File
-     * 
-     * @param sourceFile
-     * @param destFile
-     * @param bar
+     * The snapshots of this store.
+     *
+     * @return the names of the snapshots, oldest first.
      */
-    private int copy(final File sourceFile, File destFile) {
-        int failed = 0;
-
-        if (sourceFile.isDirectory()) {
-            destFile.mkdirs();
-            return 0;
+    public List<String> getSnapshots() {
+        final List<String> res = new ArrayList<String>();
+        final File[] files = this.snapshotsDir.listFiles();
+        if (files != null) {
+            for (final File f : files) {
+                final String name = f.getName();
+                if (f.isFile() && name.endsWith(MANIFEST_EXT))
+                    res.add(name.substring(0, name.length() - MANIFEST_EXT.length()));
+            }
         }
+        Collections.sort(res);
+        return res;
+    }
 
+    private List<Entry> readManifest(final String snapshot) throws IOException {
+        final List<Entry> res = new ArrayList<Entry>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(new File(this.snapshotsDir, snapshot + MANIFEST_EXT)), StringUtils.UTF8));
         try {
-            if (destFile.exists()) {
-                destFile.delete();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0)
+                    res.add(Entry.fromLine(line));
             }
-            destFile.createNewFile();
-        } catch (IOException e1) {
-            e1.printStackTrace();
+        } finally {
+            reader.close();
         }
+        return res;
+    }
 
-        try {
-            FileOutputStream bufOut = new FileOutputStream(destFile);
-            FileInputStream bufIn = new FileInputStream(sourceFile);
-
-            try {
-
-                byte buffer[] = new byte[bufferSize];
-                int nbLecture;
-                while ((nbLecture = bufIn.read(buffer)) != -1) {
-                    bufOut.write(buffer, 0, nbLecture);
-                }
-
-            } catch (IOException e) {
-                getLogger().log(Level.SEVERE, "Copy Failed for file : " + sourceFile);
-                System.err.println("Failed : " + sourceFile);
-                failed = 1;
-                e.printStackTrace();
-            } finally {
+    private synchronized Map<String, Entry> getPrevious() {
+        if (this.previous == null) {
+            this.previous = new HashMap<String, Entry>();
+            final List<String> snapshots = getSnapshots();
+            if (!snapshots.isEmpty()) {
                 try {
-
-                    bufIn.close();
-                    bufOut.close();
-                } catch (IOException e) {
-                    getLogger().log(Level.SEVERE, "Error to close Stream in copy." + sourceFile);
-                    failed = 1;
-                    e.printStackTrace();
+                    for (final Entry e : readManifest(snapshots.get(snapshots.size() - 1))) {
+                        this.previous.put(e.path, e);
+                    }
+                } catch (Exception e) {
+                    // just read everything
+                    getLogger().log(Level.WARNING, "Unable to read last snapshot of " + this.dest, e);
+                    this.previous.clear();
                 }
             }
-
-        } catch (FileNotFoundException e) {
-            getLogger().log(Level.SEVERE, "Copy Failed, File not found " + sourceFile);
-            failed = 1;
-            e.printStackTrace();
         }
+        return this.previous;
+    }
 
-        destFile.setLastModified(sourceFile.lastModified());
-        return failed;
+    /**
+     * Store the content of a file. Each chunk is hashed then, only if absent from the store, copied
+     * with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+     *
+     * @param f the file to store.
+     * @param path the path of <code>f</code> in the snapshot.
+     * @param buffer a buffer of {@link #CHUNK_SIZE} bytes.
+     * @param digest the digest to use.
+     * @return the entry for <code>f</code>.
+     * @throws IOException if an error occurs.
+     */
+    private Entry store(final File f, final String path, final ByteBuffer buffer, final MessageDigest digest) throws IOException {
+        // read lastModified before the content so that a concurrent modification will be picked up
+        // next time
+        final long lastModified = f.lastModified();
+        final List<String> res = new ArrayList<String>();
+        long position = 0;
+        final FileInputStream ins = new FileInputStream(f);
+        try {
+            final FileChannel in = ins.getChannel();
+            while (true) {
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    if (in.read(buffer, position + buffer.position()) < 0)
+                        break;
+                }
+                final int count = buffer.position();
+                if (count == 0)
+                    break;
+                digest.reset();
+                digest.update(buffer.array(), 0, count);
+                final String hash = MessageDigestUtils.asHex(digest.digest());
+                final File chunk = getChunkFile(hash);
+                if (!chunk.exists()) {
+                    FileUtils.mkdir_p(chunk.getParentFile());
+                    // other threads might write the same chunk
+                    final File tmp = new File(chunk.getParentFile(), hash + "." + Thread.currentThread().getId() + ".tmp");
+                    final FileOutputStream outs = new FileOutputStream(tmp);
+                    try {
+                        final FileChannel out = outs.getChannel();
+                        long transferred = 0;
+                        while (transferred < count) {
+                            transferred += in.transferTo(position + transferred, count - transferred, out);
+                        }
+                    } finally {
+                        outs.close();
+                    }
+                    if (!tmp.renameTo(chunk)) {
+                        tmp.delete();
+                        if (!chunk.exists())
+                            throw new IOException("Unable to create " + chunk);
+                    }
+                }
+                res.add(hash);
+                position += count;
+                if (count < buffer.capacity())
+                    break;
+            }
+        } finally {
+            ins.close();
+        }
+        return new Entry(false, lastModified, position, res, path);
     }
 
     /**
-     * Recherche les fichiers à créer dans le répertoire passé en parametre
-     * 
-     * @param dir
+     * Add a directory (or a single file) to the current snapshot. Files are processed in parallel.
+     *
+     * @param dir the directory to save, its name is kept in the snapshot.
      * @return le nombre d'erreurs
      */
     public int applyTo(final File dir) {
-        getLogger().log(Level.INFO, "Copy start from " + dir + " to " + this.dest);
-        processedDir = new HashSet<String>();
-        final int applyTo = applyTo(dir, dir);
-        processedDir = null;
-        return applyTo;
+        getLogger().log(Level.INFO, "Backup start from " + dir + " to " + this.dest);
+        this.processedDir = new HashSet<String>();
+        final List<File> files = new ArrayList<File>();
+        int failed = list(dir, dir, files);
+        this.processedDir = null;
+
+        final Map<String, Entry> previous = getPrevious();
+        final List<Future<Entry>> futures = new ArrayList<Future<Entry>>(files.size());
+        final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+            @Override
+            protected ByteBuffer initialValue() {
+                return ByteBuffer.allocate(CHUNK_SIZE);
+            }
+        };
+        final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+            @Override
+            protected MessageDigest initialValue() {
+                return createDigest();
+            }
+        };
+        for (final File f : files) {
+            final String path = getPath(dir, f);
+            futures.add(this.exec.submit(new Callable<Entry>() {
+                @Override
+                public Entry call() throws Exception {
+                    if (f.isDirectory())
+                        return new Entry(true, f.lastModified(), 0, Collections.<String> emptyList(), path);
+                    final Entry prev = previous.get(path);
+                    if (prev != null && prev.isUpToDate(f))
+                        return prev;
+                    return store(f, path, buffers.get(), digests.get());
+                }
+            }));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                final Entry e = futures.get(i).get();
+                synchronized (this) {
+                    this.current.put(e.path, e);
+                }
+            } catch (InterruptedException e) {
+                throw new RTInterruptedException(e);
+            } catch (ExecutionException e) {
+                getLogger().log(Level.SEVERE, "Copy Failed for file : " + files.get(i), e.getCause());
+                failed++;
+            }
+        }
+        return failed;
     }
 
-    private int applyTo(final File origine, final File dir) {
+    private int list(final File origine, final File dir, final List<File> res) {
         final String dirPath = dir.getAbsolutePath();
-        if (processedDir.contains(dirPath)) {
+        if (this.processedDir.contains(dirPath)) {
             return 0;
         }
-        processedDir.add(dirPath);
+        this.processedDir.add(dirPath);
         int failed = 0;
-        if (dir.exists()) {
-
-            File file = getFile(origine, dir);
-            if (!file.exists()) {
-                file.mkdirs();
-            }
-            File[] list = dir.listFiles();
+        if (dir.isFile()) {
+            res.add(dir);
+        } else if (dir.exists()) {
+            res.add(dir);
+            final File[] list = dir.listFiles();
             if (list != null) {
-                for (int i = 0; i < list.length; i++) {
-                    File f = list[i];
-                    File f2 = getFile(origine, f);
-
-                    // si c'est un répertoire
+                for (final File f : list) {
                     if (f.isDirectory()) {
-                        if (!f2.exists()) {
-                            failed += copy(f, f2);
-                        }
-                        applyTo(origine, f);
+                        failed += list(origine, f, res);
                     } else {
-                        if (f2.exists()) {
-                            // On copie si la date de modification ou la taille sont differente
-                            boolean dateModif = f.lastModified() == f2.lastModified();
-                            if (!dateModif || f.length() != f2.length()) {
-                                failed += copy(f, f2);
-                            } else {
-                                // Sinon si la taille est égale on vérifie si le fichier est le meme
-                                if (!dateModif && f.length() == f2.length()) {
-                                    String MD5f = getMD5(f);
-                                    String MD5f2 = getMD5(f2);
-                                    boolean md5 = MD5f.equalsIgnoreCase(MD5f2);
-                                    if (!(MD5f.length() > 0 && MD5f2.length() > 0)) {
-                                        if (md5) {
-                                            f2.setLastModified(f.lastModified());
-                                        } else {
-                                            failed += copy(f, f2);
-                                        }
-                                    } else {
-                                        failed += copy(f, f2);
-                                    }
-                                }
-                            }
-                        } else {
-                            failed += copy(f, f2);
-                        }
+                        res.add(f);
                     }
                 }
             } else {
@@ -183,78 +355,168 @@ public class Backup {
                         JOptionPane.showMessageDialog(null, "Impossible de lister le répertoire " + dir + ".\n Vous n'avez pas les droits suffisants!");
                     }
                 });
-
             }
-
         }
         return failed;
     }
 
     /**
-     * Get the new path for the saved file
-     * 
+     * Get the path of the saved file in the snapshot.
+     *
+     * @param origine the directory passed to {@link #applyTo(File)}.
      * @param f File to save
-     * @return
+     * @return the path relative to the parent of <code>origine</code>.
      */
-    private File getFile(File origine, File f) {
-
-        File base = (origine.getParentFile() == null) ? origine : origine.getParentFile();
-        String s2 = base.toURI().relativize(f.toURI()).getPath();
-
-        return new File(this.dest, s2);
+    private String getPath(File origine, File f) {
+        final File base = (origine.getParentFile() == null) ? origine : origine.getParentFile();
+        return base.toURI().relativize(f.toURI()).getPath();
     }
 
     /**
-     * 
-     * @param f File
-     * @return the md5 of the File
+     * Write the manifest of all directories added since the last commit.
+     *
+     * @return the name of the new snapshot, <code>null</code> if it couldn't be written.
      */
-    private String getMD5(File f) {
-        MessageDigest digest;
-        String output = "";
-        InputStream is;
+    public synchronized String commit() {
+        final String name = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
         try {
-            is = new FileInputStream(f);
-
+            FileUtils.mkdir_p(this.snapshotsDir);
+            final File tmp = new File(this.snapshotsDir, name + MANIFEST_EXT + ".tmp");
+            final BufferedWriter writer = FileUtils.createWriter(tmp, StringUtils.UTF8);
             try {
-                digest = MessageDigest.getInstance("MD5");
-
-                is = new FileInputStream(f);
-                byte buffer[] = new byte[512 * 1024];
-                int read = 0;
-
-                while ((read = is.read(buffer)) > 0) {
-                    digest.update(buffer, 0, read);
+                for (final Entry e : this.current.values()) {
+                    writer.write(e.toLine());
+                    writer.write('\n');
                 }
-                byte[] md5sum = digest.digest();
-                BigInteger bigInt = new BigInteger(1, md5sum);
-                output = bigInt.toString(16);
-                // System.out.println("MD5: " + output);
-
-                is.close();
-            } catch (IOException e) {
-                getLogger().log(Level.INFO, "Unable to process file for MD5. " + f);
-                throw new RuntimeException("Unable to process file for MD5", e);
-            } catch (NoSuchAlgorithmException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
             } finally {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    getLogger().log(Level.INFO, "Unable to close file at the end of MD5. " + f);
-                    e.printStackTrace();
-                }
+                writer.close();
             }
-        } catch (FileNotFoundException e1) {
-            getLogger().log(Level.INFO, "File not found for MD5. " + f);
-            e1.printStackTrace();
+            final File manifest = new File(this.snapshotsDir, name + MANIFEST_EXT);
+            if (!tmp.renameTo(manifest))
+                throw new IOException("Unable to rename " + tmp + " to " + manifest);
+        } catch (IOException e) {
+            getLogger().log(Level.SEVERE, "Unable to write snapshot " + name + " in " + this.dest, e);
+            return null;
         }
+        this.previous = new HashMap<String, Entry>(this.current);
+        this.current.clear();
+        return name;
+    }
 
-        return output;
+    /**
+     * Restore a snapshot.
+     *
+     * @param snapshot the name of the snapshot, see {@link #getSnapshots()}.
+     * @param dir where to restore the files, the saved directories will be created inside.
+     * @return le nombre d'erreurs
+     * @throws IOException if the manifest cannot be read.
+     */
+    public int restore(final String snapshot, final File dir) throws IOException {
+        final List<Entry> entries = readManifest(snapshot);
+        // create directories first, ordered by path so parents come before children
+        for (final Entry e : entries) {
+            if (e.dir)
+                FileUtils.mkdir_p(new File(dir, e.path));
+        }
+        final List<Future<?>> futures = new ArrayList<Future<?>>(entries.size());
+        for (final Entry e : entries) {
+            if (e.dir)
+                continue;
+            futures.add(this.exec.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    final File f = new File(dir, e.path);
+                    FileUtils.mkParentDirs(f);
+                    final FileOutputStream outs = new FileOutputStream(f);
+                    try {
+                        final FileChannel out = outs.getChannel();
+                        for (final String hash : e.chunks) {
+                            final FileInputStream ins = new FileInputStream(getChunkFile(hash));
+                            try {
+                                final FileChannel in = ins.getChannel();
+                                final long size = in.size();
+                                long position = 0;
+                                while (position < size) {
+                                    position += in.transferTo(position, size - position, out);
+                                }
+                            } finally {
+                                ins.close();
+                            }
+                        }
+                    } finally {
+                        outs.close();
+                    }
+                    f.setLastModified(e.lastModified);
+                    return null;
+                }
+            }));
+        }
+        int failed = waitFor(futures, "Restore");
+        for (final Entry e : entries) {
+            if (e.dir)
+                new File(dir, e.path).setLastModified(e.lastModified);
+        }
+        return failed;
+    }
 
+    /**
+     * Check that all chunks of a snapshot are present and intact.
+     *
+     * @param snapshot the name of the snapshot, see {@link #getSnapshots()}.
+     * @return le nombre d'erreurs
+     * @throws IOException if the manifest cannot be read.
+     */
+    public int verify(final String snapshot) throws IOException {
+        final Set<String> hashes = new HashSet<String>();
+        int sizeErrors = 0;
+        for (final Entry e : readManifest(snapshot)) {
+            long size = 0;
+            for (final String hash : e.chunks) {
+                hashes.add(hash);
+                size += getChunkFile(hash).length();
+            }
+            if (size != e.size) {
+                getLogger().log(Level.SEVERE, "Invalid size for " + e.path + " : " + size + " != " + e.size);
+                sizeErrors++;
+            }
+        }
+        final List<Future<?>> futures = new ArrayList<Future<?>>(hashes.size());
+        for (final String hash : hashes) {
+            futures.add(this.exec.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    final FileInputStream ins = new FileInputStream(getChunkFile(hash));
+                    final String actual;
+                    try {
+                        actual = MessageDigestUtils.getHashString(createDigest(), ins);
+                    } finally {
+                        ins.close();
+                    }
+                    if (!actual.equals(hash))
+                        throw new IOException("Corrupted chunk " + hash + " : " + actual);
+                    return null;
+                }
+            }));
+        }
+        return sizeErrors + waitFor(futures, "Verify");
+    }
+
+    private int waitFor(final List<Future<?>> futures, final String op) {
+        int failed = 0;
+        for (final Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                throw new RTInterruptedException(e);
+            } catch (ExecutionException e) {
+                getLogger().log(Level.SEVERE, op + " failed in " + this.dest, e.getCause());
+                failed++;
+            }
+        }
+        return failed;
     }
 
     public void close() {
+        this.exec.shutdown();
     }
 }
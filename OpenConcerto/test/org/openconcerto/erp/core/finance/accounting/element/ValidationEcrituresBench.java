@@ -0,0 +1,152 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.core.finance.accounting.element;
+
+import org.openconcerto.sql.model.DBSystemRoot;
+import org.openconcerto.sql.model.SQLDataSource;
+import org.openconcerto.sql.model.SQLRowValues;
+import org.openconcerto.sql.model.SQLServer;
+import org.openconcerto.sql.model.SQLSystem;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.model.SQLTableEvent;
+import org.openconcerto.sql.model.SQLTableModifiedListener;
+import org.openconcerto.utils.cc.IClosure;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Validates a synthetic ledger in an in-memory H2 database, first the way it used to be done (one
+ * update and one event per entry) for a sample of movements, then with
+ * {@link EcritureSQLElement#valideMouvementsBefore(SQLTable, Date, Integer, int, IClosure)}. A
+ * failure throws an exception.
+ */
+public class ValidationEcrituresBench {
+
+    private static final String ROOT = "BENCH";
+    private static final int ENTRIES_PER_MVT = 4;
+    private static final int JOURNAUX = 5;
+
+    private static DBSystemRoot createSystemRoot() {
+        final DBSystemRoot sysRoot = new SQLServer(SQLSystem.H2, "mem", null, null, null, new IClosure<DBSystemRoot>() {
+            @Override
+            public void executeChecked(DBSystemRoot input) {
+                input.setRootToMap(ROOT);
+            }
+        }, null).getSystemRoot("validationBench");
+        // keep the database while the data source is open
+        sysRoot.getDataSource().execute("SET DB_CLOSE_DELAY -1");
+        return sysRoot;
+    }
+
+    private static SQLTable createLedger(final DBSystemRoot sysRoot, final int mvtCount, final Date d) throws Exception {
+        final SQLDataSource ds = sysRoot.getDataSource();
+        ds.execute("CREATE SCHEMA \"" + ROOT + "\"");
+        ds.execute("CREATE TABLE \"" + ROOT + "\".\"ECRITURE\" (\"ID\" int PRIMARY KEY, \"ID_MOUVEMENT\" int, \"ID_JOURNAL\" int, \"DATE\" date, \"DEBIT\" bigint, \"CREDIT\" bigint, "
+                + "\"VALIDE\" boolean DEFAULT false, \"DATE_VALIDE\" date, \"IDUSER_VALIDE\" int, \"ARCHIVE\" int DEFAULT 0)");
+        ds.execute("CREATE INDEX \"ECRITURE_MVT\" ON \"" + ROOT + "\".\"ECRITURE\"(\"ID_MOUVEMENT\")");
+        final String date = new java.sql.Date(d.getTime()).toString();
+        final StringBuilder sb = new StringBuilder();
+        int id = 1;
+        for (int mvt = 1; mvt <= mvtCount; mvt++) {
+            for (int i = 0; i < ENTRIES_PER_MVT; i++) {
+                if (sb.length() > 0)
+                    sb.append(", ");
+                sb.append("(" + id++ + ", " + mvt + ", " + (1 + mvt % JOURNAUX) + ", '" + date + "', " + (i % 2 == 0 ? 100 : 0) + ", " + (i % 2 == 0 ? 0 : 100) + ")");
+            }
+            if (mvt % 1000 == 0 || mvt == mvtCount) {
+                ds.execute("INSERT INTO \"" + ROOT + "\".\"ECRITURE\"(\"ID\", \"ID_MOUVEMENT\", \"ID_JOURNAL\", \"DATE\", \"DEBIT\", \"CREDIT\") VALUES " + sb);
+                sb.setLength(0);
+            }
+        }
+        sysRoot.refetch();
+        return sysRoot.getRoot(ROOT).getTable("ECRITURE");
+    }
+
+    private static int count(final SQLTable t, final String where) {
+        return ((Number) t.getDBSystemRoot().getDataSource().executeScalar("SELECT count(*) FROM " + t.getSQLName().quote() + " WHERE " + where)).intValue();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int mvtCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        final int sampleCount = Math.min(mvtCount / 10, 1000);
+        final Calendar cal = Calendar.getInstance();
+        cal.set(2013, Calendar.JUNE, 30);
+        final Date d = cal.getTime();
+        final DBSystemRoot sysRoot = createSystemRoot();
+        try {
+            final SQLTable ecriture = createLedger(sysRoot, mvtCount, d);
+            final AtomicInteger events = new AtomicInteger();
+            ecriture.addTableModifiedListener(new SQLTableModifiedListener() {
+                @Override
+                public void tableModified(SQLTableEvent evt) {
+                    events.incrementAndGet();
+                }
+            });
+
+            // like before : one update and one event per entry
+            long start = System.nanoTime();
+            @SuppressWarnings("unchecked")
+            final List<Number> sampleIDs = sysRoot.getDataSource().executeCol(
+                    "SELECT \"ID\" FROM " + ecriture.getSQLName().quote() + " WHERE \"ID_MOUVEMENT\" <= " + sampleCount + " ORDER BY \"ID\"");
+            for (final Number id : sampleIDs) {
+                final SQLRowValues rowVals = new SQLRowValues(ecriture);
+                rowVals.put("VALIDE", Boolean.TRUE);
+                rowVals.put("DATE_VALIDE", new java.sql.Date(new Date().getTime()));
+                rowVals.put("IDUSER_VALIDE", 2);
+                rowVals.update(id.intValue());
+            }
+            final long oneByOneNanos = System.nanoTime() - start;
+            final int oneByOneEvents = events.getAndSet(0);
+
+            // a single journal
+            start = System.nanoTime();
+            final int journalMvts = EcritureSQLElement.valideMouvementsBefore(ecriture, d, 1, 2, null);
+            final long journalNanos = System.nanoTime() - start;
+            if (count(ecriture, "\"ID_JOURNAL\" = 1 AND NOT \"VALIDE\"") != 0 || count(ecriture, "\"ID_JOURNAL\" = 2 AND \"ID_MOUVEMENT\" > " + sampleCount + " AND \"VALIDE\"") != 0)
+                throw new IllegalStateException("Journal not respected");
+
+            // the rest
+            final AtomicInteger lastPercent = new AtomicInteger();
+            start = System.nanoTime();
+            final int restMvts = EcritureSQLElement.valideMouvementsBefore(ecriture, d, null, 2, new IClosure<Integer>() {
+                @Override
+                public void executeChecked(Integer percent) {
+                    lastPercent.set(percent);
+                }
+            });
+            final long restNanos = System.nanoTime() - start;
+            if (count(ecriture, "NOT \"VALIDE\"") != 0)
+                throw new IllegalStateException("Some entries are not validated");
+            if (journalMvts + restMvts + sampleCount != mvtCount)
+                throw new IllegalStateException("Wrong movement count : " + journalMvts + " + " + restMvts);
+            if (lastPercent.get() != 100)
+                throw new IllegalStateException("Progress ended at " + lastPercent);
+            if (events.get() != 2)
+                throw new IllegalStateException("Expected one event per validation but was " + events);
+
+            final long entries = (long) mvtCount * ENTRIES_PER_MVT;
+            System.out.println(entries + " entries in " + mvtCount + " movements");
+            System.out.println("one by one : " + sampleIDs.size() + " entries in " + oneByOneNanos / 1000000 + " ms, " + oneByOneEvents + " events, " + oneByOneNanos / sampleIDs.size() / 1000
+                    + " us per entry");
+            System.out.println("journal 1 : " + journalMvts + " movements in " + journalNanos / 1000000 + " ms");
+            final long restEntries = (long) restMvts * ENTRIES_PER_MVT;
+            System.out.println("set-based : " + restEntries + " entries in " + restNanos / 1000000 + " ms, " + restNanos / restEntries / 1000 + " us per entry");
+        } finally {
+            sysRoot.getServer().destroy();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.storage;
+
+import org.openconcerto.utils.FileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Checks the dispatcher with local engines in a temporary directory : uploads to two engines of the
+ * same class, deduplication, data shared with an abandoned upload and an upload postponed then
+ * resumed by another dispatcher. A failure throws an exception. Should be run with
+ * <code>-Djava.awt.headless=true</code> since an abandoned upload is reported to the user.
+ */
+public class StorageDispatcherTest {
+
+    private static final String PATH = "docs";
+
+    // always fails
+    private static final class FailingEngine extends FileSystemStorageEngine {
+        public FailingEngine(final File rootDir) {
+            super(rootDir);
+        }
+
+        @Override
+        public void store(InputStream inStream, String remotePath, String title, boolean synchronous) throws IOException {
+            throw new IOException("Test failure");
+        }
+    }
+
+    // not configured until enabled
+    private static final class ToggleEngine extends FileSystemStorageEngine {
+        private volatile boolean enabled = false;
+
+        public ToggleEngine(final File rootDir) {
+            super(rootDir);
+        }
+
+        @Override
+        public boolean isConfigured() {
+            return this.enabled;
+        }
+    }
+
+    private static void check(final boolean b, final String msg) {
+        if (!b)
+            throw new IllegalStateException(msg);
+    }
+
+    private static InputStream content(final String s) {
+        return new ByteArrayInputStream(s.getBytes());
+    }
+
+    private static void waitIdle(final StorageDispatcher d) throws InterruptedException {
+        final long end = System.currentTimeMillis() + 30000;
+        while (d.getMetrics().getPending() > 0) {
+            if (System.currentTimeMillis() > end)
+                throw new IllegalStateException("Timeout : " + d.getMetrics());
+            Thread.sleep(10);
+        }
+    }
+
+    private static int count(final File spoolDir, final String ext) {
+        int res = 0;
+        for (final File f : spoolDir.listFiles()) {
+            if (f.getName().endsWith(ext))
+                res++;
+        }
+        return res;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final File dir = FileUtils.createTempDir("storageDispatcherTest");
+        try {
+            test(dir);
+        } finally {
+            FileUtils.rm_R(dir);
+        }
+        System.out.println("OK");
+    }
+
+    private static void test(final File dir) throws Exception {
+        final File spoolDir = new File(dir, "spool");
+        final File dirA = new File(dir, "a");
+        final File dirB = new File(dir, "b");
+        final FileSystemStorageEngine engineA = new FileSystemStorageEngine(dirA);
+        final FileSystemStorageEngine engineB = new FileSystemStorageEngine(dirB);
+        final FailingEngine failing = new FailingEngine(new File(dir, "fail"));
+        final ToggleEngine toggle = new ToggleEngine(new File(dir, "toggle"));
+
+        final StorageDispatcher d = new StorageDispatcher(spoolDir, 2, 1);
+        d.register("a", engineA);
+        d.register("b", engineB);
+        d.register("fail", failing);
+        d.register("toggle", toggle);
+        check("a".equals(d.getID(engineA)), "Wrong ID : " + d.getID(engineA));
+
+        // same class, distinct engines
+        check(d.store(engineA, content("facture 1"), PATH, "f1.pdf"), "Not stored in a");
+        check(d.store(engineB, content("facture 1"), PATH, "f1.pdf"), "Not stored in b");
+        check(!d.store(engineA, content("facture 1"), PATH, "f1.pdf"), "Not deduplicated");
+        waitIdle(d);
+        check(new File(dirA, PATH + "/f1.pdf").exists(), "Missing in a");
+        check(new File(dirB, PATH + "/f1.pdf").exists(), "Missing in b");
+        check(count(spoolDir, ".data") == 0, "Data left after uploads");
+
+        // the abandoned job keeps its data even when another job with the same content completes
+        d.store(failing, content("facture 2"), PATH, "f2.pdf");
+        waitIdle(d);
+        check(d.getMetrics().getAbandoned() == 1, "Not abandoned : " + d.getMetrics());
+        d.store(engineA, content("facture 2"), PATH, "f2.pdf");
+        waitIdle(d);
+        check(new File(dirA, PATH + "/f2.pdf").exists(), "Missing f2 in a");
+        check(count(spoolDir, ".job.failed") == 1, "Missing failed job");
+        check(count(spoolDir, ".data") == 1, "Data of the failed job deleted");
+
+        // postponed while the engine isn't configured, then resumed by the next dispatcher
+        d.store(toggle, content("facture 3"), PATH, "f3.pdf");
+        waitIdle(d);
+        check(count(spoolDir, ".job") == 1, "Postponed job not kept");
+        check(count(spoolDir, ".data") == 2, "Data of the postponed job deleted");
+        // the threads of d are daemons and it has nothing left to do
+
+        toggle.enabled = true;
+        final StorageDispatcher d2 = new StorageDispatcher(spoolDir, 2, 1);
+        d2.register("toggle", toggle);
+        check(d2.resume() == 1, "Postponed job not resumed");
+        waitIdle(d2);
+        check(new File(toggle.getRootDir(), PATH + "/f3.pdf").exists(), "Missing f3");
+        check(count(spoolDir, ".job") == 0, "Job left after upload");
+        check(count(spoolDir, ".data") == 1, "Wrong data files after resume");
+    }
+}
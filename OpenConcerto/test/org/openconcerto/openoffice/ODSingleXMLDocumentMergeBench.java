@@ -0,0 +1,77 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.openoffice;
+
+import java.io.File;
+
+import org.jdom.Element;
+import org.jdom.Namespace;
+
+/**
+ * Merges 1000 invoices generated from the same template with
+ * {@link ODSingleXMLDocument#add(ODSingleXMLDocument)}, and compares the time of the first and last
+ * hundred additions : if appending is proportional to the size of the added document, they must be
+ * close. Also checks that common styles aren't duplicated. A failure throws an exception.
+ */
+public class ODSingleXMLDocumentMergeBench {
+
+    private static void check(final boolean b, final String msg) {
+        if (!b)
+            throw new IllegalStateException(msg);
+    }
+
+    private static int count(final Element parent, final String name, final Namespace ns) {
+        return parent == null ? 0 : parent.getChildren(name, ns).size();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final File template = new File(args.length > 0 ? args[0] : "Configuration/Template/Default/VenteFacture.ods");
+        final int count = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        final int slice = Math.max(1, count / 10);
+        final ODSingleXMLDocument invoice = ODSingleXMLDocument.createFromPackage(template);
+        final Namespace styleNS = invoice.getVersion().getSTYLE();
+        final int templateAutoStyles = invoice.getChild("automatic-styles").getContentSize();
+        final int templateBody = invoice.getBody().getContentSize();
+
+        final ODSingleXMLDocument res = invoice.clone();
+        // the first addition also adds the page break style
+        int commonStyles = -1;
+        long first = 0;
+        long last = 0;
+        final long start = System.nanoTime();
+        for (int i = 1; i < count; i++) {
+            // each invoice is a separate document
+            final ODSingleXMLDocument added = invoice.clone();
+            final long before = System.nanoTime();
+            res.add(added);
+            final long nanos = System.nanoTime() - before;
+            if (i == 1)
+                commonStyles = count(res.getChild("styles"), "style", styleNS);
+            if (i <= slice)
+                first += nanos;
+            else if (i >= count - slice)
+                last += nanos;
+        }
+        final long total = System.nanoTime() - start;
+
+        check(res.getNumero() == count - 1, "Wrong numero : " + res.getNumero());
+        check(count(res.getChild("styles"), "style", styleNS) == commonStyles, "Common styles duplicated : " + count(res.getChild("styles"), "style", styleNS));
+        check(res.getChild("automatic-styles").getContentSize() == templateAutoStyles * count, "Wrong automatic styles count : " + res.getChild("automatic-styles").getContentSize());
+        check(res.getBody().getContentSize() >= templateBody * count, "Missing content : " + res.getBody().getContentSize());
+
+        System.out.println(count + " invoices of " + templateAutoStyles + " automatic styles merged in " + total / 1000000 + " ms (including cloning)");
+        System.out.println("first " + slice + " additions : " + first / slice / 1000 + " us each");
+        System.out.println("last " + slice + " additions : " + last / slice / 1000 + " us each");
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.openoffice;
+
+import org.openconcerto.openoffice.spreadsheet.CellStyle;
+import org.openconcerto.openoffice.spreadsheet.Sheet;
+import org.openconcerto.openoffice.spreadsheet.SpreadSheet;
+
+import java.awt.Color;
+
+import javax.swing.table.DefaultTableModel;
+
+import org.jdom.Element;
+import org.jdom.Namespace;
+
+/**
+ * Times {@link org.openconcerto.openoffice.spreadsheet.Table#getStyleAt(int, int)} on a sheet
+ * where each cell has its own automatic style, against the scan of office:automatic-styles done
+ * before the styles were indexed. Also checks that renamed and added styles are found. A failure
+ * throws an exception.
+ */
+public class ODXMLDocumentStyleBench {
+
+    // the former lookup
+    private static Element scan(final Element styles, final Namespace styleNS, final String name) {
+        for (final Object o : styles.getChildren()) {
+            final Element styleElem = (Element) o;
+            if (name.equals(styleElem.getAttributeValue("name", styleNS)))
+                return styleElem;
+        }
+        return null;
+    }
+
+    private static void check(final boolean b, final String msg) {
+        if (!b)
+            throw new IllegalStateException(msg);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        final int cols = 30;
+        final SpreadSheet ss = SpreadSheet.createEmpty(new DefaultTableModel(rows, cols));
+        final Sheet sheet = ss.getSheet(0);
+        long start = System.nanoTime();
+        for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < cols; x++)
+                sheet.getCellAt(x, y).setBackgroundColor(new Color(y * cols + x));
+        }
+        final long createNanos = System.nanoTime() - start;
+        final ODXMLDocument content = ss.getPackage().getContent();
+        final Element autoStyles = content.getChild("automatic-styles");
+        final Namespace styleNS = content.getVersion().getSTYLE();
+        final int cells = rows * cols;
+
+        start = System.nanoTime();
+        for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < cols; x++) {
+                final CellStyle style = sheet.getStyleAt(x, y);
+                check(style != null && style.getName().equals(sheet.getStyleNameAt(x, y)), "Wrong style at " + x + ", " + y);
+            }
+        }
+        final long indexedNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < cols; x++)
+                check(scan(autoStyles, styleNS, sheet.getStyleNameAt(x, y)) != null, "Missing style at " + x + ", " + y);
+        }
+        final long scanNanos = System.nanoTime() - start;
+
+        // a rename through JDOM keeps the content size
+        final StyleDesc<CellStyle> desc = Style.getStyleStyleDesc(CellStyle.class, content.getVersion());
+        final Element renamed = sheet.getStyleAt(0, 0).getElement();
+        final String oldName = renamed.getAttributeValue("name", styleNS);
+        renamed.setAttribute("name", "renamedStyle", styleNS);
+        check(content.getStyle(desc, "renamedStyle") == renamed, "Renamed style not found");
+        check(content.getStyle(desc, oldName) == null, "Old name still found");
+        // an addition through JDOM
+        final Element added = (Element) sheet.getStyleAt(1, 0).getElement().clone();
+        added.setAttribute("name", "addedStyle", styleNS);
+        autoStyles.addContent(added);
+        check(content.getStyle(desc, "addedStyle") == added, "Added style not found");
+
+        System.out.println(cells + " cells, " + autoStyles.getContentSize() + " automatic styles created in " + createNanos / 1000000 + " ms");
+        System.out.println("getStyleAt : " + indexedNanos / cells + " ns");
+        System.out.println("scan : " + scanNanos / cells + " ns");
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.openoffice.generation;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import ognl.Ognl;
+
+/**
+ * Times the evaluation of typical report conditions and parameters, parsed each time like before
+ * or parsed once by {@link OGNLExpressions}. Both must give the same values, a failure throws an
+ * exception.
+ */
+public class OGNLExpressionsBench {
+
+    private static final String[] EXPRESSIONS = { "variante == 'court'", "montant > 1000 && client != null", "client.nom + ' ' + client.ville",
+            "lignes.size == 0 ? null : lignes[0]", "#this.get('variante') in {'court', 'long'}", "!(montant < 0) || variante == null", "client.ville.length() > 3" };
+
+    private static Map<String, Object> createRoot(final int i) {
+        final Map<String, Object> client = new HashMap<String, Object>();
+        client.put("nom", "Client " + i);
+        client.put("ville", i % 2 == 0 ? "Lyon" : "Paris");
+        final Map<String, Object> res = new HashMap<String, Object>();
+        res.put("variante", i % 3 == 0 ? "court" : "long");
+        res.put("montant", i * 37 % 2000);
+        res.put("client", client);
+        res.put("lignes", Arrays.asList("ligne " + i, "ligne " + (i + 1)));
+        return res;
+    }
+
+    private static long time(final Map<?, ?>[] roots, final Object[] expected, final boolean cached) throws Exception {
+        final long start = System.nanoTime();
+        int k = 0;
+        for (final Map<?, ?> root : roots) {
+            for (final String expr : EXPRESSIONS) {
+                final Object res = cached ? OGNLExpressions.getValue(expr, root) : Ognl.getValue(expr, root);
+                if (expected[k] == null)
+                    expected[k] = res;
+                else if (!expected[k].equals(res))
+                    throw new IllegalStateException(expr + " : " + res + " != " + expected[k]);
+                k++;
+            }
+        }
+        return (System.nanoTime() - start) / k;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        final Map<?, ?>[] roots = new Map<?, ?>[count];
+        for (int i = 0; i < count; i++)
+            roots[i] = createRoot(i);
+        final Object[] expected = new Object[count * EXPRESSIONS.length];
+
+        // warm up
+        time(roots, expected, false);
+        time(roots, expected, true);
+
+        OGNLExpressions.clear();
+        final long parsed = time(roots, expected, false);
+        final long cached = time(roots, expected, true);
+        if (OGNLExpressions.getMisses() != EXPRESSIONS.length || OGNLExpressions.getSize() != EXPRESSIONS.length)
+            throw new IllegalStateException("Expressions parsed more than once : " + OGNLExpressions.getMisses() + " misses");
+
+        System.out.println(count + " x " + EXPRESSIONS.length + " expressions");
+        System.out.println("parsed each time : " + parsed + " ns");
+        System.out.println("parsed once : " + cached + " ns (" + OGNLExpressions.getHits() + " hits)");
+    }
+}
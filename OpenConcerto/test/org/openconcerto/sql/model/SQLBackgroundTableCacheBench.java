@@ -0,0 +1,115 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.sql.model;
+
+import org.openconcerto.sql.model.SQLTableEvent.Mode;
+import org.openconcerto.utils.cc.IClosure;
+
+/**
+ * Times the refresh of a cache of articles after modifications of single rows, in an in-memory H2
+ * database, and checks the lookups by code and by number, including a number passed as a string.
+ * A failure throws an exception.
+ */
+public class SQLBackgroundTableCacheBench {
+
+    private static final String ROOT = "BENCH";
+
+    private static DBSystemRoot createSystemRoot() {
+        final DBSystemRoot sysRoot = new SQLServer(SQLSystem.H2, "mem", null, null, null, new IClosure<DBSystemRoot>() {
+            @Override
+            public void executeChecked(DBSystemRoot input) {
+                input.setRootToMap(ROOT);
+            }
+        }, null).getSystemRoot("cacheBench");
+        // keep the database while the data source is open
+        sysRoot.getDataSource().execute("SET DB_CLOSE_DELAY -1");
+        return sysRoot;
+    }
+
+    private static SQLTable createArticles(final DBSystemRoot sysRoot, final int count) throws Exception {
+        final SQLDataSource ds = sysRoot.getDataSource();
+        ds.execute("CREATE SCHEMA \"" + ROOT + "\"");
+        ds.execute("CREATE TABLE \"" + ROOT + "\".\"ARTICLE\" (\"ID\" int PRIMARY KEY, \"CODE\" varchar(16), \"NUMERO\" int, \"NOM\" varchar(64), \"ARCHIVE\" int DEFAULT 0)");
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= count; i++) {
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append("(" + i + ", 'A" + i + "', " + (1000 + i) + ", 'Article " + i + "', 0)");
+            if (i % 1000 == 0 || i == count) {
+                ds.execute("INSERT INTO \"" + ROOT + "\".\"ARTICLE\" VALUES " + sb);
+                sb.setLength(0);
+            }
+        }
+        sysRoot.refetch();
+        return sysRoot.getRoot(ROOT).getTable("ARTICLE");
+    }
+
+    private static void check(final boolean b, final String msg) {
+        if (!b)
+            throw new IllegalStateException(msg);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        final int events = 2000;
+        final DBSystemRoot sysRoot = createSystemRoot();
+        try {
+            final SQLTable article = createArticles(sysRoot, count);
+            final SQLField code = article.getField("CODE");
+            final SQLField numero = article.getField("NUMERO");
+            final SQLBackgroundTableCacheItem item = new SQLBackgroundTableCacheItem(article, 3600);
+            item.reloadFromDbIfNeeded();
+            check(item.getRows().size() == count, "Wrong count : " + item.getRows().size());
+            check(item.getFirstRowContains(1042, numero).getID() == 42, "Wrong row by number");
+            check(item.getFirstRowContains("1042", numero).getID() == 42, "Wrong row by number as a string");
+            check(item.getFirstRowContains("A42", code).getID() == 42, "Wrong row by code");
+
+            final SQLDataSource ds = sysRoot.getDataSource();
+            final String quoted = article.getSQLName().quote();
+            long start = System.nanoTime();
+            for (int i = 1; i <= events; i++) {
+                ds.execute("UPDATE " + quoted + " SET \"CODE\" = 'B" + i + "' WHERE \"ID\" = " + i);
+                item.tableModified(new SQLTableEvent(article, i, Mode.ROW_UPDATED));
+            }
+            final long updateNanos = System.nanoTime() - start;
+            check(item.getFirstRowContains("A1", code) == null, "Old code still indexed");
+            check(item.getFirstRowContains("B1", code).getID() == 1, "New code not indexed");
+
+            start = System.nanoTime();
+            for (int i = 1; i <= events; i++) {
+                ds.execute("DELETE FROM " + quoted + " WHERE \"ID\" = " + i);
+                item.tableModified(new SQLTableEvent(article, i, Mode.ROW_DELETED));
+            }
+            final long deleteNanos = System.nanoTime() - start;
+            check(item.getRows().size() == count - events, "Wrong count after deletion : " + item.getRows().size());
+            check(item.getRowFromId(1) == null && item.getFirstRowContains(1001, numero) == null, "Deleted row still indexed");
+
+            start = System.nanoTime();
+            int found = 0;
+            for (int i = events + 1; i <= count; i++) {
+                if (item.getFirstRowContains(String.valueOf(1000 + i), numero) != null)
+                    found++;
+            }
+            final long lookupNanos = System.nanoTime() - start;
+            check(found == count - events, "Missing rows : " + (count - events - found));
+
+            System.out.println(count + " articles");
+            System.out.println("update event : " + updateNanos / events / 1000 + " us");
+            System.out.println("delete event : " + deleteNanos / events / 1000 + " us");
+            System.out.println("lookup by number as a string : " + lookupNanos / found + " ns");
+        } finally {
+            sysRoot.getServer().destroy();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.sql.model;
+
+import org.openconcerto.utils.FileUtils;
+import org.openconcerto.utils.cc.IClosure;
+import org.openconcerto.utils.cc.IPredicate;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.List;
+
+/**
+ * Compares the peak heap and the time to the first row of
+ * {@link SQLRowListRSH#stream(SQLSelect, int, IPredicate)} and
+ * {@link SQLRowListRSH#execute(SQLSelect)} on a large table of an H2 database on disk. The whole
+ * table (5M rows by default) is streamed but only the first rows (500k by default) are loaded in
+ * a list, so as not to run out of memory. Run with e.g. -Xmx512m : streaming must pass whatever
+ * the row count. Embedded H2 computes the whole result (spooled to disk) before returning the
+ * first row, so the time to the first row is only telling with PostgreSQL. A failure throws an
+ * exception.
+ */
+public class SQLDataSourceStreamingBench {
+
+    private static final String ROOT = "BENCH";
+
+    private static DBSystemRoot createSystemRoot(final File dir) {
+        final DBSystemRoot sysRoot = new SQLServer(SQLSystem.H2, "file:" + dir.getAbsolutePath() + "/", null, null, null, new IClosure<DBSystemRoot>() {
+            @Override
+            public void executeChecked(DBSystemRoot input) {
+                input.setRootToMap(ROOT);
+            }
+        }, null).getSystemRoot("streamingBench");
+        return sysRoot;
+    }
+
+    private static SQLTable createTable(final DBSystemRoot sysRoot, final int count) throws Exception {
+        final SQLDataSource ds = sysRoot.getDataSource();
+        ds.execute("CREATE SCHEMA \"" + ROOT + "\"");
+        ds.execute("CREATE TABLE \"" + ROOT + "\".\"ECRITURE\" (\"ID\" int PRIMARY KEY, \"NOM\" varchar(64), \"DEBIT\" bigint, \"CREDIT\" bigint)");
+        ds.execute("INSERT INTO \"" + ROOT + "\".\"ECRITURE\" SELECT X, 'Ecriture ' || X, MOD(X, 1000), MOD(X, 7) FROM SYSTEM_RANGE(1, " + count + ")");
+        sysRoot.refetch();
+        return sysRoot.getRoot(ROOT).getTable("ECRITURE");
+    }
+
+    private static void resetPeak() {
+        System.gc();
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+        }
+    }
+
+    // since the last reset, including garbage not yet collected
+    private static long getPeakMB() {
+        long res = 0;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                res += pool.getPeakUsage().getUsed();
+        }
+        return res / 1024 / 1024;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+        final int listCount = args.length > 1 ? Integer.parseInt(args[1]) : 500000;
+        final File dir = FileUtils.createTempDir("streamingBench");
+        final DBSystemRoot sysRoot = createSystemRoot(dir);
+        try {
+            final SQLTable t = createTable(sysRoot, count);
+
+            final SQLSelect sel = new SQLSelect();
+            sel.addSelectStar(t);
+            sel.addFieldOrder(t.getKey());
+            resetPeak();
+            final long start = System.nanoTime();
+            final long[] firstRow = { -1 };
+            final long[] total = { 0 };
+            final int streamed = SQLRowListRSH.stream(sel, SQLDataSource.DEFAULT_FETCH_SIZE, new IPredicate<SQLRow>() {
+                @Override
+                public boolean evaluateChecked(SQLRow input) {
+                    if (firstRow[0] < 0)
+                        firstRow[0] = System.nanoTime() - start;
+                    total[0] += input.getLong("DEBIT");
+                    return true;
+                }
+            });
+            final long streamNanos = System.nanoTime() - start;
+            final long streamPeak = getPeakMB();
+            if (streamed != count)
+                throw new IllegalStateException("Expected " + count + " rows but was " + streamed);
+
+            // an early exit must close the result set and leave the connection usable
+            final int[] seen = { 0 };
+            SQLRowListRSH.stream(sel, SQLDataSource.DEFAULT_FETCH_SIZE, new IPredicate<SQLRow>() {
+                @Override
+                public boolean evaluateChecked(SQLRow input) {
+                    return ++seen[0] < 10;
+                }
+            });
+            if (seen[0] != 10)
+                throw new IllegalStateException("Didn't stop : " + seen[0]);
+
+            final SQLSelect listSel = new SQLSelect(sel);
+            listSel.setWhere(new Where(t.getKey(), "<=", listCount));
+            resetPeak();
+            final long listStart = System.nanoTime();
+            final List<SQLRow> list = SQLRowListRSH.execute(listSel);
+            final long listNanos = System.nanoTime() - listStart;
+            final long listPeak = getPeakMB();
+            if (list.size() != Math.min(count, listCount))
+                throw new IllegalStateException("Expected " + listCount + " rows but was " + list.size());
+
+            System.out.println("max heap : " + Runtime.getRuntime().maxMemory() / 1024 / 1024 + " MB");
+            System.out.println("stream " + streamed + " rows : first row after " + firstRow[0] / 1000000 + " ms, all in " + streamNanos / 1000000 + " ms, peak heap "
+                    + streamPeak + " MB (total " + total[0] + ")");
+            System.out.println("list " + list.size() + " rows : first row after " + listNanos / 1000000 + " ms, peak heap " + listPeak + " MB");
+        } finally {
+            sysRoot.getServer().destroy();
+            FileUtils.rm_R(dir);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.sql.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the cost of {@link SQLRequestMetrics#executed(String, String, long, long, long, long,
+ * long, long, int)} for requests whose literals change at each execution, as they do in practice,
+ * and checks that they are grouped and that requests with the same shape have the same normalized
+ * text. A failure throws an exception.
+ */
+public class SQLRequestMetricsBench {
+
+    private static final int TEMPLATES = 4;
+
+    private static List<String> createRequests(final int count, final long seed) {
+        final Random r = new Random(seed);
+        final List<String> res = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            switch (i % TEMPLATES) {
+            case 0:
+                res.add("SELECT \"ARTICLE\".\"ID\", \"ARTICLE\".\"NOM\" FROM \"Common\".\"ARTICLE\" \"ARTICLE\" WHERE \"ARTICLE\".\"ID\" = " + r.nextInt(100000) + " AND \"ARTICLE\".\"ARCHIVE\" = 0");
+                break;
+            case 1:
+                res.add("SELECT * FROM \"CLIENT\" WHERE \"NOM\" like '" + Long.toString(r.nextLong(), 36) + "%' and \"SOLDE\" > -" + r.nextInt(1000) + "." + r.nextInt(100));
+                break;
+            case 2:
+                // up to a few thousand ids
+                final StringBuilder sb = new StringBuilder("SELECT \"ID\", \"QTE\" FROM \"MOUVEMENT_STOCK\" WHERE \"ID_ARTICLE\" in (");
+                final int size = 1 + r.nextInt(r.nextInt(10) == 0 ? 5000 : 50);
+                for (int j = 0; j < size; j++) {
+                    if (j > 0)
+                        sb.append(", ");
+                    sb.append(r.nextInt(1000000));
+                }
+                sb.append(") ORDER BY \"ID\"");
+                res.add(sb.toString());
+                break;
+            default:
+                res.add("INSERT INTO \"ECRITURE\"(\"ID_MOUVEMENT\", \"DEBIT\", \"CREDIT\", \"NOM\") VALUES (" + r.nextInt() + ", " + r.nextInt(100000) + ", 0, 'Facture " + r.nextInt(10000) + "')");
+            }
+        }
+        return res;
+    }
+
+    private static void checkNormalize(final String query, final String expected) {
+        final String normalized = SQLRequestMetrics.normalize(query);
+        if (!normalized.equals(expected))
+            throw new IllegalStateException("Expected " + expected + " but was " + normalized + " for " + (query.length() > 100 ? query.substring(0, 100) + "..." : query));
+    }
+
+    // requests with the same shape must be normalized the same
+    private static void checkShapes(final List<String> queries) {
+        for (final String q1 : queries) {
+            for (final String q2 : queries) {
+                if (SQLRequestMetrics.getShape(q1) == SQLRequestMetrics.getShape(q2) && !SQLRequestMetrics.normalize(q1).equals(SQLRequestMetrics.normalize(q2)))
+                    throw new IllegalStateException("Same shape but normalized differently : " + q1 + " and " + q2);
+            }
+        }
+    }
+
+    private static long run(final SQLRequestMetrics metrics, final List<String> requests) {
+        final long start = System.nanoTime();
+        for (final String req : requests) {
+            metrics.executed(req, null, 0, 0, 10, 1000, 1100, 1200, 1);
+        }
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        checkNormalize("SELECT * FROM \"T\" WHERE \"ID\" in (1, 2,3 , 4.5) AND \"N\" = 'a''b'", "SELECT * FROM \"T\" WHERE \"ID\" in (?) AND \"N\" = ?");
+        checkNormalize("INSERT INTO \"T\"(\"A1\", \"B\") VALUES (1, 'x'), (-2, 'y')", "INSERT INTO \"T\"(\"A1\", \"B\") VALUES (?), (?)");
+        checkNormalize("UPDATE T2 SET A = A - 1,  B = 3 WHERE ID = -4", "UPDATE T2 SET A = A - ?, B = ? WHERE ID = ?");
+        // a list cut anywhere gives the same text
+        final StringBuilder longList = new StringBuilder("SELECT 1 WHERE ID in (");
+        for (int i = 0; i < 20000; i++)
+            longList.append(i).append(", ");
+        for (int cut = 64 * 1024 + 1; cut < 64 * 1024 + 10; cut++)
+            checkNormalize(longList.substring(0, cut), "SELECT ? WHERE ID in (?...");
+
+        checkShapes(Arrays.asList("SELECT ? WHERE ID in (1, 2)", "SELECT ? WHERE ID in (1, 2, 3)", "SELECT ? WHERE ID in (1 , 2)", "SELECT ? WHERE ID in (1 , 2 , 3)",
+                "SELECT ? WHERE N in ('a', 'b')", "SELECT ? WHERE N in ('a', 'b', 'c')", "SELECT ? WHERE N in ('a' , 'b')", "SELECT ? WHERE N in ('a' , 'b' , 'c')",
+                "SELECT ? WHERE ID in (1, -2)", "SELECT ? WHERE ID in (1, -2, -3)", "SELECT ? WHERE ID in (1 , -2)", "SELECT ? WHERE ID in (1 , -2 , -3)",
+                "SELECT ? WHERE ID in (1, 'a')", "SELECT ? WHERE ID in (1 , 'a')", "SELECT ? WHERE ID in ('a', 1)", "SELECT ? WHERE ID in ('a' , 1)",
+                "SELECT \"1A\" FROM T", "SELECT \"2A\" FROM T", "SELECT T1.A FROM T1", "SELECT T2.A FROM T2", "SELECT A - 1 FROM T", "SELECT A -1 FROM T", "SELECT A, -1 FROM T"));
+        final List<String> sample = createRequests(200, 1);
+        checkShapes(sample);
+
+        final SQLRequestMetrics metrics = SQLRequestMetrics.getInstance();
+        metrics.setEnabled(true);
+        metrics.setSlowThreshold(-1);
+
+        long totalLength = 0;
+        final List<String> requests = createRequests(count, 1);
+        for (final String req : requests)
+            totalLength += req.length();
+        // warm up with other literals
+        for (int i = 0; i < 3; i++)
+            run(metrics, createRequests(count / 4, i + 2));
+        long nanos = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            metrics.reset();
+            nanos = Math.min(nanos, run(metrics, requests));
+        }
+        final List<SQLRequestMetrics.QueryStats> stats = metrics.getQueryStats();
+        System.out.println(count + " requests (mean length " + totalLength / count + ") in " + nanos / 1000000 + " ms, " + nanos / count + " ns per request (best of 5), " + stats.size() + " groups");
+        // without the lists of ids, whose cost is proportional to their length
+        final List<String> shortRequests = new ArrayList<String>(count);
+        for (final String req : requests) {
+            if (req.length() <= 256)
+                shortRequests.add(req);
+        }
+        long shortNanos = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++)
+            shortNanos = Math.min(shortNanos, run(metrics, shortRequests));
+        System.out.println(shortRequests.size() + " requests of at most 256 characters : " + shortNanos / shortRequests.size() + " ns per request");
+        long recorded = 0;
+        for (final SQLRequestMetrics.QueryStats s : stats) {
+            recorded += s.getCount();
+            System.out.println("  " + s.getCount() + " x " + (s.getQuery().length() > 100 ? s.getQuery().substring(0, 100) + "..." : s.getQuery()));
+        }
+        // normalizing alone, i.e. without the shapes
+        long normalizeNanos = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            final long start = System.nanoTime();
+            for (final String req : requests)
+                SQLRequestMetrics.normalize(req);
+            normalizeNanos = Math.min(normalizeNanos, System.nanoTime() - start);
+        }
+        System.out.println("normalize() alone : " + normalizeNanos / count + " ns per request");
+        if (stats.size() != TEMPLATES)
+            throw new IllegalStateException(stats.size() + " groups instead of " + TEMPLATES);
+        if (recorded != count)
+            throw new IllegalStateException(recorded + " recorded instead of " + count);
+    }
+}
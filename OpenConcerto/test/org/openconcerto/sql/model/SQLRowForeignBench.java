@@ -0,0 +1,133 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.sql.model;
+
+import org.openconcerto.utils.cc.IClosure;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts the requests needed to get the account of each entry of a synthetic ledger, in an
+ * in-memory H2 database. Rows loaded together must load their foreign rows together, rows created
+ * one by one need one request per distinct account. A failure throws an exception.
+ */
+public class SQLRowForeignBench {
+
+    private static final String ROOT = "BENCH";
+
+    private static DBSystemRoot createSystemRoot() {
+        final DBSystemRoot sysRoot = new SQLServer(SQLSystem.H2, "mem", null, null, null, new IClosure<DBSystemRoot>() {
+            @Override
+            public void executeChecked(DBSystemRoot input) {
+                input.setRootToMap(ROOT);
+            }
+        }, null).getSystemRoot("ledgerBench");
+        // keep the database while the data source is open
+        sysRoot.getDataSource().execute("SET DB_CLOSE_DELAY -1");
+        return sysRoot;
+    }
+
+    private static SQLTable createLedger(final DBSystemRoot sysRoot, final int accounts, final int entries) throws Exception {
+        final SQLDataSource ds = sysRoot.getDataSource();
+        ds.execute("CREATE SCHEMA \"" + ROOT + "\"");
+        ds.execute("CREATE TABLE \"" + ROOT + "\".\"COMPTE_PCE\" (\"ID\" int PRIMARY KEY, \"NUMERO\" varchar(16), \"NOM\" varchar(64))");
+        ds.execute("CREATE TABLE \"" + ROOT + "\".\"ECRITURE\" (\"ID\" int PRIMARY KEY, \"ID_COMPTE_PCE\" int REFERENCES \"" + ROOT
+                + "\".\"COMPTE_PCE\"(\"ID\"), \"DEBIT\" bigint, \"CREDIT\" bigint)");
+        for (int i = 1; i <= accounts; i++)
+            ds.execute("INSERT INTO \"" + ROOT + "\".\"COMPTE_PCE\" VALUES (" + i + ", '" + (401000 + i) + "', 'Compte " + i + "')");
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= entries; i++) {
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append("(" + i + ", " + (1 + (i * 7) % accounts) + ", " + (i % 2 == 0 ? i : 0) + ", " + (i % 2 == 0 ? 0 : i) + ")");
+            if (i % 1000 == 0 || i == entries) {
+                ds.execute("INSERT INTO \"" + ROOT + "\".\"ECRITURE\" VALUES " + sb);
+                sb.setLength(0);
+            }
+        }
+        sysRoot.refetch();
+        return sysRoot.getRoot(ROOT).getTable("ECRITURE");
+    }
+
+    private static long requestCount() {
+        return SQLRequestMetrics.getInstance().getGlobalStats().getCount();
+    }
+
+    private static long readAccounts(final List<SQLRow> entries) {
+        long total = 0;
+        for (final SQLRow entry : entries) {
+            total += entry.getForeignRow("ID_COMPTE_PCE").getString("NUMERO").length();
+        }
+        return total;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int entriesCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        final int accountsCount = 500;
+        final DBSystemRoot sysRoot = createSystemRoot();
+        try {
+            final SQLTable ecriture = createLedger(sysRoot, accountsCount, entriesCount);
+            final SQLSelect sel = new SQLSelect();
+            sel.addSelectStar(ecriture);
+            sel.addFieldOrder(ecriture.getKey());
+
+            // loaded together
+            final List<SQLRow> entries = SQLRowListRSH.execute(sel);
+            if (entries.size() != entriesCount)
+                throw new IllegalStateException("Expected " + entriesCount + " entries but was " + entries.size());
+            long before = requestCount();
+            long start = System.nanoTime();
+            final long batched = readAccounts(entries);
+            final long batchedNanos = System.nanoTime() - start;
+            final long batchedRequests = requestCount() - before;
+            final long expectedRequests = (entriesCount + SQLRow.PREFETCH_SIZE - 1) / SQLRow.PREFETCH_SIZE;
+            if (batchedRequests > expectedRequests)
+                throw new IllegalStateException("Expected at most " + expectedRequests + " requests but was " + batchedRequests);
+
+            // created one by one, like before
+            final List<SQLRow> alone = new ArrayList<SQLRow>(entries.size());
+            for (final SQLRow entry : entries)
+                alone.add(new SQLRow(ecriture, new HashMap<String, Object>(entry.getAbsolutelyAll())));
+            before = requestCount();
+            start = System.nanoTime();
+            final long oneByOne = readAccounts(alone);
+            final long oneByOneNanos = System.nanoTime() - start;
+            final long oneByOneRequests = requestCount() - before;
+            if (batched != oneByOne)
+                throw new IllegalStateException("Different accounts");
+
+            // a modification makes batched values stale
+            final Map<Integer, SQLRow> byID = new HashMap<Integer, SQLRow>();
+            for (final SQLRow entry : SQLRowListRSH.execute(sel))
+                byID.put(entry.getID(), entry);
+            final SQLRow first = byID.get(1);
+            final String numero = first.getForeignRow("ID_COMPTE_PCE").getString("NUMERO");
+            final SQLTable compte = ecriture.getForeignTable("ID_COMPTE_PCE");
+            sysRoot.getDataSource().execute("UPDATE " + compte.getSQLName().quote() + " SET \"NUMERO\" = 'X' || \"NUMERO\"");
+            compte.fireTableModified(SQLRow.NONEXISTANT_ID);
+            final String after = byID.get(2).getForeignRow("ID_COMPTE_PCE").getString("NUMERO");
+            if (!after.startsWith("X"))
+                throw new IllegalStateException("Stale value : " + after + " (was " + numero + ")");
+
+            System.out.println(entriesCount + " entries, " + accountsCount + " accounts");
+            System.out.println("loaded together : " + batchedRequests + " requests in " + batchedNanos / 1000000 + " ms");
+            System.out.println("one by one : " + oneByOneRequests + " requests in " + oneByOneNanos / 1000000 + " ms");
+        } finally {
+            sysRoot.getServer().destroy();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.sql.users.rights;
+
+import org.openconcerto.sql.model.DBRoot;
+import org.openconcerto.sql.model.DBSystemRoot;
+import org.openconcerto.sql.model.SQLDataSource;
+import org.openconcerto.sql.model.SQLRow;
+import org.openconcerto.sql.model.SQLServer;
+import org.openconcerto.sql.model.SQLSystem;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.utils.CompareUtils.Equalizer;
+import org.openconcerto.utils.cc.IClosure;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Times concurrent {@link UserRightsManager#haveRight(int, String, String, Equalizer)} calls, with
+ * 1 to n threads (at least 4), in an in-memory H2 database, optionally while the rights table keeps changing.
+ * The answers are checked, a failure throws an exception.
+ */
+public class UserRightsManagerBench {
+
+    private static final String ROOT = "BENCH";
+    private static final int CODES = 20;
+    private static final int OBJECTS = 10;
+    private static final int USER = 2;
+    private static final int NO_RIGHTS_USER = 3;
+
+    private static final Equalizer<String> IGNORE_CASE = new Equalizer<String>() {
+        @Override
+        public boolean equals(String o1, String o2) {
+            return o1.equalsIgnoreCase(o2);
+        }
+    };
+
+    private static DBSystemRoot createSystemRoot() {
+        final DBSystemRoot sysRoot = new SQLServer(SQLSystem.H2, "mem", null, null, null, new IClosure<DBSystemRoot>() {
+            @Override
+            public void executeChecked(DBSystemRoot input) {
+                input.setRootToMap(ROOT);
+            }
+        }, null).getSystemRoot("rightsBench");
+        // keep the database while the data source is open
+        sysRoot.getDataSource().execute("SET DB_CLOSE_DELAY -1");
+        return sysRoot;
+    }
+
+    private static SQLTable createRights(final DBSystemRoot sysRoot) throws Exception {
+        final SQLDataSource ds = sysRoot.getDataSource();
+        final String r = "\"" + ROOT + "\".";
+        ds.execute("CREATE SCHEMA \"" + ROOT + "\"");
+        ds.execute("CREATE TABLE " + r + "\"" + SQLTable.undefTable + "\" (\"TABLENAME\" varchar(250) PRIMARY KEY, \"UNDEFINED_ID\" int)");
+        ds.execute("INSERT INTO " + r + "\"" + SQLTable.undefTable + "\" VALUES ('USER_COMMON', 1), ('RIGHT', 1), ('" + UserRightSQLElement.TABLE_NAME + "', 1)");
+        ds.execute("CREATE TABLE " + r + "\"USER_COMMON\" (\"ID\" int PRIMARY KEY, \"NOM\" varchar(64), \"" + UserRightsManager.SUPERUSER_FIELD + "\" boolean, \""
+                + UserRightsManager.ADMIN_FIELD + "\" boolean)");
+        ds.execute("INSERT INTO " + r + "\"USER_COMMON\" VALUES (1, 'défaut', false, false), (" + USER + ", 'user', false, false), (" + NO_RIGHTS_USER + ", 'other', false, false)");
+        ds.execute("CREATE TABLE " + r + "\"RIGHT\" (\"ID\" int PRIMARY KEY, \"CODE\" varchar(64))");
+        ds.execute("INSERT INTO " + r + "\"RIGHT\" VALUES (1, null)");
+        for (int i = 0; i < CODES; i++)
+            ds.execute("INSERT INTO " + r + "\"RIGHT\" VALUES (" + (2 + i) + ", 'BENCH_" + i + "')");
+        ds.execute("CREATE TABLE " + r + "\"" + UserRightSQLElement.TABLE_NAME + "\" (\"ID\" int PRIMARY KEY, \"ID_USER_COMMON\" int REFERENCES " + r
+                + "\"USER_COMMON\"(\"ID\"), \"ID_RIGHT\" int REFERENCES " + r + "\"RIGHT\"(\"ID\"), \"OBJECT\" varchar(64), \"HAVE_RIGHT\" boolean, \"ORDRE\" decimal(16,8))");
+        int id = 1;
+        ds.execute("INSERT INTO " + r + "\"" + UserRightSQLElement.TABLE_NAME + "\" VALUES (" + id + ", 1, 1, null, false, " + id + ")");
+        for (int i = 0; i < CODES; i++) {
+            // the user : T0 yes, T1 no, ..., anything else yes
+            for (int j = 0; j < OBJECTS; j++) {
+                id++;
+                ds.execute("INSERT INTO " + r + "\"" + UserRightSQLElement.TABLE_NAME + "\" VALUES (" + id + ", " + USER + ", " + (2 + i) + ", 'T" + j + "', " + (j % 2 == 0) + ", " + id + ")");
+            }
+            id++;
+            ds.execute("INSERT INTO " + r + "\"" + UserRightSQLElement.TABLE_NAME + "\" VALUES (" + id + ", " + USER + ", " + (2 + i) + ", null, true, " + id + ")");
+            // the default user : nothing
+            id++;
+            ds.execute("INSERT INTO " + r + "\"" + UserRightSQLElement.TABLE_NAME + "\" VALUES (" + id + ", 1, " + (2 + i) + ", null, false, " + id + ")");
+        }
+        sysRoot.refetch();
+        final DBRoot root = sysRoot.getRoot(ROOT);
+        return root.getTable(UserRightSQLElement.TABLE_NAME);
+    }
+
+    private static void check(final boolean b, final String msg) {
+        if (!b)
+            throw new IllegalStateException(msg);
+    }
+
+    // each call is checked, returns the number of calls
+    private static long run(final UserRightsManager mngr, final int k) {
+        long res = 0;
+        for (int i = 0; i < CODES; i++) {
+            final String code = "BENCH_" + i;
+            final int j = (k + i) % OBJECTS;
+            check(mngr.haveRight(USER, code, "T" + j) == (j % 2 == 0), "Wrong right for " + code + " T" + j);
+            check(mngr.haveRight(USER, code, "t" + j, IGNORE_CASE) == (j % 2 == 0), "Wrong right ignoring case for " + code + " t" + j);
+            check(mngr.haveRight(USER, code, "OTHER"), "Wrong right for " + code + " OTHER");
+            check(!mngr.haveRight(USER, code, null), "Wrong right for " + code + " and all objects");
+            check(!mngr.haveRight(NO_RIGHTS_USER, code, "T0"), "Wrong default right for " + code);
+            res += 5;
+        }
+        return res;
+    }
+
+    private static long time(final UserRightsManager mngr, final int threads, final long durationMs, final boolean modify) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch end = new CountDownLatch(threads);
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicLong calls = new AtomicLong();
+        final Throwable[] failure = new Throwable[1];
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long count = 0;
+                        for (int k = offset; !stop.get(); k++)
+                            count += UserRightsManagerBench.run(mngr, k);
+                        calls.addAndGet(count);
+                    } catch (Throwable e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                        stop.set(true);
+                    } finally {
+                        end.countDown();
+                    }
+                }
+            }, "haveRight " + t).start();
+        }
+        final long startNanos = System.nanoTime();
+        start.countDown();
+        final long stopMs = System.currentTimeMillis() + durationMs;
+        while (!stop.get() && System.currentTimeMillis() < stopMs) {
+            Thread.sleep(modify ? 50 : 10);
+            if (modify)
+                mngr.getTable().fireTableModified(SQLRow.NONEXISTANT_ID);
+        }
+        stop.set(true);
+        end.await();
+        final long nanos = System.nanoTime() - startNanos;
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new IllegalStateException("Failure with " + threads + " threads", failure[0]);
+        }
+        return calls.get() * 1000000000L / nanos;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final long durationMs = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        final int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Math.max(4, Runtime.getRuntime().availableProcessors());
+        final DBSystemRoot sysRoot = createSystemRoot();
+        try {
+            final UserRightsManager mngr = UserRightsManager.setInstance(createRights(sysRoot));
+            // warm up
+            time(mngr, maxThreads, durationMs, false);
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                System.out.println(threads + " threads : " + time(mngr, threads, durationMs, false) + " calls/s, while modifying rights : "
+                        + time(mngr, threads, durationMs, true) + " calls/s");
+            }
+            UserRightsManager.setInstance(null);
+        } finally {
+            sysRoot.getServer().destroy();
+        }
+    }
+}
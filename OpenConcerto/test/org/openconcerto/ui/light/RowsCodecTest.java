@@ -0,0 +1,229 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.ui.light;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Round-trip check of {@link RowsCodec} through {@link RowsBulk}, and comparison of its size and
+ * of its encoding and decoding times with one {@link ObjectOutputStream#writeObject(Object)} per
+ * cell. Run with assertions disabled or enabled, a failure throws an exception.
+ */
+public class RowsCodecTest {
+
+    // a subclass must not be decoded as its super class
+    static final class CustomDate extends Date {
+        CustomDate(long time) {
+            super(time);
+        }
+    }
+
+    private static byte[] serialize(final Object o) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(o);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static RowsBulk roundTrip(final RowsBulk bulk) throws IOException, ClassNotFoundException {
+        return deserialize(serialize(bulk));
+    }
+
+    private static RowsBulk deserialize(final byte[] bytes) throws IOException, ClassNotFoundException {
+        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return (RowsBulk) in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    // the encoding before RowsCodec
+    private static byte[] legacySerialize(final List<Row> rows) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeInt(rows.size());
+        final int columnCount = rows.get(0).getValues().size();
+        out.writeByte(columnCount);
+        for (final Row r : rows)
+            out.writeLong(r.getId());
+        for (int i = 0; i < columnCount; i++) {
+            for (final Row r : rows)
+                out.writeObject(r.getValues().get(i));
+        }
+        out.writeInt(0);
+        out.writeInt(rows.size());
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static int getLegacySize(final List<Row> rows) throws IOException {
+        return legacySerialize(rows).length;
+    }
+
+    private static List<Row> legacyDeserialize(final byte[] bytes) throws IOException, ClassNotFoundException {
+        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            final int rowCount = in.readInt();
+            final int columnCount = in.readByte();
+            final List<Row> res = new ArrayList<Row>(rowCount);
+            for (int j = 0; j < rowCount; j++) {
+                final Row r = new Row(in.readLong(), columnCount);
+                r.setValues(new ArrayList<Object>(columnCount));
+                res.add(r);
+            }
+            for (int i = 0; i < columnCount; i++) {
+                for (final Row r : res)
+                    r.getValues().add(in.readObject());
+            }
+            in.readInt();
+            in.readInt();
+            return res;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void time(final String name, final List<Row> rows, final int count) throws IOException, ClassNotFoundException {
+        final RowsBulk bulk = new RowsBulk(rows, 0, rows.size());
+        final byte[] bytes = serialize(bulk);
+        final byte[] legacyBytes = legacySerialize(rows);
+        // warm up
+        for (int i = 0; i < count; i++) {
+            roundTrip(bulk);
+            legacyDeserialize(legacySerialize(rows));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++)
+            serialize(bulk);
+        final long encode = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++)
+            deserialize(bytes);
+        final long decode = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++)
+            legacySerialize(rows);
+        final long legacyEncode = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++)
+            legacyDeserialize(legacyBytes);
+        final long legacyDecode = System.nanoTime() - start;
+
+        final long rowsCount = (long) rows.size() * count;
+        System.out.println(name + " : encode " + rowsCount * 1000000000L / encode + " rows/s instead of " + rowsCount * 1000000000L / legacyEncode + ", decode " + rowsCount * 1000000000L / decode
+                + " rows/s instead of " + rowsCount * 1000000000L / legacyDecode);
+    }
+
+    private static void check(final String name, final List<Row> rows) throws IOException, ClassNotFoundException {
+        final RowsBulk bulk = new RowsBulk(rows, 3, rows.size() + 7);
+        final RowsBulk res = roundTrip(bulk);
+        if (res.getOffset() != 3 || res.getTotal() != rows.size() + 7)
+            throw new IllegalStateException(name + " : wrong offset or total");
+        if (res.getRows().size() != rows.size())
+            throw new IllegalStateException(name + " : " + res.getRows().size() + " rows instead of " + rows.size());
+        for (int j = 0; j < rows.size(); j++) {
+            final Row expected = rows.get(j);
+            final Row actual = res.getRows().get(j);
+            if (expected.getId() != actual.getId())
+                throw new IllegalStateException(name + " : row " + j + " has ID " + actual.getId() + " instead of " + expected.getId());
+            final List<Object> expectedValues = expected.getValues();
+            final List<Object> actualValues = actual.getValues();
+            if (expectedValues.size() != actualValues.size())
+                throw new IllegalStateException(name + " : row " + j + " has " + actualValues.size() + " values instead of " + expectedValues.size());
+            for (int i = 0; i < expectedValues.size(); i++) {
+                final Object e = expectedValues.get(i);
+                final Object a = actualValues.get(i);
+                if (e == null ? a != null : !e.equals(a) || a.getClass() != e.getClass())
+                    throw new IllegalStateException(name + " : row " + j + " column " + i + " is " + toString(a) + " instead of " + toString(e));
+            }
+        }
+        final String size = rows.isEmpty() ? "" : ", " + serialize(bulk).length + " bytes instead of " + getLegacySize(rows);
+        System.out.println(name + " : OK, " + rows.size() + " rows" + size);
+    }
+
+    private static String toString(final Object o) {
+        return o == null ? "null" : o + " (" + o.getClass().getName() + ")";
+    }
+
+    private static Row createRow(final long id, final Object... values) {
+        final Row r = new Row(id, values.length);
+        r.setValues(new ArrayList<Object>(Arrays.asList(values)));
+        return r;
+    }
+
+    public static void main(String[] args) throws Exception {
+        check("empty", new ArrayList<Row>());
+
+        // one column per type, with and without nulls, and an all null column
+        final List<Row> typed = new ArrayList<Row>();
+        final Timestamp ts = new Timestamp(1400000000123L);
+        ts.setNanos(123456789);
+        typed.add(createRow(1, 1, 1L, new BigDecimal("12.50"), "a", true, new Date(0), new java.sql.Date(1400000000000L), ts, null, 5, "\u00e9\u20ac\ud83d\ude00"));
+        typed.add(createRow(2, null, null, null, null, null, null, null, null, null, -5, ""));
+        typed.add(createRow(3, -1, -1L, new BigDecimal("-0.001"), "a", false, new Date(-1), new java.sql.Date(0), new Timestamp(0), null, 0, null));
+        check("typed", typed);
+
+        // extreme values
+        final List<Row> large = new ArrayList<Row>();
+        final StringBuilder longString = new StringBuilder();
+        for (int i = 0; i < 10000; i++)
+            longString.append((char) ('a' + i % 26));
+        large.add(createRow(Long.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE, new BigDecimal(BigInteger.valueOf(Long.MAX_VALUE), 30), longString.toString(), new Date(Long.MAX_VALUE)));
+        large.add(createRow(Long.MIN_VALUE, Integer.MIN_VALUE, Long.MIN_VALUE, new BigDecimal(BigInteger.valueOf(Long.MIN_VALUE), -30), "", new Date(Long.MIN_VALUE)));
+        large.add(createRow(0, 0, 0L, new BigDecimal("1E+400"), longString.substring(1), new Date(0)));
+        check("large", large);
+
+        // columns not handled by the typed encoding
+        final List<Row> objects = new ArrayList<Row>();
+        objects.add(createRow(10, 1, new CustomDate(10), new BigDecimal(BigInteger.ONE.shiftLeft(100), 2), 'c', 0));
+        objects.add(createRow(5, 2L, new Date(10), new BigDecimal("1.5"), null, Short.valueOf((short) 3)));
+        objects.add(createRow(7, "3", null, null, 'd', Byte.valueOf((byte) 4)));
+        check("objects", objects);
+
+        // enough rows for the payload to be deflated
+        final Random r = new Random(1);
+        final List<Row> many = new ArrayList<Row>();
+        final String[] names = { "Dupont", "Durand", "Martin", "Bernard", null };
+        for (int i = 0; i < 5000; i++) {
+            many.add(createRow(i * 3 + 1, r.nextInt(), r.nextBoolean() ? null : (long) r.nextInt(1000), BigDecimal.valueOf(r.nextInt(1000000), 2), names[r.nextInt(names.length)], r.nextBoolean(),
+                    new java.sql.Date(1400000000000L + r.nextInt(1000) * 86400000L), new Timestamp(1400000000000L + r.nextInt())));
+        }
+        check("many", many);
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        time("many", many, count);
+        System.setProperty(RowsBulk.DEFLATE_PROP, "true");
+        try {
+            check("many deflated", many);
+            time("many deflated", many, count);
+        } finally {
+            System.clearProperty(RowsBulk.DEFLATE_PROP);
+        }
+    }
+}